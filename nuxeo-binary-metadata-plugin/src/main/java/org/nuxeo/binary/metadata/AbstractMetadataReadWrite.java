@@ -16,26 +16,63 @@
  */
 package org.nuxeo.binary.metadata;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.io.InputStream;
+import java.util.List;
 
+import org.nuxeo.binary.metadata.exiftool.ExifToolEngine;
+import org.nuxeo.binary.metadata.exiftool.ExifToolOutputHandler;
+import org.nuxeo.binary.metadata.exiftool.ExifToolResponse;
+import org.nuxeo.binary.metadata.scratch.ScratchFile;
+import org.nuxeo.binary.metadata.scratch.ScratchFiles;
+import org.nuxeo.binary.metadata.tools.ToolTimeoutException;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.platform.picture.api.BlobHelper;
-import org.nuxeo.runtime.api.Framework;
 
 /**
  *
  * @since 6.0
  */
-public abstract class AbstractMetadataReadWrite {
+public abstract class AbstractMetadataReadWrite implements Closeable {
 
+    /* Null until a copy is made when the blob has no file */
     protected String filePath = null;
 
     protected Blob originalBlob = null;
 
+    /* The copy of the blob, when it has no file and a tool needs one */
+    protected ScratchFile tempFile = null;
+
+    protected long timeoutMillis = -1;
+
+    /**
+     * Max. duration of each call to an external tool made by this instance.
+     * When it expires, the process is killed and a
+     * {@link ToolTimeoutException} is thrown.
+     *
+     * @param inTimeoutMillis -1 (default) for the timeout of the tool (see
+     *            {@link org.nuxeo.binary.metadata.tools.ToolDescriptor}), 0
+     *            for no timeout
+     *
+     * @since 7.3
+     */
+    public void setTimeout(long inTimeoutMillis) {
+        timeoutMillis = inTimeoutMillis;
+    }
+
+    public long getTimeout() {
+        return timeoutMillis;
+    }
+
+    /*
+     * The blob is copied to a temporary file only when a file is needed, see
+     * getFilePath(): ExifTool and identify can read some formats from their
+     * stdin
+     */
     protected void updateFilePath(Blob inBlob) throws IOException {
 
         originalBlob = inBlob;
@@ -43,25 +80,97 @@ public abstract class AbstractMetadataReadWrite {
             File f = BlobHelper.getFileFromBlob(originalBlob);
             filePath = f.getAbsolutePath();
         } catch (Exception e) {
-            filePath = "";
+            filePath = null;
+        }
+    }
+
+    /**
+     * @return true if the blob (or path) is a file, false if
+     *         {@link #getFilePath()} has to copy it
+     *
+     * @since 7.3
+     */
+    protected boolean hasFile() {
+        return filePath != null;
+    }
+
+    /**
+     * @return the path of the file, the blob being copied to a temporary file
+     *         the first time if it has no file
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    protected String getFilePath() throws IOException {
+
+        if (filePath == null && originalBlob != null) {
+            ScratchFile copy = ScratchFiles.create("MDRW-",
+                    originalBlob.getLength());
+            try {
+                originalBlob.transferTo(copy.getFile());
+                copy.reserve(copy.getFile().length());
+            } catch (IOException | RuntimeException e) {
+                copy.close();
+                throw e;
+            }
+            // Deleted when this instance is garbage collected if not closed
+            ScratchFiles.track(copy, this, null);
+            tempFile = copy;
+            filePath = tempFile.getPath();
         }
+        return filePath;
+    }
+
+    /**
+     * @return a new stream on the content, the caller closes it
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    protected InputStream openStream() throws IOException {
 
-        if (filePath.isEmpty()) {
-            File tempFile = File.createTempFile("MDRW-", "");
-            originalBlob.transferTo(tempFile);
-            filePath = tempFile.getAbsolutePath();
-            tempFile.deleteOnExit();
-            Framework.trackFile(tempFile, this);
+        if (filePath == null && originalBlob != null) {
+            return originalBlob.getStream();
         }
+        return new FileInputStream(filePath);
     }
 
-    protected String duplicateFile() throws IOException {
+    /**
+     * @return the size of the content, -1 if not known
+     *
+     * @since 7.3
+     */
+    protected long getLength() {
+
+        if (filePath == null && originalBlob != null) {
+            return originalBlob.getLength();
+        }
+        return new File(filePath).length();
+    }
 
-        File tempFile = File.createTempFile("MDRW-", "");
-        Files.copy(Paths.get(filePath), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        Framework.trackFile(tempFile, this);
+    /*
+     * Delete the copy of the blob, if any (after a timeout, we don't wait for
+     * the end of the transaction). The blob is copied again if the instance
+     * needs a file later.
+     */
+    protected void releaseTempFile() {
+        if (tempFile != null) {
+            tempFile.close();
+            tempFile = null;
+            filePath = null;
+        }
+    }
 
-        return tempFile.getAbsolutePath();
+    /**
+     * Delete the scratch files of this instance (copy of the blob, ...). The
+     * instance can't be used after this, the blobs it returned are not
+     * affected.
+     *
+     * @since 7.3
+     */
+    @Override
+    public void close() {
+        releaseTempFile();
     }
 
     protected Blob copyOriginalBlobInfoToBlob(Blob inBlob) {
@@ -75,6 +184,66 @@ public abstract class AbstractMetadataReadWrite {
         return inBlob;
     }
 
+    /**
+     * Run ExifTool (using the stay-open process, see {@link ExifToolEngine}).
+     * Throws an exception if ExifTool reported an error.
+     *
+     * @param inArgs the arguments, including the path to the file
+     * @return the response
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    protected ExifToolResponse runExifTool(List<String> inArgs)
+            throws ClientException {
+
+        ExifToolResponse response;
+        try {
+            response = ExifToolEngine.execute(inArgs, timeoutMillis);
+        } catch (IOException e) {
+            throw new ClientException(e);
+        } catch (ToolTimeoutException e) {
+            releaseTempFile();
+            throw e;
+        }
+
+        if (response.hasErrors()) {
+            throw new ClientException("ExifTool error: "
+                    + response.getErrors().trim());
+        }
+
+        return response;
+    }
+
+    /**
+     * Run ExifTool, inHandler reads the output while it is produced. Throws a
+     * ClientException if ExifTool reports an error.
+     *
+     * @param inArgs
+     * @param inHandler
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    protected void runExifTool(List<String> inArgs,
+            ExifToolOutputHandler inHandler) throws ClientException {
+
+        ExifToolResponse response;
+        try {
+            response = ExifToolEngine.execute(inArgs, inHandler, timeoutMillis);
+        } catch (IOException e) {
+            throw new ClientException(e);
+        } catch (ToolTimeoutException e) {
+            releaseTempFile();
+            throw e;
+        }
+
+        if (response.hasErrors()) {
+            throw new ClientException("ExifTool error: "
+                    + response.getErrors().trim());
+        }
+    }
+
     /**
      * Utility class to parse a line returned by a "get tag" command line
      * (identify, ...). Usually, such info is returned in kind-of formatted
@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.backends.BackendDescriptor;
+import org.nuxeo.binary.metadata.backends.MetadataBackends;
+import org.nuxeo.binary.metadata.cache.MetadataCache;
+import org.nuxeo.binary.metadata.cache.MetadataCacheDescriptor;
+import org.nuxeo.binary.metadata.exiftool.ExifToolEngine;
+import org.nuxeo.binary.metadata.exiftool.ExifToolPoolDescriptor;
+import org.nuxeo.binary.metadata.scratch.ScratchDescriptor;
+import org.nuxeo.binary.metadata.scratch.ScratchFiles;
+import org.nuxeo.binary.metadata.tools.ToolBulkheads;
+import org.nuxeo.binary.metadata.tools.ToolDescriptor;
+import org.nuxeo.binary.metadata.tools.ToolRegistry;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.ComponentInstance;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Holds the configuration of the plug-in.
+ * <p>
+ * The classes of the plug-in ({@link MetadataReader}, {@link MetadataWriter},
+ * ...) can be used without the component being deployed: They then use their
+ * default values. When a contribution is registered, the component just pushes
+ * it to the class that uses it.
+ *
+ * @since 7.3
+ */
+public class BinaryMetadataComponent extends DefaultComponent {
+
+    public static final String NAME = "org.nuxeo.binary.metadata.BinaryMetadataComponent";
+
+    public static final String XP_EXIFTOOL = "exiftool";
+
+    public static final String XP_TOOLS = "tools";
+
+    public static final String XP_BACKENDS = "backends";
+
+    public static final String XP_SCRATCH = "scratch";
+
+    public static final String XP_CACHE = "cache";
+
+    @Override
+    public void registerContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (XP_EXIFTOOL.equals(extensionPoint)) {
+            ExifToolEngine.configure((ExifToolPoolDescriptor) contribution);
+            ToolRegistry.reset(TOOL.EXIFTOOL);
+        } else if (XP_TOOLS.equals(extensionPoint)) {
+            ToolBulkheads.configure((ToolDescriptor) contribution);
+        } else if (XP_BACKENDS.equals(extensionPoint)) {
+            MetadataBackends.register((BackendDescriptor) contribution);
+        } else if (XP_SCRATCH.equals(extensionPoint)) {
+            ScratchFiles.configure((ScratchDescriptor) contribution);
+        } else if (XP_CACHE.equals(extensionPoint)) {
+            MetadataCache.configure((MetadataCacheDescriptor) contribution);
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (XP_EXIFTOOL.equals(extensionPoint)) {
+            ExifToolEngine.configure(null);
+            ToolRegistry.reset(TOOL.EXIFTOOL);
+        } else if (XP_TOOLS.equals(extensionPoint)) {
+            TOOL tool = ((ToolDescriptor) contribution).getTool();
+            if (tool != null) {
+                ToolBulkheads.reset(tool);
+            }
+        } else if (XP_BACKENDS.equals(extensionPoint)) {
+            MetadataBackends.unregister((BackendDescriptor) contribution);
+        } else if (XP_SCRATCH.equals(extensionPoint)) {
+            ScratchFiles.configure(null);
+        } else if (XP_CACHE.equals(extensionPoint)) {
+            MetadataCache.configure(null);
+        }
+    }
+
+    /*
+     * Probe the tools in background once all the contributions (ExifTool
+     * command, limits per tool, ...) are registered
+     */
+    @Override
+    public void applicationStarted(ComponentContext context) {
+        ToolRegistry.probeAsync();
+    }
+
+    @Override
+    public void activate(ComponentContext context) {
+        ToolBulkheads.registerMetrics();
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) {
+        ToolBulkheads.unregisterMetrics();
+        ExifToolEngine.shutdown();
+        MetadataCache.shutdown();
+        ScratchFiles.deleteAll();
+    }
+}
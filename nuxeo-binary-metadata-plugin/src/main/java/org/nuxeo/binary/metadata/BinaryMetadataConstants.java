@@ -43,6 +43,24 @@ public class BinaryMetadataConstants {
     public static final String[] DEFAULT_KEYS = { KEYS.WIDTH, KEYS.HEIGHT,
             KEYS.COLORSPACE, KEYS.RESOLUTION, KEYS.UNITS };
 
+    /**
+     * ImageMagick/GraphicsMagick keys whose value is computed from the pixels
+     * of the image: Reading them requires decoding the whole image. All the
+     * other values come from the header of the file, and can be read with
+     * <code>identify -ping</code>.
+     * <p>
+     * A key ending with ":" is the parent of nested values (
+     * "Channel statistics:" covers "Channel statistics:Red:mean", ...)
+     *
+     * @since 7.3
+     */
+    public static final String[] PIXEL_KEYS = { "Type", "Depth", "Colors",
+            "Channel depth:", "Channel statistics:", "Image statistics:",
+            "Channel moments:", "Image moments:",
+            "Channel perceptual hash:", "Histogram:", "Colormap:",
+            "Total ink density", "Number pixels", "Pixels per second",
+            "User time", "Elapsed time" };
+
     public class RESOLUTION_UNITS {
         public static final String PIXELS_PER_CENTIMETER = "PixelsPerCentimeter";
 
@@ -18,8 +18,7 @@ package org.nuxeo.binary.metadata;
 
 import java.util.HashMap;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
+import org.nuxeo.binary.metadata.tools.ToolRegistry;
 
 /**
  *
@@ -32,33 +31,19 @@ public class ExternalTools {
         IMAGEMAGICK, EXIFTOOL, GRAPHICSMAGICK
     };
 
+    /**
+     * Kept for compatibility, delegates to
+     * {@link org.nuxeo.binary.metadata.tools.ToolRegistry}, which probes the
+     * tools in background when the application starts.
+     */
     public static class ToolAvailability {
 
-        private static Log log = LogFactory.getLog(ToolAvailability.class);
-
-        protected static int exifToolAvailability = -1;
-
-        protected static String whyExifToolNotAvailable = "";
-
-        protected static int graphicsMagickAvailability = -1;
-
-        protected static String whyGraphicsMagickNotAvailable = "";
-
-        protected static boolean toolsAvailabilityChecked = false;
-
+        /**
+         * Start probing the tools if not already done. Does not wait, the
+         * registry logs a warning for each tool not available.
+         */
         public static void checkAndLogToolsAvailability() {
-
-            if (!toolsAvailabilityChecked) {
-                if (!isExifToolAvailable(false)) {
-                    log.warn("ExifTool is not available, some command may fail");
-                }
-
-                if (!isGraphicsMagickAvailable(false)) {
-                    log.warn("GraphicsMagick is not available, some command may fail");
-                }
-            }
-
-            toolsAvailabilityChecked = true;
+            ToolRegistry.probeAsync();
         }
 
         public static boolean isExifToolAvailable() {
@@ -66,23 +51,11 @@ public class ExternalTools {
         }
 
         public static boolean isExifToolAvailable(boolean inForceRetry) {
-
-            if (exifToolAvailability == -1 || inForceRetry) {
-
-                try {
-                    Runtime.getRuntime().exec("exiftool -ver");
-                    exifToolAvailability = 1;
-                } catch (Exception e) {
-                    exifToolAvailability = 0;
-                    whyExifToolNotAvailable = e.getMessage();
-                }
-            }
-
-            return exifToolAvailability == 1;
+            return isAvailable(TOOL.EXIFTOOL, inForceRetry);
         }
 
         public static String whyExifToolIsNotAvailable() {
-            return whyExifToolNotAvailable;
+            return ToolRegistry.get(TOOL.EXIFTOOL).getError();
         }
 
         public static boolean isGraphicsMagickAvailable() {
@@ -90,23 +63,33 @@ public class ExternalTools {
         }
 
         public static boolean isGraphicsMagickAvailable(boolean inForceRetry) {
+            return isAvailable(TOOL.GRAPHICSMAGICK, inForceRetry);
+        }
 
-            if (graphicsMagickAvailability == -1 || inForceRetry) {
+        public static String whyGraphicsMagickIsNotAvailable() {
+            return ToolRegistry.get(TOOL.GRAPHICSMAGICK).getError();
+        }
 
-                try {
-                    Runtime.getRuntime().exec("gm -version");
-                    graphicsMagickAvailability = 1;
-                } catch (Exception e) {
-                    graphicsMagickAvailability = 0;
-                    whyGraphicsMagickNotAvailable = e.getMessage();
-                }
-            }
+        /**
+         * @since 7.3
+         */
+        public static boolean isImageMagickAvailable() {
+            return isAvailable(TOOL.IMAGEMAGICK, false);
+        }
 
-            return graphicsMagickAvailability == 1;
+        /**
+         * @since 7.3
+         */
+        public static String whyImageMagickIsNotAvailable() {
+            return ToolRegistry.get(TOOL.IMAGEMAGICK).getError();
         }
 
-        public static String whyGraphicsMagickIsNotAvailable() {
-            return whyGraphicsMagickNotAvailable;
+        protected static boolean isAvailable(TOOL inTool, boolean inForceRetry) {
+
+            if (inForceRetry) {
+                ToolRegistry.reprobe(inTool);
+            }
+            return ToolRegistry.isAvailable(inTool);
         }
     }
 
@@ -0,0 +1,261 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.parsers.FormatSniffer;
+import org.nuxeo.binary.metadata.parsers.OoxmlMetadataReader;
+import org.nuxeo.binary.metadata.tools.ToolDescriptor;
+import org.nuxeo.binary.metadata.tools.ToolInfo;
+import org.nuxeo.binary.metadata.tools.ToolRegistry;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Tells, from the first bytes of a blob, if a tool can read it, before a
+ * {@link MetadataReader} is created (and the blob copied to a temporary file
+ * if needed) and before the tool is run.
+ * <p>
+ * A blob is not readable when:
+ * <ul>
+ * <li>It is empty</li>
+ * <li>It is plain text (CSV, JSON, ...) or a ZIP archive (including Office
+ * documents), and the tool is ImageMagick or GraphicsMagick</li>
+ * <li>Its format was detected (see {@link FormatSniffer}) and is not in the
+ * formats the tool can read (see {@link ToolRegistry})</li>
+ * </ul>
+ * When the format is not detected, the blob is accepted, the tool decides.
+ * <p>
+ * A skipped blob is not logged (debug level only): It is counted, by tool and
+ * mime type, see {@link #getSkippedCounts()}.
+ *
+ * @since 7.3
+ */
+public class MetadataPreFilter {
+
+    private static final Log log = LogFactory.getLog(MetadataPreFilter.class);
+
+    protected static final String EMPTY = "empty";
+
+    protected static final String AUTO = "Auto";
+
+    // Names of the formats in "identify -list format"
+    protected static final Map<String, String> MAGICK_FORMATS;
+
+    // Extensions in "exiftool -listr"
+    protected static final Map<String, String> EXIFTOOL_FORMATS;
+
+    protected static final ConcurrentHashMap<String, AtomicLong> skipped = new ConcurrentHashMap<String, AtomicLong>();
+
+    static {
+        HashMap<String, String> magick = new HashMap<String, String>();
+        magick.put("image/jpeg", "JPEG");
+        magick.put("image/png", "PNG");
+        magick.put("image/gif", "GIF");
+        magick.put("image/tiff", "TIFF");
+        magick.put("application/pdf", "PDF");
+        magick.put("video/mp4", "MP4");
+        magick.put("video/quicktime", "MOV");
+        magick.put("video/x-m4v", "M4V");
+        magick.put("video/3gpp", "3GP");
+        MAGICK_FORMATS = Collections.unmodifiableMap(magick);
+
+        HashMap<String, String> exiftool = new HashMap<String, String>();
+        exiftool.put("image/jpeg", "JPG");
+        exiftool.put("image/png", "PNG");
+        exiftool.put("image/gif", "GIF");
+        exiftool.put("image/tiff", "TIF");
+        exiftool.put("application/pdf", "PDF");
+        exiftool.put("video/mp4", "MP4");
+        exiftool.put("video/quicktime", "MOV");
+        exiftool.put("video/x-m4v", "M4V");
+        exiftool.put("audio/mp4", "M4A");
+        exiftool.put("video/3gpp", "3GP");
+        exiftool.put(OoxmlMetadataReader.MIME_TYPES[0], "DOCX");
+        exiftool.put(OoxmlMetadataReader.MIME_TYPES[1], "PPTX");
+        exiftool.put(OoxmlMetadataReader.MIME_TYPES[2], "XLSX");
+        exiftool.put(FormatSniffer.TEXT_MIME_TYPE, "TXT");
+        exiftool.put(FormatSniffer.ZIP_MIME_TYPE, "ZIP");
+        EXIFTOOL_FORMATS = Collections.unmodifiableMap(exiftool);
+    }
+
+    /**
+     * Same as {@link #canRead(Blob, TOOL)}, but a blob which cannot be read
+     * is counted
+     *
+     * @param inBlob
+     * @param inTool null for the "Auto" tool (see
+     *            {@link MetadataReader#readMetadataAuto(String[], MetadataReader.READ_MODE)}
+     *            )
+     * @return true if the metadata of the blob must be read
+     *
+     * @since 7.3
+     */
+    public static boolean accept(Blob inBlob, TOOL inTool) {
+
+        String mimeType = sniff(inBlob);
+        if (canRead(mimeType, inTool)) {
+            return true;
+        }
+
+        String toolName = inTool == null ? AUTO : ToolDescriptor.toName(inTool);
+        countSkipped(toolName + ": " + mimeType);
+        if (log.isDebugEnabled()) {
+            log.debug("Skipped, " + toolName + " cannot read " + mimeType
+                    + ": " + inBlob.getFilename());
+        }
+        return false;
+    }
+
+    /**
+     * @param inBlob
+     * @param inTool null for the "Auto" tool
+     * @return false if the tool cannot read the blob
+     *
+     * @since 7.3
+     */
+    public static boolean canRead(Blob inBlob, TOOL inTool) {
+        return canRead(sniff(inBlob), inTool);
+    }
+
+    /**
+     * @param inBlob
+     * @return the mime type detected from the first bytes, "empty" for an
+     *         empty blob, null if not detected
+     *
+     * @since 7.3
+     */
+    public static String sniff(Blob inBlob) {
+
+        if (inBlob.getLength() == 0) {
+            return EMPTY;
+        }
+        try (InputStream stream = inBlob.getStream()) {
+            if (stream == null) {
+                return null;
+            }
+            // The length of a blob is not always known
+            ByteBuffer head = FormatSniffer.readHead(stream);
+            return head.limit() == 0 ? EMPTY : FormatSniffer.sniff(head);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param inMimeType as detected by {@link #sniff(Blob)}, null if not
+     *            known
+     * @param inTool null for the "Auto" tool
+     * @return false if the tool cannot read this format
+     *
+     * @since 7.3
+     */
+    public static boolean canRead(String inMimeType, TOOL inTool) {
+
+        if (EMPTY.equals(inMimeType)) {
+            return false;
+        }
+        if (inMimeType == null) {
+            return true;
+        }
+        if (inTool == null) {
+            for (TOOL tool : TOOL.values()) {
+                if (canRead(inMimeType, tool)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Map<String, String> formats = EXIFTOOL_FORMATS;
+        if (inTool != TOOL.EXIFTOOL) {
+            if (FormatSniffer.isGeneric(inMimeType)
+                    || OoxmlMetadataReader.isOoxmlMimeType(inMimeType)) {
+                return false;
+            }
+            formats = MAGICK_FORMATS;
+        }
+
+        // Not probed yet, or not installed: the read decides
+        ToolInfo info = ToolRegistry.getIfProbed(inTool);
+        String format = formats.get(inMimeType);
+        if (info == null || !info.isAvailable() || format == null) {
+            return true;
+        }
+        return info.canRead(format);
+    }
+
+    protected static void countSkipped(String inKey) {
+
+        AtomicLong count = skipped.get(inKey);
+        if (count == null) {
+            count = new AtomicLong();
+            AtomicLong existing = skipped.putIfAbsent(inKey, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return the number of blobs skipped, by "tool: mime type" (
+     *         "ImageMagick: text/plain", "ExifTool: empty", ...), since the
+     *         start or the last {@link #resetStatistics()}
+     *
+     * @since 7.3
+     */
+    public static Map<String, Long> getSkippedCounts() {
+
+        HashMap<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : skipped.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * @return the total number of blobs skipped
+     *
+     * @since 7.3
+     */
+    public static long getSkippedCount() {
+
+        long total = 0;
+        for (AtomicLong count : skipped.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * @since 7.3
+     */
+    public static void resetStatistics() {
+        skipped.clear();
+    }
+}
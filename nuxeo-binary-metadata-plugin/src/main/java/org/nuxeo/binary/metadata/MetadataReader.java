@@ -17,21 +17,45 @@
 package org.nuxeo.binary.metadata;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Properties;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import org.im4java.core.ETOperation;
-import org.im4java.core.ExiftoolCmd;
-import org.im4java.core.IM4JavaException;
-import org.im4java.core.Info;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.im4java.core.InfoException;
-import org.im4java.process.ArrayListOutputConsumer;
 import org.nuxeo.binary.metadata.ExternalTools.TOOL;
 import org.nuxeo.binary.metadata.BinaryMetadataConstants.*;
-import org.nuxeo.binary.metadata.im4java.StringOutputConsumer;
+import org.nuxeo.binary.metadata.backends.ExifToolBackend;
+import org.nuxeo.binary.metadata.backends.MetadataBackend;
+import org.nuxeo.binary.metadata.backends.MetadataBackends;
+import org.nuxeo.binary.metadata.backends.MetadataRouter;
+import org.nuxeo.binary.metadata.backends.MetadataSource;
+import org.nuxeo.binary.metadata.backends.StreamChannel;
+import org.nuxeo.binary.metadata.cache.MetadataCache;
+import org.nuxeo.binary.metadata.exiftool.ExifToolEngine;
+import org.nuxeo.binary.metadata.exiftool.ExifToolJsonParser;
+import org.nuxeo.binary.metadata.exiftool.ExifToolOutputHandler;
+import org.nuxeo.binary.metadata.exiftool.ExifToolResponse;
+import org.nuxeo.binary.metadata.im4java.IdentifyFormatReader;
+import org.nuxeo.binary.metadata.im4java.IdentifyVerboseReader;
+import org.nuxeo.binary.metadata.parsers.ExifReader;
+import org.nuxeo.binary.metadata.parsers.ImageHeaderParser;
+import org.nuxeo.binary.metadata.parsers.IsoBmffReader;
+import org.nuxeo.binary.metadata.parsers.OoxmlMetadataReader;
+import org.nuxeo.binary.metadata.parsers.PdfMetadataReader;
+import org.nuxeo.binary.metadata.parsers.XmpExtractor;
+import org.nuxeo.binary.metadata.tools.ToolDescriptor;
+import org.nuxeo.binary.metadata.tools.ToolTimeoutException;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
 
@@ -47,6 +71,12 @@ import org.nuxeo.ecm.core.api.ClientException;
  * Knowing the tool used and the tag it expects is an important part of
  * successfully using this class. See the documentation of each tool.
  * <p>
+ * The tool tells which names and formats are expected, not how the values are
+ * read: Each read is done by the cheapest backend compatible with the tool
+ * which can answer (in Java when possible, see
+ * {@link org.nuxeo.binary.metadata.backends.MetadataBackends}), the tool
+ * itself being the last resort.
+ * <p>
  * For files such as PDFs, Word, PowerPoint, ..., as of "today" (2014-11) we
  * recommend using ExifTool to get general info about the file. This is because
  * ImageMagick/GraphicsMagick:
@@ -54,7 +84,8 @@ import org.nuxeo.ecm.core.api.ClientException;
  * <li>Sometime just fail getting the info</li>
  * <li>and Return info only about the last or last-1 "page" (or slide).
  * <ul>
- * <li>NOTE: The later is the way the <code>Info</code> class of im4java works,
+ * <li>NOTE: The later is the way the <code>Info</code> class of im4java works
+ * (and {@link IdentifyVerboseReader}, which parses the output the same way),
  * it is not a limitation os IM/GM themselves (but a call to identify -verbose
  * on a video returns a _very_ long string, with info about each and every
  * frame)</li>
@@ -69,9 +100,29 @@ import org.nuxeo.ecm.core.api.ClientException;
  */
 public class MetadataReader extends AbstractMetadataReadWrite {
 
-    // private static Log log = LogFactory.getLog(MetadataReader.class);
+    private static Log log = LogFactory.getLog(MetadataReader.class);
+
+    /**
+     * How ImageMagick and GraphicsMagick read the file, see
+     * {@link MetadataReader#readMetadata(String[], TOOL, READ_MODE)}
+     *
+     * @since 7.3
+     */
+    public enum READ_MODE {
+        AUTO, HEADER_ONLY, FULL
+    }
+
+    /**
+     * Max. number of files passed to one ExifTool command by
+     * {@link #readMetadataBatch(List, String[], TOOL)}
+     */
+    public static final int BATCH_SIZE = 200;
 
-    protected static String SYNC_STRING = "MetadataReader - lock";
+    /*
+     * The content of the blob, shared by the reads of this instance (so the
+     * window of a blob without a file is read once). Closed with the reader
+     */
+    protected MetadataSource source = null;
 
     /**
      * Constructor
@@ -96,35 +147,6 @@ public class MetadataReader extends AbstractMetadataReadWrite {
         ExternalTools.ToolAvailability.checkAndLogToolsAvailability();
     }
 
-    /*
-     * If we want to use GraphicsMagick without using the dedictaed im4java
-     * class, we must dynamically change a System property. We want to protect
-     * the global change to im4java. For non blocking use of GraohicsMagick, use
-     * the dedicated classes: GMOperation and GraphicsMagickCmd
-     */
-    protected synchronized Info getInfo(boolean inUseGM) throws ClientException {
-
-        Properties props = null;
-        Info info = null;
-
-        if (inUseGM) {
-            props = System.getProperties();
-            props.setProperty("im4java.useGM", "true");
-        }
-
-        try {
-            info = new Info(filePath);
-        } catch (InfoException e) {
-            throw new ClientException(e);
-        } finally {
-            if (inUseGM) {
-                props.setProperty("im4java.useGM", "false");
-            }
-        }
-
-        return info;
-    }
-
     public String readOneMetadata(String inKey) throws InfoException {
         return readOneMetadata(inKey, TOOL.IMAGEMAGICK);
     }
@@ -183,13 +205,22 @@ public class MetadataReader extends AbstractMetadataReadWrite {
                 result += oneProp + "=" + r.get(oneProp) + "\n";
             }
         } else {
-            Info info = getInfo(inToolToUse == TOOL.GRAPHICSMAGICK);
-
-            Enumeration<String> props = info.getPropertyNames();
-            while (props.hasMoreElements()) {
-                String propertyName = props.nextElement();
-                result += propertyName + "=" + info.getProperty(propertyName)
-                        + "\n";
+            String namespace = MetadataCache.namespace(inToolToUse,
+                    READ_MODE.FULL, null);
+            HashMap<String, Object> r = MetadataCache.get(getDigest(),
+                    namespace, null);
+            if (r == null) {
+                try {
+                    r = getToolBackend(inToolToUse).readAll(
+                            newSource(READ_MODE.FULL));
+                } catch (ToolTimeoutException e) {
+                    releaseTempFile();
+                    throw e;
+                }
+                MetadataCache.put(getDigest(), namespace, null, r);
+            }
+            for (String oneProp : r.keySet()) {
+                result += oneProp + "=" + r.get(oneProp) + "\n";
             }
         }
 
@@ -200,8 +231,23 @@ public class MetadataReader extends AbstractMetadataReadWrite {
      * If inTheseKeys is null or its length is 0, all properties the tool can
      * extract are returned.
      * <p>
-     * When used with ImageMagick or GraphicsMagick, the method uses the
-     * <code>Info</code> class of im4java.
+     * When used with ImageMagick or GraphicsMagick, the method parses the
+     * output of <code>identify -verbose</code> (see
+     * {@link IdentifyVerboseReader}). When all the keys can be read with
+     * <code>identify -format</code> (such as the
+     * {@link BinaryMetadataConstants#DEFAULT_KEYS} with ImageMagick),
+     * {@link IdentifyFormatReader} is used instead, which is much faster on
+     * big images.
+     * <p>
+     * Even faster, the size, colorspace and resolution of JPEG, PNG, GIF and
+     * TIFF images are read in Java from the header of the file (see
+     * {@link ImageHeaderParser}, used by the "ImageHeader" backend), without
+     * running the tool at all. The tool is used when the format or one of the
+     * keys is not handled, or with {@link READ_MODE#FULL}.
+     * <p>
+     * Same as {@link #readMetadata(String[], TOOL, READ_MODE)} with
+     * {@link READ_MODE#AUTO}: When none of the keys requires decoding the
+     * pixels, ImageMagick/GraphicsMagick read only the header of the file.
      * <p>
      * When used with ExifTool it just calls getMetadataWithExifTool() (see this
      * method). Notice the keys are not the same when used with ImageMagick or
@@ -220,57 +266,258 @@ public class MetadataReader extends AbstractMetadataReadWrite {
      */
     public HashMap<String, String> readMetadata(String[] inTheseKeys,
             TOOL inToolToUse) throws ClientException {
+        return readMetadata(inTheseKeys, inToolToUse, READ_MODE.AUTO);
+    }
 
-        HashMap<String, String> result = new HashMap<String, String>();
+    /**
+     * Same as {@link #readMetadata(String[], TOOL)}, with the way
+     * ImageMagick/GraphicsMagick read the file (ignored with ExifTool):
+     * <ul>
+     * <li>{@link READ_MODE#HEADER_ONLY}: The pixels are not decoded (
+     * <code>identify -ping</code>). Much faster and less memory on big images,
+     * but the values computed from the pixels (see
+     * {@link BinaryMetadataConstants#PIXEL_KEYS}) are not returned or not
+     * accurate</li>
+     * <li>{@link READ_MODE#FULL}: The whole image is decoded, by the tool
+     * (never by {@link ImageHeaderParser})</li>
+     * <li>{@link READ_MODE#AUTO}: HEADER_ONLY if keys are passed and none of
+     * them requires the pixels, FULL otherwise</li>
+     * </ul>
+     *
+     * @param inTheseKeys
+     * @param inToolToUse
+     * @param inMode
+     * @return a hash map with the values. A key not found is in the map with a
+     *         value of ""
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public HashMap<String, String> readMetadata(String[] inTheseKeys,
+            TOOL inToolToUse, READ_MODE inMode) throws ClientException {
 
+        if (inToolToUse == TOOL.EXIFTOOL) {
+            return readMetadataWithExifTool(inTheseKeys);
+        }
+        return ExifToolJsonParser.toExifToolStrings(readWithBackends(
+                inToolToUse, inTheseKeys, inMode));
+    }
+
+    /**
+     * Read the values with the cheapest backend compatible with the tool
+     * which can answer (see {@link MetadataBackends#getCandidates}), unless
+     * they are in the {@link MetadataCache}.
+     *
+     * @param inCompatibility
+     * @param inTheseKeys
+     * @param inMode
+     * @return the values, as returned by the backend
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    protected HashMap<String, Object> readWithBackends(TOOL inCompatibility,
+            String[] inTheseKeys, READ_MODE inMode) throws ClientException {
+
+        String namespace = MetadataCache.namespace(inCompatibility, inMode,
+                inTheseKeys);
+        HashMap<String, Object> cached = MetadataCache.get(getDigest(),
+                namespace, inTheseKeys);
+        if (cached != null) {
+            return cached;
+        }
+
+        MetadataSource source = newSource(inMode);
         try {
-            if (inToolToUse == TOOL.EXIFTOOL) {
+            List<MetadataBackend> candidates = MetadataBackends.getCandidates(
+                    inCompatibility, source, inTheseKeys);
+            for (int i = 0; i < candidates.size(); i++) {
+                MetadataBackend backend = candidates.get(i);
+                HashMap<String, Object> result = MetadataBackends.readOrSkip(
+                        backend, source, inTheseKeys,
+                        i < candidates.size() - 1);
+                if (result != null) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Read by " + backend.getName() + ": "
+                                + source);
+                    }
+                    MetadataCache.put(getDigest(), namespace, inTheseKeys,
+                            result);
+                    return result;
+                }
+            }
+        } catch (ToolTimeoutException e) {
+            releaseTempFile();
+            throw e;
+        }
+        throw new ClientException("No backend can read the metadata with "
+                + ToolDescriptor.toName(inCompatibility)
+                + " names: is the tool installed?");
+    }
 
-                result = readMetadataWithExifTool(inTheseKeys);
+    /**
+     * Read the values without choosing a tool: Each key is read by the
+     * cheapest backend which can read it, with the names and values of
+     * ImageMagick for its well known keys ({@link KEYS}, and the keys
+     * computed from the pixels), of ExifTool for any other key. See
+     * {@link MetadataRouter}.
+     * <p>
+     * inMode is used for the ImageMagick keys, see
+     * {@link #readMetadata(String[], TOOL, READ_MODE)}.
+     *
+     * @param inTheseKeys if null or empty, all the values are returned (with
+     *            ExifTool if it is installed)
+     * @param inMode
+     * @return a hash map with the values. A key not found is in the map with a
+     *         value of ""
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public HashMap<String, String> readMetadataAuto(String[] inTheseKeys,
+            READ_MODE inMode) throws ClientException {
+
+        String namespace = MetadataCache.namespace(null, inMode, inTheseKeys);
+        HashMap<String, Object> values = MetadataCache.get(getDigest(),
+                namespace, inTheseKeys);
+        if (values == null) {
+            try {
+                values = MetadataRouter.read(newSource(inMode), inTheseKeys);
+            } catch (ToolTimeoutException e) {
+                releaseTempFile();
+                throw e;
+            }
+            MetadataCache.put(getDigest(), namespace, inTheseKeys, values);
+        }
+        HashMap<String, String> result = ExifToolJsonParser.toExifToolStrings(values);
+        addMissingKeys(result, inTheseKeys);
 
-            } else {
+        return result;
+    }
+
+    /*
+     * The key of the blob in the MetadataCache, null if it has none (or if
+     * the reader was created with a path)
+     */
+    protected String getDigest() {
+        return originalBlob == null ? null : originalBlob.getDigest();
+    }
 
-                Info info = getInfo(inToolToUse == TOOL.GRAPHICSMAGICK);
-                if (inTheseKeys == null || inTheseKeys.length == 0) {
+    protected MetadataSource newSource(READ_MODE inMode) {
 
-                    Enumeration<String> props = info.getPropertyNames();
-                    while (props.hasMoreElements()) {
-                        String propertyName = props.nextElement();
-                        result.put(propertyName, info.getProperty(propertyName));
+        if (source == null) {
+            source = newBaseSource();
+        }
+        MetadataSource copy = source.withMimeType(source.getMimeType());
+        copy.setTimeoutMillis(timeoutMillis);
+        copy.setReadMode(inMode);
+        return copy;
+    }
+
+    protected MetadataSource newBaseSource() {
+
+        return new MetadataSource(
+                new MetadataSource.Content() {
+                    @Override
+                    public boolean hasFile() {
+                        return MetadataReader.this.hasFile();
                     }
 
-                } else {
-                    for (String oneProp : inTheseKeys) {
-                        String value = "";
+                    @Override
+                    public String getFilePath() throws IOException {
+                        return MetadataReader.this.getFilePath();
+                    }
 
-                        if (oneProp != null && !oneProp.isEmpty()) {
-                            value = info.getProperty(oneProp);
-                            if (value == null) {
-                                value = "";
-                            }
-                        }
-                        result.put(oneProp, value);
+                    @Override
+                    public InputStream openStream() throws IOException {
+                        return MetadataReader.this.openStream();
                     }
 
-                    // Handle special case(s)
-                    // - Re-align resolution to 72x72 for GIF
-                    String keyResolution = KEYS.RESOLUTION;
-                    if (result.containsKey(keyResolution)
-                            && result.get(keyResolution).isEmpty()) {
-                        String format = info.getProperty(KEYS.FORMAT);
-                        format = format.toLowerCase();
-                        if (format.indexOf("gif") == 0) {
-                            result.put(keyResolution, "72x72");
+                    @Override
+                    public SeekableByteChannel openChannel()
+                            throws IOException {
+                        if (MetadataReader.this.hasFile()) {
+                            return FileChannel.open(
+                                    Paths.get(MetadataReader.this.getFilePath()),
+                                    StandardOpenOption.READ);
                         }
+                        return new StreamChannel(this);
                     }
-                }
+
+                    @Override
+                    public long getLength() {
+                        return MetadataReader.this.getLength();
+                    }
+
+                    @Override
+                    public String toString() {
+                        return filePath != null ? filePath
+                                : "<" + originalBlob.getFilename() + ">";
+                    }
+                }, originalBlob == null ? null : originalBlob.getMimeType());
+    }
+
+    /**
+     * Delete the scratch files of this reader (copy of the blob, window of
+     * its metadata, ...)
+     *
+     * @since 7.3
+     */
+    @Override
+    public void close() {
+        try {
+            if (source != null) {
+                source.close();
+                source = null;
             }
-        } catch (ClientException e) {
-            throw e;
         } finally {
+            super.close();
+        }
+    }
 
+    protected static MetadataBackend getToolBackend(TOOL inTool)
+            throws ClientException {
+
+        MetadataBackend backend = MetadataBackends.getToolBackend(inTool);
+        if (backend == null) {
+            throw new ClientException("The "
+                    + ToolDescriptor.toName(inTool) + " backend is disabled");
         }
-        return result;
+        return backend;
+    }
+
+    /**
+     * @param inTheseKeys
+     * @return true if one of the keys is computed from the pixels by
+     *         ImageMagick/GraphicsMagick (see
+     *         {@link BinaryMetadataConstants#PIXEL_KEYS}), or if there is no
+     *         key (all the values are requested)
+     *
+     * @since 7.3
+     */
+    public static boolean requiresPixels(String[] inTheseKeys) {
+
+        if (inTheseKeys == null || inTheseKeys.length == 0) {
+            return true;
+        }
+
+        for (String oneProp : inTheseKeys) {
+            if (oneProp == null || oneProp.isEmpty()) {
+                continue;
+            }
+            for (String pixelKey : BinaryMetadataConstants.PIXEL_KEYS) {
+                if (pixelKey.endsWith(":")) {
+                    if (oneProp.startsWith(pixelKey)
+                            || oneProp.equals(pixelKey.substring(0,
+                                    pixelKey.length() - 1))) {
+                        return true;
+                    }
+                } else if (oneProp.equals(pixelKey)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -289,7 +536,12 @@ public class MetadataReader extends AbstractMetadataReadWrite {
     }
 
     /**
-     * Uses ExifTool to extract the XML from the blob.
+     * Extract the XMP from the blob.
+     * <p>
+     * The packet of JPEG, TIFF, PNG and PDF files is read in Java (see
+     * {@link XmpExtractor}). ExifTool is used for the other formats, and when
+     * the file is not a simple case (extended XMP, compressed PDF metadata,
+     * ...).
      *
      * @return the whole XMP as XML String
      * @throws ClientException
@@ -298,25 +550,53 @@ public class MetadataReader extends AbstractMetadataReadWrite {
      */
     public String readXMP() throws ClientException {
 
+        String cached = MetadataCache.getXMP(getDigest());
+        if (cached != null) {
+            return cached;
+        }
+
+        MetadataSource source = newSource(READ_MODE.AUTO);
         try {
-            ETOperation op = new ETOperation();
-            op.getTags("xmp", "b");
-            op.addImage();
-
-            // setup command and execute it (capture output)
-            StringOutputConsumer output = new StringOutputConsumer();
-            ExiftoolCmd et = new ExiftoolCmd();
-            et.setOutputConsumer(output);
-            et.run(op, filePath);
-            return output.getOutput();
-
-        } catch (IOException e) {
-            throw new ClientException(e);
-        } catch (InterruptedException e) {
-            throw new ClientException(e);
-        } catch (IM4JavaException e) {
-            throw new ClientException(e);
+            List<MetadataBackend> candidates = MetadataBackends.getXMPCandidates(source);
+            for (int i = 0; i < candidates.size(); i++) {
+                String xmp = MetadataBackends.readXMPOrSkip(candidates.get(i),
+                        source, i < candidates.size() - 1);
+                if (xmp != null) {
+                    MetadataCache.putXMP(getDigest(), xmp);
+                    return xmp;
+                }
+            }
+        } catch (ToolTimeoutException e) {
+            releaseTempFile();
+            throw e;
+        }
+        throw new ClientException(
+                "No backend can read the XMP: is ExifTool installed?");
+    }
+
+    /**
+     * Uses ExifTool to extract the XML from the blob (
+     * <code>exiftool -xmp -b</code>).
+     *
+     * @return the whole XMP as XML String
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public String readXMPWithExifTool() throws ClientException {
+
+        String xmp = MetadataCache.getXMP(getDigest());
+        if (xmp == null) {
+            try {
+                xmp = getToolBackend(TOOL.EXIFTOOL).readXMP(
+                        newSource(READ_MODE.AUTO));
+            } catch (ToolTimeoutException e) {
+                releaseTempFile();
+                throw e;
+            }
+            MetadataCache.putXMP(getDigest(), xmp);
         }
+        return xmp;
     }
 
     /**
@@ -337,55 +617,246 @@ public class MetadataReader extends AbstractMetadataReadWrite {
     public HashMap<String, String> readMetadataWithExifTool(String[] inTheseKeys)
             throws ClientException {
 
-        HashMap<String, String> result = new HashMap<String, String>();
+        HashMap<String, String> result = ExifToolJsonParser.toExifToolStrings(
+                readMetadataWithExifToolTyped(inTheseKeys));
 
-        try {
-            boolean hasKeys = inTheseKeys != null && inTheseKeys.length > 0;
+        // Add the not-found values
+        addMissingKeys(result, inTheseKeys);
 
-            ETOperation op = new ETOperation();
-            if (hasKeys) {
-                for (String oneProp : inTheseKeys) {
-                    if (oneProp != null && !oneProp.isEmpty()) {
-                        op.getTags(oneProp);
-                    }
+        return result;
+    }
+
+    /**
+     * Same as {@link #readMetadataWithExifTool(String[])}, but the values are
+     * returned as parsed from the JSON output of ExifTool (
+     * <code>-j -struct</code>): String, Number, Boolean, List (for list tags,
+     * such as XMP-dc:Subject) or Map (for structured tags). A key not found is
+     * not in the map.
+     * <p>
+     * The output is parsed while ExifTool writes it, and only the requested
+     * keys are kept.
+     * <p>
+     * When all the keys are EXIF tags supported by {@link ExifReader} (Make,
+     * Model, DateTimeOriginal, ExposureTime, ...) and are found in the EXIF
+     * of a JPEG or TIFF file, they are read in Java, with the same names and
+     * formatting, and ExifTool is not run. The same goes for the document
+     * information of a PDF ({@link PdfMetadataReader}: Producer, CreateDate,
+     * PageCount, ...) and the document properties of Office files (
+     * {@link OoxmlMetadataReader}: Creator, Pages, Words, Slides, ...) and
+     * the main properties of MP4/MOV videos ({@link IsoBmffReader}: Duration,
+     * ImageWidth, VideoFrameRate, ...).
+     *
+     * @param inTheseKeys
+     * @return a hash map with the values
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public HashMap<String, Object> readMetadataWithExifToolTyped(
+            String[] inTheseKeys) throws ClientException {
+
+        return readWithBackends(TOOL.EXIFTOOL, inTheseKeys, READ_MODE.AUTO);
+    }
+
+    /**
+     * Read the same keys from several blobs.
+     * <p>
+     * With ExifTool, the files are passed to a single ExifTool command (by
+     * groups of {@link #BATCH_SIZE} files) using the JSON output (
+     * <code>-j -struct</code>), and the result is dispatched to each file. A
+     * blob which is not a file is read alone, as with
+     * {@link #readMetadata(String[], TOOL)} (through a prefix window or the
+     * stdin of ExifTool when possible), so it is not copied to a file. With
+     * ImageMagick and GraphicsMagick, the files are read one after the other.
+     * <p>
+     * A file that cannot be read does not fail the batch: Its result contains
+     * the requested keys with a value of "" (plus, with ExifTool, an "Error"
+     * key when ExifTool explains the problem). A blob the tool cannot read at
+     * all (empty, plain text with ImageMagick, ..., see
+     * {@link MetadataPreFilter}) is not even passed to the tool.
+     *
+     * @param inBlobs
+     * @param inTheseKeys if null or empty, all the values are returned
+     * @param inToolToUse
+     * @return one map per blob, in the same order as inBlobs
+     *
+     * @since 7.3
+     */
+    public static List<HashMap<String, String>> readMetadataBatch(
+            List<Blob> inBlobs, String[] inTheseKeys, TOOL inToolToUse) {
+
+        // The blobs the tool cannot read (see MetadataPreFilter) are skipped
+        ArrayList<Blob> readable = new ArrayList<Blob>(inBlobs.size());
+        boolean[] skipped = new boolean[inBlobs.size()];
+        for (int i = 0; i < skipped.length; i++) {
+            skipped[i] = !MetadataPreFilter.accept(inBlobs.get(i), inToolToUse);
+            if (!skipped[i]) {
+                readable.add(inBlobs.get(i));
+            }
+        }
+
+        ArrayList<HashMap<String, String>> read = new ArrayList<HashMap<String, String>>(
+                readable.size());
+        if (inToolToUse == TOOL.EXIFTOOL) {
+            for (int start = 0; start < readable.size(); start += BATCH_SIZE) {
+                int end = Math.min(start + BATCH_SIZE, readable.size());
+                read.addAll(readBatchWithExifTool(readable.subList(start, end),
+                        inTheseKeys));
+            }
+        } else {
+            for (Blob blob : readable) {
+                HashMap<String, String> oneResult;
+                try (MetadataReader reader = new MetadataReader(blob)) {
+                    oneResult = reader.readMetadata(inTheseKeys, inToolToUse);
+                } catch (IOException | ClientException e) {
+                    log.warn("Cannot read the metadata of <"
+                            + blob.getFilename() + ">: " + e.getMessage());
+                    oneResult = new HashMap<String, String>();
+                    addMissingKeys(oneResult, inTheseKeys);
                 }
+                read.add(oneResult);
+            }
+        }
+
+        ArrayList<HashMap<String, String>> results = new ArrayList<HashMap<String, String>>(
+                inBlobs.size());
+        int next = 0;
+        for (boolean oneSkipped : skipped) {
+            if (oneSkipped) {
+                HashMap<String, String> oneResult = new HashMap<String, String>();
+                addMissingKeys(oneResult, inTheseKeys);
+                results.add(oneResult);
             } else {
-                op.getTags("All");
+                results.add(read.get(next));
+                next += 1;
             }
+        }
 
-            op.addImage();
+        return results;
+    }
 
-            // We don't want the output as Human Readable. We want "ImageWidth",
-            // "XResolution", and not "Image Width", "X Resolution" for example
-            op.addRawArgs("-s");
+    /*
+     * The blobs which are files are read with one ExifTool command. The others
+     * are read one by one, like a single blob (prefix window, stdin, ...), so
+     * they are not copied entirely
+     */
+    protected static List<HashMap<String, String>> readBatchWithExifTool(
+            List<Blob> inBlobs, final String[] inTheseKeys) {
 
-            // Run
-            ArrayListOutputConsumer output = new ArrayListOutputConsumer();
-            ExiftoolCmd et = new ExiftoolCmd();
-            et.setOutputConsumer(output);
-            et.run(op, filePath);
+        String[] paths = new String[inBlobs.size()];
+        MetadataReader[] readers = new MetadataReader[inBlobs.size()];
+        try {
+            ArrayList<String> args = new ArrayList<String>();
+            args.add("-j");
+            args.add("-struct");
+            ExifToolBackend.addTagArgs(args, inTheseKeys);
+            int fileCount = 0;
+            for (int i = 0; i < paths.length; i++) {
+                try {
+                    readers[i] = new MetadataReader(inBlobs.get(i));
+                    if (readers[i].hasFile()) {
+                        paths[i] = readers[i].getFilePath();
+                        args.add(paths[i]);
+                        fileCount += 1;
+                    }
+                } catch (IOException | ClientException e) {
+                    // Like a file that cannot be read
+                    log.warn("Cannot read <" + inBlobs.get(i).getFilename()
+                            + ">: " + e.getMessage());
+                }
+            }
 
-            // Get the values
-            FilterLine fl = new FilterLine();
-            ArrayList<String> cmdOutput = output.getOutput();
-            for (String line : cmdOutput) {
-                fl.setLine(line);
-                result.put(fl.getKey(), fl.getValue());
+            // Run and dispatch the values. ExifTool returns the path as it
+            // received it, possibly with / instead of \ on Windows
+            final HashMap<String, HashMap<String, String>> byPath = new HashMap<String, HashMap<String, String>>();
+            if (fileCount > 0) {
+                try {
+                    ExifToolResponse response = ExifToolEngine.execute(args,
+                            new ExifToolOutputHandler() {
+                                @Override
+                                public void handle(InputStream inOutput)
+                                        throws IOException {
+                                    ExifToolJsonParser parser = new ExifToolJsonParser(
+                                            new InputStreamReader(inOutput,
+                                                    StandardCharsets.UTF_8),
+                                            inTheseKeys);
+                                    for (HashMap<String, String> oneFile : parser.parseAll()) {
+                                        String path = oneFile.get(ExifToolJsonParser.SOURCE_FILE);
+                                        if (path != null) {
+                                            byPath.put(path.replace('\\', '/'),
+                                                    oneFile);
+                                        }
+                                    }
+                                }
+                            });
+                    if (!response.getErrors().isEmpty()) {
+                        log.debug("ExifTool batch errors: "
+                                + response.getErrors());
+                    }
+                } catch (IOException e) {
+                    log.warn("Cannot read metadata of " + fileCount
+                            + " files with ExifTool: " + e.getMessage());
+                } catch (ToolTimeoutException e) {
+                    log.warn("Cannot read metadata of " + fileCount
+                            + " files with ExifTool: " + e.getMessage());
+                }
             }
 
-            // Add the not-found values
-            if (hasKeys) {
+            ArrayList<HashMap<String, String>> results = new ArrayList<HashMap<String, String>>(
+                    paths.length);
+            boolean wantsSourceFile = false;
+            if (inTheseKeys != null) {
                 for (String oneProp : inTheseKeys) {
-                    if (!result.containsKey(oneProp)) {
-                        result.put(oneProp, "");
+                    wantsSourceFile |= ExifToolJsonParser.SOURCE_FILE.equals(oneProp);
+                }
+            }
+            for (int i = 0; i < paths.length; i++) {
+                HashMap<String, String> oneResult = null;
+                if (paths[i] != null) {
+                    oneResult = byPath.get(paths[i].replace('\\', '/'));
+                } else if (readers[i] != null) {
+                    try {
+                        oneResult = readers[i].readMetadata(inTheseKeys,
+                                TOOL.EXIFTOOL);
+                    } catch (ClientException e) {
+                        log.warn("Cannot read the metadata of <"
+                                + inBlobs.get(i).getFilename() + ">: "
+                                + e.getMessage());
                     }
                 }
+                if (oneResult == null) {
+                    oneResult = new HashMap<String, String>();
+                } else if (!wantsSourceFile) {
+                    oneResult.remove(ExifToolJsonParser.SOURCE_FILE);
+                }
+                addMissingKeys(oneResult, inTheseKeys);
+                results.add(oneResult);
             }
 
-        } catch (IOException | InterruptedException | IM4JavaException e) {
-            throw new ClientException(e);
+            return results;
+        } finally {
+            // Also after a timeout or a failure: we don't wait for the end of
+            // the transaction
+            for (MetadataReader reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
         }
+    }
 
-        return result;
+    /*
+     * A key not found is in the map with a value of ""
+     */
+    protected static void addMissingKeys(HashMap<String, String> inResult,
+            String[] inTheseKeys) {
+
+        if (inTheseKeys != null) {
+            for (String oneProp : inTheseKeys) {
+                if (oneProp != null && !inResult.containsKey(oneProp)) {
+                    inResult.put(oneProp, "");
+                }
+            }
+        }
     }
 }
@@ -18,21 +18,25 @@ package org.nuxeo.binary.metadata;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 
-import org.im4java.core.ETOperation;
-import org.im4java.core.ExiftoolCmd;
-import org.im4java.core.IM4JavaException;
 import org.nuxeo.binary.metadata.ExternalTools.ExifToolTagFormatter;
+import org.nuxeo.binary.metadata.cache.MetadataCache;
+import org.nuxeo.binary.metadata.exiftool.ExifToolEngine;
+import org.nuxeo.binary.metadata.scratch.ScratchFile;
+import org.nuxeo.binary.metadata.scratch.ScratchFiles;
 import org.nuxeo.ecm.automation.core.util.Properties;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  * As of "today" (2014-11), the class only uses ExifTool to write metadata.
  * <p>
- * Ultimately, the class calls im4java which calls ExitTool to set the tag. So,
- * the expected, final, syntax to set a tag is:
+ * Ultimately, the class sends the expressions to ExifTool (see
+ * {@link org.nuxeo.binary.metadata.exiftool.ExifToolEngine}). So, the expected,
+ * final, syntax to set a tag is:
  * <p>
  * <code>TAG[+-][<]=Value</code>
  * <P>
@@ -70,34 +74,107 @@ public class MetadataWriter extends AbstractMetadataReadWrite {
         Blob result = null;
 
         try {
-            String destPath;
             if (inWorkOnCopy) {
-                destPath = duplicateFile();
+                result = writeToNewFile(inExpressions);
             } else {
-                destPath = filePath;
+                String destPath = getFilePath();
+
+                ArrayList<String> args = new ArrayList<String>();
+                for (String oneExpression : inExpressions) {
+                    args.add("-" + oneExpression);
+                }
+                args.add(destPath);
+
+                runExifTool(args);
+                // Same digest, other content
+                if (originalBlob != null) {
+                    MetadataCache.invalidate(originalBlob.getDigest());
+                }
+
+                if (originalBlob == null) {
+                    result = new FileBlob(new File(destPath));
+                } else {
+                    result = originalBlob;
+                }
             }
 
-            ETOperation op = new ETOperation();
-            for (String oneExpression : inExpressions) {
-                op.setTags(oneExpression);
-            }
-            op.addImage();
+        } catch (IOException e) {
+            throw new ClientException(e);
+        }
+
+        return copyOriginalBlobInfoToBlob(result);
+
+    }
+
+    /*
+     * ExifTool reads the original and writes the new file in one pass (-o),
+     * instead of rewriting a copy in place: The file is written once, and
+     * there is no "_original" backup to delete. A blob which is not a file is
+     * written to the stdin of ExifTool, it is not copied first. The new file
+     * belongs to the returned blob
+     */
+    protected Blob writeToNewFile(String[] inExpressions) throws IOException {
+
+        boolean fromStdin = !hasFile() && originalBlob != null;
+        String sourcePath = null;
+        String extension;
+        long expectedBytes;
+        if (fromStdin) {
+            String name = originalBlob.getFilename();
+            extension = name == null ? "" : getExtension(name);
+            expectedBytes = originalBlob.getLength();
+        } else {
+            sourcePath = getFilePath();
+            extension = getExtension(sourcePath);
+            expectedBytes = new File(sourcePath).length();
+        }
 
-            ExiftoolCmd et = new ExiftoolCmd();
-            et.run(op, destPath);
+        ScratchFile output = ScratchFiles.create("MDRW-", extension,
+                expectedBytes);
+        try {
+            // ExifTool does not overwrite an existing file
+            output.getFile().delete();
 
-            if (inWorkOnCopy || originalBlob == null) {
-                result = new FileBlob(new File(destPath));
+            ArrayList<String> args = new ArrayList<String>();
+            for (String oneExpression : inExpressions) {
+                args.add("-" + oneExpression);
+            }
+            args.add("-o");
+            args.add(output.getPath());
+
+            if (fromStdin) {
+                // Fails if ExifTool reports an error (exit code)
+                ExifToolEngine.executeWithInput(args,
+                        originalBlob.getStream(), timeoutMillis);
+                if (!output.getFile().isFile()) {
+                    throw new ClientException("ExifTool did not write "
+                            + output.getPath());
+                }
             } else {
-                result = originalBlob;
+                args.add(sourcePath);
+                runExifTool(args);
             }
 
-        } catch (IOException | InterruptedException | IM4JavaException e) {
-            throw new ClientException(e);
+            File file = output.detach();
+            Blob result = new FileBlob(file);
+            Framework.trackFile(file, result);
+            return result;
+        } finally {
+            // Don't keep a half-written file (timeout, ...)
+            output.close();
         }
+    }
 
-        return copyOriginalBlobInfoToBlob(result);
+    /*
+     * ExifTool derives the type of the file it creates from its extension:
+     * use the one of the source (none for a copy, the type is then the one
+     * of the source)
+     */
+    protected static String getExtension(String inPath) {
 
+        String name = new File(inPath).getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot) : "";
     }
 
     /**
@@ -0,0 +1,167 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Base class of the backends: name, compatibility and mime types are set by
+ * the constructor. By default, the backend is available, cannot list all the
+ * values and cannot read the XMP.
+ *
+ * @since 7.3
+ */
+public abstract class AbstractMetadataBackend implements MetadataBackend {
+
+    // Copying a content which is not a file to a temporary file, per byte
+    protected static final double COPY_COST_PER_BYTE = 0.01;
+
+    protected final String name;
+
+    protected final TOOL compatibility;
+
+    protected final Set<String> mimeTypes;
+
+    /**
+     * @param inName
+     * @param inCompatibility
+     * @param inMimeTypes none for any mime type
+     */
+    protected AbstractMetadataBackend(String inName, TOOL inCompatibility,
+            String... inMimeTypes) {
+        name = inName;
+        compatibility = inCompatibility;
+        mimeTypes = Collections.unmodifiableSet(new HashSet<String>(
+                Arrays.asList(inMimeTypes)));
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public TOOL getCompatibility() {
+        return compatibility;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public Set<String> getMimeTypes() {
+        return mimeTypes;
+    }
+
+    @Override
+    public HashMap<String, Object> readAll(MetadataSource inSource)
+            throws ClientException {
+        return null;
+    }
+
+    @Override
+    public String readXMP(MetadataSource inSource) throws ClientException {
+        return null;
+    }
+
+    /**
+     * @return true if inTheseKeys has at least one key
+     */
+    protected static boolean hasKeys(String[] inTheseKeys) {
+
+        if (inTheseKeys != null) {
+            for (String oneProp : inTheseKeys) {
+                if (oneProp != null && !oneProp.isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 0 if the source is a file, the cost of copying its content to a
+     *         temporary file otherwise (see {@link MetadataSource#hasFile()})
+     *
+     * @since 7.3
+     */
+    protected static long copyCost(MetadataSource inSource) {
+
+        if (inSource.hasFile()) {
+            return 0;
+        }
+        return (long) (inSource.getFileSize() * COPY_COST_PER_BYTE);
+    }
+
+    /**
+     * @return 0 if the source is a file, the cost of reading the first bytes
+     *         of its {@link PrefixWindow} otherwise
+     *
+     * @since 7.3
+     */
+    protected static long prefixCost(MetadataSource inSource) {
+
+        if (inSource.hasFile()) {
+            return 0;
+        }
+        return (long) (Math.min(inSource.getFileSize(),
+                PrefixWindow.INITIAL_SIZE) * COPY_COST_PER_BYTE);
+    }
+
+    /**
+     * A parser of a file, returning null when it cannot read it
+     *
+     * @since 7.3
+     */
+    protected interface PrefixParser<T> {
+        T parse(String inPath);
+    }
+
+    /**
+     * Parse {@link MetadataSource#getPrefixPath()}, growing the window while
+     * the parser returns null and the window can grow
+     *
+     * @param inSource
+     * @param inParser
+     * @return the result of the parser, null if it cannot read the content
+     *
+     * @since 7.3
+     */
+    protected static <T> T readPrefix(MetadataSource inSource,
+            PrefixParser<T> inParser) {
+
+        T result = inParser.parse(inSource.getPrefixPath());
+        while (result == null && inSource.growPrefix()) {
+            result = inParser.parse(inSource.getPrefixPath());
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * A {@link MetadataBackend}, contributed to the <code>backends</code>
+ * extension point of
+ * <code>org.nuxeo.binary.metadata.BinaryMetadataComponent</code>.
+ * <p>
+ * With a class, the backend is added (or replaces the one with the same
+ * name, built-in backends included). With <code>enabled="false"</code>, the
+ * backend with this name is not used anymore.
+ *
+ * @since 7.3
+ */
+@XObject("backend")
+public class BackendDescriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@class")
+    protected Class<? extends MetadataBackend> backendClass;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    public BackendDescriptor() {
+    }
+
+    public BackendDescriptor(String inName,
+            Class<? extends MetadataBackend> inBackendClass, boolean inEnabled) {
+        name = inName;
+        backendClass = inBackendClass;
+        enabled = inEnabled;
+    }
+
+    /**
+     * @return the name, or the name of the backend when it is not set
+     */
+    public String getName() {
+        return name;
+    }
+
+    public Class<? extends MetadataBackend> getBackendClass() {
+        return backendClass;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies of the reads of one {@link MetadataBackend}, see
+ * {@link MetadataBackends#getStatistics(String)}. Compared with the
+ * estimated costs ({@link MetadataBackend#estimateCost}), they tell whether
+ * the routing picks the right backends.
+ *
+ * @since 7.3
+ */
+public class BackendStatistics {
+
+    protected final String backendName;
+
+    protected final AtomicLong answeredCount = new AtomicLong();
+
+    protected final AtomicLong declinedCount = new AtomicLong();
+
+    protected final AtomicLong failedCount = new AtomicLong();
+
+    protected final AtomicLong totalNanos = new AtomicLong();
+
+    protected final AtomicLong maxNanos = new AtomicLong();
+
+    public BackendStatistics(String inBackendName) {
+        backendName = inBackendName;
+    }
+
+    /**
+     * @param inNanos duration of the read
+     * @param inResult the values, null if the backend could not answer
+     *
+     * @since 7.3
+     */
+    public void recordRead(long inNanos, Object inResult) {
+
+        if (inResult == null) {
+            declinedCount.incrementAndGet();
+        } else {
+            answeredCount.incrementAndGet();
+        }
+        addDuration(inNanos);
+    }
+
+    /**
+     * @param inNanos duration of the read, until the exception
+     *
+     * @since 7.3
+     */
+    public void recordFailure(long inNanos) {
+        failedCount.incrementAndGet();
+        addDuration(inNanos);
+    }
+
+    protected void addDuration(long inNanos) {
+
+        totalNanos.addAndGet(inNanos);
+        long max = maxNanos.get();
+        while (inNanos > max && !maxNanos.compareAndSet(max, inNanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public String getBackendName() {
+        return backendName;
+    }
+
+    public long getReadCount() {
+        return answeredCount.get() + declinedCount.get() + failedCount.get();
+    }
+
+    /** Reads which returned the values */
+    public long getAnsweredCount() {
+        return answeredCount.get();
+    }
+
+    /** Reads which returned null: the next backend was used */
+    public long getDeclinedCount() {
+        return declinedCount.get();
+    }
+
+    /** Reads which threw an exception (error, timeout, ...) */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos.get());
+    }
+
+    public long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+    }
+
+    public double getAverageMillis() {
+        long count = getReadCount();
+        return count == 0 ? 0 : totalNanos.get() / 1000000.0 / count;
+    }
+
+    @Override
+    public String toString() {
+        return backendName + ": " + getReadCount() + " reads ("
+                + getAnsweredCount() + " answered, " + getDeclinedCount()
+                + " declined, " + getFailedCount() + " failed), average "
+                + String.format("%.2f", getAverageMillis()) + " ms, max "
+                + getMaxMillis() + " ms";
+    }
+}
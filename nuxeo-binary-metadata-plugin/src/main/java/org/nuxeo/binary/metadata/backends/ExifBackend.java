@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.util.HashMap;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.parsers.ExifReader;
+
+/**
+ * Common EXIF tags of JPEG and TIFF files, read in Java with the names and
+ * formatting of ExifTool (see {@link ExifReader}).
+ *
+ * @since 7.3
+ */
+public class ExifBackend extends AbstractMetadataBackend {
+
+    protected static final long COST = 100;
+
+    public ExifBackend() {
+        super("Exif", TOOL.EXIFTOOL, "image/jpeg", "image/tiff");
+    }
+
+    @Override
+    public boolean canRead(String[] inTheseKeys) {
+        return ExifReader.canRead(inTheseKeys);
+    }
+
+    @Override
+    public long estimateCost(MetadataSource inSource, String[] inTheseKeys) {
+        return COST + prefixCost(inSource);
+    }
+
+    @Override
+    public HashMap<String, Object> read(MetadataSource inSource,
+            final String[] inTheseKeys) {
+        return readPrefix(inSource,
+                new PrefixParser<HashMap<String, Object>>() {
+                    @Override
+                    public HashMap<String, Object> parse(String inPath) {
+                        return ExifReader.read(inPath, inTheseKeys);
+                    }
+                });
+    }
+}
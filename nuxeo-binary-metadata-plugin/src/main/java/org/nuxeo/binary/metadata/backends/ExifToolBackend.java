@@ -0,0 +1,280 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.exiftool.ExifToolEngine;
+import org.nuxeo.binary.metadata.exiftool.ExifToolJsonParser;
+import org.nuxeo.binary.metadata.exiftool.ExifToolOutputHandler;
+import org.nuxeo.binary.metadata.exiftool.ExifToolResponse;
+import org.nuxeo.binary.metadata.parsers.FormatSniffer;
+import org.nuxeo.binary.metadata.parsers.IsoBmffReader;
+import org.nuxeo.binary.metadata.tools.ToolDescriptor;
+import org.nuxeo.binary.metadata.tools.ToolRegistry;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * ExifTool, through the pool of stay-open processes (see
+ * {@link ExifToolEngine}). Can read any key, for any format.
+ * <p>
+ * The values are parsed from the JSON output (<code>-j -struct</code>) while
+ * ExifTool writes it, and only the requested keys are kept. A key not found
+ * is not in the result.
+ * <p>
+ * When the content is not a file (see {@link MetadataSource#hasFile()}) and
+ * its format can be read sequentially (see
+ * {@link FormatSniffer#isStreamable(java.nio.ByteBuffer)}), a new process
+ * reads it from its stdin if this is cheaper than copying it to a temporary
+ * file. The system tags (FileName, FileModifyDate, ...) are then not
+ * available.
+ * <p>
+ * A JPEG image or an ISO-BMFF video which is not a file is rather read from
+ * its {@link PrefixWindow}, which holds all the metadata of these formats:
+ * Only kilobytes are read, even for a video with the "moov" box at the end.
+ *
+ * @since 7.3
+ */
+public class ExifToolBackend extends AbstractMetadataBackend {
+
+    // A request to a running process
+    protected static final long REQUEST_COST = 10000;
+
+    // ExifTool scans some formats (videos, ...), per byte of the file
+    protected static final double SCAN_COST_PER_BYTE = 0.001;
+
+    // Starting a new process, which reads the content from its stdin
+    protected static final long STREAM_PROCESS_COST = 200000;
+
+    // Writing the content to the stdin of the process, per byte
+    protected static final double PIPE_COST_PER_BYTE = 0.002;
+
+    public ExifToolBackend() {
+        super(ToolDescriptor.toName(TOOL.EXIFTOOL), TOOL.EXIFTOOL);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return ToolRegistry.isAvailable(TOOL.EXIFTOOL);
+    }
+
+    @Override
+    public boolean canRead(String[] inTheseKeys) {
+        return true;
+    }
+
+    @Override
+    public long estimateCost(MetadataSource inSource, String[] inTheseKeys) {
+
+        if (usePrefix(inSource)) {
+            return REQUEST_COST + prefixCost(inSource);
+        }
+        if (useStdin(inSource)) {
+            return streamCost(inSource);
+        }
+        return fileCost(inSource);
+    }
+
+    protected static long fileCost(MetadataSource inSource) {
+        return REQUEST_COST
+                + (long) (inSource.getFileSize() * SCAN_COST_PER_BYTE)
+                + copyCost(inSource);
+    }
+
+    protected static long streamCost(MetadataSource inSource) {
+        return STREAM_PROCESS_COST
+                + (long) (inSource.getFileSize() * PIPE_COST_PER_BYTE);
+    }
+
+    /**
+     * @return true if the content is not a file, and its
+     *         {@link PrefixWindow} holds all its metadata
+     *
+     * @since 7.3
+     */
+    protected static boolean usePrefix(MetadataSource inSource) {
+
+        if (inSource.hasFile()) {
+            return false;
+        }
+        String mimeType = FormatSniffer.sniff(inSource.getHead());
+        return "image/jpeg".equals(mimeType)
+                || IsoBmffReader.isIsoBmffMimeType(mimeType);
+    }
+
+    /**
+     * @return true if the content is better read from the stdin of a new
+     *         process than copied to a file
+     *
+     * @since 7.3
+     */
+    protected static boolean useStdin(MetadataSource inSource) {
+        return !inSource.hasFile()
+                && streamCost(inSource) < fileCost(inSource)
+                && FormatSniffer.isStreamable(inSource.getHead());
+    }
+
+    @Override
+    public HashMap<String, Object> read(MetadataSource inSource,
+            final String[] inTheseKeys) throws ClientException {
+
+        final HashMap<String, Object> result = new HashMap<String, Object>();
+
+        ArrayList<String> args = new ArrayList<String>();
+        args.add("-j");
+        args.add("-struct");
+        addTagArgs(args, inTheseKeys);
+
+        if (usePrefix(inSource)) {
+            // Don't look for a trailer after the image data, not in the window
+            args.add("-fast");
+            args.add(inSource.getPrefixPath());
+        } else if (useStdin(inSource)) {
+            // Stop at the image/video data: it can't be skipped in a pipe
+            args.add("-fast");
+            result.putAll(readStdin(inSource, args, inTheseKeys));
+            result.remove(ExifToolJsonParser.SOURCE_FILE);
+            return result;
+        } else {
+            args.add(inSource.getFilePath());
+        }
+
+        execute(args, new ExifToolOutputHandler() {
+            @Override
+            public void handle(InputStream inOutput) throws IOException {
+                ExifToolJsonParser parser = new ExifToolJsonParser(
+                        new InputStreamReader(inOutput, StandardCharsets.UTF_8),
+                        inTheseKeys);
+                for (Map<String, Object> oneFile : parser.parseAllTyped()) {
+                    result.putAll(oneFile);
+                }
+            }
+        }, inSource.getTimeoutMillis());
+        result.remove(ExifToolJsonParser.SOURCE_FILE);
+
+        return result;
+    }
+
+    @Override
+    public HashMap<String, Object> readAll(MetadataSource inSource)
+            throws ClientException {
+        return read(inSource, null);
+    }
+
+    protected static HashMap<String, Object> readStdin(
+            MetadataSource inSource, List<String> inArgs,
+            final String[] inTheseKeys) throws ClientException {
+
+        final HashMap<String, Object> result = new HashMap<String, Object>();
+        InputStream input;
+        try {
+            input = inSource.openStream();
+        } catch (IOException e) {
+            throw new ClientException(e);
+        }
+        ExifToolEngine.executeWithInput(inArgs, input,
+                new ExifToolOutputHandler() {
+                    @Override
+                    public void handle(InputStream inOutput)
+                            throws IOException {
+                        ExifToolJsonParser parser = new ExifToolJsonParser(
+                                new InputStreamReader(inOutput,
+                                        StandardCharsets.UTF_8), inTheseKeys);
+                        for (Map<String, Object> oneFile : parser.parseAllTyped()) {
+                            result.putAll(oneFile);
+                        }
+                    }
+                }, inSource.getTimeoutMillis());
+        return result;
+    }
+
+    /**
+     * <code>exiftool -xmp -b</code>
+     */
+    @Override
+    public String readXMP(MetadataSource inSource) throws ClientException {
+
+        ArrayList<String> args = new ArrayList<String>();
+        args.add("-xmp");
+        args.add("-b");
+        args.add(inSource.getFilePath());
+
+        ExifToolResponse response;
+        try {
+            response = ExifToolEngine.execute(args, inSource.getTimeoutMillis());
+        } catch (IOException e) {
+            throw new ClientException(e);
+        }
+        checkErrors(response);
+        return response.getOutput();
+    }
+
+    protected static void execute(List<String> inArgs,
+            ExifToolOutputHandler inHandler, long inTimeoutMillis)
+            throws ClientException {
+
+        ExifToolResponse response;
+        try {
+            response = ExifToolEngine.execute(inArgs, inHandler,
+                    inTimeoutMillis);
+        } catch (IOException e) {
+            throw new ClientException(e);
+        }
+        checkErrors(response);
+    }
+
+    protected static void checkErrors(ExifToolResponse inResponse)
+            throws ClientException {
+
+        if (inResponse.hasErrors()) {
+            throw new ClientException("ExifTool error: "
+                    + inResponse.getErrors().trim());
+        }
+    }
+
+    /**
+     * "-TAG" for each key, or "-All" when there is no key
+     *
+     * @param inArgs
+     * @param inTheseKeys
+     *
+     * @since 7.3
+     */
+    public static void addTagArgs(List<String> inArgs, String[] inTheseKeys) {
+
+        boolean hasKeys = false;
+        if (inTheseKeys != null) {
+            for (String oneProp : inTheseKeys) {
+                if (oneProp != null && !oneProp.isEmpty()) {
+                    inArgs.add("-" + oneProp);
+                    hasKeys = true;
+                }
+            }
+        }
+        if (!hasKeys) {
+            inArgs.add("-All");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.util.HashMap;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.MetadataReader.READ_MODE;
+import org.nuxeo.binary.metadata.parsers.ImageHeader;
+import org.nuxeo.binary.metadata.parsers.ImageHeaderParser;
+
+/**
+ * Size, colorspace and resolution of JPEG, PNG, GIF and TIFF images, read in
+ * Java from the header of the file (see {@link ImageHeaderParser}), with the
+ * same values as ImageMagick (or GraphicsMagick, only Width and Height).
+ * Never used with {@link READ_MODE#FULL}.
+ *
+ * @since 7.3
+ */
+public class ImageHeaderBackend extends AbstractMetadataBackend {
+
+    protected static final long COST = 50;
+
+    protected final boolean useGM;
+
+    public ImageHeaderBackend(TOOL inTool) {
+        super(inTool == TOOL.GRAPHICSMAGICK ? "ImageHeaderGM" : "ImageHeader",
+                inTool, "image/jpeg", "image/png", "image/gif", "image/tiff");
+        useGM = inTool == TOOL.GRAPHICSMAGICK;
+    }
+
+    @Override
+    public boolean canRead(String[] inTheseKeys) {
+        return ImageHeaderParser.canRead(inTheseKeys, useGM);
+    }
+
+    @Override
+    public long estimateCost(MetadataSource inSource, String[] inTheseKeys) {
+        return COST + prefixCost(inSource);
+    }
+
+    @Override
+    public HashMap<String, Object> read(MetadataSource inSource,
+            String[] inTheseKeys) {
+
+        if (inSource.getReadMode() == READ_MODE.FULL) {
+            return null;
+        }
+        ImageHeader header = readPrefix(inSource,
+                new PrefixParser<ImageHeader>() {
+                    @Override
+                    public ImageHeader parse(String inPath) {
+                        return ImageHeaderParser.read(inPath);
+                    }
+                });
+        if (header == null) {
+            return null;
+        }
+        HashMap<String, String> result = header.toInfoValues(inTheseKeys,
+                useGM);
+        if (result == null) {
+            return null;
+        }
+        ImageMagickBackend.realignGifResolution(result, header.getFormat());
+        return new HashMap<String, Object>(result);
+    }
+}
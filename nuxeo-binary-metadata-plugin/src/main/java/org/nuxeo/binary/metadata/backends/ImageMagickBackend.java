@@ -0,0 +1,215 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+import org.nuxeo.binary.metadata.BinaryMetadataConstants.KEYS;
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.MetadataReader;
+import org.nuxeo.binary.metadata.MetadataReader.READ_MODE;
+import org.nuxeo.binary.metadata.im4java.IdentifyFormatReader;
+import org.nuxeo.binary.metadata.im4java.IdentifyVerboseReader;
+import org.nuxeo.binary.metadata.parsers.ImageHeaderParser;
+import org.nuxeo.binary.metadata.tools.ToolDescriptor;
+import org.nuxeo.binary.metadata.tools.ToolRegistry;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * ImageMagick or GraphicsMagick <code>identify</code>. Can read any key, for
+ * any format the tool handles.
+ * <p>
+ * When all the keys can be read with <code>identify -format</code> (such as
+ * the {@link org.nuxeo.binary.metadata.BinaryMetadataConstants#DEFAULT_KEYS}
+ * with ImageMagick), {@link IdentifyFormatReader} is used, otherwise the
+ * output of <code>identify -verbose</code> is parsed (see
+ * {@link IdentifyVerboseReader}). The pixels are decoded only when needed,
+ * see {@link READ_MODE}.
+ * <p>
+ * When the content is not a file (see {@link MetadataSource#hasFile()}), a
+ * JPEG, PNG or GIF image is read from the stdin of identify instead of being
+ * copied to a temporary file.
+ *
+ * @since 7.3
+ */
+public class ImageMagickBackend extends AbstractMetadataBackend {
+
+    // Starting the process
+    protected static final long PROCESS_COST = 30000;
+
+    // Decoding the pixels, per byte of the file
+    protected static final double DECODE_COST_PER_BYTE = 0.1;
+
+    // Writing the content to the stdin of the process, per byte
+    protected static final double PIPE_COST_PER_BYTE = 0.002;
+
+    protected final boolean useGM;
+
+    public ImageMagickBackend(TOOL inTool) {
+        super(ToolDescriptor.toName(inTool), inTool);
+        useGM = inTool == TOOL.GRAPHICSMAGICK;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return ToolRegistry.isAvailable(compatibility);
+    }
+
+    @Override
+    public boolean canRead(String[] inTheseKeys) {
+        return true;
+    }
+
+    @Override
+    public long estimateCost(MetadataSource inSource, String[] inTheseKeys) {
+
+        long cost = PROCESS_COST;
+        if (getStdinFormat(inSource) != null) {
+            cost += (long) (inSource.getFileSize() * PIPE_COST_PER_BYTE);
+        } else {
+            cost += copyCost(inSource);
+        }
+        if (!isHeaderOnly(inTheseKeys, inSource.getReadMode())) {
+            cost += (long) (inSource.getFileSize() * DECODE_COST_PER_BYTE);
+        }
+        return cost;
+    }
+
+    /**
+     * @return the format to give identify with "-" ("jpeg", ...), null if
+     *         the content is a file or must be copied to a file
+     *
+     * @since 7.3
+     */
+    protected static String getStdinFormat(MetadataSource inSource) {
+
+        if (inSource.hasFile()) {
+            return null;
+        }
+        String format = ImageHeaderParser.detectFormat(inSource.getHead());
+        if (ImageHeaderParser.JPEG.equals(format)
+                || ImageHeaderParser.PNG.equals(format)
+                || ImageHeaderParser.GIF.equals(format)) {
+            return format.toLowerCase();
+        }
+        return null;
+    }
+
+    /*
+     * The path of the file, or "FORMAT:-" with inInput[0] set to the stream
+     * to write to stdin
+     */
+    protected static String getInput(MetadataSource inSource,
+            InputStream[] inInput) throws ClientException {
+
+        String format = getStdinFormat(inSource);
+        if (format == null) {
+            return inSource.getFilePath();
+        }
+        try {
+            inInput[0] = inSource.openStream();
+        } catch (IOException e) {
+            throw new ClientException(e);
+        }
+        return format + ":-";
+    }
+
+    @Override
+    public HashMap<String, Object> read(MetadataSource inSource,
+            String[] inTheseKeys) throws ClientException {
+
+        InputStream[] input = new InputStream[1];
+        String path = getInput(inSource, input);
+        boolean ping = isHeaderOnly(inTheseKeys, inSource.getReadMode());
+        HashMap<String, String> result = new HashMap<String, String>();
+
+        if (IdentifyFormatReader.canRead(inTheseKeys, useGM)) {
+
+            // Only the requested values, no need for -verbose
+            result = IdentifyFormatReader.read(path, input[0], inTheseKeys,
+                    useGM, ping, inSource.getTimeoutMillis());
+            String format = result.remove(IdentifyFormatReader.MAGICK);
+            realignGifResolution(result, format);
+
+        } else {
+
+            HashMap<String, String> all = IdentifyVerboseReader.read(path,
+                    input[0], useGM, ping, inSource.getTimeoutMillis());
+            if (!hasKeys(inTheseKeys)) {
+                result = all;
+            } else {
+                for (String oneProp : inTheseKeys) {
+                    String value = "";
+
+                    if (oneProp != null && !oneProp.isEmpty()) {
+                        value = all.get(oneProp);
+                        if (value == null) {
+                            value = "";
+                        }
+                    }
+                    result.put(oneProp, value);
+                }
+
+                realignGifResolution(result, all.get(KEYS.FORMAT));
+            }
+        }
+        return new HashMap<String, Object>(result);
+    }
+
+    @Override
+    public HashMap<String, Object> readAll(MetadataSource inSource)
+            throws ClientException {
+        InputStream[] input = new InputStream[1];
+        String path = getInput(inSource, input);
+        return new HashMap<String, Object>(IdentifyVerboseReader.read(path,
+                input[0], useGM, false, inSource.getTimeoutMillis()));
+    }
+
+    protected static boolean isHeaderOnly(String[] inTheseKeys,
+            READ_MODE inMode) {
+
+        switch (inMode == null ? READ_MODE.AUTO : inMode) {
+        case HEADER_ONLY:
+            return true;
+
+        case FULL:
+            return false;
+
+        default:
+            return !MetadataReader.requiresPixels(inTheseKeys);
+        }
+    }
+
+    /*
+     * Handle special case(s)
+     *  - Re-align resolution to 72x72 for GIF
+     */
+    protected static void realignGifResolution(HashMap<String, String> inResult,
+            String inFormat) {
+
+        String keyResolution = KEYS.RESOLUTION;
+        if (inResult.containsKey(keyResolution)
+                && inResult.get(keyResolution).isEmpty() && inFormat != null) {
+            String format = inFormat.toLowerCase();
+            if (format.indexOf("gif") == 0) {
+                inResult.put(keyResolution, "72x72");
+            }
+        }
+    }
+}
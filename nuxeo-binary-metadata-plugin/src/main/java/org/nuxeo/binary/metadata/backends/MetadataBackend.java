@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.util.HashMap;
+import java.util.Set;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Reads metadata from a file. {@link org.nuxeo.binary.metadata.MetadataReader}
+ * does not know how the values are read: It asks the backends registered in
+ * {@link MetadataBackends}, the cheapest first.
+ * <p>
+ * A backend returns the values with the names and the formatting of one tool
+ * ({@link #getCompatibility()}), so the caller does not see which backend
+ * answered. The backend of the tool itself (ImageMagick, GraphicsMagick,
+ * ExifTool) can read any key and is used when no cheaper backend can answer.
+ * <p>
+ * Custom backends are contributed to the <code>backends</code> extension
+ * point of <code>org.nuxeo.binary.metadata.BinaryMetadataComponent</code>.
+ * They must be thread safe: The same instance is used by all the reads.
+ *
+ * @since 7.3
+ */
+public interface MetadataBackend {
+
+    /**
+     * @return the name of the backend, unique
+     */
+    String getName();
+
+    /**
+     * @return the tool whose key names and value formats are returned by this
+     *         backend
+     */
+    TOOL getCompatibility();
+
+    /**
+     * @return false if the backend cannot be used on this server (tool not
+     *         installed, ...)
+     */
+    boolean isAvailable();
+
+    /**
+     * @return the mime types handled by the backend, empty if any
+     */
+    Set<String> getMimeTypes();
+
+    /**
+     * @param inTheseKeys null or empty for all the values
+     * @return true if the backend may be able to return all the keys
+     */
+    boolean canRead(String[] inTheseKeys);
+
+    /**
+     * Estimated duration of {@link #read(MetadataSource, String[])}, in
+     * microseconds. Only used to compare the backends.
+     *
+     * @param inSource
+     * @param inTheseKeys
+     * @return the estimated cost
+     */
+    long estimateCost(MetadataSource inSource, String[] inTheseKeys);
+
+    /**
+     * @param inSource
+     * @param inTheseKeys null or empty for all the values
+     * @return the values by key (String, Number, Boolean, List or Map), null
+     *         if the backend cannot answer for this file (the next backend is
+     *         then used). A backend of a tool returns the keys not found with
+     *         the empty string (ImageMagick) or not at all (ExifTool), as the
+     *         tool does
+     * @throws ClientException
+     */
+    HashMap<String, Object> read(MetadataSource inSource, String[] inTheseKeys)
+            throws ClientException;
+
+    /**
+     * @param inSource
+     * @return all the values, null if the backend cannot list them
+     * @throws ClientException
+     */
+    HashMap<String, Object> readAll(MetadataSource inSource)
+            throws ClientException;
+
+    /**
+     * @param inSource
+     * @return the XMP packet, "" if the file has no XMP, null if the backend
+     *         cannot read it
+     * @throws ClientException
+     */
+    String readXMP(MetadataSource inSource) throws ClientException;
+}
@@ -0,0 +1,423 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.tools.ToolDescriptor;
+import org.nuxeo.binary.metadata.tools.ToolRejectedException;
+import org.nuxeo.binary.metadata.tools.ToolTimeoutException;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * The {@link MetadataBackend}s: the built-in ones, plus the ones contributed
+ * to the <code>backends</code> extension point of
+ * <code>BinaryMetadataComponent</code> (see {@link BackendDescriptor}).
+ * <p>
+ * Built-in backends:
+ * <ul>
+ * <li>The tools: "ImageMagick", "GraphicsMagick" and "ExifTool"</li>
+ * <li>In Java, with the names and values of ImageMagick: "ImageHeader"
+ * (GraphicsMagick: "ImageHeaderGM")</li>
+ * <li>In Java, with the names and values of ExifTool: "Exif", "PdfInfo",
+ * "Ooxml", "IsoBmff" and "Xmp" (XMP packet only)</li>
+ * </ul>
+ *
+ * @since 7.3
+ */
+public class MetadataBackends {
+
+    private static final Log log = LogFactory.getLog(MetadataBackends.class);
+
+    protected static final LinkedHashMap<String, MetadataBackend> builtIns = new LinkedHashMap<String, MetadataBackend>();
+
+    protected static final LinkedHashMap<String, MetadataBackend> contributed = new LinkedHashMap<String, MetadataBackend>();
+
+    protected static final HashSet<String> disabled = new HashSet<String>();
+
+    // Rebuilt at each change, read without lock
+    protected static volatile List<MetadataBackend> backends;
+
+    protected static final ConcurrentHashMap<String, BackendStatistics> statistics = new ConcurrentHashMap<String, BackendStatistics>();
+
+    static {
+        for (MetadataBackend backend : new MetadataBackend[] {
+                new ImageMagickBackend(TOOL.IMAGEMAGICK),
+                new ImageMagickBackend(TOOL.GRAPHICSMAGICK),
+                new ExifToolBackend(),
+                new ImageHeaderBackend(TOOL.IMAGEMAGICK),
+                new ImageHeaderBackend(TOOL.GRAPHICSMAGICK),
+                new ExifBackend(), new PdfInfoBackend(), new OoxmlBackend(),
+                new IsoBmffBackend(), new XmpBackend() }) {
+            builtIns.put(backend.getName(), backend);
+        }
+        update();
+    }
+
+    /**
+     * Add, replace or disable a backend
+     *
+     * @param inDescriptor
+     *
+     * @since 7.3
+     */
+    public static synchronized void register(BackendDescriptor inDescriptor) {
+
+        MetadataBackend backend = null;
+        if (inDescriptor.getBackendClass() != null) {
+            try {
+                backend = inDescriptor.getBackendClass().newInstance();
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IllegalArgumentException("Cannot create the backend "
+                        + inDescriptor.getBackendClass().getName(), e);
+            }
+        }
+        String name = inDescriptor.getName();
+        if (name == null || name.isEmpty()) {
+            if (backend == null) {
+                throw new IllegalArgumentException(
+                        "A backend needs a name or a class");
+            }
+            name = backend.getName();
+        }
+
+        if (!inDescriptor.isEnabled()) {
+            disabled.add(name);
+        } else {
+            disabled.remove(name);
+            if (backend != null) {
+                contributed.put(name, backend);
+            }
+        }
+        update();
+    }
+
+    /**
+     * Remove a contribution: back to the built-in backend, if any
+     *
+     * @param inDescriptor
+     *
+     * @since 7.3
+     */
+    public static synchronized void unregister(BackendDescriptor inDescriptor) {
+
+        String name = inDescriptor.getName();
+        if ((name == null || name.isEmpty())
+                && inDescriptor.getBackendClass() != null) {
+            for (Map.Entry<String, MetadataBackend> entry : contributed.entrySet()) {
+                if (entry.getValue().getClass() == inDescriptor.getBackendClass()) {
+                    name = entry.getKey();
+                    break;
+                }
+            }
+        }
+        if (name != null) {
+            disabled.remove(name);
+            contributed.remove(name);
+        }
+        update();
+    }
+
+    protected static void update() {
+
+        LinkedHashMap<String, MetadataBackend> all = new LinkedHashMap<String, MetadataBackend>(
+                builtIns);
+        all.putAll(contributed);
+        ArrayList<MetadataBackend> list = new ArrayList<MetadataBackend>();
+        for (Map.Entry<String, MetadataBackend> entry : all.entrySet()) {
+            if (!disabled.contains(entry.getKey())) {
+                list.add(entry.getValue());
+            }
+        }
+        backends = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return the enabled backends
+     *
+     * @since 7.3
+     */
+    public static List<MetadataBackend> getAll() {
+        return backends;
+    }
+
+    /**
+     * @param inName
+     * @return the backend, null if it does not exist or is disabled
+     *
+     * @since 7.3
+     */
+    public static MetadataBackend get(String inName) {
+
+        for (MetadataBackend backend : backends) {
+            if (backend.getName().equals(inName)) {
+                return backend;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param inTool
+     * @return the backend running the tool, null if it is disabled
+     *
+     * @since 7.3
+     */
+    public static MetadataBackend getToolBackend(TOOL inTool) {
+        return get(ToolDescriptor.toName(inTool));
+    }
+
+    /**
+     * @param inCompatibility
+     * @param inSource
+     * @param inTheseKeys
+     * @return the available backends compatible with the tool, handling the
+     *         mime type and the keys, the cheapest first
+     *
+     * @since 7.3
+     */
+    public static List<MetadataBackend> getCandidates(TOOL inCompatibility,
+            MetadataSource inSource, String[] inTheseKeys) {
+
+        ArrayList<MetadataBackend> candidates = new ArrayList<MetadataBackend>();
+        for (MetadataBackend backend : backends) {
+            if (backend.getCompatibility() == inCompatibility
+                    && handlesMimeType(backend, inSource.getMimeType())
+                    && backend.canRead(inTheseKeys) && backend.isAvailable()) {
+                candidates.add(backend);
+            }
+        }
+        sortByCost(candidates, inSource, inTheseKeys);
+        return candidates;
+    }
+
+    /**
+     * @param inSource
+     * @return the available backends handling the mime type, which may be
+     *         able to read the XMP, the cheapest first
+     *
+     * @since 7.3
+     */
+    public static List<MetadataBackend> getXMPCandidates(MetadataSource inSource) {
+
+        ArrayList<MetadataBackend> candidates = new ArrayList<MetadataBackend>();
+        for (MetadataBackend backend : backends) {
+            if (handlesMimeType(backend, inSource.getMimeType())
+                    && backend.isAvailable()) {
+                candidates.add(backend);
+            }
+        }
+        sortByCost(candidates, inSource, null);
+        return candidates;
+    }
+
+    /**
+     * Call {@link MetadataBackend#read(MetadataSource, String[])} and record
+     * its duration and outcome in the statistics of the backend
+     *
+     * @param inBackend
+     * @param inSource
+     * @param inTheseKeys
+     * @return the values, null if the backend cannot answer
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, Object> read(MetadataBackend inBackend,
+            MetadataSource inSource, String[] inTheseKeys)
+            throws ClientException {
+
+        BackendStatistics stats = getStatistics(inBackend.getName());
+        long start = System.nanoTime();
+        HashMap<String, Object> result;
+        try {
+            result = inBackend.read(inSource, inTheseKeys);
+        } catch (RuntimeException e) {
+            stats.recordFailure(System.nanoTime() - start);
+            throw e;
+        }
+        stats.recordRead(System.nanoTime() - start, result);
+        return result;
+    }
+
+    /**
+     * Same as {@link #read(MetadataBackend, MetadataSource, String[])}, but a
+     * failure of the backend (a parser on a malformed file, ...) is logged
+     * and returns null, so the next candidate is used. A timeout or a
+     * rejection of a tool is thrown: the next candidates would wait as long.
+     *
+     * @param inBackend
+     * @param inSource
+     * @param inTheseKeys
+     * @return the values, null if the backend cannot answer or failed
+     * @throws ToolTimeoutException
+     * @throws ToolRejectedException
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, Object> readOrSkip(
+            MetadataBackend inBackend, MetadataSource inSource,
+            String[] inTheseKeys) throws ClientException {
+        return readOrSkip(inBackend, inSource, inTheseKeys, true);
+    }
+
+    /**
+     * Same as {@link #readOrSkip(MetadataBackend, MetadataSource, String[])},
+     * but the failure of the last candidate is thrown, so the caller gets the
+     * error of the backend ("ExifTool error: File format error", ...) rather
+     * than "no backend can read".
+     *
+     * @param inBackend
+     * @param inSource
+     * @param inTheseKeys
+     * @param inHasNext false if the backend is the last candidate
+     * @return the values, null if the backend cannot answer or failed and is
+     *         not the last candidate
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, Object> readOrSkip(
+            MetadataBackend inBackend, MetadataSource inSource,
+            String[] inTheseKeys, boolean inHasNext) throws ClientException {
+
+        try {
+            return read(inBackend, inSource, inTheseKeys);
+        } catch (ToolTimeoutException | ToolRejectedException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            if (!inHasNext) {
+                throw e;
+            }
+            logSkipped(inBackend, inSource, e);
+            return null;
+        }
+    }
+
+    /**
+     * {@link MetadataBackend#readXMP(MetadataSource)}, a failure of the
+     * backend being handled as in
+     * {@link #readOrSkip(MetadataBackend, MetadataSource, String[], boolean)}
+     *
+     * @param inBackend
+     * @param inSource
+     * @param inHasNext false if the backend is the last candidate
+     * @return the XMP, null if the backend cannot answer or failed and is not
+     *         the last candidate
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public static String readXMPOrSkip(MetadataBackend inBackend,
+            MetadataSource inSource, boolean inHasNext) throws ClientException {
+
+        try {
+            return inBackend.readXMP(inSource);
+        } catch (ToolTimeoutException | ToolRejectedException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            if (!inHasNext) {
+                throw e;
+            }
+            logSkipped(inBackend, inSource, e);
+            return null;
+        }
+    }
+
+    protected static void logSkipped(MetadataBackend inBackend,
+            MetadataSource inSource, RuntimeException inError) {
+
+        log.warn(inBackend.getName() + " cannot read " + inSource
+                + ", trying the next backend: " + inError.getMessage());
+        if (log.isDebugEnabled()) {
+            log.debug(inBackend.getName() + " failure", inError);
+        }
+    }
+
+    /**
+     * @param inName
+     * @return the statistics of the reads of the backend (created if needed)
+     *
+     * @since 7.3
+     */
+    public static BackendStatistics getStatistics(String inName) {
+
+        BackendStatistics stats = statistics.get(inName);
+        if (stats == null) {
+            stats = new BackendStatistics(inName);
+            BackendStatistics existing = statistics.putIfAbsent(inName, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return the statistics of all the backends used since the start (or the
+     *         last {@link #resetStatistics()}), by name
+     *
+     * @since 7.3
+     */
+    public static Map<String, BackendStatistics> getAllStatistics() {
+        return Collections.unmodifiableMap(new HashMap<String, BackendStatistics>(
+                statistics));
+    }
+
+    /**
+     * @since 7.3
+     */
+    public static void resetStatistics() {
+        statistics.clear();
+    }
+
+    /**
+     * @return true if the backend handles any mime type or this one. When the
+     *         mime type is not known, each backend checks the format itself
+     */
+    protected static boolean handlesMimeType(MetadataBackend inBackend,
+            String inMimeType) {
+        return inMimeType == null || inBackend.getMimeTypes().isEmpty()
+                || inBackend.getMimeTypes().contains(inMimeType);
+    }
+
+    protected static void sortByCost(List<MetadataBackend> inBackends,
+            MetadataSource inSource, String[] inTheseKeys) {
+
+        final HashMap<MetadataBackend, Long> costs = new HashMap<MetadataBackend, Long>();
+        for (MetadataBackend backend : inBackends) {
+            costs.put(backend, backend.estimateCost(inSource, inTheseKeys));
+        }
+        Collections.sort(inBackends, new Comparator<MetadataBackend>() {
+            @Override
+            public int compare(MetadataBackend inA, MetadataBackend inB) {
+                return Long.compare(costs.get(inA), costs.get(inB));
+            }
+        });
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.binary.metadata.BinaryMetadataConstants.KEYS;
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.MetadataPreFilter;
+import org.nuxeo.binary.metadata.MetadataReader;
+import org.nuxeo.binary.metadata.parsers.FormatSniffer;
+import org.nuxeo.binary.metadata.tools.ToolDescriptor;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Reads the metadata without the caller choosing a tool (the "Auto" tool of
+ * <code>Document.ExtractBinaryMetadata</code>): Each key is routed to the
+ * cheapest backend which can read it.
+ * <p>
+ * The name of a key tells which tool it comes from: The well known keys of
+ * ImageMagick ({@link KEYS}: Width, Height, Colorspace, Resolution, Units,
+ * Format) and the keys computed from the pixels (see
+ * {@link org.nuxeo.binary.metadata.BinaryMetadataConstants#PIXEL_KEYS}) are
+ * read with the names and values of ImageMagick, any other key with the names
+ * and values of ExifTool. Without keys, all the values are read with
+ * ExifTool (ImageMagick if ExifTool is not installed).
+ * <p>
+ * The backends are selected by the mime type of the file, as detected from
+ * its first bytes (see {@link FormatSniffer}), or as declared by the blob
+ * when the format is not detected. For the keys of each tool, the router
+ * compares the cheapest backend which can read all of them with the
+ * cheapest combination of backends, each reading some of the keys (such as
+ * the size of a JPEG read from its header, and its EXIF date read from its
+ * EXIF), and uses the cheapest of the two. When a backend cannot answer for
+ * the file, the next cheapest one which can read its keys is used. The keys
+ * of a tool which cannot read the format (the ImageMagick keys of a CSV file,
+ * see {@link MetadataPreFilter}) are not found, the tool is not run.
+ * <p>
+ * The decisions are counted (see {@link #getDecisionCounts()}) and logged at
+ * debug level, and the latency of each backend is recorded (see
+ * {@link MetadataBackends#getAllStatistics()}), so the costs estimated by the
+ * backends can be checked against the actual durations.
+ *
+ * @since 7.3
+ */
+public class MetadataRouter {
+
+    private static final Log log = LogFactory.getLog(MetadataRouter.class);
+
+    protected static final String UNKNOWN_MIME_TYPE = "unknown";
+
+    // The mime types come from the blobs: do not let the counters grow
+    // without limit
+    protected static final int MAX_DECISIONS = 1000;
+
+    protected static final String OTHER_DECISIONS = "other";
+
+    protected static final List<String> IMAGEMAGICK_KEYS = Arrays.asList(
+            KEYS.WIDTH, KEYS.HEIGHT, KEYS.COLORSPACE, KEYS.RESOLUTION,
+            KEYS.UNITS, KEYS.FORMAT);
+
+    protected static final ConcurrentHashMap<String, AtomicLong> decisions = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Some keys, the backend which reads them, and the backends to try when
+     * it cannot answer for the file
+     *
+     * @since 7.3
+     */
+    public static class Route {
+
+        protected final MetadataBackend backend;
+
+        protected final String[] keys;
+
+        protected final long cost;
+
+        protected final List<MetadataBackend> fallbacks;
+
+        public Route(MetadataBackend inBackend, String[] inKeys, long inCost,
+                List<MetadataBackend> inFallbacks) {
+            backend = inBackend;
+            keys = inKeys;
+            cost = inCost;
+            fallbacks = inFallbacks;
+        }
+
+        public MetadataBackend getBackend() {
+            return backend;
+        }
+
+        /**
+         * @return the keys, null for all the values
+         */
+        public String[] getKeys() {
+            return keys;
+        }
+
+        /**
+         * @return the estimated cost, in microseconds
+         */
+        public long getCost() {
+            return cost;
+        }
+
+        /**
+         * @return the backends which can read the keys, the cheapest first
+         */
+        public List<MetadataBackend> getFallbacks() {
+            return fallbacks;
+        }
+
+        @Override
+        public String toString() {
+            return backend.getName()
+                    + (keys == null ? "[all]" : Arrays.toString(keys));
+        }
+    }
+
+    /**
+     * @param inKey
+     * @return the tool whose names and values are used for the key
+     *
+     * @since 7.3
+     */
+    public static TOOL getCompatibility(String inKey) {
+
+        if (IMAGEMAGICK_KEYS.contains(inKey)
+                || MetadataReader.requiresPixels(new String[] { inKey })) {
+            return TOOL.IMAGEMAGICK;
+        }
+        return TOOL.EXIFTOOL;
+    }
+
+    /**
+     * @param inSource
+     * @return the source with the mime type detected from the first bytes of
+     *         the file, unchanged if the format is not detected (or is only
+     *         detected as text or ZIP)
+     *
+     * @since 7.3
+     */
+    public static MetadataSource sniff(MetadataSource inSource) {
+
+        // Without a file, only the head is read (an OOXML document is then
+        // just a ZIP)
+        String mimeType;
+        if (inSource.hasFile()) {
+            mimeType = FormatSniffer.sniff(inSource.getFilePath());
+        } else {
+            mimeType = FormatSniffer.sniff(inSource.getHead());
+        }
+        if (mimeType == null || mimeType.equals(inSource.getMimeType())
+                || (FormatSniffer.isGeneric(mimeType) && inSource.getMimeType() != null)) {
+            return inSource;
+        }
+        if (inSource.getMimeType() != null && log.isDebugEnabled()) {
+            log.debug("Declared as " + inSource.getMimeType()
+                    + ", detected as " + mimeType + ": " + inSource);
+        }
+        return inSource.withMimeType(mimeType);
+    }
+
+    /**
+     * Choose the backends, without reading anything but the first bytes of
+     * the file
+     *
+     * @param inSource
+     * @param inTheseKeys null or empty for all the values
+     * @return the routes
+     * @throws ClientException if no backend can read some keys
+     *
+     * @since 7.3
+     */
+    public static List<Route> plan(MetadataSource inSource,
+            String[] inTheseKeys) throws ClientException {
+        return planSniffed(sniff(inSource), inTheseKeys);
+    }
+
+    protected static List<Route> planSniffed(MetadataSource inSource,
+            String[] inTheseKeys) throws ClientException {
+
+        ArrayList<Route> routes = new ArrayList<Route>();
+
+        if (!AbstractMetadataBackend.hasKeys(inTheseKeys)) {
+            for (TOOL tool : new TOOL[] { TOOL.EXIFTOOL, TOOL.IMAGEMAGICK }) {
+                List<MetadataBackend> candidates = MetadataBackends.getCandidates(
+                        tool, inSource, null);
+                if (!candidates.isEmpty()) {
+                    routes.add(new Route(candidates.get(0), null,
+                            candidates.get(0).estimateCost(inSource, null),
+                            candidates.subList(1, candidates.size())));
+                    return routes;
+                }
+            }
+            throw new ClientException(
+                    "No backend can read all the metadata: is ExifTool installed?");
+        }
+
+        // Keys by tool, in the order of the caller
+        LinkedHashMap<TOOL, ArrayList<String>> keysByTool = new LinkedHashMap<TOOL, ArrayList<String>>();
+        for (String oneProp : inTheseKeys) {
+            if (oneProp == null || oneProp.isEmpty()) {
+                continue;
+            }
+            TOOL tool = getCompatibility(oneProp);
+            ArrayList<String> keys = keysByTool.get(tool);
+            if (keys == null) {
+                keys = new ArrayList<String>();
+                keysByTool.put(tool, keys);
+            }
+            if (!keys.contains(oneProp)) {
+                keys.add(oneProp);
+            }
+        }
+        for (Map.Entry<TOOL, ArrayList<String>> entry : keysByTool.entrySet()) {
+            // Such as the ImageMagick keys of a CSV: not found
+            if (!MetadataPreFilter.canRead(inSource.getMimeType(),
+                    entry.getKey())) {
+                continue;
+            }
+            routes.addAll(planKeys(entry.getKey(), inSource,
+                    entry.getValue()));
+        }
+        return routes;
+    }
+
+    /*
+     * The cheapest of: one backend reading all the keys, or the cheapest
+     * backend for each key
+     */
+    protected static List<Route> planKeys(TOOL inTool,
+            MetadataSource inSource, List<String> inKeys)
+            throws ClientException {
+
+        String[] allKeys = inKeys.toArray(new String[inKeys.size()]);
+        List<MetadataBackend> candidates = getCandidates(inTool, inSource);
+
+        MetadataBackend single = null;
+        long singleCost = Long.MAX_VALUE;
+        for (MetadataBackend backend : candidates) {
+            if (backend.canRead(allKeys)) {
+                long cost = backend.estimateCost(inSource, allKeys);
+                if (cost < singleCost) {
+                    single = backend;
+                    singleCost = cost;
+                }
+            }
+        }
+
+        // The cheapest backend for each key
+        LinkedHashMap<MetadataBackend, ArrayList<String>> split = new LinkedHashMap<MetadataBackend, ArrayList<String>>();
+        for (String oneProp : inKeys) {
+            String[] oneKey = new String[] { oneProp };
+            MetadataBackend cheapest = null;
+            long cheapestCost = Long.MAX_VALUE;
+            for (MetadataBackend backend : candidates) {
+                if (backend.canRead(oneKey)) {
+                    long cost = backend.estimateCost(inSource, oneKey);
+                    if (cost < cheapestCost) {
+                        cheapest = backend;
+                        cheapestCost = cost;
+                    }
+                }
+            }
+            if (cheapest == null) {
+                throw new ClientException("No backend can read " + oneProp
+                        + " with " + ToolDescriptor.toName(inTool)
+                        + " names: is the tool installed?");
+            }
+            ArrayList<String> keys = split.get(cheapest);
+            if (keys == null) {
+                keys = new ArrayList<String>();
+                split.put(cheapest, keys);
+            }
+            keys.add(oneProp);
+        }
+
+        ArrayList<Route> routes = new ArrayList<Route>();
+        long splitCost = 0;
+        for (Map.Entry<MetadataBackend, ArrayList<String>> entry : split.entrySet()) {
+            String[] keys = entry.getValue().toArray(
+                    new String[entry.getValue().size()]);
+            long cost = entry.getKey().estimateCost(inSource, keys);
+            splitCost += cost;
+            routes.add(new Route(entry.getKey(), keys, cost, getFallbacks(
+                    candidates, entry.getKey(), inSource, keys)));
+        }
+
+        if (single != null && singleCost <= splitCost) {
+            routes.clear();
+            routes.add(new Route(single, allKeys, singleCost, getFallbacks(
+                    candidates, single, inSource, allKeys)));
+        }
+        return routes;
+    }
+
+    protected static List<MetadataBackend> getCandidates(TOOL inTool,
+            MetadataSource inSource) {
+
+        ArrayList<MetadataBackend> candidates = new ArrayList<MetadataBackend>();
+        for (MetadataBackend backend : MetadataBackends.getAll()) {
+            if (backend.getCompatibility() == inTool
+                    && MetadataBackends.handlesMimeType(backend,
+                            inSource.getMimeType()) && backend.isAvailable()) {
+                candidates.add(backend);
+            }
+        }
+        return candidates;
+    }
+
+    protected static List<MetadataBackend> getFallbacks(
+            List<MetadataBackend> inCandidates, MetadataBackend inBackend,
+            MetadataSource inSource, String[] inKeys) {
+
+        ArrayList<MetadataBackend> fallbacks = new ArrayList<MetadataBackend>();
+        for (MetadataBackend backend : inCandidates) {
+            if (backend != inBackend && backend.canRead(inKeys)) {
+                fallbacks.add(backend);
+            }
+        }
+        MetadataBackends.sortByCost(fallbacks, inSource, inKeys);
+        return fallbacks;
+    }
+
+    /**
+     * Read the values, each key with the backend chosen by
+     * {@link #plan(MetadataSource, String[])}
+     *
+     * @param inSource
+     * @param inTheseKeys null or empty for all the values
+     * @return the values, as returned by the backends. A key not found is not
+     *         in the map, or has an empty value (ImageMagick keys)
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, Object> read(MetadataSource inSource,
+            String[] inTheseKeys) throws ClientException {
+
+        long start = System.nanoTime();
+        MetadataSource source = sniff(inSource);
+        List<Route> routes = planSniffed(source, inTheseKeys);
+
+        HashMap<String, Object> result = new HashMap<String, Object>();
+        StringBuilder decision = new StringBuilder();
+        for (Route route : routes) {
+            MetadataBackend answeredBy = null;
+            List<MetadataBackend> fallbacks = route.getFallbacks();
+            HashMap<String, Object> values = MetadataBackends.readOrSkip(
+                    route.getBackend(), source, route.getKeys(),
+                    !fallbacks.isEmpty());
+            if (values != null) {
+                answeredBy = route.getBackend();
+            } else {
+                for (int i = 0; i < fallbacks.size(); i++) {
+                    MetadataBackend backend = fallbacks.get(i);
+                    values = MetadataBackends.readOrSkip(backend, source,
+                            route.getKeys(), i < fallbacks.size() - 1);
+                    if (values != null) {
+                        answeredBy = backend;
+                        break;
+                    }
+                }
+            }
+            if (answeredBy == null) {
+                throw new ClientException("No backend can read "
+                        + Arrays.toString(route.getKeys()) + " of " + source);
+            }
+            result.putAll(values);
+            if (decision.length() > 0) {
+                decision.append(" + ");
+            }
+            decision.append(answeredBy.getName());
+        }
+
+        String mimeType = source.getMimeType() == null ? UNKNOWN_MIME_TYPE
+                : source.getMimeType();
+        countDecision(mimeType + ": " + decision);
+        if (log.isDebugEnabled()) {
+            log.debug("Routed " + source + " (" + mimeType
+                    + ") to " + routes + ", read by " + decision + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    + " ms");
+        }
+
+        return result;
+    }
+
+    protected static void countDecision(String inDecision) {
+
+        String decision = inDecision;
+        if (!decisions.containsKey(decision)
+                && decisions.size() >= MAX_DECISIONS) {
+            decision = OTHER_DECISIONS;
+        }
+        AtomicLong count = decisions.get(decision);
+        if (count == null) {
+            count = new AtomicLong();
+            AtomicLong existing = decisions.putIfAbsent(decision, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return the number of reads by "mime type: backends which answered"
+     *         ("image/jpeg: ImageHeader + Exif", ...), since the start or the
+     *         last {@link #resetStatistics()}
+     *
+     * @since 7.3
+     */
+    public static Map<String, Long> getDecisionCounts() {
+
+        HashMap<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : decisions.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Reset the decision counts
+     *
+     * @since 7.3
+     */
+    public static void resetStatistics() {
+        decisions.clear();
+    }
+}
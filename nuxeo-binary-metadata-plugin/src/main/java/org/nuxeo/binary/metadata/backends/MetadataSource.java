@@ -0,0 +1,341 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.nuxeo.binary.metadata.MetadataReader.READ_MODE;
+import org.nuxeo.binary.metadata.parsers.FormatSniffer;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * The file read by a {@link MetadataBackend}, with the options of the read.
+ * <p>
+ * The content may not be a file yet (a blob stored remotely, ...): A backend
+ * which can read a stream checks {@link #hasFile()} and uses
+ * {@link #openStream()}, {@link #getFilePath()} copies the content to a
+ * temporary file the first time it is called. A backend which only needs the
+ * bytes holding the metadata uses {@link #getPrefixPath()} instead (see
+ * {@link PrefixWindow}).
+ *
+ * @since 7.3
+ */
+public class MetadataSource implements Closeable {
+
+    /**
+     * The bytes of the source
+     *
+     * @since 7.3
+     */
+    public interface Content {
+
+        /**
+         * @return true if {@link #getFilePath()} does not need to copy the
+         *         content
+         */
+        boolean hasFile();
+
+        /**
+         * @return the path of a file with the content, copied if needed
+         */
+        String getFilePath() throws IOException;
+
+        /**
+         * @return a new stream on the content, the caller closes it
+         */
+        InputStream openStream() throws IOException;
+
+        /**
+         * @return a new channel on the content, to read ranges of bytes. The
+         *         caller closes it. See {@link StreamChannel} for a content
+         *         which is only a stream
+         */
+        SeekableByteChannel openChannel() throws IOException;
+
+        /**
+         * @return the size in bytes, -1 if not known
+         */
+        long getLength();
+    }
+
+    // Says nothing about the format
+    protected static final String OCTET_STREAM = "application/octet-stream";
+
+    protected final Content content;
+
+    protected final String mimeType;
+
+    protected long timeoutMillis = -1;
+
+    protected READ_MODE readMode = READ_MODE.AUTO;
+
+    protected long fileSize = -1;
+
+    protected ByteBuffer head = null;
+
+    // Shared with the copies made by withMimeType
+    protected AtomicReference<PrefixWindow> prefixWindow = new AtomicReference<PrefixWindow>();
+
+    /**
+     * @param inFilePath
+     * @param inMimeType null if not known
+     */
+    public MetadataSource(final String inFilePath, String inMimeType) {
+        this(new Content() {
+            @Override
+            public boolean hasFile() {
+                return true;
+            }
+
+            @Override
+            public String getFilePath() {
+                return inFilePath;
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return new FileInputStream(inFilePath);
+            }
+
+            @Override
+            public SeekableByteChannel openChannel() throws IOException {
+                return FileChannel.open(Paths.get(inFilePath),
+                        StandardOpenOption.READ);
+            }
+
+            @Override
+            public long getLength() {
+                return new File(inFilePath).length();
+            }
+
+            @Override
+            public String toString() {
+                return inFilePath;
+            }
+        }, inMimeType);
+    }
+
+    /**
+     * @param inContent
+     * @param inMimeType null if not known
+     *
+     * @since 7.3
+     */
+    public MetadataSource(Content inContent, String inMimeType) {
+        content = inContent;
+        mimeType = inMimeType == null || inMimeType.isEmpty()
+                || OCTET_STREAM.equals(inMimeType) ? null : inMimeType;
+    }
+
+    /**
+     * @param inMimeType
+     * @return a copy of this source, with another mime type
+     *
+     * @since 7.3
+     */
+    public MetadataSource withMimeType(String inMimeType) {
+
+        MetadataSource source = new MetadataSource(content, inMimeType);
+        source.timeoutMillis = timeoutMillis;
+        source.readMode = readMode;
+        source.fileSize = fileSize;
+        source.head = head;
+        source.prefixWindow = prefixWindow;
+        return source;
+    }
+
+    /**
+     * @return the path of the file, the content being copied to a temporary
+     *         file if {@link #hasFile()} is false
+     * @throws ClientException if the copy failed
+     */
+    public String getFilePath() throws ClientException {
+        try {
+            return content.getFilePath();
+        } catch (IOException e) {
+            throw new ClientException(e);
+        }
+    }
+
+    /**
+     * @return true if {@link #getFilePath()} is free, false if it copies the
+     *         content
+     *
+     * @since 7.3
+     */
+    public boolean hasFile() {
+        return content.hasFile();
+    }
+
+    /**
+     * @return the path of the file if {@link #hasFile()}, of its
+     *         {@link PrefixWindow} otherwise: The bytes which do not hold
+     *         metadata may not be there (they are read as zeros)
+     * @throws ClientException if the window cannot be read
+     *
+     * @since 7.3
+     */
+    public String getPrefixPath() throws ClientException {
+
+        if (content.hasFile()) {
+            return getFilePath();
+        }
+        try {
+            return getPrefixWindow().getPath();
+        } catch (IOException e) {
+            throw new ClientException(e);
+        }
+    }
+
+    /**
+     * @return the window of the content, created the first time. null if
+     *         {@link #hasFile()}
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public PrefixWindow getPrefixWindow() throws IOException {
+
+        if (content.hasFile()) {
+            return null;
+        }
+        synchronized (prefixWindow) {
+            PrefixWindow window = prefixWindow.get();
+            if (window == null) {
+                window = PrefixWindow.open(content);
+                prefixWindow.set(window);
+            }
+            return window;
+        }
+    }
+
+    /**
+     * Called by a parser which cannot read the {@link #getPrefixPath()} file,
+     * see {@link PrefixWindow#grow()}
+     *
+     * @return true if the window has more bytes: the parser can try again
+     *
+     * @since 7.3
+     */
+    public boolean growPrefix() {
+
+        PrefixWindow window = prefixWindow.get();
+        if (content.hasFile() || window == null) {
+            return false;
+        }
+        try {
+            return window.grow();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return a new stream on the content, the caller closes it
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public InputStream openStream() throws IOException {
+        return content.openStream();
+    }
+
+    /**
+     * @return the first {@link FormatSniffer#HEAD_SIZE} bytes, read once. An
+     *         empty buffer if the content cannot be read
+     *
+     * @since 7.3
+     */
+    public ByteBuffer getHead() {
+
+        if (head == null) {
+            try (InputStream in = content.openStream()) {
+                head = FormatSniffer.readHead(in);
+            } catch (IOException e) {
+                head = ByteBuffer.allocate(0);
+            }
+        }
+        return head.duplicate();
+    }
+
+    /**
+     * @return the mime type, null if not known
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return -1 for the timeout of the tool, 0 for no timeout
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void setTimeoutMillis(long inTimeoutMillis) {
+        timeoutMillis = inTimeoutMillis;
+    }
+
+    /**
+     * @return how ImageMagick/GraphicsMagick read the file
+     */
+    public READ_MODE getReadMode() {
+        return readMode;
+    }
+
+    public void setReadMode(READ_MODE inReadMode) {
+        readMode = inReadMode == null ? READ_MODE.AUTO : inReadMode;
+    }
+
+    public long getFileSize() {
+        if (fileSize < 0) {
+            fileSize = Math.max(content.getLength(), 0);
+        }
+        return fileSize;
+    }
+
+    /**
+     * Delete the {@link PrefixWindow}, if any. It is shared with the copies
+     * made by {@link #withMimeType(String)}: they can't use it after this.
+     *
+     * @since 7.3
+     */
+    @Override
+    public void close() {
+        synchronized (prefixWindow) {
+            PrefixWindow window = prefixWindow.getAndSet(null);
+            if (window != null) {
+                window.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return content.toString();
+    }
+}
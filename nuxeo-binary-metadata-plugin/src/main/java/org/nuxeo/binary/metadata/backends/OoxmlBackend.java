@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.util.HashMap;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.parsers.OoxmlMetadataReader;
+
+/**
+ * Document properties of Office Open XML files (docx, pptx, xlsx), read in
+ * Java with the names and formatting of ExifTool (see
+ * {@link OoxmlMetadataReader}).
+ *
+ * @since 7.3
+ */
+public class OoxmlBackend extends AbstractMetadataBackend {
+
+    protected static final long COST = 500;
+
+    public OoxmlBackend() {
+        super("Ooxml", TOOL.EXIFTOOL, OoxmlMetadataReader.MIME_TYPES);
+    }
+
+    @Override
+    public boolean canRead(String[] inTheseKeys) {
+        return OoxmlMetadataReader.canRead(inTheseKeys);
+    }
+
+    @Override
+    public long estimateCost(MetadataSource inSource, String[] inTheseKeys) {
+        return COST + copyCost(inSource);
+    }
+
+    @Override
+    public HashMap<String, Object> read(MetadataSource inSource,
+            String[] inTheseKeys) {
+        return OoxmlMetadataReader.read(inSource.getFilePath(), inTheseKeys);
+    }
+}
@@ -0,0 +1,604 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.binary.metadata.parsers.FormatSniffer;
+import org.nuxeo.binary.metadata.parsers.ImageHeaderParser;
+import org.nuxeo.binary.metadata.parsers.IsoBmffReader;
+import org.nuxeo.binary.metadata.parsers.PdfMetadataReader;
+import org.nuxeo.binary.metadata.scratch.ScratchFile;
+import org.nuxeo.binary.metadata.scratch.ScratchFiles;
+import org.nuxeo.binary.metadata.scratch.ScratchQuotaExceededException;
+
+/**
+ * The bytes of a content holding its metadata, so a content which is not a
+ * file (see {@link MetadataSource#hasFile()}) does not have to be copied
+ * entirely to be read.
+ * <p>
+ * The window is a sparse temporary file with the length of the content, in
+ * which only some ranges are copied, the others being holes (read as zeros,
+ * they use no disk space). The parsers and ExifTool read it as they would
+ * read the whole file. When the scratch directory is not known to support
+ * sparse files (see {@link ScratchFiles#supportsSparseFiles()}), the whole
+ * length is counted against the quota of the scratch files. The ranges are:
+ * <ul>
+ * <li>The first {@link #INITIAL_SIZE} bytes</li>
+ * <li>JPEG: every segment before the image data (SOS)</li>
+ * <li>PNG: every chunk before the image data (IDAT)</li>
+ * <li>TIFF: IFD0, the EXIF, GPS and interoperability IFDs, and the values
+ * they point to</li>
+ * <li>ISO-BMFF (MP4, MOV, ...): every top-level box but the media data
+ * ("mdat"), so a "moov" box at the end of the file is read too</li>
+ * <li>PDF: the last {@link #INITIAL_SIZE} bytes (trailer, cross-reference
+ * table)</li>
+ * </ul>
+ * When the structure of the format is not known (or is not fully scanned), a
+ * parser which cannot read the window asks for more with {@link #grow()}: The
+ * head (and the tail) are doubled, up to {@link #MAX_SIZE} bytes read.
+ * <p>
+ * The bytes are read with the channel of the content (see
+ * {@link MetadataSource.Content#openChannel()}), so a store which can read a
+ * range transfers only the bytes of the window.
+ *
+ * @since 7.3
+ */
+public class PrefixWindow implements Closeable {
+
+    /**
+     * First bytes read, and first bytes of the tail of a PDF
+     */
+    public static final int INITIAL_SIZE = 16 * 1024;
+
+    /**
+     * Max. bytes read in a window. Beyond this, the content has to be copied
+     */
+    public static final long MAX_SIZE = 16 * 1024 * 1024;
+
+    // Max. segments, chunks, boxes or IFD entries scanned
+    protected static final int MAX_ITEMS = 10000;
+
+    protected static final int BUFFER_SIZE = 65536;
+
+    // IFDs of the EXIF, GPS and interoperability values
+    protected static final int[] TIFF_SUB_IFDS = { 0x8769, 0x8825, 0xA005 };
+
+    // Size of each TIFF type, 0 if unknown
+    protected static final int[] TIFF_TYPE_SIZES = { 0, 1, 1, 2, 4, 8, 1, 1,
+            2, 4, 8, 4, 8, 4 };
+
+    protected static final AtomicLong windowCount = new AtomicLong();
+
+    protected static final AtomicLong totalBytesRead = new AtomicLong();
+
+    protected final SeekableByteChannel input;
+
+    protected final long length;
+
+    protected final ScratchFile file;
+
+    protected final FileChannel output;
+
+    // Copied ranges, start => end (excluded). They don't overlap
+    protected final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+    protected long headSize = 0;
+
+    protected long tailSize = 0;
+
+    protected long bytesRead = 0;
+
+    // The structure of the format was fully scanned: growing is useless
+    protected boolean scanned = false;
+
+    /**
+     * Create the window of inContent and read the ranges of its format
+     *
+     * @param inContent
+     * @return the window, to close when done
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public static PrefixWindow open(MetadataSource.Content inContent)
+            throws IOException {
+
+        SeekableByteChannel channel = inContent.openChannel();
+        PrefixWindow window;
+        try {
+            window = new PrefixWindow(channel, inContent.getLength());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        try {
+            window.scan();
+        } catch (IOException | RuntimeException e) {
+            window.close();
+            throw e;
+        }
+        windowCount.incrementAndGet();
+        return window;
+    }
+
+    protected PrefixWindow(SeekableByteChannel inInput, long inLength)
+            throws IOException {
+
+        input = inInput;
+        length = inLength >= 0 ? inLength : inInput.size();
+        // Sparse: the quota is reserved for the written ranges only
+        file = ScratchFiles.create("MDPW-",
+                ScratchFiles.supportsSparseFiles() ? 0 : length);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file.getFile(), "rw");
+            raf.setLength(length);
+        } catch (IOException | RuntimeException e) {
+            if (raf != null) {
+                raf.close();
+            }
+            file.close();
+            throw e;
+        }
+        output = raf.getChannel();
+        // Deleted when this window is garbage collected if not closed
+        ScratchFiles.track(file, this, output);
+    }
+
+    protected void scan() throws IOException {
+
+        headSize = Math.min(length, INITIAL_SIZE);
+        if (!ensure(0, headSize)) {
+            throw new ScratchQuotaExceededException(
+                    "No room for the window of " + length + " bytes");
+        }
+        ByteBuffer head = fetch(0, FormatSniffer.HEAD_SIZE);
+        String mimeType = FormatSniffer.sniff(head);
+
+        switch (ImageHeaderParser.detectFormat(head)) {
+        case ImageHeaderParser.JPEG:
+            scanned = scanJpeg();
+            return;
+        case ImageHeaderParser.PNG:
+            scanned = scanPng();
+            return;
+        case ImageHeaderParser.TIFF:
+            scanned = scanTiff();
+            return;
+        default:
+            break;
+        }
+        if (IsoBmffReader.isIsoBmffMimeType(mimeType)) {
+            scanned = scanIsoBmff();
+        } else if (PdfMetadataReader.MIME_TYPE.equals(mimeType)) {
+            tailSize = Math.min(length, INITIAL_SIZE);
+            ensure(length - tailSize, tailSize);
+        }
+    }
+
+    /*
+     * The segments before the image data
+     */
+    protected boolean scanJpeg() throws IOException {
+
+        long pos = 2;
+        for (int i = 0; i < MAX_ITEMS; i++) {
+            ByteBuffer marker = fetch(pos, 4);
+            if (marker == null || marker.limit() < 2
+                    || (marker.get(0) & 0xFF) != 0xFF) {
+                return false;
+            }
+            int type = marker.get(1) & 0xFF;
+            if (type == 0xFF) {
+                // Fill byte
+                pos += 1;
+            } else if (type == 0xDA || type == 0xD9) {
+                // Start of scan, end of image
+                return true;
+            } else if (type == 0x01 || (type >= 0xD0 && type <= 0xD7)) {
+                // No length
+                pos += 2;
+            } else {
+                if (marker.limit() < 4) {
+                    return false;
+                }
+                int segmentLength = marker.getShort(2) & 0xFFFF;
+                if (!ensure(pos + 2, segmentLength)) {
+                    return false;
+                }
+                pos += 2 + segmentLength;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The chunks before the image data
+     */
+    protected boolean scanPng() throws IOException {
+
+        long pos = 8;
+        for (int i = 0; i < MAX_ITEMS; i++) {
+            ByteBuffer chunk = fetch(pos, 8);
+            if (chunk == null || chunk.limit() < 8) {
+                return false;
+            }
+            long chunkLength = chunk.getInt(0) & 0xFFFFFFFFL;
+            String type = fourCC(chunk, 4);
+            if ("IDAT".equals(type) || "IEND".equals(type)) {
+                return true;
+            }
+            // Data and CRC
+            if (!ensure(pos + 8, chunkLength + 4)) {
+                return false;
+            }
+            pos += 12 + chunkLength;
+        }
+        return false;
+    }
+
+    protected boolean scanTiff() throws IOException {
+
+        ByteBuffer header = fetch(0, 8);
+        if (header == null || header.limit() < 8) {
+            return false;
+        }
+        ByteOrder order = header.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN
+                : ByteOrder.BIG_ENDIAN;
+        return scanIfd(header.order(order).getInt(4) & 0xFFFFFFFFL, order, 0);
+    }
+
+    /*
+     * The entries of the IFD, their values, and the sub-IFDs with metadata.
+     * The image data (strips, tiles) is not read
+     */
+    protected boolean scanIfd(long inOffset, ByteOrder inOrder, int inDepth)
+            throws IOException {
+
+        if (inDepth > 2) {
+            return true;
+        }
+        ByteBuffer count = fetch(inOffset, 2);
+        if (count == null || count.limit() < 2) {
+            return false;
+        }
+        int entryCount = count.order(inOrder).getShort(0) & 0xFFFF;
+        ByteBuffer entries = fetch(inOffset + 2, entryCount * 12);
+        if (entries == null || entries.limit() < entryCount * 12) {
+            return false;
+        }
+        entries.order(inOrder);
+
+        for (int i = 0; i < entryCount; i++) {
+            int entry = i * 12;
+            int tag = entries.getShort(entry) & 0xFFFF;
+            int type = entries.getShort(entry + 2) & 0xFFFF;
+            long valueCount = entries.getInt(entry + 4) & 0xFFFFFFFFL;
+            long value = entries.getInt(entry + 8) & 0xFFFFFFFFL;
+
+            boolean subIfd = false;
+            for (int oneTag : TIFF_SUB_IFDS) {
+                if (tag == oneTag) {
+                    subIfd = true;
+                }
+            }
+            if (subIfd) {
+                if (!scanIfd(value, inOrder, inDepth + 1)) {
+                    return false;
+                }
+                continue;
+            }
+            int typeSize = type < TIFF_TYPE_SIZES.length ? TIFF_TYPE_SIZES[type]
+                    : 0;
+            long size = valueCount * typeSize;
+            if (size > 4 && !ensure(value, size)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Every top-level box but the media data
+     */
+    protected boolean scanIsoBmff() throws IOException {
+
+        long pos = 0;
+        for (int i = 0; i < MAX_ITEMS; i++) {
+            if (pos + 8 > length) {
+                return true;
+            }
+            ByteBuffer header = fetch(pos, 16);
+            if (header == null || header.limit() < 8) {
+                return false;
+            }
+            long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+            String type = fourCC(header, 4);
+            int headerSize = 8;
+            if (boxSize == 1) {
+                if (header.limit() < 16) {
+                    return false;
+                }
+                boxSize = header.getLong(8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = length - pos;
+            }
+            if (boxSize < headerSize) {
+                return false;
+            }
+            if (!"mdat".equals(type) && !"free".equals(type)
+                    && !"skip".equals(type) && !ensure(pos, boxSize)) {
+                return false;
+            }
+            pos += boxSize;
+        }
+        return false;
+    }
+
+    /**
+     * Double the head (and the tail, if any) of the window
+     *
+     * @return true if the window was grown, false if growing is useless (the
+     *         structure of the format was read, or the window is the whole
+     *         content) or if {@link #MAX_SIZE} is reached
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public synchronized boolean grow() throws IOException {
+
+        if (scanned || isComplete()) {
+            return false;
+        }
+        long newHead = Math.min(length, Math.max(headSize * 2, INITIAL_SIZE));
+        if (!ensure(0, newHead)) {
+            return false;
+        }
+        headSize = newHead;
+        if (tailSize > 0) {
+            long newTail = Math.min(length, tailSize * 2);
+            if (!ensure(length - newTail, newTail)) {
+                return false;
+            }
+            tailSize = newTail;
+        }
+        return true;
+    }
+
+    /**
+     * Copy a range to the window, if not already done
+     *
+     * @param inPosition
+     * @param inLength
+     * @return false if this would read more than {@link #MAX_SIZE} bytes
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public synchronized boolean ensure(long inPosition, long inLength)
+            throws IOException {
+
+        long from = Math.max(0, inPosition);
+        long to = Math.min(length, inPosition + Math.max(0, inLength));
+        if (from >= to) {
+            return true;
+        }
+
+        // The missing parts
+        ArrayList<long[]> gaps = new ArrayList<long[]>();
+        long cursor = from;
+        Long floor = ranges.floorKey(from);
+        NavigableMap<Long, Long> following = ranges.tailMap(
+                floor == null ? from : floor, true);
+        for (Map.Entry<Long, Long> range : following.entrySet()) {
+            if (range.getKey() >= to) {
+                break;
+            }
+            if (range.getKey() > cursor) {
+                gaps.add(new long[] { cursor, range.getKey() });
+            }
+            cursor = Math.max(cursor, range.getValue());
+        }
+        if (cursor < to) {
+            gaps.add(new long[] { cursor, to });
+        }
+
+        long missing = 0;
+        for (long[] gap : gaps) {
+            missing += gap[1] - gap[0];
+        }
+        if (bytesRead + missing > MAX_SIZE) {
+            return false;
+        }
+        try {
+            file.reserve(bytesRead + missing);
+        } catch (ScratchQuotaExceededException e) {
+            return false;
+        }
+        for (long[] gap : gaps) {
+            copy(gap[0], gap[1]);
+            addRange(gap[0], gap[1]);
+        }
+        return true;
+    }
+
+    protected void copy(long inFrom, long inTo) throws IOException {
+
+        input.position(inFrom);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE,
+                inTo - inFrom));
+        long pos = inFrom;
+        while (pos < inTo) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), inTo - pos));
+            int count = input.read(buffer);
+            if (count <= 0) {
+                throw new EOFException("End of content at " + pos + ", "
+                        + length + " bytes expected");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                output.write(buffer, pos + buffer.position());
+            }
+            pos += count;
+            bytesRead += count;
+            totalBytesRead.addAndGet(count);
+        }
+    }
+
+    protected void addRange(long inFrom, long inTo) {
+
+        long from = inFrom;
+        long to = inTo;
+        Map.Entry<Long, Long> previous = ranges.floorEntry(from);
+        if (previous != null && previous.getValue() >= from) {
+            from = previous.getKey();
+            to = Math.max(to, previous.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = ranges.ceilingEntry(from)) != null
+                && next.getKey() <= to) {
+            to = Math.max(to, next.getValue());
+            ranges.remove(next.getKey());
+        }
+        ranges.put(from, to);
+    }
+
+    /*
+     * The bytes of a range (less at the end of the content), copied first if
+     * needed. Big endian. null if MAX_SIZE is reached
+     */
+    protected ByteBuffer fetch(long inPosition, int inLength)
+            throws IOException {
+
+        if (!ensure(inPosition, inLength)) {
+            return null;
+        }
+        int size = (int) Math.max(0,
+                Math.min(inLength, length - inPosition));
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (output.read(buffer, inPosition + buffer.position()) <= 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    protected static String fourCC(ByteBuffer inData, int inPos) {
+        return new String(inData.array(), inData.arrayOffset() + inPos, 4,
+                StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the path of the window, with the length of the content
+     */
+    public String getPath() {
+        return file.getPath();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the bytes read from the content
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return true if the structure of the format was fully read: Growing
+     *         the window would not help a parser
+     */
+    public synchronized boolean isScanned() {
+        return scanned;
+    }
+
+    /**
+     * @return true if the window holds the whole content
+     */
+    public synchronized boolean isComplete() {
+        if (length == 0) {
+            return true;
+        }
+        return ranges.size() == 1 && ranges.firstKey() == 0
+                && ranges.firstEntry().getValue() >= length;
+    }
+
+    /**
+     * Delete the window
+     */
+    @Override
+    public void close() {
+
+        try {
+            input.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        try {
+            output.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        file.close();
+    }
+
+    /**
+     * @return the number of windows created since the start (or the last
+     *         {@link #resetStatistics()})
+     */
+    public static long getWindowCount() {
+        return windowCount.get();
+    }
+
+    /**
+     * @return the bytes read by all the windows, since the start (or the
+     *         last {@link #resetStatistics()})
+     */
+    public static long getTotalBytesRead() {
+        return totalBytesRead.get();
+    }
+
+    public static void resetStatistics() {
+        windowCount.set(0);
+        totalBytesRead.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "PrefixWindow[" + getBytesRead() + "/" + length + " bytes]";
+    }
+}
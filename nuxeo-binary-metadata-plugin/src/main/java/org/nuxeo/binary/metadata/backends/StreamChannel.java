@@ -0,0 +1,168 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only {@link SeekableByteChannel} on a {@link MetadataSource.Content}
+ * which can only be read as a stream: Moving forward skips the bytes, moving
+ * backward opens a new stream.
+ * <p>
+ * This is the default channel of a content which is not a file. A content
+ * whose store can read a range of bytes (HTTP range request, ...) should
+ * return its own channel, so the skipped bytes are not transferred.
+ *
+ * @since 7.3
+ */
+public class StreamChannel implements SeekableByteChannel {
+
+    protected static final int BUFFER_SIZE = 65536;
+
+    protected final MetadataSource.Content content;
+
+    protected InputStream stream = null;
+
+    // Position of the stream
+    protected long streamPosition = 0;
+
+    // Position of the next read
+    protected long position = 0;
+
+    protected boolean open = true;
+
+    public StreamChannel(MetadataSource.Content inContent) {
+        content = inContent;
+    }
+
+    @Override
+    public int read(ByteBuffer inDst) throws IOException {
+
+        checkOpen();
+        if (position >= size()) {
+            return -1;
+        }
+        seekStream();
+        int count;
+        if (inDst.hasArray()) {
+            count = stream.read(inDst.array(),
+                    inDst.arrayOffset() + inDst.position(), inDst.remaining());
+            if (count > 0) {
+                inDst.position(inDst.position() + count);
+            }
+        } else {
+            byte[] bytes = new byte[Math.min(inDst.remaining(), BUFFER_SIZE)];
+            count = stream.read(bytes);
+            if (count > 0) {
+                inDst.put(bytes, 0, count);
+            }
+        }
+        if (count > 0) {
+            streamPosition += count;
+            position = streamPosition;
+        }
+        return count;
+    }
+
+    /*
+     * Bring the stream to the position of the next read
+     */
+    protected void seekStream() throws IOException {
+
+        if (stream == null || position < streamPosition) {
+            closeStream();
+            stream = content.openStream();
+            streamPosition = 0;
+        }
+        while (streamPosition < position) {
+            long skipped = stream.skip(position - streamPosition);
+            if (skipped <= 0) {
+                // Some streams don't skip: read
+                if (stream.read() < 0) {
+                    throw new IOException("Unexpected end of stream at "
+                            + streamPosition);
+                }
+                skipped = 1;
+            }
+            streamPosition += skipped;
+        }
+    }
+
+    @Override
+    public long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long inNewPosition) throws IOException {
+
+        checkOpen();
+        if (inNewPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = inNewPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        return content.getLength();
+    }
+
+    @Override
+    public int write(ByteBuffer inSrc) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long inSize) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        closeStream();
+    }
+
+    protected void closeStream() throws IOException {
+
+        if (stream != null) {
+            InputStream toClose = stream;
+            stream = null;
+            toClose.close();
+        }
+    }
+
+    protected void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
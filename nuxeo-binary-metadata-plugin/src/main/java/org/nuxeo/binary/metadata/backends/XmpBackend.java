@@ -0,0 +1,64 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.backends;
+
+import java.util.HashMap;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.parsers.XmpExtractor;
+
+/**
+ * The XMP packet of JPEG, TIFF, PNG and PDF files, read in Java (see
+ * {@link XmpExtractor}). Does not read any other value.
+ *
+ * @since 7.3
+ */
+public class XmpBackend extends AbstractMetadataBackend {
+
+    protected static final long COST = 100;
+
+    public XmpBackend() {
+        super("Xmp", TOOL.EXIFTOOL, "image/jpeg", "image/tiff", "image/png",
+                "application/pdf");
+    }
+
+    @Override
+    public boolean canRead(String[] inTheseKeys) {
+        return false;
+    }
+
+    @Override
+    public long estimateCost(MetadataSource inSource, String[] inTheseKeys) {
+        return COST + prefixCost(inSource);
+    }
+
+    @Override
+    public HashMap<String, Object> read(MetadataSource inSource,
+            String[] inTheseKeys) {
+        return null;
+    }
+
+    @Override
+    public String readXMP(MetadataSource inSource) {
+        return readPrefix(inSource, new PrefixParser<String>() {
+            @Override
+            public String parse(String inPath) {
+                return XmpExtractor.extract(inPath);
+            }
+        });
+    }
+}
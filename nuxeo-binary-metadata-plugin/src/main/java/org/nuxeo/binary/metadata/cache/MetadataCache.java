@@ -0,0 +1,678 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.MetadataReader;
+import org.nuxeo.binary.metadata.MetadataReader.READ_MODE;
+import org.nuxeo.binary.metadata.exiftool.ExifToolJsonParser;
+import org.nuxeo.binary.metadata.tools.ToolDescriptor;
+
+/**
+ * Keeps the values read from the blobs, so the same binary (same digest:
+ * re-runs of a chain, copies of a document, versions sharing a blob, ...) is
+ * not read again.
+ * <p>
+ * An entry is identified by the digest of the blob, a <i>namespace</i> (the
+ * names and formats of the values: ExifTool, ImageMagick with the way the
+ * pixels are read, ... see {@link #namespace(TOOL, READ_MODE, String[])}) and
+ * the set of keys. The entry with all the keys of a namespace also answers a
+ * request for some of them, when it has all of them (a tag only returned
+ * when it is requested, composite, unknown, ..., is then read by the tool)
+ * and when the names can be matched:
+ * <ul>
+ * <li>ExifTool: the case is ignored. A key with a group ("XMP-dc:Subject"),
+ * "#", or a wildcard is only answered by its own entry</li>
+ * <li>ImageMagick, GraphicsMagick: the name must be the same. Nothing read
+ * from the pixels (statistics, ...) is missing from a
+ * {@link READ_MODE#FULL} entry, it also answers the
+ * {@link READ_MODE#HEADER_ONLY} requests</li>
+ * <li>Auto: only by its own entry (the names of several tools are
+ * mixed)</li>
+ * </ul>
+ * The values of the file rather than of its content (name, directory,
+ * dates and permissions of the file: the <code>File:System</code> tags of
+ * ExifTool, its <code>SourceFile</code>, the path of ImageMagick) are not
+ * the same for two blobs with the same digest: They are never cached, a
+ * request for one of them, or for all the values (but XMP, which has no
+ * such value), is always read by a backend.
+ * The entries are evicted, least recently used first, when their
+ * approximate weight exceeds the max. of the configuration (see
+ * {@link MetadataCacheDescriptor}), and are not used after their time to
+ * live. A blob without digest is never cached.
+ * <p>
+ * When the configuration has a store directory, the entries are also kept
+ * on disk (see {@link MetadataStore}): A value not in memory is read from
+ * the store before any backend, so a binary read before a restart, or by
+ * another node sharing the directory, is not read again by the tools.
+ * <p>
+ * The values are shared: The maps returned are copies, but their values
+ * (lists and maps of ExifTool structured tags) must not be modified.
+ *
+ * @since 7.3
+ */
+public class MetadataCache {
+
+    private static final Log log = LogFactory.getLog(MetadataCache.class);
+
+    public static final String NAMESPACE_AUTO = "Auto";
+
+    public static final String NAMESPACE_XMP = "XMP";
+
+    // Keys of the entry with all the values of a namespace
+    protected static final String ALL_KEYS = "*";
+
+    // Size of an entry, without its values
+    protected static final long ENTRY_WEIGHT = 128;
+
+    /**
+     * The <code>File:System</code> tags of ExifTool and
+     * <code>SourceFile</code>, lower case: not cached
+     */
+    public static final Set<String> EXIFTOOL_FILE_TAGS = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("sourcefile", "filename", "directory", "filesize",
+                    "filemodifydate", "fileaccessdate",
+                    "fileinodechangedate", "filecreatedate",
+                    "filepermissions", "fileattributes", "filedevicenumber",
+                    "fileinodenumber", "filehardlinks", "fileuserid",
+                    "filegroupid", "filedeviceid", "fileblocksize",
+                    "fileblockcount")));
+
+    /**
+     * The keys of ImageMagick/GraphicsMagick holding the path of the file: not
+     * cached
+     */
+    public static final Set<String> MAGICK_FILE_KEYS = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("Image", "Filename", "Artifacts:filename")));
+
+    protected static MetadataCacheDescriptor configuration = new MetadataCacheDescriptor();
+
+    // Access order: the first one is the least recently used
+    protected static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+
+    protected static long weight = 0;
+
+    // null if the configuration has no store directory
+    protected static MetadataStore store;
+
+    protected static final AtomicLong hitCount = new AtomicLong();
+
+    protected static final AtomicLong missCount = new AtomicLong();
+
+    protected static final AtomicLong evictionCount = new AtomicLong();
+
+    protected static final AtomicLong expiredCount = new AtomicLong();
+
+    protected static class Entry {
+
+        protected final String digest;
+
+        protected final HashMap<String, Object> values;
+
+        protected final long weight;
+
+        protected final long expiresAt;
+
+        protected Entry(String inDigest, HashMap<String, Object> inValues,
+                long inWeight, long inExpiresAt) {
+            digest = inDigest;
+            values = inValues;
+            weight = inWeight;
+            expiresAt = inExpiresAt;
+        }
+    }
+
+    /**
+     * Use another configuration. The cache is emptied (the store, if any, is
+     * kept and opened again).
+     *
+     * @param inConfig null for the default configuration
+     *
+     * @since 7.3
+     */
+    public static synchronized void configure(MetadataCacheDescriptor inConfig) {
+        configuration = inConfig == null ? new MetadataCacheDescriptor()
+                : inConfig;
+        clear();
+
+        shutdown();
+        File directory = configuration.getStoreDirectory();
+        if (directory != null) {
+            try {
+                store = MetadataStore.open(directory,
+                        configuration.getStoreTtlMillis());
+            } catch (IOException e) {
+                log.error("Cannot open the metadata store " + directory
+                        + ", the values are only cached in memory", e);
+            }
+        }
+    }
+
+    /**
+     * Close the store, if any
+     *
+     * @since 7.3
+     */
+    public static synchronized void shutdown() {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+    }
+
+    /**
+     * @return the store, null if none
+     *
+     * @since 7.3
+     */
+    public static synchronized MetadataStore getStore() {
+        return store;
+    }
+
+    public static synchronized MetadataCacheDescriptor getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @param inTool null for the reads without a tool (see
+     *            {@link MetadataReader#readMetadataAuto(String[], READ_MODE)})
+     * @param inMode {@link READ_MODE#AUTO} is resolved with the keys
+     * @param inTheseKeys
+     * @return the namespace of the values read with these parameters
+     *
+     * @since 7.3
+     */
+    public static String namespace(TOOL inTool, READ_MODE inMode,
+            String[] inTheseKeys) {
+
+        READ_MODE mode = inMode == null ? READ_MODE.AUTO : inMode;
+        if (mode == READ_MODE.AUTO) {
+            mode = MetadataReader.requiresPixels(inTheseKeys) ? READ_MODE.FULL
+                    : READ_MODE.HEADER_ONLY;
+        }
+        if (inTool == null) {
+            return NAMESPACE_AUTO + ":" + mode;
+        }
+        if (inTool == TOOL.EXIFTOOL) {
+            return ToolDescriptor.toName(inTool);
+        }
+        return ToolDescriptor.toName(inTool) + ":" + mode;
+    }
+
+    /**
+     * @param inDigest null if the blob has no digest
+     * @param inNamespace
+     * @param inTheseKeys null or empty for all the values (only cached for
+     *            XMP)
+     * @return a copy of the cached values, null if not cached
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, Object> get(String inDigest,
+            String inNamespace, String[] inTheseKeys) {
+
+        if (inDigest == null || inDigest.isEmpty()
+                || hasFileTag(inNamespace, inTheseKeys)) {
+            return null;
+        }
+        // The entry with all the values has no tag of the file: it only
+        // answers the requests for some of them
+        if (isAll(inTheseKeys) && !NAMESPACE_XMP.equals(inNamespace)) {
+            return null;
+        }
+
+        HashMap<String, Object> result;
+        MetadataStore diskStore;
+        synchronized (MetadataCache.class) {
+            if (!configuration.isEnabled()) {
+                return null;
+            }
+            result = find(inDigest, null, inNamespace, inTheseKeys);
+            diskStore = store;
+        }
+
+        // Not locked: the store can be slower (shared file system)
+        if (result == null && diskStore != null) {
+            Map<String, HashMap<String, Object>> stored = null;
+            try {
+                stored = diskStore.get(inDigest);
+            } catch (IOException e) {
+                log.warn("Cannot read the metadata store: " + e.getMessage());
+            }
+            if (stored != null) {
+                result = find(inDigest, stored, inNamespace, inTheseKeys);
+                for (Map.Entry<String, HashMap<String, Object>> entry : stored.entrySet()) {
+                    putInMemory(inDigest, inDigest + '\n' + entry.getKey(),
+                            entry.getValue());
+                }
+            }
+        }
+
+        if (result == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Cache the values (a copy of the map)
+     *
+     * @param inDigest null if the blob has no digest (nothing is cached)
+     * @param inNamespace
+     * @param inTheseKeys the keys of the request
+     * @param inValues
+     *
+     * @since 7.3
+     */
+    public static void put(String inDigest, String inNamespace,
+            String[] inTheseKeys, Map<String, Object> inValues) {
+
+        if (inDigest == null || inDigest.isEmpty() || inValues == null
+                || hasFileTag(inNamespace, inTheseKeys)) {
+            return;
+        }
+
+        String subkey = toSubkey(inNamespace, inTheseKeys);
+        HashMap<String, Object> values = withoutFileTags(inNamespace,
+                inValues);
+        MetadataStore diskStore;
+        synchronized (MetadataCache.class) {
+            if (!configuration.isEnabled()) {
+                return;
+            }
+            diskStore = store;
+        }
+        putInMemory(inDigest, inDigest + '\n' + subkey, values);
+
+        if (diskStore != null) {
+            try {
+                diskStore.put(inDigest, subkey, values);
+            } catch (IOException e) {
+                log.warn("Cannot write the metadata store: " + e.getMessage());
+            }
+        }
+    }
+
+    protected static void putInMemory(String inDigest, String inKey,
+            HashMap<String, Object> inValues) {
+
+        long entryWeight = ENTRY_WEIGHT + weigh(inKey) + weigh(inValues);
+        synchronized (MetadataCache.class) {
+            long maxWeight = configuration.getMaxWeight();
+            if (entryWeight > maxWeight) {
+                return;
+            }
+            long ttl = configuration.getTtlMillis();
+            long expiresAt = ttl > 0 ? System.currentTimeMillis() + ttl
+                    : Long.MAX_VALUE;
+            Entry previous = entries.put(inKey, new Entry(inDigest, inValues,
+                    entryWeight, expiresAt));
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += entryWeight;
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                weight -= eldest.weight;
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param inDigest
+     * @return the cached XMP of the blob, null if not cached
+     *
+     * @since 7.3
+     */
+    public static String getXMP(String inDigest) {
+
+        HashMap<String, Object> values = get(inDigest, NAMESPACE_XMP, null);
+        return values == null ? null : (String) values.get(NAMESPACE_XMP);
+    }
+
+    public static void putXMP(String inDigest, String inXMP) {
+
+        if (inXMP != null) {
+            HashMap<String, Object> values = new HashMap<String, Object>();
+            values.put(NAMESPACE_XMP, inXMP);
+            put(inDigest, NAMESPACE_XMP, null, values);
+        }
+    }
+
+    /**
+     * Forget the values of a blob (its file was modified in place), also in
+     * the store
+     *
+     * @param inDigest
+     *
+     * @since 7.3
+     */
+    public static void invalidate(String inDigest) {
+
+        if (inDigest == null) {
+            return;
+        }
+        MetadataStore diskStore;
+        synchronized (MetadataCache.class) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.digest.equals(inDigest)) {
+                    it.remove();
+                    weight -= entry.weight;
+                }
+            }
+            diskStore = store;
+        }
+        if (diskStore != null) {
+            try {
+                diskStore.remove(inDigest);
+            } catch (IOException e) {
+                log.warn("Cannot write the metadata store: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Empty the memory (not the store)
+     */
+    public static synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /*
+     * The entry, if not expired. Must be called in a synchronized block
+     */
+    protected static Entry lookup(String inKey) {
+
+        Entry entry = entries.get(inKey);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(inKey);
+            weight -= entry.weight;
+            expiredCount.incrementAndGet();
+            entry = null;
+        }
+        return entry;
+    }
+
+    /*
+     * A copy of the values of the request, from the memory (inStored null,
+     * must be called in a synchronized block) or from the entries read from
+     * the store. null if not found
+     */
+    protected static HashMap<String, Object> find(String inDigest,
+            Map<String, HashMap<String, Object>> inStored, String inNamespace,
+            String[] inTheseKeys) {
+
+        HashMap<String, Object> values = getValues(inDigest, inStored,
+                toSubkey(inNamespace, inTheseKeys));
+        if (values != null) {
+            return new HashMap<String, Object>(values);
+        }
+        if (isAll(inTheseKeys)) {
+            return null;
+        }
+        HashMap<String, Object> result = getSubset(inDigest, inStored,
+                inNamespace, inTheseKeys);
+        String full = inNamespace.replace(":" + READ_MODE.HEADER_ONLY, ":"
+                + READ_MODE.FULL);
+        if (result == null && !full.equals(inNamespace)) {
+            result = getSubset(inDigest, inStored, full, inTheseKeys);
+        }
+        return result;
+    }
+
+    protected static HashMap<String, Object> getValues(String inDigest,
+            Map<String, HashMap<String, Object>> inStored, String inSubkey) {
+
+        if (inStored != null) {
+            return inStored.get(inSubkey);
+        }
+        Entry entry = lookup(inDigest + '\n' + inSubkey);
+        return entry == null ? null : entry.values;
+    }
+
+    /*
+     * The values of the keys, from the entry with all the keys. null if there
+     * is no such entry, or if it does not have all the keys
+     */
+    protected static HashMap<String, Object> getSubset(String inDigest,
+            Map<String, HashMap<String, Object>> inStored, String inNamespace,
+            String[] inTheseKeys) {
+
+        if (inNamespace.startsWith(NAMESPACE_AUTO)) {
+            return null;
+        }
+        HashMap<String, Object> all = getValues(inDigest, inStored, toSubkey(
+                inNamespace, null));
+        if (all == null) {
+            return null;
+        }
+
+        boolean exifToolNames = inNamespace.equals(ToolDescriptor.toName(TOOL.EXIFTOOL));
+        HashMap<String, Object> result = new HashMap<String, Object>();
+        for (String oneKey : inTheseKeys) {
+            if (oneKey == null || oneKey.isEmpty()) {
+                continue;
+            }
+            if (!exifToolNames) {
+                if (!all.containsKey(oneKey)) {
+                    return null;
+                }
+                result.put(oneKey, all.get(oneKey));
+                continue;
+            }
+            if (oneKey.indexOf(':') > -1 || oneKey.indexOf('#') > -1
+                    || oneKey.indexOf('*') > -1 || oneKey.indexOf('?') > -1
+                    || oneKey.equalsIgnoreCase("all")) {
+                return null;
+            }
+            boolean found = false;
+            for (Map.Entry<String, Object> value : all.entrySet()) {
+                if (value.getKey().equalsIgnoreCase(oneKey)) {
+                    result.put(value.getKey(), value.getValue());
+                    found = true;
+                }
+            }
+            if (!found) {
+                return null;
+            }
+        }
+        // As ExifTool returns it with any key
+        if (exifToolNames && all.containsKey(ExifToolJsonParser.ERROR)) {
+            result.put(ExifToolJsonParser.ERROR,
+                    all.get(ExifToolJsonParser.ERROR));
+        }
+        return result;
+    }
+
+    /*
+     * A value of the file rather than of its content (see
+     * EXIFTOOL_FILE_TAGS). The namespaces Auto have names of both tools
+     */
+    protected static boolean isFileTag(String inNamespace, String inKey) {
+
+        if (inKey == null || NAMESPACE_XMP.equals(inNamespace)) {
+            return false;
+        }
+        boolean exifToolNames = !inNamespace.startsWith(ToolDescriptor.toName(TOOL.IMAGEMAGICK))
+                && !inNamespace.startsWith(ToolDescriptor.toName(TOOL.GRAPHICSMAGICK));
+        if (exifToolNames) {
+            // Without its group ("System:FileName")
+            String name = inKey.substring(inKey.lastIndexOf(':') + 1);
+            if (EXIFTOOL_FILE_TAGS.contains(name.toLowerCase(Locale.ENGLISH))) {
+                return true;
+            }
+        }
+        return !inNamespace.equals(ToolDescriptor.toName(TOOL.EXIFTOOL))
+                && MAGICK_FILE_KEYS.contains(inKey);
+    }
+
+    protected static boolean hasFileTag(String inNamespace,
+            String[] inTheseKeys) {
+
+        if (inTheseKeys != null) {
+            for (String oneKey : inTheseKeys) {
+                if (isFileTag(inNamespace, oneKey)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    protected static HashMap<String, Object> withoutFileTags(
+            String inNamespace, Map<String, Object> inValues) {
+
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : inValues.entrySet()) {
+            if (!isFileTag(inNamespace, entry.getKey())) {
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return values;
+    }
+
+    protected static boolean isAll(String[] inTheseKeys) {
+
+        if (inTheseKeys != null) {
+            for (String oneKey : inTheseKeys) {
+                if (oneKey != null && !oneKey.isEmpty()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The key of an entry in the store of a digest: namespace and keys
+     */
+    protected static String toSubkey(String inNamespace, String[] inTheseKeys) {
+
+        StringBuilder key = new StringBuilder(inNamespace).append('\n');
+        if (isAll(inTheseKeys)) {
+            return key.append(ALL_KEYS).toString();
+        }
+        // The same set of keys, in any order
+        TreeSet<String> keys = new TreeSet<String>();
+        for (String oneKey : inTheseKeys) {
+            if (oneKey != null && !oneKey.isEmpty()) {
+                keys.add(oneKey);
+            }
+        }
+        for (String oneKey : keys) {
+            key.append(oneKey).append('\t');
+        }
+        return key.toString();
+    }
+
+    /*
+     * Approximate size in memory of a value
+     */
+    protected static long weigh(Object inValue) {
+
+        if (inValue instanceof CharSequence) {
+            return 40 + 2L * ((CharSequence) inValue).length();
+        }
+        if (inValue instanceof Map) {
+            long total = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) inValue).entrySet()) {
+                total += 32 + weigh(entry.getKey()) + weigh(entry.getValue());
+            }
+            return total;
+        }
+        if (inValue instanceof Collection) {
+            long total = 40;
+            for (Object item : (Collection<?>) inValue) {
+                total += 8 + weigh(item);
+            }
+            return total;
+        }
+        // Number, Boolean, null
+        return 24;
+    }
+
+    /**
+     * @return the number of requests answered by the cache, since the start
+     *         (or the last {@link #resetStatistics()})
+     */
+    public static long getHitCount() {
+        return hitCount.get();
+    }
+
+    public static long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of entries evicted because the cache was full
+     */
+    public static long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return the number of entries removed because they were too old
+     */
+    public static long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    public static synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the approximate memory used by the entries, in bytes
+     */
+    public static synchronized long getWeight() {
+        return weight;
+    }
+
+    public static void resetStatistics() {
+        hitCount.set(0);
+        missCount.set(0);
+        evictionCount.set(0);
+        expiredCount.set(0);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.cache;
+
+import java.io.File;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Size and lifetime of the cache of the values read from the blobs (see
+ * {@link MetadataCache}), contributed to the <code>cache</code> extension
+ * point of <code>org.nuxeo.binary.metadata.BinaryMetadataComponent</code>. A
+ * value not set in the contribution keeps its default value.
+ *
+ * @since 7.3
+ */
+@XObject("cache")
+public class MetadataCacheDescriptor {
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    /**
+     * Approximate memory used by the cached values. The least recently used
+     * entries are evicted above it
+     */
+    @XNode("maxMegabytes")
+    protected long maxMegabytes = 64;
+
+    /**
+     * An entry older than this is not used anymore. 0 means no limit
+     */
+    @XNode("ttlSeconds")
+    protected long ttlSeconds = 3600;
+
+    /**
+     * Directory of the store keeping the values on disk (see
+     * {@link MetadataStore}), created if needed. Can be on a file system
+     * shared by the nodes of a cluster. Default: no store
+     */
+    @XNode("store/directory")
+    protected String storeDirectory;
+
+    /**
+     * An entry of the store older than this is not used anymore. 0 means no
+     * limit
+     */
+    @XNode("store/ttlDays")
+    protected long storeTtlDays = 0;
+
+    public boolean isEnabled() {
+        return enabled && (maxMegabytes > 0 || getStoreDirectory() != null);
+    }
+
+    /**
+     * @return the max. weight of the entries, in bytes
+     */
+    public long getMaxWeight() {
+        return Math.max(0, maxMegabytes) * 1024L * 1024L;
+    }
+
+    /**
+     * @return the time to live of an entry, 0 if none
+     */
+    public long getTtlMillis() {
+        return Math.max(0, ttlSeconds) * 1000L;
+    }
+
+    /**
+     * @return the directory of the store, null if none
+     */
+    public File getStoreDirectory() {
+        if (storeDirectory == null || storeDirectory.trim().isEmpty()) {
+            return null;
+        }
+        return new File(storeDirectory.trim());
+    }
+
+    /**
+     * @return the time to live of an entry of the store, 0 if none
+     */
+    public long getStoreTtlMillis() {
+        return Math.max(0, storeTtlDays) * 24L * 3600L * 1000L;
+    }
+}
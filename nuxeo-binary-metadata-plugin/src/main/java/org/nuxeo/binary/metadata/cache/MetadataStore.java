@@ -0,0 +1,1209 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.binary.metadata.exiftool.ExifToolJsonParser.RawNumber;
+
+/**
+ * Keeps the values read from the blobs on disk, by digest, so they survive a
+ * restart and can be shared by the nodes of a cluster (the directory is then
+ * on a shared file system supporting file locks). {@link MetadataCache} reads
+ * it when a value is not in memory, before any backend.
+ * <p>
+ * The directory holds:
+ * <ul>
+ * <li><code>metadata.dat</code>: The records, appended. A record holds an
+ * entry of a digest (namespace and keys => values, see {@link MetadataCache})
+ * and the position of the previous record of the digest: Adding an entry
+ * only appends this entry. Removing a digest appends a removal</li>
+ * <li><code>metadata.idx</code>: A hash table (open addressing), digest =>
+ * position of its last record. It is rebuilt from the records if it is
+ * missing, behind them (after a crash) or not the current one</li>
+ * <li><code>metadata.lock</code>: Locked (shared to read, exclusive to
+ * write) by every operation, so several JVMs can use the same directory. It
+ * holds the generation of the files, incremented when they are replaced</li>
+ * </ul>
+ * The index and the records are read and written with positional I/O, after
+ * the lock is acquired, never through a memory mapping: A lock makes the
+ * writes of the other nodes visible to the reads of the file (NFS, ...), not
+ * to a mapping. After each acquisition, the generation is checked, and the
+ * files are opened again when another node replaced them.
+ * <p>
+ * The replaced entries and removed digests are dead bytes (approximately
+ * counted). When they are more than half of the data file, the live entries
+ * are copied to a new file, one record per digest (compaction, see
+ * {@link #compact()}), the entries older than the time to live being
+ * dropped.
+ * <p>
+ * An error of the store never fails a read: It is logged, and the values are
+ * read by the backends.
+ *
+ * @since 7.3
+ */
+public class MetadataStore implements Closeable {
+
+    private static final Log log = LogFactory.getLog(MetadataStore.class);
+
+    public static final String DATA_FILE = "metadata.dat";
+
+    public static final String INDEX_FILE = "metadata.idx";
+
+    public static final String LOCK_FILE = "metadata.lock";
+
+    protected static final int MAGIC = 0x4e4d4458;
+
+    protected static final int VERSION = 1;
+
+    // Header of the index
+    protected static final int HEADER_SIZE = 64;
+
+    protected static final int H_MAGIC = 0;
+
+    protected static final int H_VERSION = 4;
+
+    protected static final int H_CAPACITY = 8;
+
+    // Slots not empty (live or removed)
+    protected static final int H_USED = 12;
+
+    protected static final int H_LIVE = 16;
+
+    // Length of the data file covered by the index
+    protected static final int H_DATA_LENGTH = 24;
+
+    protected static final int H_DEAD_BYTES = 32;
+
+    // Generation of the lock file when the index was written
+    protected static final int H_GENERATION = 40;
+
+    // Slot: hash of the digest (0: empty), position of the record (-1:
+    // removed)
+    protected static final int SLOT_SIZE = 16;
+
+    protected static final int INITIAL_CAPACITY = 1024;
+
+    protected static final double MAX_LOAD = 0.7;
+
+    // Length and CRC of the body
+    protected static final int RECORD_HEADER_SIZE = 8;
+
+    protected static final byte RECORD_PUT = 1;
+
+    protected static final byte RECORD_REMOVE = 2;
+
+    // No compaction below
+    protected static final long COMPACT_MIN_LENGTH = 4 * 1024 * 1024;
+
+    protected static final byte T_NULL = 0;
+
+    protected static final byte T_STRING = 1;
+
+    protected static final byte T_INT = 2;
+
+    protected static final byte T_LONG = 3;
+
+    protected static final byte T_DOUBLE = 4;
+
+    protected static final byte T_BOOLEAN = 5;
+
+    protected static final byte T_RAW_NUMBER = 6;
+
+    protected static final byte T_BIG_DECIMAL = 7;
+
+    protected static final byte T_LIST = 8;
+
+    protected static final byte T_MAP = 9;
+
+    protected final File directory;
+
+    protected final long ttlMillis;
+
+    protected final FileChannel lockChannel;
+
+    protected FileChannel data;
+
+    protected FileChannel index;
+
+    protected int capacity;
+
+    // Generation of the files opened
+    protected long generation = -1;
+
+    protected final AtomicLong readCount = new AtomicLong();
+
+    protected final AtomicLong hitCount = new AtomicLong();
+
+    protected final AtomicLong writeCount = new AtomicLong();
+
+    protected final AtomicLong compactionCount = new AtomicLong();
+
+    /*
+     * Entries of a digest, and the position of its previous record (-1 if
+     * none)
+     */
+    protected static class Record {
+
+        protected byte type;
+
+        protected String digest;
+
+        protected long previous = -1;
+
+        protected LinkedHashMap<String, StoredEntry> entries = new LinkedHashMap<String, StoredEntry>();
+
+        // With its header
+        protected int length;
+    }
+
+    protected static class StoredEntry {
+
+        protected final long writtenAt;
+
+        // The values, serialized
+        protected final byte[] values;
+
+        protected StoredEntry(long inWrittenAt, byte[] inValues) {
+            writtenAt = inWrittenAt;
+            values = inValues;
+        }
+    }
+
+    /**
+     * Open the store, created if needed. Only one instance per directory
+     * should be open in a JVM.
+     *
+     * @param inDirectory
+     * @param inTtlMillis an entry older than this is ignored and dropped by
+     *            the next compaction. 0 for no limit
+     * @return the store, to close when done
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public static MetadataStore open(File inDirectory, long inTtlMillis)
+            throws IOException {
+
+        if (!inDirectory.isDirectory() && !inDirectory.mkdirs()
+                && !inDirectory.isDirectory()) {
+            throw new IOException("Cannot create the directory "
+                    + inDirectory);
+        }
+        MetadataStore store = new MetadataStore(inDirectory, inTtlMillis);
+        try {
+            store.openFiles();
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    protected MetadataStore(File inDirectory, long inTtlMillis)
+            throws IOException {
+
+        directory = inDirectory;
+        ttlMillis = Math.max(0, inTtlMillis);
+        lockChannel = FileChannel.open(path(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param inDigest
+     * @return the entries of the digest (namespace and keys => values, see
+     *         {@link MetadataCache}), null if none
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public synchronized Map<String, HashMap<String, Object>> get(
+            String inDigest) throws IOException {
+
+        readCount.incrementAndGet();
+        LinkedHashMap<String, StoredEntry> entries;
+        try (FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, true)) {
+            ensureCurrent(false);
+            int slot = findSlot(inDigest, hash(inDigest));
+            if (slot < 0) {
+                return null;
+            }
+            entries = readEntries(readLong(slotPosition(slot) + 8));
+        }
+
+        HashMap<String, HashMap<String, Object>> result = new HashMap<String, HashMap<String, Object>>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, StoredEntry> entry : entries.entrySet()) {
+            if (!isExpired(entry.getValue(), now)) {
+                result.put(entry.getKey(),
+                        decodeValues(entry.getValue().values));
+            }
+        }
+        if (result.isEmpty()) {
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Add (or replace) an entry of the digest. Only this entry is written
+     *
+     * @param inDigest
+     * @param inSubkey namespace and keys of the entry
+     * @param inValues
+     * @return false if a value cannot be stored (its type is not supported)
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public boolean put(String inDigest, String inSubkey,
+            Map<String, Object> inValues) throws IOException {
+
+        byte[] values;
+        try {
+            values = encodeValues(inValues);
+        } catch (IllegalArgumentException e) {
+            log.debug("Not stored: " + e.getMessage());
+            return false;
+        }
+
+        synchronized (this) {
+            try (FileLock lock = lockChannel.lock()) {
+                ensureCurrent(true);
+                recover();
+
+                long hash = hash(inDigest);
+                int slot = findSlot(inDigest, hash);
+                Record record = new Record();
+                record.type = RECORD_PUT;
+                record.digest = inDigest;
+                record.previous = slot >= 0 ? readLong(slotPosition(slot) + 8)
+                        : -1;
+                record.entries.put(inSubkey, new StoredEntry(
+                        System.currentTimeMillis(), values));
+
+                long position = append(record);
+                if (slot >= 0) {
+                    writeLong(slotPosition(slot) + 8, position);
+                    addDeadBytes(replacedBytes(record.previous, inSubkey));
+                } else {
+                    insertSlot(-slot - 1, hash, position);
+                }
+                writeCount.incrementAndGet();
+                growIfNeeded();
+            }
+            compactIfNeeded();
+        }
+        return true;
+    }
+
+    /**
+     * Forget the entries of the digest
+     *
+     * @param inDigest
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public synchronized void remove(String inDigest) throws IOException {
+
+        try (FileLock lock = lockChannel.lock()) {
+            ensureCurrent(true);
+            recover();
+
+            int slot = findSlot(inDigest, hash(inDigest));
+            if (slot < 0) {
+                return;
+            }
+            int slotPos = slotPosition(slot);
+            long chainBytes = chainBytes(readLong(slotPos + 8));
+
+            // Appended, so a rebuilt index does not see the entries again
+            Record removal = new Record();
+            removal.type = RECORD_REMOVE;
+            removal.digest = inDigest;
+            append(removal);
+            writeLong(slotPos + 8, -1);
+            writeInt(H_LIVE, readInt(H_LIVE) - 1);
+            addDeadBytes(chainBytes + removal.length);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Copy the live entries to a new data file, one record per digest
+     * (dropping the entries older than the time to live), and build a new
+     * index
+     *
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public synchronized void compact() throws IOException {
+
+        try (FileLock lock = lockChannel.lock()) {
+            ensureCurrent(true);
+            recover();
+
+            Path dataTmp = path(DATA_FILE + ".tmp");
+            ArrayList<long[]> slots = new ArrayList<long[]>();
+            long now = System.currentTimeMillis();
+            ByteBuffer table = readSlots();
+            try (FileChannel out = FileChannel.open(dataTmp,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                long position = 0;
+                for (int i = 0; i < capacity; i++) {
+                    long hash = table.getLong(i * SLOT_SIZE);
+                    long offset = table.getLong(i * SLOT_SIZE + 8);
+                    if (hash == 0 || offset < 0) {
+                        continue;
+                    }
+                    String digest = readDigest(offset);
+                    if (digest == null) {
+                        continue;
+                    }
+                    Record live = new Record();
+                    live.type = RECORD_PUT;
+                    live.digest = digest;
+                    for (Map.Entry<String, StoredEntry> entry : readEntries(
+                            offset).entrySet()) {
+                        if (!isExpired(entry.getValue(), now)) {
+                            live.entries.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    if (live.entries.isEmpty()) {
+                        continue;
+                    }
+                    ByteBuffer buffer = encodeRecord(live);
+                    slots.add(new long[] { hash, position });
+                    position += buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+                out.force(true);
+            }
+
+            int newCapacity = INITIAL_CAPACITY;
+            while (slots.size() > newCapacity * MAX_LOAD / 2) {
+                newCapacity *= 2;
+            }
+            long dataLength = Files.size(dataTmp);
+            replaceIndex(newCapacity, slots, dataLength, dataTmp);
+            compactionCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+
+        closeFiles();
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * @return the number of digests in the store
+     */
+    public synchronized int getRecordCount() throws IOException {
+        try (FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, true)) {
+            ensureCurrent(false);
+            return readInt(H_LIVE);
+        }
+    }
+
+    /**
+     * @return the length of the data file covered by the index
+     */
+    public synchronized long getDataLength() throws IOException {
+        try (FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, true)) {
+            ensureCurrent(false);
+            return readLong(H_DATA_LENGTH);
+        }
+    }
+
+    /**
+     * @return the approximate bytes of the data file which are not used
+     *         anymore (until the next compaction)
+     */
+    public synchronized long getDeadBytes() throws IOException {
+        try (FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, true)) {
+            ensureCurrent(false);
+            return readLong(H_DEAD_BYTES);
+        }
+    }
+
+    public long getReadCount() {
+        return readCount.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    protected Path path(String inName) {
+        return new File(directory, inName).toPath();
+    }
+
+    /*
+     * Open the data file and the index, created or rebuilt if needed
+     */
+    protected void openFiles() throws IOException {
+
+        try (FileLock lock = lockChannel.lock()) {
+            openCurrentFiles(true);
+            recover();
+        }
+    }
+
+    /*
+     * Open the files of the current generation. When the index is not valid
+     * (missing, behind the data file, or of another generation after a crash
+     * while the files were replaced), it is rebuilt with inExclusive, else
+     * an IOException is thrown (the next write rebuilds it)
+     */
+    protected void openCurrentFiles(boolean inExclusive) throws IOException {
+
+        closeFiles();
+        generation = readGeneration();
+        data = FileChannel.open(path(DATA_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (isValidIndex(path(INDEX_FILE))) {
+            openIndex();
+            if (readLong(H_DATA_LENGTH) <= data.size()) {
+                return;
+            }
+        }
+        if (!inExclusive) {
+            closeFiles();
+            throw new IOException("The index of " + directory
+                    + " is not valid, it will be rebuilt");
+        }
+        log.info("Building the index of " + directory);
+        replaceIndex(INITIAL_CAPACITY, new ArrayList<long[]>(), 0, null);
+        writeLong(H_DEAD_BYTES, 0);
+    }
+
+    protected boolean isValidIndex(Path inPath) throws IOException {
+
+        if (!Files.exists(inPath) || Files.size(inPath) < HEADER_SIZE) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(inPath,
+                StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()
+                    && channel.read(header, header.position()) >= 0) {
+                // Read until full
+            }
+            int capacity = header.getInt(H_CAPACITY);
+            return header.getInt(H_MAGIC) == MAGIC
+                    && header.getInt(H_VERSION) == VERSION
+                    && header.getLong(H_GENERATION) == generation
+                    && capacity > 0 && Integer.bitCount(capacity) == 1
+                    && channel.size() >= HEADER_SIZE + (long) capacity
+                            * SLOT_SIZE;
+        }
+    }
+
+    protected void openIndex() throws IOException {
+
+        index = FileChannel.open(path(INDEX_FILE), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        capacity = readInt(H_CAPACITY);
+    }
+
+    protected void closeFiles() {
+
+        for (FileChannel channel : new FileChannel[] { data, index }) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        data = null;
+        index = null;
+    }
+
+    /*
+     * Another node (or JVM) replaced the files: open the new ones. Called
+     * after each lock acquisition
+     */
+    protected void ensureCurrent(boolean inExclusive) throws IOException {
+
+        if (!lockChannel.isOpen()) {
+            throw new IOException("The store " + directory + " is closed");
+        }
+        if (index == null || readGeneration() != generation) {
+            openCurrentFiles(inExclusive);
+        }
+    }
+
+    /*
+     * The generation, in the lock file: 0 until the first index is written
+     */
+    protected long readGeneration() throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        long position = 0;
+        while (buffer.hasRemaining()) {
+            int count = lockChannel.read(buffer, position);
+            if (count < 0) {
+                return 0;
+            }
+            position += count;
+        }
+        return buffer.getLong(0);
+    }
+
+    /*
+     * Index the records appended after the last one known by the index (a
+     * crash between the append and the update of the index). An incomplete
+     * record at the end is removed. Called with the exclusive lock
+     */
+    protected void recover() throws IOException {
+
+        long position = readLong(H_DATA_LENGTH);
+        long length = data.size();
+        while (position < length) {
+            Record record = readRecord(position);
+            if (record == null) {
+                log.warn("Invalid record at " + position + " in "
+                        + directory + ", the end of the file is removed");
+                data.truncate(position);
+                break;
+            }
+            long hash = hash(record.digest);
+            int slot = findSlot(record.digest, hash);
+            long head = slot >= 0 ? readLong(slotPosition(slot) + 8) : -1;
+            if (record.type == RECORD_REMOVE) {
+                if (slot >= 0) {
+                    addDeadBytes(chainBytes(head));
+                    writeLong(slotPosition(slot) + 8, -1);
+                    writeInt(H_LIVE, readInt(H_LIVE) - 1);
+                }
+                addDeadBytes(record.length);
+            } else if (slot >= 0) {
+                for (String subkey : record.entries.keySet()) {
+                    addDeadBytes(replacedBytes(head, subkey));
+                }
+                writeLong(slotPosition(slot) + 8, position);
+            } else {
+                insertSlot(-slot - 1, hash, position);
+            }
+            position += record.length;
+            writeLong(H_DATA_LENGTH, position);
+            growIfNeeded();
+        }
+    }
+
+    /*
+     * The entries of the chain of records starting at inPosition, the most
+     * recent version of each one
+     */
+    protected LinkedHashMap<String, StoredEntry> readEntries(long inPosition)
+            throws IOException {
+
+        LinkedHashMap<String, StoredEntry> entries = new LinkedHashMap<String, StoredEntry>();
+        long position = inPosition;
+        while (position >= 0) {
+            Record record = readRecord(position);
+            if (record == null) {
+                break;
+            }
+            for (Map.Entry<String, StoredEntry> entry : record.entries.entrySet()) {
+                if (!entries.containsKey(entry.getKey())) {
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+            // Always backwards: no loop on a damaged file
+            position = record.previous < position ? record.previous : -1;
+        }
+        return entries;
+    }
+
+    /*
+     * The bytes made dead by a new version of the entry: its record, or the
+     * entry only in a record of several entries (written by a compaction)
+     */
+    protected long replacedBytes(long inPosition, String inSubkey)
+            throws IOException {
+
+        long position = inPosition;
+        while (position >= 0) {
+            Record record = readRecord(position);
+            if (record == null) {
+                break;
+            }
+            StoredEntry entry = record.entries.get(inSubkey);
+            if (entry != null) {
+                if (record.entries.size() == 1) {
+                    return record.length;
+                }
+                return 16 + inSubkey.length() + entry.values.length;
+            }
+            position = record.previous < position ? record.previous : -1;
+        }
+        return 0;
+    }
+
+    protected long chainBytes(long inPosition) throws IOException {
+
+        long total = 0;
+        long position = inPosition;
+        while (position >= 0) {
+            Record record = readRecord(position);
+            if (record == null) {
+                break;
+            }
+            total += record.length;
+            position = record.previous < position ? record.previous : -1;
+        }
+        return total;
+    }
+
+    /*
+     * The slot of the digest, or -(free slot + 1) if not found
+     */
+    protected int findSlot(String inDigest, long inHash) throws IOException {
+
+        int mask = capacity - 1;
+        int free = -1;
+        int i = (int) (inHash ^ (inHash >>> 32)) & mask;
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        for (int probes = 0; probes < capacity; probes++) {
+            slot.clear();
+            readIndex(slot, slotPosition(i));
+            long hash = slot.getLong(0);
+            if (hash == 0) {
+                return -(free >= 0 ? free : i) - 1;
+            }
+            long offset = slot.getLong(8);
+            if (offset < 0) {
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (hash == inHash
+                    && inDigest.equals(readDigest(offset))) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        if (free < 0) {
+            throw new IOException("The index of " + directory + " is full");
+        }
+        return -free - 1;
+    }
+
+    protected void insertSlot(int inSlot, long inHash, long inPosition)
+            throws IOException {
+
+        int slotPos = slotPosition(inSlot);
+        if (readLong(slotPos) == 0) {
+            writeInt(H_USED, readInt(H_USED) + 1);
+        }
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        slot.putLong(0, inHash);
+        slot.putLong(8, inPosition);
+        writeIndex(slot, slotPos);
+        writeInt(H_LIVE, readInt(H_LIVE) + 1);
+    }
+
+    protected static int slotPosition(int inSlot) {
+        return HEADER_SIZE + inSlot * SLOT_SIZE;
+    }
+
+    /*
+     * All the slots, read at once
+     */
+    protected ByteBuffer readSlots() throws IOException {
+        ByteBuffer table = ByteBuffer.allocate(capacity * SLOT_SIZE);
+        readIndex(table, HEADER_SIZE);
+        return table;
+    }
+
+    protected void addDeadBytes(long inBytes) throws IOException {
+        writeLong(H_DEAD_BYTES, Math.min(readLong(H_DEAD_BYTES) + inBytes,
+                readLong(H_DATA_LENGTH)));
+    }
+
+    protected int readInt(long inPosition) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readIndex(buffer, inPosition);
+        return buffer.getInt(0);
+    }
+
+    protected long readLong(long inPosition) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        readIndex(buffer, inPosition);
+        return buffer.getLong(0);
+    }
+
+    protected void writeInt(long inPosition, int inValue) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(0, inValue);
+        writeIndex(buffer, inPosition);
+    }
+
+    protected void writeLong(long inPosition, long inValue)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(0, inValue);
+        writeIndex(buffer, inPosition);
+    }
+
+    protected void readIndex(ByteBuffer inBuffer, long inPosition)
+            throws IOException {
+
+        long position = inPosition;
+        while (inBuffer.hasRemaining()) {
+            int count = index.read(inBuffer, position);
+            if (count < 0) {
+                throw new IOException("The index of " + directory
+                        + " is truncated");
+            }
+            position += count;
+        }
+    }
+
+    protected void writeIndex(ByteBuffer inBuffer, long inPosition)
+            throws IOException {
+
+        long position = inPosition;
+        while (inBuffer.hasRemaining()) {
+            position += index.write(inBuffer, position);
+        }
+    }
+
+    /*
+     * A bigger index when too many slots are used. Called with the exclusive
+     * lock
+     */
+    protected void growIfNeeded() throws IOException {
+
+        if (readInt(H_USED) < capacity * MAX_LOAD) {
+            return;
+        }
+        ArrayList<long[]> slots = new ArrayList<long[]>();
+        ByteBuffer table = readSlots();
+        for (int i = 0; i < capacity; i++) {
+            long hash = table.getLong(i * SLOT_SIZE);
+            long offset = table.getLong(i * SLOT_SIZE + 8);
+            if (hash != 0 && offset >= 0) {
+                slots.add(new long[] { hash, offset });
+            }
+        }
+        int newCapacity = capacity;
+        while (slots.size() >= newCapacity * MAX_LOAD / 2) {
+            newCapacity *= 2;
+        }
+        replaceIndex(newCapacity, slots, readLong(H_DATA_LENGTH), null);
+    }
+
+    /*
+     * Write a new index (and move inNewData over the data file if not null)
+     * of a new generation, and use the new files. Called with the exclusive
+     * lock.
+     *
+     * The generation is incremented before the files are moved: After a
+     * crash in between, the other nodes open the files again, and the index
+     * is rebuilt as it is not of the current generation
+     */
+    protected void replaceIndex(int inCapacity, List<long[]> inSlots,
+            long inDataLength, Path inNewData) throws IOException {
+
+        long newGeneration = readGeneration() + 1;
+        long deadBytes = inNewData == null && index != null ? readLong(H_DEAD_BYTES)
+                : 0;
+
+        Path indexTmp = path(INDEX_FILE + ".tmp");
+        int mask = inCapacity - 1;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + inCapacity
+                * SLOT_SIZE);
+        buffer.putInt(H_MAGIC, MAGIC);
+        buffer.putInt(H_VERSION, VERSION);
+        buffer.putInt(H_CAPACITY, inCapacity);
+        buffer.putInt(H_USED, inSlots.size());
+        buffer.putInt(H_LIVE, inSlots.size());
+        buffer.putLong(H_DATA_LENGTH, inDataLength);
+        buffer.putLong(H_DEAD_BYTES, deadBytes);
+        buffer.putLong(H_GENERATION, newGeneration);
+        for (long[] slot : inSlots) {
+            int i = (int) (slot[0] ^ (slot[0] >>> 32)) & mask;
+            while (buffer.getLong(slotPosition(i)) != 0) {
+                i = (i + 1) & mask;
+            }
+            buffer.putLong(slotPosition(i), slot[0]);
+            buffer.putLong(slotPosition(i) + 8, slot[1]);
+        }
+        try (FileChannel out = FileChannel.open(indexTmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+
+        ByteBuffer value = ByteBuffer.allocate(8);
+        value.putLong(0, newGeneration);
+        while (value.hasRemaining()) {
+            lockChannel.write(value, value.position());
+        }
+        lockChannel.force(true);
+
+        if (inNewData != null) {
+            Files.move(inNewData, path(DATA_FILE),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(indexTmp, path(INDEX_FILE),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        closeFiles();
+        generation = newGeneration;
+        data = FileChannel.open(path(DATA_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        openIndex();
+    }
+
+    protected void compactIfNeeded() throws IOException {
+
+        boolean compact;
+        try (FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, true)) {
+            ensureCurrent(false);
+            long length = readLong(H_DATA_LENGTH);
+            compact = length > COMPACT_MIN_LENGTH
+                    && readLong(H_DEAD_BYTES) > length / 2;
+        }
+        if (compact) {
+            compact();
+        }
+    }
+
+    protected boolean isExpired(StoredEntry inEntry, long inNow) {
+        return ttlMillis > 0 && inEntry.writtenAt + ttlMillis <= inNow;
+    }
+
+    /*
+     * Append at the end known by the index
+     */
+    protected long append(Record inRecord) throws IOException {
+
+        ByteBuffer buffer = encodeRecord(inRecord);
+        inRecord.length = buffer.remaining();
+        long position = readLong(H_DATA_LENGTH);
+        long writeAt = position;
+        while (buffer.hasRemaining()) {
+            writeAt += data.write(buffer, writeAt);
+        }
+        writeLong(H_DATA_LENGTH, writeAt);
+        return position;
+    }
+
+    protected static ByteBuffer encodeRecord(Record inRecord)
+            throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(inRecord.type);
+        writeString(out, inRecord.digest);
+        out.writeLong(inRecord.previous);
+        out.writeInt(inRecord.entries.size());
+        for (Map.Entry<String, StoredEntry> entry : inRecord.entries.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeLong(entry.getValue().writtenAt);
+            out.writeInt(entry.getValue().values.length);
+            out.write(entry.getValue().values);
+        }
+        out.flush();
+        byte[] body = bytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE
+                + body.length);
+        buffer.putInt(body.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(body);
+        buffer.flip();
+        return buffer;
+    }
+
+    /*
+     * The record, null if it is incomplete or corrupted
+     */
+    protected Record readRecord(long inPosition) throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        if (!readFully(header, inPosition)) {
+            return null;
+        }
+        int length = header.getInt(0);
+        if (length <= 0
+                || inPosition + RECORD_HEADER_SIZE + length > data.size()) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        if (!readFully(body, inPosition + RECORD_HEADER_SIZE)) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        if ((int) crc.getValue() != header.getInt(4)) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                body.array()));
+        Record record = new Record();
+        record.length = RECORD_HEADER_SIZE + length;
+        record.type = in.readByte();
+        record.digest = readString(in);
+        record.previous = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String subkey = readString(in);
+            long writtenAt = in.readLong();
+            byte[] values = new byte[in.readInt()];
+            in.readFully(values);
+            record.entries.put(subkey, new StoredEntry(writtenAt, values));
+        }
+        return record;
+    }
+
+    /*
+     * Only the digest, at the beginning of the body: Called for each probe of
+     * the index. The record was checked when it was indexed
+     */
+    protected String readDigest(long inPosition) throws IOException {
+
+        ByteBuffer start = ByteBuffer.allocate(RECORD_HEADER_SIZE + 5);
+        if (!readFully(start, inPosition)) {
+            return null;
+        }
+        int length = start.getInt(RECORD_HEADER_SIZE + 1);
+        if (length < 0 || length > start.getInt(0)) {
+            return null;
+        }
+        ByteBuffer digest = ByteBuffer.allocate(length);
+        if (!readFully(digest, inPosition + RECORD_HEADER_SIZE + 5)) {
+            return null;
+        }
+        return new String(digest.array(), StandardCharsets.UTF_8);
+    }
+
+    protected boolean readFully(ByteBuffer inBuffer, long inPosition)
+            throws IOException {
+
+        long position = inPosition;
+        while (inBuffer.hasRemaining()) {
+            int count = data.read(inBuffer, position);
+            if (count < 0) {
+                return false;
+            }
+            position += count;
+        }
+        return true;
+    }
+
+    protected static long hash(String inDigest) {
+
+        // FNV-1a, 64 bits. 0 means an empty slot
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : inDigest.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    protected static byte[] encodeValues(Map<String, Object> inValues)
+            throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeValue(out, inValues);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static HashMap<String, Object> decodeValues(byte[] inBytes)
+            throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                inBytes));
+        return new HashMap<String, Object>(
+                (Map<String, Object>) readValue(in));
+    }
+
+    /*
+     * The types returned by the backends. IllegalArgumentException for
+     * another one
+     */
+    protected static void writeValue(DataOutputStream inOut, Object inValue)
+            throws IOException {
+
+        if (inValue == null) {
+            inOut.writeByte(T_NULL);
+        } else if (inValue instanceof CharSequence) {
+            inOut.writeByte(T_STRING);
+            writeString(inOut, inValue.toString());
+        } else if (inValue instanceof RawNumber) {
+            inOut.writeByte(T_RAW_NUMBER);
+            writeString(inOut, inValue.toString());
+        } else if (inValue instanceof BigDecimal) {
+            inOut.writeByte(T_BIG_DECIMAL);
+            writeString(inOut, inValue.toString());
+        } else if (inValue instanceof Integer || inValue instanceof Short
+                || inValue instanceof Byte) {
+            inOut.writeByte(T_INT);
+            inOut.writeInt(((Number) inValue).intValue());
+        } else if (inValue instanceof Long) {
+            inOut.writeByte(T_LONG);
+            inOut.writeLong((Long) inValue);
+        } else if (inValue instanceof Double || inValue instanceof Float) {
+            inOut.writeByte(T_DOUBLE);
+            inOut.writeDouble(((Number) inValue).doubleValue());
+        } else if (inValue instanceof Boolean) {
+            inOut.writeByte(T_BOOLEAN);
+            inOut.writeBoolean((Boolean) inValue);
+        } else if (inValue instanceof Collection) {
+            Collection<?> list = (Collection<?>) inValue;
+            inOut.writeByte(T_LIST);
+            inOut.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(inOut, item);
+            }
+        } else if (inValue instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) inValue;
+            inOut.writeByte(T_MAP);
+            inOut.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(inOut, String.valueOf(entry.getKey()));
+                writeValue(inOut, entry.getValue());
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported type: "
+                    + inValue.getClass().getName());
+        }
+    }
+
+    protected static Object readValue(DataInputStream inIn) throws IOException {
+
+        byte type = inIn.readByte();
+        switch (type) {
+        case T_NULL:
+            return null;
+        case T_STRING:
+            return readString(inIn);
+        case T_RAW_NUMBER:
+            return new RawNumber(readString(inIn));
+        case T_BIG_DECIMAL:
+            return new BigDecimal(readString(inIn));
+        case T_INT:
+            return inIn.readInt();
+        case T_LONG:
+            return inIn.readLong();
+        case T_DOUBLE:
+            return inIn.readDouble();
+        case T_BOOLEAN:
+            return inIn.readBoolean();
+        case T_LIST:
+            int size = inIn.readInt();
+            ArrayList<Object> list = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readValue(inIn));
+            }
+            return list;
+        case T_MAP:
+            int count = inIn.readInt();
+            LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < count; i++) {
+                String key = readString(inIn);
+                map.put(key, readValue(inIn));
+            }
+            return map;
+        default:
+            throw new IOException("Unknown type: " + type);
+        }
+    }
+
+    // Not writeUTF: an XMP packet can be longer than 64 KB
+    protected static void writeString(DataOutputStream inOut, String inValue)
+            throws IOException {
+        byte[] bytes = inValue.getBytes(StandardCharsets.UTF_8);
+        inOut.writeInt(bytes.length);
+        inOut.write(bytes);
+    }
+
+    protected static String readString(DataInputStream inIn)
+            throws IOException {
+        byte[] bytes = new byte[inIn.readInt()];
+        inIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
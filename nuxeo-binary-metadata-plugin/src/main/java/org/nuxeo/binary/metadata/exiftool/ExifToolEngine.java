@@ -0,0 +1,245 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.exiftool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.tools.ProcessRunner;
+import org.nuxeo.binary.metadata.tools.ToolBulkhead;
+import org.nuxeo.binary.metadata.tools.ToolBulkheads;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Entry point used by {@link org.nuxeo.binary.metadata.MetadataReader} and
+ * {@link org.nuxeo.binary.metadata.MetadataWriter} to run ExifTool.
+ * <p>
+ * Instead of starting a new ExifTool for each call, the engine borrows a
+ * stay-open process (see {@link ExifToolProcess}) from a pool (see
+ * {@link ExifToolPool}). The pool is configured by the <code>exiftool</code>
+ * extension point of <code>BinaryMetadataComponent</code>. If nothing was
+ * contributed (or if the component is not deployed), the default values of
+ * {@link ExifToolPoolDescriptor} are used.
+ * <p>
+ * Each call must first be admitted by the {@link ToolBulkhead} of ExifTool,
+ * which throws a {@link org.nuxeo.binary.metadata.tools.ToolRejectedException}
+ * (a <code>ClientException</code>) when too many calls are waiting.
+ *
+ * @since 7.3
+ */
+public class ExifToolEngine {
+
+    protected static ExifToolPoolDescriptor configuration = new ExifToolPoolDescriptor();
+
+    protected static ExifToolPool pool = null;
+
+    protected static boolean shutdownHookAdded = false;
+
+    /**
+     * Run ExifTool with these arguments (the file(s) to handle included).
+     *
+     * @param inArgs
+     * @return the response
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public static ExifToolResponse execute(List<String> inArgs)
+            throws IOException {
+        return execute(inArgs, -1);
+    }
+
+    /**
+     * Same as {@link #execute(List)}, with a timeout.
+     *
+     * @param inArgs
+     * @param inTimeoutMillis -1 for the timeout of the tool (see
+     *            {@link org.nuxeo.binary.metadata.tools.ToolDescriptor}), 0
+     *            for no timeout. A timeout set here includes the wait for a
+     *            permit of the bulkhead
+     * @return the response
+     * @throws IOException
+     * @throws org.nuxeo.binary.metadata.tools.ToolTimeoutException
+     *
+     * @since 7.3
+     */
+    public static ExifToolResponse execute(List<String> inArgs,
+            long inTimeoutMillis) throws IOException {
+
+        ToolBulkhead bulkhead = ToolBulkheads.get(TOOL.EXIFTOOL);
+        long timeout = bulkhead.acquireForCall(inTimeoutMillis);
+        try {
+            return getPool().execute(inArgs, timeout);
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Run ExifTool with these arguments and let inHandler read the output
+     * while it is produced.
+     *
+     * @param inArgs
+     * @param inHandler
+     * @return the response, without the output
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public static ExifToolResponse execute(List<String> inArgs,
+            ExifToolOutputHandler inHandler) throws IOException {
+        return execute(inArgs, inHandler, -1);
+    }
+
+    /**
+     * Same as {@link #execute(List, ExifToolOutputHandler)}, with a timeout
+     * (-1 for the timeout of the tool, 0 for no timeout)
+     *
+     * @since 7.3
+     */
+    public static ExifToolResponse execute(List<String> inArgs,
+            ExifToolOutputHandler inHandler, long inTimeoutMillis)
+            throws IOException {
+
+        ToolBulkhead bulkhead = ToolBulkheads.get(TOOL.EXIFTOOL);
+        long timeout = bulkhead.acquireForCall(inTimeoutMillis);
+        try {
+            return getPool().execute(inArgs, inHandler, timeout);
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Run a new ExifTool process (not a stay-open one, whose stdin receives
+     * the commands) reading the file from its stdin: inArgs must not contain
+     * the file, "-" is added.
+     * <p>
+     * This avoids writing the file on disk when it is only available as a
+     * stream, but costs the start of ExifTool.
+     *
+     * @param inArgs
+     * @param inInput the content of the file, closed by this method
+     * @param inTimeoutMillis -1 for the timeout of the tool, 0 for no timeout
+     * @return the lines of the output
+     * @throws ClientException if ExifTool failed (unknown format, ...), timed
+     *             out or was rejected by the bulkhead
+     *
+     * @since 7.3
+     */
+    public static ArrayList<String> executeWithInput(List<String> inArgs,
+            InputStream inInput, long inTimeoutMillis) throws ClientException {
+
+        ArrayList<String> command = new ArrayList<String>();
+        command.add(getCommand());
+        command.addAll(inArgs);
+        command.add("-");
+        return ProcessRunner.run(TOOL.EXIFTOOL, command, inInput,
+                inTimeoutMillis);
+    }
+
+    /**
+     * Same as {@link #executeWithInput(List, InputStream, long)}, inHandler
+     * reads the output while it is produced.
+     *
+     * @param inArgs
+     * @param inInput the content of the file, closed by this method
+     * @param inHandler
+     * @param inTimeoutMillis
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public static void executeWithInput(List<String> inArgs,
+            InputStream inInput, final ExifToolOutputHandler inHandler,
+            long inTimeoutMillis) throws ClientException {
+
+        ArrayList<String> command = new ArrayList<String>();
+        command.add(getCommand());
+        command.addAll(inArgs);
+        command.add("-");
+        ProcessRunner.run(TOOL.EXIFTOOL, command, inInput,
+                new ProcessRunner.OutputHandler() {
+                    @Override
+                    public void handle(InputStream inStdout)
+                            throws IOException {
+                        inHandler.handle(inStdout);
+                    }
+                }, inTimeoutMillis);
+    }
+
+    /**
+     * @return the ExifTool command of the configuration
+     *
+     * @since 7.3
+     */
+    public static synchronized String getCommand() {
+        return configuration.getCommand();
+    }
+
+    public static synchronized ExifToolPool getPool() {
+
+        if (pool == null) {
+            pool = new ExifToolPool(configuration);
+
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(
+                        new Thread("ExifTool-shutdown") {
+                            @Override
+                            public void run() {
+                                shutdown();
+                            }
+                        });
+                shutdownHookAdded = true;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Change the configuration. The current pool, if any, is closed and a new
+     * one will be created with the new configuration.
+     *
+     * @param inConfiguration
+     *
+     * @since 7.3
+     */
+    public static synchronized void configure(
+            ExifToolPoolDescriptor inConfiguration) {
+
+        configuration = inConfiguration == null ? new ExifToolPoolDescriptor()
+                : inConfiguration;
+        shutdown();
+    }
+
+    /**
+     * Stop the ExifTool processes. A new pool is created if
+     * {@link #execute(List)} is called again.
+     *
+     * @since 7.3
+     */
+    public static synchronized void shutdown() {
+
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.exiftool;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal parser for the JSON returned by <code>exiftool -j</code> (and
+ * <code>-j -struct</code>): an array with one object per file, each object
+ * having the <code>SourceFile</code> field and one field per tag.
+ * <p>
+ * The JSON is parsed while it is read (typically, from the stdout of
+ * ExifTool, see {@link ExifToolOutputHandler}), nothing is buffered. When the
+ * parser is built with a list of keys, the other fields are skipped without
+ * being decoded.
+ * <p>
+ * {@link #parseAllTyped()} returns the values as parsed: String,
+ * {@link RawNumber}, Boolean, List or Map (for structures, with
+ * <code>-struct</code>). {@link #parseAll()} returns them as String, the way
+ * <code>exiftool -s</code> would display them: numbers are kept as written by
+ * ExifTool ("1.10" stays "1.10"), lists are joined with ", ".
+ *
+ * @since 7.3
+ */
+public class ExifToolJsonParser {
+
+    public static final String SOURCE_FILE = "SourceFile";
+
+    public static final String ERROR = "Error";
+
+    protected final Reader reader;
+
+    /* Lower case names of the fields to keep, null to keep them all */
+    protected final HashSet<String> keysToKeep;
+
+    protected int current = -2;
+
+    public ExifToolJsonParser(Reader inReader) {
+        this(inReader, null);
+    }
+
+    /**
+     * Only the fields for inTheseKeys (plus <code>SourceFile</code> and
+     * <code>Error</code>) are kept. The keys are the tags passed to ExifTool,
+     * the group ("EXIF:") is ignored since ExifTool does not return it in the
+     * JSON. If inTheseKeys is null or empty, or if a key uses a wildcard or a
+     * group (<code>-EXIF:All</code>), all fields are kept.
+     *
+     * @param inReader
+     * @param inTheseKeys
+     *
+     * @since 7.3
+     */
+    public ExifToolJsonParser(Reader inReader, String[] inTheseKeys) {
+        reader = inReader;
+        keysToKeep = buildKeysToKeep(inTheseKeys);
+    }
+
+    protected static HashSet<String> buildKeysToKeep(String[] inTheseKeys) {
+
+        if (inTheseKeys == null) {
+            return null;
+        }
+
+        HashSet<String> keys = new HashSet<String>();
+        for (String oneKey : inTheseKeys) {
+            if (oneKey == null || oneKey.isEmpty()) {
+                continue;
+            }
+            String key = oneKey.toLowerCase();
+            int pos = key.lastIndexOf(':');
+            if (pos > -1) {
+                key = key.substring(pos + 1);
+            }
+            if (key.endsWith("#")) {
+                key = key.substring(0, key.length() - 1);
+            }
+            if (key.equals("all") || key.indexOf('*') > -1
+                    || key.indexOf('?') > -1) {
+                return null;
+            }
+            keys.add(key);
+        }
+        if (keys.isEmpty()) {
+            return null;
+        }
+        keys.add(SOURCE_FILE.toLowerCase());
+        keys.add(ERROR.toLowerCase());
+
+        return keys;
+    }
+
+    /**
+     * @return one map per file, in the order of the output, values converted
+     *         to String
+     * @throws IOException if the JSON is invalid
+     *
+     * @since 7.3
+     */
+    public List<HashMap<String, String>> parseAll() throws IOException {
+
+        List<LinkedHashMap<String, Object>> typed = parseAllTyped();
+        ArrayList<HashMap<String, String>> result = new ArrayList<HashMap<String, String>>(
+                typed.size());
+        for (Map<String, Object> oneFile : typed) {
+            result.add(toExifToolStrings(oneFile));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return one map per file, in the order of the output, with the values as
+     *         parsed
+     * @throws IOException if the JSON is invalid
+     *
+     * @since 7.3
+     */
+    public List<LinkedHashMap<String, Object>> parseAllTyped()
+            throws IOException {
+
+        ArrayList<LinkedHashMap<String, Object>> result = new ArrayList<LinkedHashMap<String, Object>>();
+
+        if (peek() < 0) {
+            // No output at all (no file could be read)
+            return result;
+        }
+
+        expect('[');
+        if (peek() == ']') {
+            next();
+            return result;
+        }
+        do {
+            if (peek() != '{') {
+                throw new IOException("Expected a JSON object");
+            }
+            result.add(readObject(keysToKeep));
+        } while (nextIsComma(']'));
+
+        return result;
+    }
+
+    /**
+     * Convert each value of inValues to the string <code>-s</code> would output
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, String> toExifToolStrings(
+            Map<String, Object> inValues) {
+
+        HashMap<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<String, Object> entry : inValues.entrySet()) {
+            result.put(entry.getKey(), toExifToolString(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Convert a parsed value to the string <code>-s</code> would output
+     */
+    public static String toExifToolString(Object inValue) {
+
+        if (inValue == null) {
+            return "";
+        }
+        if (inValue instanceof List) {
+            StringBuilder sb = new StringBuilder();
+            for (Object item : (List<?>) inValue) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(toExifToolString(item));
+            }
+            return sb.toString();
+        }
+        if (inValue instanceof Map) {
+            StringBuilder sb = new StringBuilder("{");
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) inValue).entrySet()) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append(entry.getKey()).append('=').append(
+                        toExifToolString(entry.getValue()));
+            }
+            return sb.append('}').toString();
+        }
+        return inValue.toString();
+    }
+
+    /*
+     * Values: String, RawNumber, Boolean, null, List or Map (keeping the order
+     * of the fields)
+     */
+    protected Object readValue() throws IOException {
+
+        int c = peek();
+        switch (c) {
+        case '{':
+            return readObject(null);
+
+        case '[':
+            next();
+            ArrayList<Object> list = new ArrayList<Object>();
+            if (peek() == ']') {
+                next();
+                return list;
+            }
+            do {
+                list.add(readValue());
+            } while (nextIsComma(']'));
+            return list;
+
+        case '"':
+            return readString();
+
+        case 't':
+            readLiteral("true");
+            return Boolean.TRUE;
+
+        case 'f':
+            readLiteral("false");
+            return Boolean.FALSE;
+
+        case 'n':
+            readLiteral("null");
+            return null;
+
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                return readNumber();
+            }
+            throw new IOException("Unexpected character in JSON: "
+                    + (c < 0 ? "EOF" : String.valueOf((char) c)));
+        }
+    }
+
+    /*
+     * Fields whose lower case name is not in inKeysToKeep (if not null) are
+     * skipped
+     */
+    protected LinkedHashMap<String, Object> readObject(
+            HashSet<String> inKeysToKeep) throws IOException {
+
+        expect('{');
+        LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+        if (peek() == '}') {
+            next();
+            return map;
+        }
+        do {
+            String key = readString();
+            expect(':');
+            if (inKeysToKeep == null
+                    || inKeysToKeep.contains(key.toLowerCase())) {
+                map.put(key, readValue());
+            } else {
+                skipValue();
+            }
+        } while (nextIsComma('}'));
+
+        return map;
+    }
+
+    /*
+     * Read a value without building it
+     */
+    protected void skipValue() throws IOException {
+
+        int c = peek();
+        switch (c) {
+        case '{':
+            next();
+            if (peek() == '}') {
+                next();
+                return;
+            }
+            do {
+                skipString();
+                expect(':');
+                skipValue();
+            } while (nextIsComma('}'));
+            return;
+
+        case '[':
+            next();
+            if (peek() == ']') {
+                next();
+                return;
+            }
+            do {
+                skipValue();
+            } while (nextIsComma(']'));
+            return;
+
+        case '"':
+            skipString();
+            return;
+
+        default:
+            // Literal or number: short, no need for a dedicated code
+            readValue();
+        }
+    }
+
+    protected void skipString() throws IOException {
+
+        expect('"');
+        while (true) {
+            int c = read();
+            if (c < 0) {
+                throw new IOException("Unterminated JSON string");
+            }
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                // The escaped char can't end the string
+                read();
+            }
+        }
+    }
+
+    protected String readString() throws IOException {
+
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = read();
+            if (c < 0) {
+                throw new IOException("Unterminated JSON string");
+            }
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < 4; i++) {
+                        hex[i] = (char) read();
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(new String(hex), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid JSON escape: \\u"
+                                + new String(hex));
+                    }
+                    break;
+                default:
+                    if (c < 0) {
+                        throw new IOException("Unterminated JSON string");
+                    }
+                    sb.append((char) c);
+                }
+            } else {
+                sb.append((char) c);
+            }
+        }
+    }
+
+    protected RawNumber readNumber() throws IOException {
+
+        StringBuilder sb = new StringBuilder();
+        int c = peek();
+        while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E'
+                || (c >= '0' && c <= '9')) {
+            sb.append((char) read());
+            c = peekRaw();
+        }
+        return new RawNumber(sb.toString());
+    }
+
+    protected void readLiteral(String inLiteral) throws IOException {
+
+        peek();
+        for (int i = 0; i < inLiteral.length(); i++) {
+            if (read() != inLiteral.charAt(i)) {
+                throw new IOException("Invalid JSON literal, expected "
+                        + inLiteral);
+            }
+        }
+    }
+
+    /*
+     * After a value in an object/array: returns true if there is a comma
+     * (another value follows), false if we reached inClosing.
+     */
+    protected boolean nextIsComma(char inClosing) throws IOException {
+
+        int c = next();
+        if (c == ',') {
+            return true;
+        }
+        if (c == inClosing) {
+            return false;
+        }
+        throw new IOException("Expected ',' or '" + inClosing + "' in JSON");
+    }
+
+    protected void expect(char inExpected) throws IOException {
+
+        int c = next();
+        if (c != inExpected) {
+            throw new IOException("Expected '" + inExpected + "' in JSON, got "
+                    + (c < 0 ? "EOF" : String.valueOf((char) c)));
+        }
+    }
+
+    /* Next non-blank character, consumed */
+    protected int next() throws IOException {
+        int c = peek();
+        current = -2;
+        return c;
+    }
+
+    /* Next non-blank character, not consumed */
+    protected int peek() throws IOException {
+
+        int c = peekRaw();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            current = -2;
+            c = peekRaw();
+        }
+        return c;
+    }
+
+    /* Next character, not consumed */
+    protected int peekRaw() throws IOException {
+        if (current == -2) {
+            current = reader.read();
+        }
+        return current;
+    }
+
+    /* Next character, consumed */
+    protected int read() throws IOException {
+        int c = peekRaw();
+        current = -2;
+        return c;
+    }
+
+    /**
+     * A JSON number, kept as written by ExifTool so its formatting is not
+     * altered ("1.10" is not displayed as "1.1").
+     *
+     * @since 7.3
+     */
+    public static class RawNumber extends Number {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final String text;
+
+        public RawNumber(String inText) {
+            text = inText;
+        }
+
+        @Override
+        public int intValue() {
+            return (int) doubleValue();
+        }
+
+        @Override
+        public long longValue() {
+            return (long) doubleValue();
+        }
+
+        @Override
+        public float floatValue() {
+            return (float) doubleValue();
+        }
+
+        @Override
+        public double doubleValue() {
+            return Double.parseDouble(text);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.exiftool;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the output of one ExifTool command while it is produced, so it can
+ * be parsed without being buffered first.
+ * <p>
+ * The stream ends with the output of the command (the <code>{ready}</code>
+ * sentinel is not part of it). The handler does not have to read it until the
+ * end, and must not close it.
+ *
+ * @since 7.3
+ */
+public interface ExifToolOutputHandler {
+
+    void handle(InputStream inOutput) throws IOException;
+}
@@ -0,0 +1,382 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.exiftool;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded pool of stay-open ExifTool processes ("workers").
+ * <p>
+ * <ul>
+ * <li>At most <code>maxSize</code> workers run at the same time. A caller
+ * waits (up to <code>borrowTimeoutSeconds</code>) when they are all busy</li>
+ * <li>Workers are created on demand, <code>minSize</code> of them are kept
+ * alive even when idle, the others are stopped after
+ * <code>idleTimeoutSeconds</code></li>
+ * <li>A worker is recycled after <code>maxRequestsPerWorker</code> requests</li>
+ * <li>A worker that died (or failed while handling a request) is discarded,
+ * a new one is started when needed</li>
+ * </ul>
+ * The most recently used idle worker is reused first, so the others can
+ * expire.
+ *
+ * @since 7.3
+ */
+public class ExifToolPool {
+
+    private static final Log log = LogFactory.getLog(ExifToolPool.class);
+
+    protected final ExifToolPoolDescriptor config;
+
+    protected final Semaphore permits;
+
+    protected final LinkedBlockingDeque<Worker> idleWorkers = new LinkedBlockingDeque<Worker>();
+
+    protected final ScheduledExecutorService evictor;
+
+    protected volatile boolean closed = false;
+
+    protected final AtomicInteger liveCount = new AtomicInteger();
+
+    protected final AtomicLong createdCount = new AtomicLong();
+
+    protected final AtomicLong crashedCount = new AtomicLong();
+
+    protected final AtomicLong recycledCount = new AtomicLong();
+
+    protected final AtomicLong evictedCount = new AtomicLong();
+
+    protected final AtomicLong requestCount = new AtomicLong();
+
+    protected final AtomicInteger peakBusy = new AtomicInteger();
+
+    protected static class Worker {
+
+        protected final ExifToolProcess process;
+
+        protected int requests = 0;
+
+        protected long lastUsed = System.currentTimeMillis();
+
+        protected Worker(ExifToolProcess inProcess) {
+            process = inProcess;
+        }
+    }
+
+    public ExifToolPool(ExifToolPoolDescriptor inConfig) {
+
+        config = inConfig;
+        permits = new Semaphore(config.getMaxSize(), true);
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ExifToolPool-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1, Math.min(30, config.getIdleTimeoutSeconds() / 2));
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, 0, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Borrow a worker, run the command, give the worker back.
+     *
+     * @param inArgs
+     * @return the response
+     * @throws IOException if no worker is available in time, or if the worker
+     *             failed
+     *
+     * @since 7.3
+     */
+    public ExifToolResponse execute(List<String> inArgs) throws IOException {
+        return execute(inArgs, 0);
+    }
+
+    /**
+     * Same as {@link #execute(List)}, with a timeout (0 for no timeout). If
+     * the command does not finish in time, the worker is killed and a
+     * {@link org.nuxeo.binary.metadata.tools.ToolTimeoutException} is thrown.
+     *
+     * @since 7.3
+     */
+    public ExifToolResponse execute(List<String> inArgs, long inTimeoutMillis)
+            throws IOException {
+
+        Worker worker = borrow();
+        try {
+            return worker.process.execute(inArgs, inTimeoutMillis);
+        } finally {
+            giveBack(worker);
+        }
+    }
+
+    /**
+     * Borrow a worker, run the command and let inHandler read its output,
+     * give the worker back.
+     *
+     * @param inArgs
+     * @param inHandler
+     * @return the response, without the output
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public ExifToolResponse execute(List<String> inArgs,
+            ExifToolOutputHandler inHandler) throws IOException {
+        return execute(inArgs, inHandler, 0);
+    }
+
+    /**
+     * Same as {@link #execute(List, ExifToolOutputHandler)}, with a timeout (0
+     * for no timeout)
+     *
+     * @since 7.3
+     */
+    public ExifToolResponse execute(List<String> inArgs,
+            ExifToolOutputHandler inHandler, long inTimeoutMillis)
+            throws IOException {
+
+        Worker worker = borrow();
+        try {
+            return worker.process.execute(inArgs, inHandler, inTimeoutMillis);
+        } finally {
+            giveBack(worker);
+        }
+    }
+
+    protected Worker borrow() throws IOException {
+
+        if (closed) {
+            throw new IOException("The ExifTool pool is closed");
+        }
+
+        try {
+            if (!permits.tryAcquire(config.getBorrowTimeoutSeconds(),
+                    TimeUnit.SECONDS)) {
+                throw new IOException("No ExifTool process available after "
+                        + config.getBorrowTimeoutSeconds() + "s (maxSize: "
+                        + config.getMaxSize() + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        int busy = getBusyCount();
+        int peak;
+        while (busy > (peak = peakBusy.get())
+                && !peakBusy.compareAndSet(peak, busy)) {
+            // Retry
+        }
+
+        try {
+            Worker worker;
+            while ((worker = idleWorkers.pollFirst()) != null) {
+                if (worker.process.isUsable()) {
+                    return worker;
+                }
+                log.warn("An idle ExifTool process died, discarding it");
+                crashedCount.incrementAndGet();
+                destroy(worker);
+            }
+            return create();
+
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /*
+     * The worker is discarded if the process died or is not in sync with us
+     * anymore. A failure of the caller (parsing the output for example) does
+     * not make it unusable.
+     */
+    protected void giveBack(Worker inWorker) {
+
+        try {
+            inWorker.requests += 1;
+            inWorker.lastUsed = System.currentTimeMillis();
+            requestCount.incrementAndGet();
+
+            int maxRequests = config.getMaxRequestsPerWorker();
+            if (!inWorker.process.isUsable()) {
+                log.warn("An ExifTool process failed, discarding it");
+                crashedCount.incrementAndGet();
+                destroy(inWorker);
+            } else if (closed) {
+                destroy(inWorker);
+            } else if (maxRequests > 0 && inWorker.requests >= maxRequests) {
+                recycledCount.incrementAndGet();
+                destroy(inWorker);
+            } else {
+                idleWorkers.offerFirst(inWorker);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    protected Worker create() throws IOException {
+
+        Worker worker = new Worker(new ExifToolProcess(config.getCommand()));
+        liveCount.incrementAndGet();
+        createdCount.incrementAndGet();
+        return worker;
+    }
+
+    protected void destroy(Worker inWorker) {
+        inWorker.process.close();
+        liveCount.decrementAndGet();
+    }
+
+    /*
+     * Called periodically: stop the workers idle for too long (keeping at
+     * least minSize of them), discard the dead ones, and start new workers if
+     * we are below minSize.
+     */
+    protected void maintain() {
+
+        if (closed) {
+            return;
+        }
+
+        try {
+            long idleTimeout = config.getIdleTimeoutSeconds() * 1000L;
+            long now = System.currentTimeMillis();
+
+            // Oldest idle workers are at the end of the deque
+            Iterator<Worker> it = idleWorkers.descendingIterator();
+            while (it.hasNext()) {
+                Worker worker = it.next();
+                boolean dead = !worker.process.isAlive();
+                boolean expired = idleTimeout > 0
+                        && now - worker.lastUsed > idleTimeout
+                        && liveCount.get() > config.getMinSize();
+                if ((dead || expired) && idleWorkers.remove(worker)) {
+                    if (dead) {
+                        log.warn("An idle ExifTool process died, discarding it");
+                        crashedCount.incrementAndGet();
+                    } else {
+                        evictedCount.incrementAndGet();
+                    }
+                    destroy(worker);
+                }
+            }
+
+            while (!closed && liveCount.get() < config.getMinSize()) {
+                idleWorkers.offerLast(create());
+            }
+
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot maintain the ExifTool pool: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start the <code>minSize</code> workers now instead of waiting for the
+     * first requests.
+     *
+     * @since 7.3
+     */
+    public void prestart() {
+        maintain();
+    }
+
+    /**
+     * Stop all the idle workers. The busy ones are stopped when they are given
+     * back.
+     *
+     * @since 7.3
+     */
+    public void close() {
+
+        closed = true;
+        evictor.shutdownNow();
+
+        Worker worker;
+        while ((worker = idleWorkers.pollFirst()) != null) {
+            destroy(worker);
+        }
+    }
+
+    public ExifToolPoolDescriptor getConfiguration() {
+        return config;
+    }
+
+    /** Number of running processes (busy or idle) */
+    public int getSize() {
+        return liveCount.get();
+    }
+
+    public int getIdleCount() {
+        return idleWorkers.size();
+    }
+
+    public int getBusyCount() {
+        return config.getMaxSize() - permits.availablePermits();
+    }
+
+    /** Max. number of processes that were busy at the same time */
+    public int getPeakBusyCount() {
+        return peakBusy.get();
+    }
+
+    /** Number of callers waiting for a process */
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getCrashedCount() {
+        return crashedCount.get();
+    }
+
+    public long getRecycledCount() {
+        return recycledCount.get();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+}
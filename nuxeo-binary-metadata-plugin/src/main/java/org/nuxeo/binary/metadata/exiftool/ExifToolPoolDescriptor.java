@@ -0,0 +1,81 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.exiftool;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Configuration of the pool of stay-open ExifTool processes, contributed to
+ * the <code>exiftool</code> extension point of
+ * <code>org.nuxeo.binary.metadata.BinaryMetadataComponent</code>.
+ * <p>
+ * A value not set in the contribution keeps its default value.
+ *
+ * @since 7.3
+ */
+@XObject("exiftool")
+public class ExifToolPoolDescriptor {
+
+    /** The ExifTool command (can be a full path) */
+    @XNode("command")
+    protected String command = ExifToolProcess.DEFAULT_COMMAND;
+
+    /** Number of processes kept alive even when idle */
+    @XNode("minSize")
+    protected int minSize = 0;
+
+    /** Maximum number of processes running at the same time */
+    @XNode("maxSize")
+    protected int maxSize = Runtime.getRuntime().availableProcessors();
+
+    /** An idle process (above minSize) is stopped after this delay */
+    @XNode("idleTimeoutSeconds")
+    protected int idleTimeoutSeconds = 300;
+
+    /** A process is recycled after this number of requests. 0 means never */
+    @XNode("maxRequestsPerWorker")
+    protected int maxRequestsPerWorker = 1000;
+
+    /** Maximum time to wait for a process when all of them are busy */
+    @XNode("borrowTimeoutSeconds")
+    protected int borrowTimeoutSeconds = 60;
+
+    public String getCommand() {
+        return command;
+    }
+
+    public int getMinSize() {
+        return Math.max(0, Math.min(minSize, getMaxSize()));
+    }
+
+    public int getMaxSize() {
+        return Math.max(1, maxSize);
+    }
+
+    public int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    public int getMaxRequestsPerWorker() {
+        return maxRequestsPerWorker;
+    }
+
+    public int getBorrowTimeoutSeconds() {
+        return borrowTimeoutSeconds;
+    }
+}
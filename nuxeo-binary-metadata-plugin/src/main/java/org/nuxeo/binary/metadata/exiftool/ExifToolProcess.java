@@ -0,0 +1,395 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.exiftool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.tools.ProcessWatchdog;
+import org.nuxeo.binary.metadata.tools.ToolTimeoutException;
+
+/**
+ * Wraps one long-lived <code>exiftool -stay_open True -@ -</code> process.
+ * <p>
+ * Each call to {@link #execute(List)} writes the arguments on the stdin of the
+ * process (one per line), followed by <code>-execute{N}</code>. ExifTool then
+ * writes the result on stdout followed by a <code>{readyN}</code> line (see
+ * {@link ReadyDelimitedInputStream}). We also
+ * ask it to echo the same sentinel on stderr once the command is processed (
+ * <code>-echo4</code>), so we know when all the errors of the command have been
+ * received.
+ * <p>
+ * The Perl interpreter is started once, so the cost of a call is the actual
+ * parsing of the file, not the 150-300ms of ExifTool startup.
+ * <p>
+ * An instance is not thread safe by itself: {@link #execute(List)} is
+ * synchronized, so concurrent callers are serialized.
+ * <p>
+ * A command can have a timeout: If it does not finish in time (corrupt file
+ * making ExifTool loop for example), the process is killed and must be
+ * replaced.
+ *
+ * @since 7.3
+ */
+public class ExifToolProcess {
+
+    private static final Log log = LogFactory.getLog(ExifToolProcess.class);
+
+    public static final String DEFAULT_COMMAND = "exiftool";
+
+    protected static final int BUFFER_SIZE = 8192;
+
+    protected Process process;
+
+    protected Writer stdin;
+
+    protected InputStream stdout;
+
+    protected ErrorDrainer stderr;
+
+    protected int executeCount = 0;
+
+    protected volatile boolean broken = false;
+
+    public ExifToolProcess() throws IOException {
+        this(DEFAULT_COMMAND);
+    }
+
+    public ExifToolProcess(String inCommand) throws IOException {
+
+        ProcessBuilder pb = new ProcessBuilder(inCommand, "-stay_open",
+                "True", "-@", "-");
+        process = pb.start();
+
+        stdin = new OutputStreamWriter(process.getOutputStream(),
+                StandardCharsets.UTF_8);
+        stdout = new BufferedInputStream(process.getInputStream(), BUFFER_SIZE);
+        stderr = new ErrorDrainer(process.getErrorStream());
+        stderr.start();
+    }
+
+    /**
+     * Send the arguments to ExifTool, wait for the result.
+     * <p>
+     * The arguments are the same as the ones used on the command line, the
+     * file(s) to handle included. They must not contain the
+     * <code>-stay_open</code>, <code>-@</code> or <code>-execute</code>
+     * options.
+     *
+     * @param inArgs
+     * @return the response (never null)
+     * @throws IOException if the process is dead or died while handling the
+     *             command
+     *
+     * @since 7.3
+     */
+    public ExifToolResponse execute(List<String> inArgs) throws IOException {
+        return execute(inArgs, 0);
+    }
+
+    /**
+     * Same as {@link #execute(List)}, the process is killed if the command
+     * does not finish in time.
+     *
+     * @param inArgs
+     * @param inTimeoutMillis 0 for no timeout
+     * @return the response (never null)
+     * @throws IOException
+     * @throws ToolTimeoutException
+     *
+     * @since 7.3
+     */
+    public ExifToolResponse execute(List<String> inArgs, long inTimeoutMillis)
+            throws IOException, ToolTimeoutException {
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(
+                BUFFER_SIZE);
+        ExifToolResponse response = execute(inArgs,
+                new ExifToolOutputHandler() {
+                    @Override
+                    public void handle(InputStream inOutput)
+                            throws IOException {
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        int count;
+                        while ((count = inOutput.read(buffer)) > -1) {
+                            output.write(buffer, 0, count);
+                        }
+                    }
+                }, inTimeoutMillis);
+
+        return new ExifToolResponse(output.toByteArray(),
+                response.getErrors());
+    }
+
+    /**
+     * Send the arguments to ExifTool, and let inHandler read the output while
+     * it is produced. The response returned has no output, only the errors.
+     * <p>
+     * If the handler fails, the rest of the output is read and ignored, so the
+     * process can still be used.
+     *
+     * @param inArgs
+     * @param inHandler
+     * @return the response, without the output
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public ExifToolResponse execute(List<String> inArgs,
+            ExifToolOutputHandler inHandler) throws IOException {
+        return execute(inArgs, inHandler, 0);
+    }
+
+    /**
+     * Same as {@link #execute(List, ExifToolOutputHandler)}, with a timeout.
+     * <p>
+     * When the command does not finish in time, the process (and its
+     * children) is killed: It can't be used anymore, and a
+     * {@link ToolTimeoutException} is thrown.
+     *
+     * @param inArgs
+     * @param inHandler
+     * @param inTimeoutMillis 0 for no timeout
+     * @return the response, without the output
+     * @throws IOException
+     * @throws ToolTimeoutException
+     *
+     * @since 7.3
+     */
+    public synchronized ExifToolResponse execute(List<String> inArgs,
+            ExifToolOutputHandler inHandler, long inTimeoutMillis)
+            throws IOException, ToolTimeoutException {
+
+        ProcessWatchdog.Watch watch = ProcessWatchdog.watch(process,
+                inTimeoutMillis);
+        try {
+            return doExecute(inArgs, inHandler);
+        } catch (IOException | RuntimeException e) {
+            if (watch.hasFired()) {
+                throw new ToolTimeoutException(TOOL.EXIFTOOL, inTimeoutMillis);
+            }
+            throw e;
+        } finally {
+            watch.cancel();
+        }
+    }
+
+    protected ExifToolResponse doExecute(List<String> inArgs,
+            ExifToolOutputHandler inHandler) throws IOException {
+
+        if (!isUsable()) {
+            throw new IOException("The ExifTool process is not usable");
+        }
+
+        // Until we are back in sync with the process
+        broken = true;
+
+        executeCount += 1;
+        String ready = "{ready" + executeCount + "}";
+
+        stderr.expect(ready);
+        for (String arg : inArgs) {
+            writeArg(arg);
+        }
+        writeArg("-echo4");
+        writeArg(ready);
+        writeArg("-execute" + executeCount);
+        stdin.flush();
+
+        String errors;
+        ReadyDelimitedInputStream output = new ReadyDelimitedInputStream(
+                stdout, ready, isBinary(inArgs));
+        try {
+            inHandler.handle(output);
+        } finally {
+            output.drain();
+            errors = stderr.waitFor(ready);
+            broken = false;
+        }
+
+        return new ExifToolResponse(new byte[0], errors);
+    }
+
+    /*
+     * -b (-binary): the output may not end with a new line, the sentinel
+     * follows it directly
+     */
+    protected static boolean isBinary(List<String> inArgs) {
+
+        for (String arg : inArgs) {
+            if ("-b".equalsIgnoreCase(arg) || "-binary".equalsIgnoreCase(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * An argument is a line in the "arg file". A value containing a line
+     * terminator must be sent as a C-style string.
+     */
+    protected void writeArg(String inArg) throws IOException {
+
+        if (inArg.indexOf('\n') > -1 || inArg.indexOf('\r') > -1) {
+            inArg = "#[CSTR]"
+                    + inArg.replace("\\", "\\\\").replace("\n", "\\n").replace(
+                            "\r", "\\r");
+        }
+        stdin.write(inArg);
+        stdin.write('\n');
+    }
+
+    /**
+     * @return true if the process is running and can handle a command (the
+     *         previous command did not leave it in an unknown state)
+     *
+     * @since 7.3
+     */
+    public boolean isUsable() {
+        return !broken && isAlive();
+    }
+
+    public boolean isAlive() {
+
+        if (process == null) {
+            return false;
+        }
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Ask ExifTool to quit, and kill the process if it does not.
+     *
+     * @since 7.3
+     */
+    public synchronized void close() {
+
+        if (process == null) {
+            return;
+        }
+
+        try {
+            if (isAlive()) {
+                writeArg("-stay_open");
+                writeArg("False");
+                stdin.flush();
+            }
+        } catch (IOException e) {
+            log.debug("Cannot ask ExifTool to quit", e);
+        } finally {
+            closeQuietly(stdin);
+            process.destroy();
+            process = null;
+        }
+    }
+
+    protected static void closeQuietly(Closeable inCloseable) {
+        try {
+            inCloseable.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /*
+     * stderr must be read continuously, or ExifTool could block writing a
+     * lot of warnings while we wait for stdout.
+     */
+    protected static class ErrorDrainer extends Thread {
+
+        protected final BufferedReader reader;
+
+        protected final StringBuilder errors = new StringBuilder();
+
+        protected String expected;
+
+        protected boolean received = false;
+
+        protected boolean ended = false;
+
+        public ErrorDrainer(InputStream inStream) {
+            super("ExifTool-stderr");
+            setDaemon(true);
+            reader = new BufferedReader(new InputStreamReader(inStream,
+                    StandardCharsets.UTF_8));
+        }
+
+        public synchronized void expect(String inSentinel) {
+            expected = inSentinel;
+            received = false;
+            errors.setLength(0);
+        }
+
+        public synchronized String waitFor(String inSentinel)
+                throws IOException {
+
+            while (!received && !ended) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            if (!received) {
+                throw new IOException("The ExifTool process ended unexpectedly");
+            }
+            return errors.toString();
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    synchronized (this) {
+                        if (line.equals(expected)) {
+                            received = true;
+                            notifyAll();
+                        } else {
+                            errors.append(line).append('\n');
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The process is gone
+            } finally {
+                synchronized (this) {
+                    ended = true;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
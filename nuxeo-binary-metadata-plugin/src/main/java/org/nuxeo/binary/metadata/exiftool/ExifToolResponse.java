@@ -0,0 +1,83 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.exiftool;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * What ExifTool returned for one command sent to a stay-open process: the
+ * bytes written on stdout (the <code>{ready}</code> sentinel removed) and the
+ * text written on stderr.
+ *
+ * @since 7.3
+ */
+public class ExifToolResponse {
+
+    protected byte[] output;
+
+    protected String errors;
+
+    public ExifToolResponse(byte[] inOutput, String inErrors) {
+        output = inOutput;
+        errors = inErrors == null ? "" : inErrors;
+    }
+
+    public byte[] getOutputBytes() {
+        return output;
+    }
+
+    /**
+     * ExifTool writes its output in UTF-8
+     */
+    public String getOutput() {
+        return new String(output, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the output split in lines, without the line terminators
+     */
+    public ArrayList<String> getOutputLines() {
+
+        ArrayList<String> lines = new ArrayList<String>();
+        for (String line : getOutput().split("\r?\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    public String getErrors() {
+        return errors;
+    }
+
+    /**
+     * ExifTool prefixes its fatal messages with "Error" (warnings, which are
+     * ignored here, start with "Warning"). This is what made the former
+     * one-shot command exit with a non-zero status.
+     */
+    public boolean hasErrors() {
+
+        for (String line : errors.split("\r?\n")) {
+            if (line.startsWith("Error")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
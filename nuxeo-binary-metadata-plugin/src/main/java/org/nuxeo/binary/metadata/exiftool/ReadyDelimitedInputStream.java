@@ -0,0 +1,205 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.exiftool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The stdout of a stay-open ExifTool, for one command: Returns the bytes until
+ * the <code>{readyN}</code> line that ExifTool writes at the end of the
+ * command, then behaves as if the end of the stream was reached.
+ * <p>
+ * The output is read by blocks. The sentinel is matched at the start of a line
+ * only, so a value containing it does not end the output. Binary output (-b)
+ * may have no terminating new line: For such a command, the sentinel is
+ * matched anywhere (see {@link #ReadyDelimitedInputStream(InputStream,
+ * String, boolean)}).
+ * <p>
+ * Nothing is read after the sentinel line: ExifTool writes nothing more until
+ * it receives the next command.
+ *
+ * @since 7.3
+ */
+public class ReadyDelimitedInputStream extends InputStream {
+
+    protected static final int BUFFER_SIZE = 8192;
+
+    protected final InputStream in;
+
+    protected final byte[] sentinel;
+
+    protected final boolean anywhere;
+
+    protected final byte[] buffer;
+
+    // The bytes read from in and not returned yet
+    protected int start = 0;
+
+    protected int end = 0;
+
+    // The first byte of the buffer starts a line
+    protected boolean atLineStart = true;
+
+    protected boolean ended = false;
+
+    public ReadyDelimitedInputStream(InputStream inStream, String inSentinel) {
+        this(inStream, inSentinel, false);
+    }
+
+    /**
+     * @param inStream
+     * @param inSentinel
+     * @param inAnywhere true if the output of the command may not end with a
+     *            new line (binary output): the sentinel is then matched
+     *            anywhere, not only at the start of a line
+     *
+     * @since 7.3
+     */
+    public ReadyDelimitedInputStream(InputStream inStream, String inSentinel,
+            boolean inAnywhere) {
+        in = inStream;
+        sentinel = inSentinel.getBytes(StandardCharsets.UTF_8);
+        anywhere = inAnywhere;
+        buffer = new byte[Math.max(BUFFER_SIZE, 2 * sentinel.length + 2)];
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+
+        if (len == 0) {
+            return 0;
+        }
+
+        while (true) {
+            if (ended) {
+                return -1;
+            }
+
+            // Returns what is known not to be the sentinel. Does not block
+            // for more when there is something to return
+            int available = scan();
+            if (available > 0) {
+                int count = Math.min(len, available);
+                System.arraycopy(buffer, start, b, off, count);
+                start += count;
+                atLineStart = buffer[start - 1] == '\n';
+                return count;
+            }
+            if (ended) {
+                return -1;
+            }
+
+            // Maybe the start of the sentinel: need more bytes
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int count = in.read(buffer, end, buffer.length - end);
+            if (count < 0) {
+                throw new IOException("The ExifTool process ended unexpectedly");
+            }
+            end += count;
+        }
+    }
+
+    /*
+     * @return the number of bytes from start which are not part of the
+     * sentinel line. 0 if the sentinel line may start at start (not complete
+     * yet), or if it does (ended is then set)
+     */
+    protected int scan() {
+
+        for (int i = start; i < end; i++) {
+            boolean lineStart = i == start ? atLineStart
+                    : buffer[i - 1] == '\n';
+            if (!anywhere && !lineStart) {
+                continue;
+            }
+            int matched = matchSentinel(i);
+            if (matched == 0) {
+                continue;
+            }
+            if (i > start) {
+                // The sentinel starts after the bytes to return
+                return i - start;
+            }
+            if (matched > 0) {
+                ended = true;
+                start = end = 0;
+            }
+            return 0;
+        }
+        return end - start;
+    }
+
+    /*
+     * @return the length of the sentinel line (and its line terminator)
+     * starting at inPos, -1 if it may (not enough bytes yet), 0 if it does not
+     */
+    protected int matchSentinel(int inPos) {
+
+        int i = 0;
+        for (; i < sentinel.length; i++) {
+            if (inPos + i >= end) {
+                return -1;
+            }
+            if (buffer[inPos + i] != sentinel[i]) {
+                return 0;
+            }
+        }
+        int pos = inPos + i;
+        if (pos < end && buffer[pos] == '\r') {
+            pos += 1;
+        }
+        if (pos >= end) {
+            return -1;
+        }
+        return buffer[pos] == '\n' ? pos + 1 - inPos : 0;
+    }
+
+    @Override
+    public int available() {
+        return 0;
+    }
+
+    /**
+     * Read and ignore everything until the sentinel, so the next command
+     * starts at the right place.
+     */
+    public void drain() throws IOException {
+        byte[] skip = new byte[BUFFER_SIZE];
+        while (read(skip, 0, skip.length) > -1) {
+            // Ignore
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The stream of the process must stay open
+        drain();
+    }
+}
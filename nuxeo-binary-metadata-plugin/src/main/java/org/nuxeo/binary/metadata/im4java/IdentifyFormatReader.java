@@ -0,0 +1,279 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.im4java;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.im4java.core.IMOperation;
+import org.nuxeo.binary.metadata.BinaryMetadataConstants.KEYS;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Reads a few well known properties with <code>identify -format</code>
+ * instead of <code>identify -verbose</code> (which is what the im4java
+ * <code>Info</code> class does).
+ * <p>
+ * <code>-verbose</code> outputs everything, including statistics and
+ * histograms that require scanning all the pixels. With <code>-format</code>,
+ * identify only outputs the escapes we ask for, and we don't have to parse a
+ * long output.
+ * <p>
+ * The values are returned as <code>Info</code> would return them (same key,
+ * same formatting), so the caller does not see the difference. Only the keys
+ * for which this is possible are handled: use
+ * {@link #canRead(String[], boolean)} before calling
+ * {@link #read(String, String[], boolean, boolean, long)}.
+ * <p>
+ * When the file has several frames, identify outputs one line per frame and
+ * we use the last one, as <code>Info</code> does.
+ *
+ * @since 7.3
+ */
+public class IdentifyFormatReader {
+
+    /**
+     * Key of the value of <code>%m</code> ("GIF", "PNG", ...), always
+     * returned by {@link #read(String, String[], boolean, boolean, long)}.
+     * This is not the same value as the "Format" of <code>Info</code> ("PNG
+     * (Portable Network Graphics)").
+     */
+    public static final String MAGICK = "_magick_";
+
+    protected static final String SEPARATOR = "\t";
+
+    protected static final String RESOLUTION_X = "%x";
+
+    protected static final String RESOLUTION_Y = "%y";
+
+    protected static final Map<String, String> IM_ESCAPES;
+
+    protected static final Map<String, String> GM_ESCAPES;
+
+    static {
+        HashMap<String, String> im = new HashMap<String, String>();
+        im.put(KEYS.WIDTH, "%w");
+        im.put(KEYS.HEIGHT, "%h");
+        im.put(KEYS.COLORSPACE, "%[colorspace]");
+        im.put(KEYS.UNITS, "%[units]");
+        im.put("Type", "%[type]");
+        im.put("Compression", "%C");
+        im.put("Depth", "%z-bit");
+        IM_ESCAPES = Collections.unmodifiableMap(im);
+
+        // GraphicsMagick supports fewer escapes, and displays the others in a
+        // different way than its -verbose output
+        HashMap<String, String> gm = new HashMap<String, String>();
+        gm.put(KEYS.WIDTH, "%w");
+        gm.put(KEYS.HEIGHT, "%h");
+        GM_ESCAPES = Collections.unmodifiableMap(gm);
+    }
+
+    /**
+     * @param inTheseKeys
+     * @param inUseGM
+     * @return true if all the keys can be read with
+     *         {@link #read(String, String[], boolean, boolean, long)}
+     *
+     * @since 7.3
+     */
+    public static boolean canRead(String[] inTheseKeys, boolean inUseGM) {
+
+        if (inTheseKeys == null || inTheseKeys.length == 0) {
+            return false;
+        }
+
+        for (String oneProp : inTheseKeys) {
+            if (oneProp != null && !oneProp.isEmpty()
+                    && !isHandled(oneProp, inUseGM)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static boolean isHandled(String inKey, boolean inUseGM) {
+        if (inUseGM) {
+            return GM_ESCAPES.containsKey(inKey);
+        }
+        return IM_ESCAPES.containsKey(inKey) || KEYS.RESOLUTION.equals(inKey);
+    }
+
+    /**
+     * Run identify and return the values of inTheseKeys, plus the
+     * {@link #MAGICK} value. A key not found is in the map with a value of ""
+     * <p>
+     * With inPing, identify does not read the pixels (<code>-ping</code>),
+     * which is enough for the values stored in the header of the file.
+     *
+     * @param inPath
+     * @param inTheseKeys
+     * @param inUseGM
+     * @param inPing
+     * @param inTimeoutMillis -1 for the timeout of the tool, 0 for no timeout
+     * @return the values
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, String> read(String inPath,
+            String[] inTheseKeys, boolean inUseGM, boolean inPing,
+            long inTimeoutMillis) throws ClientException {
+        return read(inPath, null, inTheseKeys, inUseGM, inPing,
+                inTimeoutMillis);
+    }
+
+    /**
+     * Same as {@link #read(String, String[], boolean, boolean, long)}, the
+     * image being read from inInput when inPath is "-" (or "FORMAT:-")
+     *
+     * @param inPath
+     * @param inInput null if inPath is a file. Closed by this method
+     * @param inTheseKeys
+     * @param inUseGM
+     * @param inPing
+     * @param inTimeoutMillis
+     * @return the values
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, String> read(String inPath,
+            InputStream inInput, String[] inTheseKeys, boolean inUseGM,
+            boolean inPing, long inTimeoutMillis) throws ClientException {
+
+        Map<String, String> escapes = inUseGM ? GM_ESCAPES : IM_ESCAPES;
+
+        // Build the format, one field per escape
+        ArrayList<String> fields = new ArrayList<String>();
+        fields.add(MAGICK);
+        StringBuilder format = new StringBuilder("%m");
+        for (String oneProp : inTheseKeys) {
+            if (oneProp == null || oneProp.isEmpty()
+                    || fields.contains(oneProp)) {
+                continue;
+            }
+            if (KEYS.RESOLUTION.equals(oneProp)) {
+                if (fields.contains(RESOLUTION_X)) {
+                    continue;
+                }
+                fields.add(RESOLUTION_X);
+                fields.add(RESOLUTION_Y);
+                format.append(SEPARATOR).append("%x").append(SEPARATOR).append(
+                        "%y");
+            } else {
+                fields.add(oneProp);
+                format.append(SEPARATOR).append(escapes.get(oneProp));
+            }
+        }
+        format.append("\n");
+
+        // Run
+        IMOperation op = new IMOperation();
+        if (inPing) {
+            op.ping();
+        }
+        op.format(format.toString());
+        op.addImage(inPath);
+
+        ArrayList<String> output = IdentifyRunner.run(op, inUseGM, inInput,
+                inTimeoutMillis);
+
+        // Last frame wins
+        String line = "";
+        for (String oneLine : output) {
+            if (!oneLine.trim().isEmpty()) {
+                line = oneLine;
+            }
+        }
+
+        return parseLine(line, fields, inTheseKeys);
+    }
+
+    protected static HashMap<String, String> parseLine(String inLine,
+            ArrayList<String> inFields, String[] inTheseKeys) {
+
+        HashMap<String, String> values = new HashMap<String, String>();
+        String[] parts = inLine.split(SEPARATOR, -1);
+        for (int i = 0; i < inFields.size() && i < parts.length; i++) {
+            values.put(inFields.get(i), parts[i].trim());
+        }
+
+        HashMap<String, String> result = new HashMap<String, String>();
+        for (String oneProp : inTheseKeys) {
+            String value = null;
+            if (KEYS.RESOLUTION.equals(oneProp)) {
+                value = formatResolution(values.get(RESOLUTION_X),
+                        values.get(RESOLUTION_Y));
+            } else if (oneProp != null && !oneProp.isEmpty()) {
+                value = values.get(oneProp);
+            }
+            result.put(oneProp, value == null ? "" : value);
+        }
+        String magick = values.get(MAGICK);
+        result.put(MAGICK, magick == null ? "" : magick);
+
+        return result;
+    }
+
+    /*
+     * -verbose displays "72x72", and nothing when there is no resolution. Some
+     * versions of ImageMagick add the units to %x ("72 PixelsPerInch")
+     */
+    protected static String formatResolution(String inX, String inY) {
+
+        double x = parseLeadingNumber(inX);
+        double y = parseLeadingNumber(inY);
+        if (x <= 0 && y <= 0) {
+            return "";
+        }
+        return formatNumber(x) + "x" + formatNumber(y);
+    }
+
+    protected static double parseLeadingNumber(String inValue) {
+
+        if (inValue == null) {
+            return 0;
+        }
+        String value = inValue.trim();
+        int pos = value.indexOf(' ');
+        if (pos > 0) {
+            value = value.substring(0, pos);
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Format a number the way ImageMagick does (C "%g"): 6 significant
+     * digits, no trailing zeros
+     *
+     * @since 7.3
+     */
+    public static String formatNumber(double inValue) {
+        return new BigDecimal(inValue).round(new MathContext(6))
+                .stripTrailingZeros().toPlainString();
+    }
+}
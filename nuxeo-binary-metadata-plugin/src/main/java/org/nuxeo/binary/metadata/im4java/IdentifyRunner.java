@@ -0,0 +1,87 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.im4java;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.im4java.core.IMOperation;
+import org.im4java.process.ProcessStarter;
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.tools.ProcessRunner;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Runs <code>identify</code> (ImageMagick) or <code>gm identify</code>
+ * (GraphicsMagick) with the arguments of an im4java operation.
+ * <p>
+ * The command is run by {@link ProcessRunner}: It is admitted by the
+ * bulkhead of the tool, and killed if it does not finish in time. The
+ * executable is searched in the im4java global search path, if any.
+ *
+ * @since 7.3
+ */
+public class IdentifyRunner {
+
+    /**
+     * @param inOp
+     * @param inUseGM
+     * @param inTimeoutMillis -1 for the timeout of the tool, 0 for no timeout
+     * @return the lines of the output
+     * @throws ClientException if the command failed, timed out (
+     *             {@link org.nuxeo.binary.metadata.tools.ToolTimeoutException}
+     *             ) or was rejected by the bulkhead (
+     *             {@link org.nuxeo.binary.metadata.tools.ToolRejectedException}
+     *             )
+     *
+     * @since 7.3
+     */
+    public static ArrayList<String> run(IMOperation inOp, boolean inUseGM,
+            long inTimeoutMillis) throws ClientException {
+        return run(inOp, inUseGM, null, inTimeoutMillis);
+    }
+
+    /**
+     * Same as {@link #run(IMOperation, boolean, long)}, the image being read
+     * from inInput (the image of the operation must be "-", or "FORMAT:-")
+     *
+     * @param inOp
+     * @param inUseGM
+     * @param inInput null for no input. Closed by this method
+     * @param inTimeoutMillis
+     * @return the lines of the output
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public static ArrayList<String> run(IMOperation inOp, boolean inUseGM,
+            InputStream inInput, long inTimeoutMillis) throws ClientException {
+
+        String searchPath = ProcessStarter.getGlobalSearchPath();
+        ArrayList<String> command = new ArrayList<String>();
+        if (inUseGM) {
+            command.add(ProcessRunner.resolve("gm", searchPath));
+            command.add("identify");
+        } else {
+            command.add(ProcessRunner.resolve("identify", searchPath));
+        }
+        command.addAll(inOp.getCmdArgs());
+
+        return ProcessRunner.run(inUseGM ? TOOL.GRAPHICSMAGICK
+                : TOOL.IMAGEMAGICK, command, inInput, inTimeoutMillis);
+    }
+}
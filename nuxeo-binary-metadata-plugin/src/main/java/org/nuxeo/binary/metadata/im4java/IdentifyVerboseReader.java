@@ -0,0 +1,191 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.im4java;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.im4java.core.IMOperation;
+import org.nuxeo.binary.metadata.BinaryMetadataConstants.KEYS;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Runs <code>identify -verbose</code> (optionally with <code>-ping</code>) and
+ * parses the output the way the im4java <code>Info</code> class does:
+ * <ul>
+ * <li>Nested values are named after their parents, separated with ":"
+ * ("Channel depth:green")</li>
+ * <li>"Width" and "Height" are extracted from "Geometry"</li>
+ * <li>When the file has several frames, the values of the last one are
+ * returned</li>
+ * </ul>
+ * With <code>-ping</code>, identify does not read the pixels: The values that
+ * are computed from them (statistics, histogram, ...) are then not returned
+ * (or are not accurate), see
+ * {@link org.nuxeo.binary.metadata.BinaryMetadataConstants#PIXEL_KEYS}.
+ *
+ * @since 7.3
+ */
+public class IdentifyVerboseReader {
+
+    /**
+     * @param inPath
+     * @param inUseGM
+     * @param inPing
+     * @param inTimeoutMillis -1 for the timeout of the tool, 0 for no timeout
+     * @return all the values
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, String> read(String inPath, boolean inUseGM,
+            boolean inPing, long inTimeoutMillis) throws ClientException {
+        return read(inPath, null, inUseGM, inPing, inTimeoutMillis);
+    }
+
+    /**
+     * Same as {@link #read(String, boolean, boolean, long)}, the image being
+     * read from inInput when inPath is "-" (or "FORMAT:-")
+     *
+     * @param inPath
+     * @param inInput null if inPath is a file. Closed by this method
+     * @param inUseGM
+     * @param inPing
+     * @param inTimeoutMillis
+     * @return all the values
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, String> read(String inPath,
+            InputStream inInput, boolean inUseGM, boolean inPing,
+            long inTimeoutMillis) throws ClientException {
+
+        IMOperation op = new IMOperation();
+        if (inPing) {
+            op.ping();
+        }
+        op.verbose();
+        op.addImage(inPath);
+
+        ArrayList<String> output = IdentifyRunner.run(op, inUseGM, inInput,
+                inTimeoutMillis);
+
+        return parse(output);
+    }
+
+    /**
+     * Parse the output of <code>identify -verbose</code>
+     *
+     * @param inLines
+     * @return the values
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, String> parse(List<String> inLines) {
+
+        HashMap<String, String> result = new HashMap<String, String>();
+
+        // Names of the parents, with their indentation
+        ArrayList<String> parents = new ArrayList<String>();
+        ArrayList<Integer> parentIndents = new ArrayList<Integer>();
+
+        for (String line : inLines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int indent = line.indexOf(trimmed.charAt(0));
+
+            // A new frame: the last one wins
+            if (indent == 0 && trimmed.startsWith("Image:")) {
+                result.clear();
+                parents.clear();
+                parentIndents.clear();
+            }
+
+            while (!parentIndents.isEmpty()
+                    && parentIndents.get(parentIndents.size() - 1) >= indent) {
+                parents.remove(parents.size() - 1);
+                parentIndents.remove(parentIndents.size() - 1);
+            }
+
+            String name;
+            String value;
+            int pos = trimmed.indexOf(": ");
+            if (pos > 0) {
+                name = trimmed.substring(0, pos).trim();
+                value = trimmed.substring(pos + 2).trim();
+            } else if (trimmed.endsWith(":")) {
+                name = trimmed.substring(0, trimmed.length() - 1).trim();
+                value = "";
+            } else {
+                // Continuation of a multi-lines value, ignored
+                continue;
+            }
+
+            // The frame ("Image: path", or "Image:" with ImageMagick 7) is
+            // not the parent of its properties
+            if (indent == 0) {
+                if (!value.isEmpty()) {
+                    result.put(name, value);
+                }
+                continue;
+            }
+
+            if (value.isEmpty()) {
+                parents.add(name);
+                parentIndents.add(indent);
+                continue;
+            }
+
+            StringBuilder key = new StringBuilder();
+            for (String parent : parents) {
+                key.append(parent).append(':');
+            }
+            key.append(name);
+            result.put(key.toString(), value);
+
+            if (parents.isEmpty() && "Geometry".equals(name)) {
+                addWidthAndHeight(result, value);
+            }
+        }
+
+        return result;
+    }
+
+    /*
+     * "100x200+0+0" => Width = 100, Height = 200
+     */
+    protected static void addWidthAndHeight(HashMap<String, String> inResult,
+            String inGeometry) {
+
+        int x = inGeometry.indexOf('x');
+        if (x < 1) {
+            return;
+        }
+        int end = x + 1;
+        while (end < inGeometry.length()
+                && Character.isDigit(inGeometry.charAt(end))) {
+            end += 1;
+        }
+        inResult.put(KEYS.WIDTH, inGeometry.substring(0, x));
+        inResult.put(KEYS.HEIGHT, inGeometry.substring(x + 1, end));
+    }
+}
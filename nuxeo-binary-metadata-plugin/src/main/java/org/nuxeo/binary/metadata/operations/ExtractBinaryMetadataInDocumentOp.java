@@ -18,14 +18,19 @@
 package org.nuxeo.binary.metadata.operations;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.im4java.core.InfoException;
+import org.nuxeo.binary.metadata.MetadataPreFilter;
 import org.nuxeo.binary.metadata.MetadataReader;
+import org.nuxeo.binary.metadata.MetadataReader.READ_MODE;
 import org.nuxeo.binary.metadata.MiscUtils;
+import org.nuxeo.binary.metadata.ExternalTools;
 import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.tools.ToolTimeoutException;
 import org.nuxeo.ecm.automation.core.Constants;
 import org.nuxeo.ecm.automation.core.annotations.Context;
 import org.nuxeo.ecm.automation.core.annotations.Operation;
@@ -63,7 +68,7 @@ import org.nuxeo.ecm.core.schema.types.Type;
  * <p>
  *
  */
-@Operation(id = ExtractBinaryMetadataInDocumentOp.ID, category = Constants.CAT_DOCUMENT, label = "Document: Extract Binary Metadata", description = "Extract the metadata from the file stored in the <code>xpath</code> field. <code>properties</code> (optional) contains a list of <code>xpath=Metadata Key</code> where Metadata Key is the exact name (case sensitive) of a property to retrieve. For example: <code>dc:format=Format</code>If <code>properties</code> is not used, the operation extracts <code>width</code>, <code>height</code>, <code>resolution</code> and <code>colorspace</code> from the picture file, and save the values in the <code>image_metadata</code> schema (the DPI is realigned if needed.)There is a special property: If you pass <code>schemaprefix:field=all</code>, then all the properties are returned (the field must be a String field)")
+@Operation(id = ExtractBinaryMetadataInDocumentOp.ID, category = Constants.CAT_DOCUMENT, label = "Document: Extract Binary Metadata", description = "Extract the metadata from the file stored in the <code>xpath</code> field. <code>properties</code> (optional) contains a list of <code>xpath=Metadata Key</code> where Metadata Key is the exact name (case sensitive) of a property to retrieve. For example: <code>dc:format=Format</code>If <code>properties</code> is not used, the operation extracts <code>width</code>, <code>height</code>, <code>resolution</code> and <code>colorspace</code> from the picture file, and save the values in the <code>image_metadata</code> schema (the DPI is realigned if needed.)There is a special property: If you pass <code>schemaprefix:field=all</code>, then all the properties are returned (the field must be a String field). With ImageMagick/GraphicsMagick, <code>mode</code> can be \"Header only\" (the pixels are not decoded, much faster on big images), \"Full\" or \"Auto\" (header only when none of the properties requires the pixels). <code>timeoutSeconds</code> overrides the timeout of the tool (-1: timeout of the tool, 0: no timeout). When the tool times out, the process is killed and the document is returned unchanged. With the \"Auto\" tool, each key is read by the cheapest backend which can read it (in Java when possible): the keys of ImageMagick (Width, Height, Colorspace, Resolution, Units, Format and the keys computed from the pixels) with the names and values of ImageMagick, any other key with the names and values of ExifTool.")
 public class ExtractBinaryMetadataInDocumentOp {
 
     public static final String ID = "Document.ExtractBinaryMetadata";
@@ -80,9 +85,29 @@ public class ExtractBinaryMetadataInDocumentOp {
     protected Properties properties;
 
     @Param(name = "tool", required = false, widget = Constants.W_OPTION, values = {
-            "ImageMagick", "GraphicsMagick", "ExifTool" })
+            "ImageMagick", "GraphicsMagick", "ExifTool", "Auto" })
     String tool = "ImageMagick";
 
+    /**
+     * ImageMagick/GraphicsMagick only. "Header only" does not decode the
+     * pixels, "Auto" does it only if a requested key requires it
+     *
+     * @since 7.3
+     */
+    @Param(name = "mode", required = false, widget = Constants.W_OPTION, values = {
+            "Auto", "Header only", "Full" })
+    String mode = "Auto";
+
+    /**
+     * Max. duration of the call to the tool. -1 (default) uses the timeout of
+     * the tool (see the <code>tools</code> extension point), 0 means no
+     * timeout
+     *
+     * @since 7.3
+     */
+    @Param(name = "timeoutSeconds", required = false)
+    protected long timeoutSeconds = -1;
+
     @Param(name = "save", required = false, values = { "true" })
     protected boolean save = true;
 
@@ -97,8 +122,12 @@ public class ExtractBinaryMetadataInDocumentOp {
             return inDoc;
         }
 
+        // null: Auto
         TOOL toolToUse = null;
         switch (tool.toLowerCase()) {
+        case "auto":
+            break;
+
         case "graphicsmagick":
             toolToUse = TOOL.GRAPHICSMAGICK;
             break;
@@ -112,6 +141,20 @@ public class ExtractBinaryMetadataInDocumentOp {
             break;
         }
 
+        READ_MODE modeToUse = null;
+        switch (mode.toLowerCase()) {
+        case "header only":
+            modeToUse = READ_MODE.HEADER_ONLY;
+            break;
+
+        case "full":
+            modeToUse = READ_MODE.FULL;
+            break;
+
+        default:
+            modeToUse = READ_MODE.AUTO;
+            break;
+        }
 
         // Get the blob, do nothing if there is no blob
         Blob theBlob = MiscUtils.getDocumentBlob(inDoc, xpath);
@@ -119,76 +162,154 @@ public class ExtractBinaryMetadataInDocumentOp {
             return inDoc;
         }
 
+        // No tool can read it (a .csv for example): don't even run the tool
+        if (!MetadataPreFilter.accept(theBlob, toolToUse)) {
+            return inDoc;
+        }
+
         MetadataReader imdr = new MetadataReader(theBlob);
-        HashMap<String, String> result = null;
-        String xpathForAll = "";
-
-        // The names of the properties are stored as values in the map
-        String[] keysStr = null;
-        if (properties != null && properties.size() > 0) {
-            keysStr = new String[properties.size()];
-            int idx = 0;
-            for (String inXPath : properties.keySet()) {
-                keysStr[idx] = properties.get(inXPath);
-                if (keysStr[idx].toLowerCase().equals("all")) {
-                    xpathForAll = inXPath;
+        try {
+            if (timeoutSeconds >= 0) {
+                imdr.setTimeout(timeoutSeconds * 1000);
+            }
+            HashMap<String, String> result = null;
+            String xpathForAll = "";
+
+            // The names of the properties are stored as values in the map
+            String[] keysStr = null;
+            if (properties != null && properties.size() > 0) {
+                keysStr = new String[properties.size()];
+                int idx = 0;
+                for (String inXPath : properties.keySet()) {
+                    keysStr[idx] = properties.get(inXPath);
+                    if (keysStr[idx].toLowerCase().equals("all")) {
+                        xpathForAll = inXPath;
+                    }
+
+                    idx += 1;
                 }
+            }
 
-                idx += 1;
+            boolean ok = true;
+            try {
+                if (toolToUse == null) {
+                    result = readAuto(imdr, keysStr, modeToUse);
+                } else {
+                    result = imdr.readMetadata(keysStr, toolToUse, modeToUse);
+                }
+            } catch (ToolTimeoutException e) {
+                // The file probably is corrupted. The process was killed, don't
+                // fail the chain
+                log.warn("Timeout reading the metadata for document id "
+                        + inDoc.getId() + ": " + e.getMessage());
+                ok = false;
+            } catch (ClientException e) {
+                // Just ignore if the tool can't read the file (a .csv for
+                // example)
+                log.warn("Cannot read the metadata for document id "
+                        + inDoc.getId() + ": " + e.getMessage());
+                if (log.isDebugEnabled()) {
+                    log.debug("Metadata of document id " + inDoc.getId(), e);
+                }
+                ok = false;
+            } catch (Exception e) {
+                log.error(
+                        "Error reading the metadata for document id "
+                                + inDoc.getId(), e);
+                ok = false;
             }
-        }
 
-        boolean ok = true;
-        try {
-            result = imdr.readMetadata(keysStr, toolToUse);
-        } catch (Exception e) {
-            // Just ignore if the tool can't read the file (a .csv for
-            // example)
-            log.error(
-                    "Error reading the metadata for document id "
-                            + inDoc.getId(), e);
-            ok = false;
-        }
+            if (ok) {
+                for (String inXPath : properties.keySet()) {
+                    String value = result.get(properties.get(inXPath));
+
+                    String theType = utils_getBasePropertyType(inDoc.getProperty(inXPath));
+                    if (theType.equals("int") || theType.equals("long")) {
+                        if (value.isEmpty()) {
+                            value = "0";
+                        }
+                        long v = Math.round(Double.valueOf(value));
+                        value = "" + v;
+                    } else if (theType.equals("float")) {
+                        if (value.isEmpty()) {
+                            value = "0.0";
+                        }
+                        float v = Float.valueOf(value);
+                        value = "" + v;
+                    } else if (theType.equals("double")) {
+                        if (value.isEmpty()) {
+                            value = "0.0";
+                        }
+                        double v = Double.valueOf(value);
+                        value = "" + v;
+                    }
 
-        if (ok) {
-            for (String inXPath : properties.keySet()) {
-                String value = result.get(properties.get(inXPath));
+                    inDoc.setPropertyValue(inXPath, value);
+                }
 
-                String theType = utils_getBasePropertyType(inDoc.getProperty(inXPath));
-                if (theType.equals("int") || theType.equals("long")) {
-                    if (value.isEmpty()) {
-                        value = "0";
-                    }
-                    long v = Math.round(Double.valueOf(value));
-                    value = "" + v;
-                } else if (theType.equals("float")) {
-                    if (value.isEmpty()) {
-                        value = "0.0";
+                if (!xpathForAll.isEmpty()) {
+                    try {
+                        inDoc.setPropertyValue(xpathForAll,
+                                imdr.readAllMetadata(toolForAll(toolToUse)));
+                    } catch (ToolTimeoutException e) {
+                        log.warn("Timeout reading all the metadata for document id "
+                                + inDoc.getId() + ": " + e.getMessage());
                     }
-                    float v = Float.valueOf(value);
-                    value = "" + v;
-                } else if (theType.equals("double")) {
-                    if (value.isEmpty()) {
-                        value = "0.0";
-                    }
-                    double v = Double.valueOf(value);
-                    value = "" + v;
                 }
 
-                inDoc.setPropertyValue(inXPath, value);
+                // Save the document
+                if (save) {
+                    session.saveDocument(inDoc);
+                }
             }
+        } finally {
+            // Don't keep the scratch files until the end of the transaction
+            imdr.close();
+        }
 
-            if (!xpathForAll.isEmpty()) {
-                inDoc.setPropertyValue(xpathForAll, imdr.readAllMetadata());
-            }
+        return inDoc;
+    }
+
+    /*
+     * "all" is read with readAllMetadata(), it must not make the router run
+     * a tool
+     */
+    protected HashMap<String, String> readAuto(MetadataReader inReader,
+            String[] inKeys, READ_MODE inMode) {
 
-            // Save the document
-            if (save) {
-                session.saveDocument(inDoc);
+        if (inKeys == null) {
+            return inReader.readMetadataAuto(null, inMode);
+        }
+        ArrayList<String> keys = new ArrayList<String>();
+        for (String oneKey : inKeys) {
+            if (!oneKey.toLowerCase().equals("all")) {
+                keys.add(oneKey);
+            }
+        }
+        HashMap<String, String> result = new HashMap<String, String>();
+        if (!keys.isEmpty()) {
+            result = inReader.readMetadataAuto(
+                    keys.toArray(new String[keys.size()]), inMode);
+        }
+        for (String oneKey : inKeys) {
+            if (!result.containsKey(oneKey)) {
+                result.put(oneKey, "");
             }
         }
+        return result;
+    }
 
-        return inDoc;
+    /*
+     * ImageMagick, as before, unless the tool is Auto: ExifTool knows the
+     * most formats
+     */
+    protected TOOL toolForAll(TOOL inToolToUse) {
+
+        if (inToolToUse != null) {
+            return TOOL.IMAGEMAGICK;
+        }
+        return ExternalTools.ToolAvailability.isExifToolAvailable() ? TOOL.EXIFTOOL
+                : TOOL.IMAGEMAGICK;
     }
 
     protected String utils_getBasePropertyType(Property inProp) {
@@ -34,7 +34,7 @@ import org.nuxeo.ecm.core.api.Blob;
 /**
  *
  */
-@Operation(id = ExtractXMPFromBlobOp.ID, category = Constants.CAT_BLOB, label = "Blob: Extract XMP", description = "Use <code>exiftool</code> to extract the XMP datat from the blob. Return the raw XMP as text (empty if there is no XMP metadata) in the <code>varName</code> context variable.")
+@Operation(id = ExtractXMPFromBlobOp.ID, category = Constants.CAT_BLOB, label = "Blob: Extract XMP", description = "Extract the XMP data from the blob. Return the raw XMP as text (empty if there is no XMP metadata) in the <code>varName</code> context variable. The XMP of JPEG, TIFF, PNG and PDF files is read directly, <code>exiftool</code> is used for other formats, or always if <code>useExifTool</code> is checked.")
 public class ExtractXMPFromBlobOp {
 
     public static final String ID = "Blob.ExtractXMP";
@@ -47,6 +47,12 @@ public class ExtractXMPFromBlobOp {
     @Param(name = "varName", required = true)
     protected String varName;
 
+    /**
+     * @since 7.3
+     */
+    @Param(name = "useExifTool", required = false)
+    protected boolean useExifTool = false;
+
     @OperationMethod(collector = BlobCollector.class)
     public Blob run(Blob inBlob) throws IOException {
 
@@ -54,9 +60,11 @@ public class ExtractXMPFromBlobOp {
 
         MetadataReader mdr = new MetadataReader(inBlob);
         try {
-            xmp = mdr.readXMP();
+            xmp = useExifTool ? mdr.readXMPWithExifTool() : mdr.readXMP();
         } catch (Exception e) {
             log.error("Error reading the metadata for blob hash <" + inBlob.getDigest() + "> (can be empty)");
+        } finally {
+            mdr.close();
         }
 
         ctx.put(varName, xmp);
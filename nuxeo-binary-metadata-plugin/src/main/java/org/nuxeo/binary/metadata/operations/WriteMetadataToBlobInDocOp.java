@@ -74,8 +74,7 @@ public class WriteMetadataToBlobInDocOp {
             return inDoc;
         }
 
-        try {
-            MetadataWriter mw = new MetadataWriter(theBlob);
+        try (MetadataWriter mw = new MetadataWriter(theBlob)) {
             theBlob = mw.writeMetadata(properties, false);
             inDoc.setPropertyValue(xpath, (Serializable) theBlob);
             if (save) {
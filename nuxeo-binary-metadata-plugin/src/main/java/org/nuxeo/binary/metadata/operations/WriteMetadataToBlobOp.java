@@ -53,8 +53,7 @@ public class WriteMetadataToBlobOp {
 
         Blob result = inBlob;
 
-        try {
-            MetadataWriter mw = new MetadataWriter(inBlob);
+        try (MetadataWriter mw = new MetadataWriter(inBlob)) {
             result = mw.writeMetadata(properties, workOnACopy);
         } catch (Exception e) {
             throw new ClientException(e);
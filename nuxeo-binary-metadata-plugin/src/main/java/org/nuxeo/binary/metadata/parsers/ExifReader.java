@@ -0,0 +1,518 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.parsers;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.nuxeo.binary.metadata.exiftool.ExifToolJsonParser.RawNumber;
+
+/**
+ * Reads a subset of the EXIF tags of JPEG and TIFF files in Java, and returns
+ * them as ExifTool does (same tag names, same formatting as the JSON output
+ * of <code>exiftool -j</code>), without running ExifTool.
+ * <p>
+ * The tags are read directly from the file mapped in memory: Only the
+ * directory entries and the values of the requested tags are read. The
+ * supported tags are in {@link #TAGS}. They were chosen because ExifTool
+ * returns the EXIF value even when the same tag exists in another group (XMP
+ * and maker notes have a lower priority).
+ * <p>
+ * {@link #read(String, String[])} returns null as soon as it cannot answer
+ * exactly as ExifTool would: A key not supported, a tag not found in the EXIF
+ * (ExifTool may find it somewhere else), an unexpected format, ... The caller
+ * must then use ExifTool.
+ *
+ * @since 7.3
+ */
+public class ExifReader {
+
+    protected static final byte[] JPEG_EXIF = ParserUtils.ascii("Exif\0\0");
+
+    protected static final int IFD0 = 0;
+
+    protected static final int EXIF_IFD = 0x8769;
+
+    protected static final int GPS_IFD = 0x8825;
+
+    protected static final String EXIF_GROUP = "exif:";
+
+    // What ExifTool outputs as a JSON number
+    protected static final Pattern JSON_NUMBER = Pattern.compile("^-?(\\d|[1-9]\\d{1,14})(\\.\\d{1,16})?(e[-+]?\\d{1,3})?$",
+            Pattern.CASE_INSENSITIVE);
+
+    protected static final Pattern EXIF_DATE = Pattern.compile("^\\d{4}:\\d{2}:\\d{2} \\d{2}:\\d{2}:\\d{2}$");
+
+    protected enum CONV {
+        STRING, TRIMMED_STRING, DATE, INTEGER, ORIENTATION, EXPOSURE_TIME, F_NUMBER, FOCAL_LENGTH, GPS_VERSION, GPS_REF, GPS_ALTITUDE_REF
+    }
+
+    protected static class Tag {
+
+        protected final String name;
+
+        protected final int ifd;
+
+        protected final int id;
+
+        protected final CONV conv;
+
+        protected Tag(String inName, int inIfd, int inId, CONV inConv) {
+            name = inName;
+            ifd = inIfd;
+            id = inId;
+            conv = inConv;
+        }
+    }
+
+    /**
+     * The supported tags, by lower case name
+     */
+    protected static final Map<String, Tag> TAGS;
+
+    protected static final String[] ORIENTATIONS = { "Horizontal (normal)",
+            "Mirror horizontal", "Rotate 180", "Mirror vertical",
+            "Mirror horizontal and rotate 270 CW", "Rotate 90 CW",
+            "Mirror horizontal and rotate 90 CW", "Rotate 270 CW" };
+
+    protected static final Map<String, String> GPS_REFS;
+
+    static {
+        HashMap<String, Tag> tags = new HashMap<String, Tag>();
+        for (Tag tag : new Tag[] {
+                new Tag("Make", IFD0, 0x010F, CONV.TRIMMED_STRING),
+                new Tag("Model", IFD0, 0x0110, CONV.TRIMMED_STRING),
+                new Tag("ImageDescription", IFD0, 0x010E, CONV.STRING),
+                new Tag("Orientation", IFD0, 0x0112, CONV.ORIENTATION),
+                new Tag("Software", IFD0, 0x0131, CONV.STRING),
+                new Tag("Artist", IFD0, 0x013B, CONV.STRING),
+                new Tag("Copyright", IFD0, 0x8298, CONV.STRING),
+                new Tag("ExposureTime", EXIF_IFD, 0x829A, CONV.EXPOSURE_TIME),
+                new Tag("FNumber", EXIF_IFD, 0x829D, CONV.F_NUMBER),
+                new Tag("ISO", EXIF_IFD, 0x8827, CONV.INTEGER),
+                new Tag("DateTimeOriginal", EXIF_IFD, 0x9003, CONV.DATE),
+                new Tag("FocalLength", EXIF_IFD, 0x920A, CONV.FOCAL_LENGTH),
+                new Tag("ExifImageWidth", EXIF_IFD, 0xA002, CONV.INTEGER),
+                new Tag("ExifImageHeight", EXIF_IFD, 0xA003, CONV.INTEGER),
+                new Tag("GPSVersionID", GPS_IFD, 0x0000, CONV.GPS_VERSION),
+                new Tag("GPSLatitudeRef", GPS_IFD, 0x0001, CONV.GPS_REF),
+                new Tag("GPSLongitudeRef", GPS_IFD, 0x0003, CONV.GPS_REF),
+                new Tag("GPSAltitudeRef", GPS_IFD, 0x0005,
+                        CONV.GPS_ALTITUDE_REF),
+                new Tag("GPSMapDatum", GPS_IFD, 0x0012, CONV.STRING),
+                new Tag("GPSDateStamp", GPS_IFD, 0x001D, CONV.STRING) }) {
+            tags.put(tag.name.toLowerCase(Locale.ENGLISH), tag);
+        }
+        TAGS = Collections.unmodifiableMap(tags);
+
+        HashMap<String, String> refs = new HashMap<String, String>();
+        refs.put("N", "North");
+        refs.put("S", "South");
+        refs.put("E", "East");
+        refs.put("W", "West");
+        GPS_REFS = Collections.unmodifiableMap(refs);
+    }
+
+    /**
+     * @param inTheseKeys
+     * @return true if all the keys are supported (the file may still not have
+     *         them)
+     *
+     * @since 7.3
+     */
+    public static boolean canRead(String[] inTheseKeys) {
+
+        if (inTheseKeys == null || inTheseKeys.length == 0) {
+            return false;
+        }
+        boolean hasKey = false;
+        for (String oneProp : inTheseKeys) {
+            if (oneProp == null || oneProp.isEmpty()) {
+                continue;
+            }
+            if (getTag(oneProp) == null) {
+                return false;
+            }
+            hasKey = true;
+        }
+        return hasKey;
+    }
+
+    protected static Tag getTag(String inKey) {
+
+        String key = inKey.toLowerCase(Locale.ENGLISH);
+        if (key.startsWith(EXIF_GROUP)) {
+            key = key.substring(EXIF_GROUP.length());
+        }
+        return TAGS.get(key);
+    }
+
+    /**
+     * @param inPath
+     * @param inTheseKeys
+     * @return the values by ExifTool tag name (String or
+     *         {@link RawNumber}), or null if ExifTool must be used
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, Object> read(String inPath,
+            String[] inTheseKeys) {
+
+        if (!canRead(inTheseKeys)) {
+            return null;
+        }
+        try {
+            return read(ParserUtils.map(inPath), inTheseKeys);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param inData the whole file
+     * @param inTheseKeys
+     * @return the values by ExifTool tag name (String or
+     *         {@link RawNumber}), or null if ExifTool must be used
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, Object> read(ByteBuffer inData,
+            String[] inTheseKeys) {
+
+        if (!canRead(inTheseKeys)) {
+            return null;
+        }
+        try {
+            ByteBuffer tiff = findTiff(inData);
+            if (tiff == null) {
+                return null;
+            }
+            tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN
+                    : ByteOrder.BIG_ENDIAN);
+
+            int ifd0 = tiff.getInt(4);
+            HashMap<String, Object> result = new HashMap<String, Object>();
+            for (String oneProp : inTheseKeys) {
+                if (oneProp == null || oneProp.isEmpty()) {
+                    continue;
+                }
+                Tag tag = getTag(oneProp);
+                int ifd = ifd0;
+                if (tag.ifd != IFD0) {
+                    int pointer = findEntry(tiff, ifd0, tag.ifd);
+                    if (pointer < 0) {
+                        return null;
+                    }
+                    ifd = (int) getInteger(tiff, pointer);
+                }
+                int entry = findEntry(tiff, ifd, tag.id);
+                if (entry < 0) {
+                    return null;
+                }
+                String value = convert(tiff, entry, tag.conv);
+                if (value == null) {
+                    return null;
+                }
+                result.put(tag.name, toJsonValue(value));
+            }
+            return result;
+
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /*
+     * The TIFF structure holding the EXIF, as a view on inData (not a copy)
+     */
+    protected static ByteBuffer findTiff(ByteBuffer inData) {
+
+        ByteBuffer data = inData.duplicate();
+        data.position(0);
+        String format = ImageHeaderParser.detectFormat(data);
+        if (ImageHeaderParser.TIFF.equals(format)) {
+            return data.slice();
+        }
+        if (!ImageHeaderParser.JPEG.equals(format)) {
+            return null;
+        }
+
+        data.order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer tiff = null;
+        int pos = 2;
+        while (pos + 4 <= data.limit()) {
+            if ((data.get(pos) & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = data.get(pos + 1) & 0xFF;
+            if (marker == 0xFF) {
+                pos += 1;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                break;
+            }
+            int length = data.getShort(pos + 2) & 0xFFFF;
+            int segment = pos + 4;
+            if (marker == 0xE1
+                    && ParserUtils.startsWith(data, segment, JPEG_EXIF)) {
+                if (tiff != null) {
+                    // Several EXIF segments, let ExifTool decide
+                    return null;
+                }
+                data.position(segment + JPEG_EXIF.length);
+                data.limit(segment + length - 2);
+                tiff = data.slice();
+                data.limit(data.capacity());
+            }
+            pos = segment + length - 2;
+        }
+        return tiff;
+    }
+
+    /*
+     * Position of the entry, -1 if not found
+     */
+    protected static int findEntry(ByteBuffer inTiff, int inIfd, int inTag) {
+
+        int count = inTiff.getShort(inIfd) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = inIfd + 2 + 12 * i;
+            if ((inTiff.getShort(entry) & 0xFFFF) == inTag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    protected static int getType(ByteBuffer inTiff, int inEntry) {
+        return inTiff.getShort(inEntry + 2) & 0xFFFF;
+    }
+
+    protected static int getCount(ByteBuffer inTiff, int inEntry) {
+        return inTiff.getInt(inEntry + 4);
+    }
+
+    /*
+     * Position of the value: in the entry if it fits in 4 bytes, at the
+     * offset given by the entry otherwise
+     */
+    protected static int getValuePosition(ByteBuffer inTiff, int inEntry,
+            int inSize) {
+        return inSize <= 4 ? inEntry + 8 : inTiff.getInt(inEntry + 8);
+    }
+
+    /*
+     * BYTE, SHORT or LONG, count 1. -1 if another type
+     */
+    protected static long getInteger(ByteBuffer inTiff, int inEntry) {
+
+        if (getCount(inTiff, inEntry) != 1) {
+            return -1;
+        }
+        switch (getType(inTiff, inEntry)) {
+        case 1:
+            return inTiff.get(inEntry + 8) & 0xFF;
+        case 3:
+            return inTiff.getShort(inEntry + 8) & 0xFFFF;
+        case 4:
+            return inTiff.getInt(inEntry + 8) & 0xFFFFFFFFL;
+        default:
+            return -1;
+        }
+    }
+
+    /*
+     * RATIONAL, count 1. null if another type or a denominator of 0
+     */
+    protected static Double getRational(ByteBuffer inTiff, int inEntry) {
+
+        if (getType(inTiff, inEntry) != 5 || getCount(inTiff, inEntry) != 1) {
+            return null;
+        }
+        int pos = getValuePosition(inTiff, inEntry, 8);
+        long numerator = inTiff.getInt(pos) & 0xFFFFFFFFL;
+        long denominator = inTiff.getInt(pos + 4) & 0xFFFFFFFFL;
+        if (denominator == 0) {
+            return null;
+        }
+        return (double) numerator / denominator;
+    }
+
+    /*
+     * ASCII, up to the first null. null if the value is not plain ASCII or
+     * has several parts
+     */
+    protected static String getString(ByteBuffer inTiff, int inEntry) {
+
+        if (getType(inTiff, inEntry) != 2) {
+            return null;
+        }
+        int count = getCount(inTiff, inEntry);
+        int pos = getValuePosition(inTiff, inEntry, count);
+        int end = pos;
+        while (end < pos + count && inTiff.get(end) != 0) {
+            if ((inTiff.get(end) & 0x80) != 0) {
+                return null;
+            }
+            end += 1;
+        }
+        for (int i = end; i < pos + count; i++) {
+            if (inTiff.get(i) != 0) {
+                return null;
+            }
+        }
+        return new String(ParserUtils.getBytes(inTiff, pos, end),
+                StandardCharsets.US_ASCII);
+    }
+
+    /*
+     * The value as ExifTool prints it, null if not sure
+     */
+    protected static String convert(ByteBuffer inTiff, int inEntry,
+            CONV inConv) {
+
+        switch (inConv) {
+        case STRING:
+            return getString(inTiff, inEntry);
+
+        case TRIMMED_STRING: {
+            // ExifTool removes the trailing blanks of Make and Model
+            String value = getString(inTiff, inEntry);
+            return value == null ? null : value.replaceAll("\\s+$", "");
+        }
+
+        case DATE: {
+            String value = getString(inTiff, inEntry);
+            // ExifTool fixes some bad formats, let it do it
+            return value != null && EXIF_DATE.matcher(value).matches() ? value
+                    : null;
+        }
+
+        case INTEGER: {
+            long value = getInteger(inTiff, inEntry);
+            return value < 0 ? null : String.valueOf(value);
+        }
+
+        case ORIENTATION: {
+            long value = getInteger(inTiff, inEntry);
+            return value >= 1 && value <= ORIENTATIONS.length ? ORIENTATIONS[(int) value - 1]
+                    : null;
+        }
+
+        case EXPOSURE_TIME: {
+            Double value = getRational(inTiff, inEntry);
+            if (value == null) {
+                return null;
+            }
+            if (value > 0 && value < 0.25001) {
+                return "1/" + (long) (0.5 + 1 / value);
+            }
+            String text = format(value, 1);
+            return text.endsWith(".0") ? text.substring(0, text.length() - 2)
+                    : text;
+        }
+
+        case F_NUMBER: {
+            Double value = getRational(inTiff, inEntry);
+            if (value == null) {
+                return null;
+            }
+            if (value <= 0) {
+                return formatRational(value);
+            }
+            return format(value, value < 1 ? 2 : 1);
+        }
+
+        case FOCAL_LENGTH: {
+            Double value = getRational(inTiff, inEntry);
+            return value == null ? null : format(value, 1) + " mm";
+        }
+
+        case GPS_VERSION: {
+            if (getType(inTiff, inEntry) != 1 || getCount(inTiff, inEntry) != 4) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 4; i++) {
+                if (i > 0) {
+                    sb.append('.');
+                }
+                sb.append(inTiff.get(inEntry + 8 + i) & 0xFF);
+            }
+            return sb.toString();
+        }
+
+        case GPS_REF: {
+            String value = getString(inTiff, inEntry);
+            return value == null ? null : GPS_REFS.get(value);
+        }
+
+        case GPS_ALTITUDE_REF: {
+            long value = getInteger(inTiff, inEntry);
+            return value == 0 ? "Above Sea Level"
+                    : value == 1 ? "Below Sea Level" : null;
+        }
+
+        default:
+            return null;
+        }
+    }
+
+    /*
+     * Same as the C/Perl "%.nf": rounding of the exact binary value, half even
+     */
+    protected static String format(double inValue, int inDecimals) {
+        return new BigDecimal(inValue).setScale(inDecimals,
+                RoundingMode.HALF_EVEN).toPlainString();
+    }
+
+    /*
+     * ExifTool prints a rational with 10 significant digits
+     */
+    protected static String formatRational(double inValue) {
+
+        if (inValue == 0) {
+            return "0";
+        }
+        return new BigDecimal(inValue).round(new MathContext(10))
+                .stripTrailingZeros().toPlainString();
+    }
+
+    /*
+     * ExifTool outputs the values looking like numbers as JSON numbers
+     */
+    protected static Object toJsonValue(String inValue) {
+
+        if (JSON_NUMBER.matcher(inValue).matches()) {
+            return new RawNumber(inValue);
+        }
+        return inValue;
+    }
+}
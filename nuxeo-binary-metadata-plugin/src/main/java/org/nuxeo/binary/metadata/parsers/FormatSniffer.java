@@ -0,0 +1,354 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.parsers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipFile;
+
+/**
+ * Detects the format of a file from its first bytes ("magic bytes"), so a
+ * read can be routed to the right backend even when the mime type of the blob
+ * is missing or wrong.
+ * <p>
+ * Only the formats that change the routing are detected: the images read by
+ * {@link ImageHeaderParser}, PDF, the Office Open XML documents and the
+ * ISO-BMFF videos. Plain text ({@link #TEXT_MIME_TYPE}) and ZIP archives (
+ * {@link #ZIP_MIME_TYPE}) are detected too, since ImageMagick cannot read
+ * them. Any other format returns null, the tools then decide.
+ *
+ * @since 7.3
+ */
+public class FormatSniffer {
+
+    /**
+     * Any text, without the signature of a text format read by ImageMagick
+     * (PNM, XPM, SVG, PostScript, ...): CSV, JSON, logs, ...
+     */
+    public static final String TEXT_MIME_TYPE = "text/plain";
+
+    /**
+     * Any ZIP archive (not detected as an OOXML document)
+     */
+    public static final String ZIP_MIME_TYPE = "application/zip";
+
+    /**
+     * Bytes read to detect the format. A PDF may have garbage before its
+     * header.
+     */
+    public static final int HEAD_SIZE = 1024;
+
+    protected static final byte[] PDF_HEADER = ParserUtils.ascii("%PDF-");
+
+    protected static final byte[] ZIP_HEADER = { 'P', 'K', 3, 4 };
+
+    // Empty archive
+    protected static final byte[] EMPTY_ZIP_HEADER = { 'P', 'K', 5, 6 };
+
+    // Text formats of images: XPM, XBM, SVG and other XML, PostScript,
+    // ImageMagick's MIFF and pixel enumeration, FITS, VICAR. PNM ("P1" to
+    // "P7") is checked apart
+    protected static final String[] TEXT_IMAGE_SIGNATURES = { "/* XPM */",
+            "! XPM2", "#define", "<", "%!", "id=ImageMagick",
+            "# ImageMagick", "SIMPLE  =", "LBLSIZE=" };
+
+    // Main part of each OOXML document, same order as
+    // OoxmlMetadataReader.MIME_TYPES
+    protected static final String[] OOXML_PARTS = { "word/document.xml",
+            "ppt/presentation.xml", "xl/workbook.xml" };
+
+    /**
+     * @param inPath
+     * @return the mime type, null if the format is not detected or the file
+     *         cannot be read
+     *
+     * @since 7.3
+     */
+    public static String sniff(String inPath) {
+
+        ByteBuffer head;
+        try {
+            head = readHead(inPath, HEAD_SIZE);
+        } catch (IOException e) {
+            return null;
+        }
+        String mimeType = sniff(head);
+        if (ZIP_MIME_TYPE.equals(mimeType)) {
+            String ooxml = sniffZip(inPath);
+            if (ooxml != null) {
+                return ooxml;
+            }
+        }
+        return mimeType;
+    }
+
+    /**
+     * @param inHead the first bytes of the file
+     * @return the mime type, {@link #ZIP_MIME_TYPE} for any ZIP file, null if
+     *         the format is not detected
+     *
+     * @since 7.3
+     */
+    public static String sniff(ByteBuffer inHead) {
+
+        switch (ImageHeaderParser.detectFormat(inHead)) {
+        case ImageHeaderParser.JPEG:
+            return "image/jpeg";
+        case ImageHeaderParser.PNG:
+            return "image/png";
+        case ImageHeaderParser.GIF:
+            return "image/gif";
+        case ImageHeaderParser.TIFF:
+            return "image/tiff";
+        default:
+            break;
+        }
+        if (ParserUtils.indexOf(inHead, PDF_HEADER, 0) >= 0) {
+            return PdfMetadataReader.MIME_TYPE;
+        }
+        if (ParserUtils.startsWith(inHead, 0, ZIP_HEADER)
+                || ParserUtils.startsWith(inHead, 0, EMPTY_ZIP_HEADER)) {
+            return ZIP_MIME_TYPE;
+        }
+        String mimeType = sniffIsoBmff(inHead);
+        if (mimeType == null && isText(inHead)) {
+            mimeType = TEXT_MIME_TYPE;
+        }
+        return mimeType;
+    }
+
+    /**
+     * @param inStream read up to {@link #HEAD_SIZE} bytes, not closed
+     * @return the mime type, {@link #ZIP_MIME_TYPE} for any ZIP file, null if
+     *         the format is not detected
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public static String sniff(InputStream inStream) throws IOException {
+        return sniff(readHead(inStream));
+    }
+
+    /**
+     * @param inStream not closed
+     * @return the first {@link #HEAD_SIZE} bytes (less if the stream is
+     *         shorter)
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public static ByteBuffer readHead(InputStream inStream) throws IOException {
+
+        byte[] bytes = new byte[HEAD_SIZE];
+        int length = 0;
+        int count;
+        while (length < bytes.length
+                && (count = inStream.read(bytes, length, bytes.length - length)) > 0) {
+            length += count;
+        }
+        return ByteBuffer.wrap(bytes, 0, length).slice();
+    }
+
+    /**
+     * A format is streamable when its metadata can be read from the start of
+     * the file, without seeking: JPEG, PNG, GIF, and the ISO-BMFF videos whose
+     * "moov" box comes before the "mdat" box ("fast start"). TIFF (IFDs
+     * anywhere), PDF (trailer at the end), ZIP (central directory at the end)
+     * and the unknown formats are not.
+     *
+     * @param inHead the first bytes of the file
+     * @return true if the tools can read the metadata from a stream (stdin)
+     *
+     * @since 7.3
+     */
+    public static boolean isStreamable(ByteBuffer inHead) {
+
+        switch (ImageHeaderParser.detectFormat(inHead)) {
+        case ImageHeaderParser.JPEG:
+        case ImageHeaderParser.PNG:
+        case ImageHeaderParser.GIF:
+            return true;
+        case ImageHeaderParser.TIFF:
+            return false;
+        default:
+            break;
+        }
+        if (sniffIsoBmff(inHead) == null) {
+            return false;
+        }
+
+        // Top level boxes, until "moov" or "mdat" (or the end of the head)
+        ByteBuffer data = inHead.duplicate().order(ByteOrder.BIG_ENDIAN);
+        long pos = 0;
+        while (pos + 8 <= data.limit()) {
+            int start = (int) pos;
+            long size = data.getInt(start) & 0xFFFFFFFFL;
+            String type = fourCC(data, start + 4);
+            if ("moov".equals(type)) {
+                return true;
+            }
+            if ("mdat".equals(type)) {
+                return false;
+            }
+            if (size == 1) {
+                if (start + 16 > data.limit()) {
+                    return false;
+                }
+                size = data.getLong(start + 8);
+            }
+            if (size < 8) {
+                return false;
+            }
+            pos += size;
+        }
+        return false;
+    }
+
+    /**
+     * @param inMimeType
+     * @return true if inMimeType is one of the families detected by this
+     *         class ({@link #TEXT_MIME_TYPE}, {@link #ZIP_MIME_TYPE}), which
+     *         a more precise mime type (text/csv, ODF, ...) should not be
+     *         replaced with
+     *
+     * @since 7.3
+     */
+    public static boolean isGeneric(String inMimeType) {
+        return TEXT_MIME_TYPE.equals(inMimeType)
+                || ZIP_MIME_TYPE.equals(inMimeType);
+    }
+
+    /*
+     * UTF-8 (ASCII included) without control characters, and no signature of
+     * a text image format. The last character may be cut by the end of the
+     * head.
+     */
+    protected static boolean isText(ByteBuffer inHead) {
+
+        if (inHead.limit() == 0) {
+            return false;
+        }
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(
+                CodingErrorAction.REPORT).onUnmappableCharacter(
+                CodingErrorAction.REPORT);
+        ByteBuffer in = inHead.duplicate();
+        in.position(0);
+        CharBuffer out = CharBuffer.allocate(inHead.limit());
+        CoderResult result = decoder.decode(in, out, false);
+        if (result.isError() || in.remaining() > 3) {
+            return false;
+        }
+        out.flip();
+        String text = out.toString();
+        if (text.startsWith("\uFEFF")) {
+            text = text.substring(1);
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' && c != '\f') {
+                return false;
+            }
+        }
+        String start = text.trim();
+        if (start.length() > 2 && start.charAt(0) == 'P'
+                && "1234567Ff".indexOf(start.charAt(1)) >= 0
+                && Character.isWhitespace(start.charAt(2))) {
+            return false;
+        }
+        for (String signature : TEXT_IMAGE_SIGNATURES) {
+            if (start.startsWith(signature)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * "ftyp" box with its major brand, or a QuickTime file without "ftyp"
+     */
+    protected static String sniffIsoBmff(ByteBuffer inHead) {
+
+        if (inHead.limit() < 12) {
+            return null;
+        }
+        String type = fourCC(inHead, 4);
+        if (!IsoBmffReader.FIRST_BOXES.contains(type)) {
+            return null;
+        }
+        if (!"ftyp".equals(type)) {
+            return "video/quicktime";
+        }
+        String brand = fourCC(inHead, 8);
+        if ("qt  ".equals(brand)) {
+            return "video/quicktime";
+        }
+        if (brand.startsWith("M4V")) {
+            return "video/x-m4v";
+        }
+        if (brand.startsWith("M4A") || brand.startsWith("M4B")) {
+            return "audio/mp4";
+        }
+        if (brand.startsWith("3g")) {
+            return "video/3gpp";
+        }
+        return "video/mp4";
+    }
+
+    protected static String fourCC(ByteBuffer inData, int inPos) {
+
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) (inData.get(inPos + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /*
+     * Only the central directory is read
+     */
+    protected static String sniffZip(String inPath) {
+
+        try (ZipFile zip = new ZipFile(inPath)) {
+            for (int i = 0; i < OOXML_PARTS.length; i++) {
+                if (zip.getEntry(OOXML_PARTS[i]) != null) {
+                    return OoxmlMetadataReader.MIME_TYPES[i];
+                }
+            }
+        } catch (IOException e) {
+            // Not a valid ZIP
+        }
+        return null;
+    }
+
+    protected static ByteBuffer readHead(String inPath, int inSize)
+            throws IOException {
+
+        try (RandomAccessFile file = new RandomAccessFile(inPath, "r")) {
+            byte[] bytes = new byte[(int) Math.min(inSize, file.length())];
+            file.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.parsers;
+
+import java.util.HashMap;
+
+import org.nuxeo.binary.metadata.BinaryMetadataConstants.KEYS;
+import org.nuxeo.binary.metadata.BinaryMetadataConstants.RESOLUTION_UNITS;
+import org.nuxeo.binary.metadata.im4java.IdentifyFormatReader;
+
+/**
+ * The values read by {@link ImageHeaderParser} in the header of an image.
+ * <p>
+ * A value the parser could not read, or for which it is not sure it would
+ * return what ImageMagick returns, is null (or -1 for the resolution).
+ *
+ * @since 7.3
+ */
+public class ImageHeader {
+
+    /** "JPEG", "PNG", "GIF" or "TIFF", as ImageMagick %m */
+    protected String format;
+
+    protected int width = -1;
+
+    protected int height = -1;
+
+    /** As ImageMagick names it: "sRGB", "Gray", "CMYK", ... */
+    protected String colorspace;
+
+    /** 0 if the image has no resolution, -1 if unknown */
+    protected double resolutionX = -1;
+
+    protected double resolutionY = -1;
+
+    /** One of {@link RESOLUTION_UNITS}, null if unknown */
+    protected String units;
+
+    protected ImageHeader(String inFormat) {
+        format = inFormat;
+    }
+
+    /**
+     * @param inTheseKeys
+     * @param inUseGM
+     * @return the values of the keys, as the im4java <code>Info</code> class
+     *         returns them, or null if one of them is not known
+     *
+     * @since 7.3
+     */
+    public HashMap<String, String> toInfoValues(String[] inTheseKeys,
+            boolean inUseGM) {
+
+        HashMap<String, String> result = new HashMap<String, String>();
+        for (String oneProp : inTheseKeys) {
+            String value = getInfoValue(oneProp, inUseGM);
+            if (value == null) {
+                return null;
+            }
+            result.put(oneProp, value);
+        }
+        return result;
+    }
+
+    /*
+     * null if unknown. GraphicsMagick does not display the colorspace and the
+     * resolution as ImageMagick does, only the size is handled.
+     */
+    protected String getInfoValue(String inKey, boolean inUseGM) {
+
+        if (inKey == null || inKey.isEmpty()) {
+            return "";
+        }
+
+        if (KEYS.WIDTH.equals(inKey)) {
+            return width < 0 ? null : String.valueOf(width);
+        }
+        if (KEYS.HEIGHT.equals(inKey)) {
+            return height < 0 ? null : String.valueOf(height);
+        }
+        if (inUseGM) {
+            return null;
+        }
+
+        switch (inKey) {
+        case KEYS.COLORSPACE:
+            return colorspace;
+
+        case KEYS.UNITS:
+            return units;
+
+        case KEYS.RESOLUTION:
+            if (resolutionX < 0 || resolutionY < 0) {
+                return null;
+            }
+            if (resolutionX == 0 && resolutionY == 0) {
+                return "";
+            }
+            return IdentifyFormatReader.formatNumber(resolutionX) + "x"
+                    + IdentifyFormatReader.formatNumber(resolutionY);
+
+        default:
+            return null;
+        }
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getColorspace() {
+        return colorspace;
+    }
+
+    public double getResolutionX() {
+        return resolutionX;
+    }
+
+    public double getResolutionY() {
+        return resolutionY;
+    }
+
+    public String getUnits() {
+        return units;
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.parsers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+
+import org.nuxeo.binary.metadata.BinaryMetadataConstants.KEYS;
+import org.nuxeo.binary.metadata.BinaryMetadataConstants.RESOLUTION_UNITS;
+
+/**
+ * Reads the size, colorspace and resolution of JPEG, PNG, GIF and TIFF images
+ * from their header, in Java, without running ImageMagick.
+ * <p>
+ * The values are the ones ImageMagick returns (see
+ * {@link ImageHeader#toInfoValues(String[], boolean)}):
+ * <ul>
+ * <li>JPEG: SOFn segment and JFIF APP0 segment</li>
+ * <li>PNG: IHDR, pHYs (pixels per meter are returned in
+ * PixelsPerCentimeter), gAMA and PLTE chunks</li>
+ * <li>GIF: image descriptor and color table of the last frame. GIF has no
+ * resolution ("Undefined" units)</li>
+ * <li>TIFF: last IFD (ImageMagick returns the values of the last frame)</li>
+ * </ul>
+ * When the parser is not sure to return the same value as ImageMagick (a
+ * palette of grays for example, that ImageMagick may report as "Gray"), the
+ * value is left unknown, and the caller must use the external tool.
+ *
+ * @since 7.3
+ */
+public class ImageHeaderParser {
+
+    public static final String JPEG = "JPEG";
+
+    public static final String PNG = "PNG";
+
+    public static final String GIF = "GIF";
+
+    public static final String TIFF = "TIFF";
+
+    protected static final String[] IM_KEYS = { KEYS.WIDTH, KEYS.HEIGHT,
+            KEYS.COLORSPACE, KEYS.RESOLUTION, KEYS.UNITS };
+
+    protected static final String[] GM_KEYS = { KEYS.WIDTH, KEYS.HEIGHT };
+
+    protected static final int MAX_IFDS = 1000;
+
+    /**
+     * @param inTheseKeys
+     * @param inUseGM
+     * @return true if all the keys may be read from the header (this still
+     *         depends on the file, see
+     *         {@link ImageHeader#toInfoValues(String[], boolean)})
+     *
+     * @since 7.3
+     */
+    public static boolean canRead(String[] inTheseKeys, boolean inUseGM) {
+
+        if (inTheseKeys == null || inTheseKeys.length == 0) {
+            return false;
+        }
+
+        String[] handled = inUseGM ? GM_KEYS : IM_KEYS;
+        for (String oneProp : inTheseKeys) {
+            if (oneProp == null || oneProp.isEmpty()) {
+                continue;
+            }
+            boolean found = false;
+            for (String key : handled) {
+                if (key.equals(oneProp)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The file is mapped in memory, only the pages of the header are actually
+     * read.
+     *
+     * @param inPath
+     * @return the header, or null if the format is not handled or the file
+     *         is truncated or corrupted
+     *
+     * @since 7.3
+     */
+    public static ImageHeader read(String inPath) {
+
+        try {
+            return parse(ParserUtils.map(inPath));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param inFile
+     * @return the header, or null if the format is not handled or the file
+     *         is truncated or corrupted
+     *
+     * @since 7.3
+     */
+    public static ImageHeader read(File inFile) {
+        return read(inFile.getAbsolutePath());
+    }
+
+    /**
+     * @param inData the content of the file, at least up to the end of the
+     *            header
+     * @return the header, or null if the format is not handled or the data is
+     *         truncated or corrupted
+     *
+     * @since 7.3
+     */
+    public static ImageHeader parse(ByteBuffer inData) {
+
+        ByteBuffer data = inData.duplicate();
+        data.position(0);
+        try {
+            switch (detectFormat(data)) {
+            case JPEG:
+                return parseJPEG(data);
+            case PNG:
+                return parsePNG(data);
+            case GIF:
+                return parseGIF(data);
+            case TIFF:
+                return parseTIFF(data);
+            default:
+                return null;
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param inData
+     * @return the format (see the constants of this class), "" if not handled
+     *
+     * @since 7.3
+     */
+    public static String detectFormat(ByteBuffer inData) {
+
+        if (inData.limit() < 8) {
+            return "";
+        }
+        int b0 = inData.get(0) & 0xFF;
+        int b1 = inData.get(1) & 0xFF;
+        if (b0 == 0xFF && b1 == 0xD8) {
+            return JPEG;
+        }
+        if (b0 == 0x89 && b1 == 'P' && inData.get(2) == 'N'
+                && inData.get(3) == 'G') {
+            return PNG;
+        }
+        if (b0 == 'G' && b1 == 'I' && inData.get(2) == 'F') {
+            return GIF;
+        }
+        if ((b0 == 'I' && b1 == 'I' && inData.get(2) == 42 && inData.get(3) == 0)
+                || (b0 == 'M' && b1 == 'M' && inData.get(2) == 0 && inData.get(3) == 42)) {
+            return TIFF;
+        }
+        return "";
+    }
+
+    protected static ImageHeader parseJPEG(ByteBuffer inData) {
+
+        ImageHeader header = new ImageHeader(JPEG);
+        inData.order(ByteOrder.BIG_ENDIAN);
+
+        int pos = 2;
+        while (pos + 4 <= inData.limit()) {
+            if ((inData.get(pos) & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = inData.get(pos + 1) & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                pos += 1;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // End of image or start of scan: no frame header found
+                break;
+            }
+            int length = inData.getShort(pos + 2) & 0xFFFF;
+            int segment = pos + 4;
+
+            if (marker == 0xE0 && length >= 16 && isJFIF(inData, segment)) {
+                int unit = inData.get(segment + 7);
+                int x = inData.getShort(segment + 8) & 0xFFFF;
+                int y = inData.getShort(segment + 10) & 0xFFFF;
+                // ImageMagick ignores the "aspect ratio only" unit and the
+                // default 1x1 density: let it decide
+                if ((unit == 1 || unit == 2) && x > 1 && y > 1) {
+                    header.resolutionX = x;
+                    header.resolutionY = y;
+                    header.units = unit == 1 ? RESOLUTION_UNITS.PIXELS_PER_INCH
+                            : RESOLUTION_UNITS.PIXELS_PER_CENTIMETER;
+                }
+            } else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4
+                    && marker != 0xC8 && marker != 0xCC) {
+                header.height = inData.getShort(segment + 1) & 0xFFFF;
+                header.width = inData.getShort(segment + 3) & 0xFFFF;
+                switch (inData.get(segment + 5)) {
+                case 1:
+                    header.colorspace = "Gray";
+                    break;
+                case 3:
+                    header.colorspace = "sRGB";
+                    break;
+                case 4:
+                    header.colorspace = "CMYK";
+                    break;
+                }
+                // Without JFIF, the resolution stays unknown: ImageMagick may
+                // use other segments
+                return header;
+            }
+            pos = segment + length - 2;
+        }
+        return null;
+    }
+
+    protected static boolean isJFIF(ByteBuffer inData, int inPos) {
+        return inData.get(inPos) == 'J' && inData.get(inPos + 1) == 'F'
+                && inData.get(inPos + 2) == 'I' && inData.get(inPos + 3) == 'F'
+                && inData.get(inPos + 4) == 0;
+    }
+
+    protected static ImageHeader parsePNG(ByteBuffer inData) {
+
+        ImageHeader header = new ImageHeader(PNG);
+        inData.order(ByteOrder.BIG_ENDIAN);
+        int colorType = -1;
+        boolean linearGamma = false;
+        boolean grayPalette = false;
+        header.resolutionX = 0;
+        header.resolutionY = 0;
+        header.units = RESOLUTION_UNITS.UNDEFINED;
+
+        int pos = 8;
+        while (pos + 8 <= inData.limit()) {
+            int length = inData.getInt(pos);
+            if (length < 0) {
+                return null;
+            }
+            String type = chunkType(inData, pos + 4);
+            int chunk = pos + 8;
+
+            if ("IHDR".equals(type)) {
+                header.width = inData.getInt(chunk);
+                header.height = inData.getInt(chunk + 4);
+                colorType = inData.get(chunk + 9);
+            } else if ("pHYs".equals(type)) {
+                long x = inData.getInt(chunk) & 0xFFFFFFFFL;
+                long y = inData.getInt(chunk + 4) & 0xFFFFFFFFL;
+                if (inData.get(chunk + 8) == 1) {
+                    header.resolutionX = x / 100.0;
+                    header.resolutionY = y / 100.0;
+                    header.units = RESOLUTION_UNITS.PIXELS_PER_CENTIMETER;
+                } else {
+                    header.resolutionX = x;
+                    header.resolutionY = y;
+                }
+            } else if ("gAMA".equals(type)) {
+                linearGamma = inData.getInt(chunk) == 100000;
+            } else if ("PLTE".equals(type)) {
+                grayPalette = isGrayPalette(inData, chunk, length / 3);
+            } else if ("IDAT".equals(type) || "IEND".equals(type)) {
+                break;
+            }
+            pos = chunk + length + 4;
+        }
+
+        if (colorType < 0) {
+            return null;
+        }
+        if (!linearGamma) {
+            switch (colorType) {
+            case 0:
+            case 4:
+                header.colorspace = "Gray";
+                break;
+            case 2:
+            case 6:
+                header.colorspace = "sRGB";
+                break;
+            case 3:
+                if (!grayPalette) {
+                    header.colorspace = "sRGB";
+                }
+                break;
+            }
+        }
+        return header;
+    }
+
+    protected static String chunkType(ByteBuffer inData, int inPos) {
+
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) (inData.get(inPos + i) & 0xFF);
+        }
+        return new String(type);
+    }
+
+    protected static boolean isGrayPalette(ByteBuffer inData, int inPos,
+            int inCount) {
+
+        for (int i = 0; i < inCount; i++) {
+            int p = inPos + 3 * i;
+            byte r = inData.get(p);
+            if (r != inData.get(p + 1) || r != inData.get(p + 2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static ImageHeader parseGIF(ByteBuffer inData) {
+
+        ImageHeader header = new ImageHeader(GIF);
+        inData.order(ByteOrder.LITTLE_ENDIAN);
+        header.resolutionX = 0;
+        header.resolutionY = 0;
+        header.units = RESOLUTION_UNITS.UNDEFINED;
+
+        int flags = inData.get(10) & 0xFF;
+        int pos = 13;
+        boolean grayGlobalTable = false;
+        if ((flags & 0x80) != 0) {
+            int count = 1 << ((flags & 0x07) + 1);
+            grayGlobalTable = isGrayPalette(inData, pos, count);
+            pos += 3 * count;
+        }
+
+        boolean hasFrame = false;
+        boolean grayTable = grayGlobalTable;
+        while (pos < inData.limit()) {
+            int block = inData.get(pos) & 0xFF;
+            if (block == 0x3B) {
+                // Trailer
+                break;
+            } else if (block == 0x21) {
+                // Extension: label, then sub-blocks
+                pos = skipSubBlocks(inData, pos + 2);
+            } else if (block == 0x2C) {
+                // Image descriptor, the last one wins
+                hasFrame = true;
+                header.width = inData.getShort(pos + 5) & 0xFFFF;
+                header.height = inData.getShort(pos + 7) & 0xFFFF;
+                int imageFlags = inData.get(pos + 9) & 0xFF;
+                pos += 10;
+                grayTable = grayGlobalTable;
+                if ((imageFlags & 0x80) != 0) {
+                    int count = 1 << ((imageFlags & 0x07) + 1);
+                    grayTable = isGrayPalette(inData, pos, count);
+                    pos += 3 * count;
+                }
+                // LZW minimum code size, then the data
+                pos = skipSubBlocks(inData, pos + 1);
+            } else {
+                return null;
+            }
+        }
+
+        if (!hasFrame) {
+            return null;
+        }
+        if (!grayTable) {
+            header.colorspace = "sRGB";
+        }
+        return header;
+    }
+
+    protected static int skipSubBlocks(ByteBuffer inData, int inPos) {
+
+        int pos = inPos;
+        int size;
+        while ((size = inData.get(pos) & 0xFF) != 0) {
+            pos += size + 1;
+        }
+        return pos + 1;
+    }
+
+    protected static ImageHeader parseTIFF(ByteBuffer inData) {
+
+        ImageHeader header = new ImageHeader(TIFF);
+        inData.order(inData.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN
+                : ByteOrder.BIG_ENDIAN);
+
+        // Last IFD
+        long ifd = inData.getInt(4) & 0xFFFFFFFFL;
+        long last = -1;
+        HashSet<Long> visited = new HashSet<Long>();
+        while (ifd > 0 && ifd < inData.limit() && visited.size() < MAX_IFDS
+                && visited.add(ifd)) {
+            last = ifd;
+            int count = inData.getShort((int) ifd) & 0xFFFF;
+            ifd = inData.getInt((int) ifd + 2 + 12 * count) & 0xFFFFFFFFL;
+        }
+        if (last < 0) {
+            return null;
+        }
+
+        int photometric = -1;
+        int unit = 2;
+        header.resolutionX = 0;
+        header.resolutionY = 0;
+        int count = inData.getShort((int) last) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = (int) last + 2 + 12 * i;
+            int tag = inData.getShort(entry) & 0xFFFF;
+            switch (tag) {
+            case 256:
+                header.width = (int) getTiffInteger(inData, entry);
+                break;
+            case 257:
+                header.height = (int) getTiffInteger(inData, entry);
+                break;
+            case 262:
+                photometric = (int) getTiffInteger(inData, entry);
+                break;
+            case 282:
+                header.resolutionX = getTiffRational(inData, entry);
+                break;
+            case 283:
+                header.resolutionY = getTiffRational(inData, entry);
+                break;
+            case 296:
+                unit = (int) getTiffInteger(inData, entry);
+                break;
+            }
+        }
+        if (header.width < 0 || header.height < 0) {
+            return null;
+        }
+
+        switch (unit) {
+        case 1:
+            header.units = RESOLUTION_UNITS.UNDEFINED;
+            break;
+        case 2:
+            header.units = RESOLUTION_UNITS.PIXELS_PER_INCH;
+            break;
+        case 3:
+            header.units = RESOLUTION_UNITS.PIXELS_PER_CENTIMETER;
+            break;
+        }
+
+        switch (photometric) {
+        case 0:
+        case 1:
+            header.colorspace = "Gray";
+            break;
+        case 2:
+        case 3:
+            header.colorspace = "sRGB";
+            break;
+        case 5:
+            header.colorspace = "CMYK";
+            break;
+        case 8:
+            header.colorspace = "Lab";
+            break;
+        }
+        return header;
+    }
+
+    /*
+     * SHORT or LONG value of an IFD entry
+     */
+    protected static long getTiffInteger(ByteBuffer inData, int inEntry) {
+
+        int type = inData.getShort(inEntry + 2) & 0xFFFF;
+        if (type == 3) {
+            return inData.getShort(inEntry + 8) & 0xFFFF;
+        }
+        return inData.getInt(inEntry + 8) & 0xFFFFFFFFL;
+    }
+
+    /*
+     * RATIONAL value of an IFD entry, stored at the offset given by the entry
+     */
+    protected static double getTiffRational(ByteBuffer inData, int inEntry) {
+
+        int type = inData.getShort(inEntry + 2) & 0xFFFF;
+        if (type != 5) {
+            return getTiffInteger(inData, inEntry);
+        }
+        int offset = inData.getInt(inEntry + 8);
+        long numerator = inData.getInt(offset) & 0xFFFFFFFFL;
+        long denominator = inData.getInt(offset + 4) & 0xFFFFFFFFL;
+        return denominator == 0 ? 0 : (double) numerator / denominator;
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.parsers;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.nuxeo.binary.metadata.exiftool.ExifToolJsonParser.RawNumber;
+
+/**
+ * Reads the main properties of ISO base media files (MP4, MOV, M4V, 3GP,
+ * ...) in Java, and returns them as ExifTool does (same tag names, same
+ * formatting as the JSON output of <code>exiftool -j</code>), without running
+ * ExifTool: Duration, TimeScale, ImageWidth, ImageHeight, ImageSize,
+ * VideoFrameRate and CompressorID.
+ * <p>
+ * Only the headers of the top-level boxes are read, so the media data (
+ * <code>mdat</code>) is skipped whatever its size and wherever the
+ * <code>moov</code> box is (at the beginning or at the end of the file). The
+ * <code>moov</code> box is then read with a single positional read, and
+ * <code>mvhd</code>, <code>tkhd</code>, <code>mdhd</code>, <code>hdlr</code>,
+ * <code>stsd</code> and <code>stts</code> are parsed from it. Files larger
+ * than 2 GB are supported (the file is not mapped in memory).
+ * <p>
+ * The video values are the ones of the video track. {@link #read(String,
+ * String[])} returns null as soon as it cannot answer exactly as ExifTool
+ * would (key not supported, no video track, several video tracks, fragmented
+ * file, ...). The caller must then use ExifTool.
+ *
+ * @since 7.3
+ */
+public class IsoBmffReader {
+
+    public static final String[] MIME_TYPES = { "video/mp4", "video/quicktime",
+            "video/x-m4v", "audio/mp4", "video/3gpp" };
+
+    protected static final String QUICKTIME_GROUP = "quicktime:";
+
+    // Larger moov boxes are left to ExifTool
+    protected static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    protected static final int MAX_TOP_LEVEL_BOXES = 1000;
+
+    // Types of the first box of the files we read
+    protected static final Set<String> FIRST_BOXES = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("ftyp", "moov", "mdat", "free", "skip",
+                    "wide", "pnot")));
+
+    protected static final Map<String, String> NAMES;
+
+    static {
+        HashMap<String, String> names = new HashMap<String, String>();
+        for (String name : new String[] { "Duration", "TimeScale",
+                "ImageWidth", "ImageHeight", "ImageSize", "VideoFrameRate",
+                "CompressorID" }) {
+            names.put(name.toLowerCase(Locale.ENGLISH), name);
+        }
+        NAMES = Collections.unmodifiableMap(names);
+    }
+
+    /*
+     * What we found in the moov box
+     */
+    protected static class Movie {
+
+        protected long timeScale = -1;
+
+        protected long duration = -1;
+
+        protected int videoTracks = 0;
+
+        protected double width = -1;
+
+        protected double height = -1;
+
+        protected String compressorId;
+
+        protected double frameRate = -1;
+    }
+
+    /*
+     * What we found in a trak box
+     */
+    protected static class Track {
+
+        // "vide", "soun", ...
+        protected String handlerType = "";
+
+        protected double width = -1;
+
+        protected double height = -1;
+
+        protected String compressorId;
+
+        protected long mediaTimeScale = -1;
+
+        protected double sampleRate = -1;
+    }
+
+    /**
+     * @param inMimeType
+     * @return true if this is the mime type of an ISO base media file
+     *
+     * @since 7.3
+     */
+    public static boolean isIsoBmffMimeType(String inMimeType) {
+
+        for (String mimeType : MIME_TYPES) {
+            if (mimeType.equals(inMimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param inTheseKeys
+     * @return true if all the keys are supported (the file may still not have
+     *         them)
+     *
+     * @since 7.3
+     */
+    public static boolean canRead(String[] inTheseKeys) {
+
+        if (inTheseKeys == null || inTheseKeys.length == 0) {
+            return false;
+        }
+        boolean hasKey = false;
+        for (String oneProp : inTheseKeys) {
+            if (oneProp == null || oneProp.isEmpty()) {
+                continue;
+            }
+            if (getName(oneProp) == null) {
+                return false;
+            }
+            hasKey = true;
+        }
+        return hasKey;
+    }
+
+    protected static String getName(String inKey) {
+
+        String key = inKey.toLowerCase(Locale.ENGLISH);
+        if (key.startsWith(QUICKTIME_GROUP)) {
+            key = key.substring(QUICKTIME_GROUP.length());
+        }
+        return NAMES.get(key);
+    }
+
+    /**
+     * @param inPath
+     * @param inTheseKeys
+     * @return the values by ExifTool tag name (String or {@link RawNumber}),
+     *         or null if ExifTool must be used
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, Object> read(String inPath,
+            String[] inTheseKeys) {
+
+        if (!canRead(inTheseKeys)) {
+            return null;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(inPath, "r");
+                FileChannel channel = file.getChannel()) {
+            ByteBuffer moov = readMoov(channel);
+            if (moov == null) {
+                return null;
+            }
+            Movie movie = new Movie();
+            parseContainer(moov, 0, moov.limit(), movie, null);
+
+            HashMap<String, Object> result = new HashMap<String, Object>();
+            for (String oneProp : inTheseKeys) {
+                if (oneProp == null || oneProp.isEmpty()) {
+                    continue;
+                }
+                String name = getName(oneProp);
+                Object value = getValue(movie, name);
+                if (value == null) {
+                    return null;
+                }
+                result.put(name, value);
+            }
+            return result;
+
+        } catch (IOException | BufferUnderflowException
+                | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Walk the top-level boxes, reading only their header, then read the
+     * whole moov box. null if not found (or not an ISO BMFF file)
+     */
+    protected static ByteBuffer readMoov(FileChannel inChannel)
+            throws IOException {
+
+        long size = inChannel.size();
+        long pos = 0;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        for (int i = 0; i < MAX_TOP_LEVEL_BOXES && pos + 8 <= size; i++) {
+            header.clear();
+            readFully(inChannel, header, pos);
+            long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+            String type = new String(header.array(), 4, 4,
+                    StandardCharsets.ISO_8859_1);
+            int headerSize = 8;
+            if (boxSize == 1) {
+                boxSize = header.getLong(8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                // Up to the end of the file
+                boxSize = size - pos;
+            }
+            if (i == 0 && !FIRST_BOXES.contains(type)) {
+                return null;
+            }
+            if (boxSize < headerSize || pos + boxSize > size) {
+                return null;
+            }
+            if ("moof".equals(type)) {
+                // Fragmented: the samples are not all described in moov
+                return null;
+            }
+            if ("moov".equals(type)) {
+                if (boxSize - headerSize > MAX_MOOV_SIZE) {
+                    return null;
+                }
+                ByteBuffer moov = ByteBuffer.allocate((int) (boxSize - headerSize));
+                readFully(inChannel, moov, pos + headerSize);
+                moov.clear();
+                return moov;
+            }
+            pos += boxSize;
+        }
+        return null;
+    }
+
+    protected static void readFully(FileChannel inChannel, ByteBuffer inBuffer,
+            long inPosition) throws IOException {
+
+        long position = inPosition;
+        while (inBuffer.hasRemaining()) {
+            int n = inChannel.read(inBuffer, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+    }
+
+    /*
+     * inTrack is null outside of a trak box
+     */
+    protected static void parseContainer(ByteBuffer inData, int inStart,
+            int inEnd, Movie inMovie, Track inTrack) {
+
+        int pos = inStart;
+        while (pos + 8 <= inEnd) {
+            long boxSize = inData.getInt(pos) & 0xFFFFFFFFL;
+            String type = getType(inData, pos + 4);
+            int headerSize = 8;
+            if (boxSize == 1) {
+                boxSize = inData.getLong(pos + 8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = inEnd - pos;
+            }
+            if (boxSize < headerSize || pos + boxSize > inEnd) {
+                throw new IllegalArgumentException("Invalid box " + type);
+            }
+            int content = pos + headerSize;
+            int end = (int) (pos + boxSize);
+
+            if (inTrack == null) {
+                if ("mvhd".equals(type)) {
+                    parseMovieHeader(inData, content, inMovie);
+                } else if ("trak".equals(type)) {
+                    Track track = new Track();
+                    parseContainer(inData, content, end, inMovie, track);
+                    if ("vide".equals(track.handlerType)) {
+                        inMovie.videoTracks += 1;
+                        inMovie.width = track.width;
+                        inMovie.height = track.height;
+                        inMovie.compressorId = track.compressorId;
+                        inMovie.frameRate = track.sampleRate;
+                    }
+                }
+            } else {
+                parseTrackBox(inData, type, content, end, inMovie, inTrack);
+            }
+            pos = end;
+        }
+    }
+
+    protected static void parseTrackBox(ByteBuffer inData, String inType,
+            int inContent, int inEnd, Movie inMovie, Track inTrack) {
+
+        int version = inData.get(inContent) & 0xFF;
+        switch (inType) {
+        case "mdia":
+        case "minf":
+        case "stbl":
+            parseContainer(inData, inContent, inEnd, inMovie, inTrack);
+            break;
+
+        case "tkhd":
+            // 16.16 fixed point numbers at the end of the box
+            int pos = inContent + (version == 1 ? 88 : 76);
+            inTrack.width = (inData.getInt(pos) & 0xFFFFFFFFL) / 65536.0;
+            inTrack.height = (inData.getInt(pos + 4) & 0xFFFFFFFFL) / 65536.0;
+            break;
+
+        case "mdhd":
+            inTrack.mediaTimeScale = inData.getInt(inContent
+                    + (version == 1 ? 20 : 12)) & 0xFFFFFFFFL;
+            break;
+
+        case "hdlr":
+            inTrack.handlerType = getType(inData, inContent + 8);
+            break;
+
+        case "stsd":
+            // First sample description: size, then format
+            if (inData.getInt(inContent + 4) > 0) {
+                inTrack.compressorId = getType(inData, inContent + 12);
+            }
+            break;
+
+        case "stts":
+            inTrack.sampleRate = computeSampleRate(inData, inContent,
+                    inTrack.mediaTimeScale);
+            break;
+
+        default:
+            break;
+        }
+    }
+
+    protected static String getType(ByteBuffer inData, int inPos) {
+        return new String(ParserUtils.getBytes(inData, inPos, inPos + 4),
+                StandardCharsets.ISO_8859_1);
+    }
+
+    protected static void parseMovieHeader(ByteBuffer inData, int inPos,
+            Movie inMovie) {
+
+        int version = inData.get(inPos) & 0xFF;
+        if (version == 1) {
+            inMovie.timeScale = inData.getInt(inPos + 20) & 0xFFFFFFFFL;
+            inMovie.duration = inData.getLong(inPos + 24);
+        } else {
+            inMovie.timeScale = inData.getInt(inPos + 12) & 0xFFFFFFFFL;
+            inMovie.duration = inData.getInt(inPos + 16) & 0xFFFFFFFFL;
+        }
+    }
+
+    /*
+     * Average rate, as ExifTool computes it: samples * media time scale /
+     * total duration. -1 if unknown
+     */
+    protected static double computeSampleRate(ByteBuffer inData, int inPos,
+            long inMediaTimeScale) {
+
+        long entries = inData.getInt(inPos + 4) & 0xFFFFFFFFL;
+        double count = 0;
+        double duration = 0;
+        for (int i = 0; i < entries; i++) {
+            long n = inData.getInt(inPos + 8 + 8 * i) & 0xFFFFFFFFL;
+            long delta = inData.getInt(inPos + 12 + 8 * i) & 0xFFFFFFFFL;
+            count += n;
+            duration += n * delta;
+        }
+        if (count == 0 || duration == 0 || inMediaTimeScale <= 0) {
+            return -1;
+        }
+        return count * inMediaTimeScale / duration;
+    }
+
+    protected static Object getValue(Movie inMovie, String inName) {
+
+        switch (inName) {
+        case "TimeScale":
+            return inMovie.timeScale > 0 ? new RawNumber(
+                    Long.toString(inMovie.timeScale)) : null;
+
+        case "Duration":
+            if (inMovie.timeScale <= 0 || inMovie.duration < 0) {
+                return null;
+            }
+            return convertDuration((double) inMovie.duration
+                    / inMovie.timeScale);
+
+        default:
+            break;
+        }
+
+        // Values of the video track
+        if (inMovie.videoTracks != 1) {
+            return null;
+        }
+        switch (inName) {
+        case "ImageWidth":
+            return toInteger(inMovie.width);
+
+        case "ImageHeight":
+            return toInteger(inMovie.height);
+
+        case "ImageSize":
+            Object width = toInteger(inMovie.width);
+            Object height = toInteger(inMovie.height);
+            return width == null || height == null ? null : width + "x"
+                    + height;
+
+        case "CompressorID":
+            return inMovie.compressorId;
+
+        case "VideoFrameRate":
+            if (inMovie.frameRate <= 0) {
+                return null;
+            }
+            // ExifTool: int($val * 1000 + 0.5) / 1000
+            double rate = Math.floor(inMovie.frameRate * 1000 + 0.5) / 1000;
+            return new RawNumber(BigDecimal.valueOf(rate).stripTrailingZeros().toPlainString());
+
+        default:
+            return null;
+        }
+    }
+
+    /*
+     * Fractional or empty (audio track) sizes are left to ExifTool
+     */
+    protected static Object toInteger(double inValue) {
+
+        if (inValue <= 0 || inValue != Math.floor(inValue)) {
+            return null;
+        }
+        return new RawNumber(Long.toString((long) inValue));
+    }
+
+    /**
+     * Format a duration as ExifTool does: "11.85 s" below 30 seconds,
+     * "0:01:05" above
+     *
+     * @param inSeconds
+     * @return the formatted duration
+     *
+     * @since 7.3
+     */
+    public static String convertDuration(double inSeconds) {
+
+        if (inSeconds == 0) {
+            return "0 s";
+        }
+        if (inSeconds < 30) {
+            return String.format(Locale.ENGLISH, "%.2f s", inSeconds);
+        }
+        long time = (long) (inSeconds + 0.5);
+        long h = time / 3600;
+        long m = (time % 3600) / 60;
+        long s = time % 60;
+        String days = "";
+        if (h > 24) {
+            days = (h / 24) + " days ";
+            h = h % 24;
+        }
+        return String.format(Locale.ENGLISH, "%s%d:%02d:%02d", days, h, m, s);
+    }
+}
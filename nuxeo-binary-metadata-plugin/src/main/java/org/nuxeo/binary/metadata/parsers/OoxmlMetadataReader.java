@@ -0,0 +1,328 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.parsers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.nuxeo.binary.metadata.exiftool.ExifToolJsonParser.RawNumber;
+
+/**
+ * Reads the document properties of Office Open XML files (docx, pptx, xlsx,
+ * ...) in Java, and returns them as ExifTool does (same tag names, same
+ * formatting as the JSON output of <code>exiftool -j</code>), without running
+ * ExifTool.
+ * <p>
+ * Only the central directory of the zip and the two small parts holding the
+ * properties are read: <code>docProps/core.xml</code> (Title, Creator,
+ * CreateDate, ...) and <code>docProps/app.xml</code> (Pages, Words, Slides,
+ * ...). They are parsed with a streaming (StAX) parser.
+ * <p>
+ * {@link #read(String, String[])} returns null as soon as it cannot answer
+ * exactly as ExifTool would (key not supported, property not found or empty,
+ * not an OOXML file, ...). The caller must then use ExifTool.
+ *
+ * @since 7.3
+ */
+public class OoxmlMetadataReader {
+
+    public static final String[] MIME_TYPES = {
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet" };
+
+    protected static final String CORE = "docProps/core.xml";
+
+    protected static final String APP = "docProps/app.xml";
+
+    protected static final String XML_GROUP = "xml:";
+
+    // ExifTool converts the W3CDTF dates as the XMP ones
+    protected static final Pattern W3CDTF_DATE = Pattern.compile("^(\\d{4})-(\\d{2})-(\\d{2})T(\\d{2}:\\d{2})(:\\d{2}(?:\\.\\d+)?)?(Z|[+-]\\d{2}:\\d{2})?$");
+
+    protected static final Pattern JSON_NUMBER = Pattern.compile("^-?(\\d|[1-9]\\d{1,14})(\\.\\d{1,16})?$");
+
+    // Looking up the implementation is slow, the factory is thread safe once
+    // configured
+    protected static final XMLInputFactory XML_FACTORY;
+
+    protected static class Property {
+
+        protected final String name;
+
+        protected final String part;
+
+        protected final String element;
+
+        protected final boolean isDate;
+
+        protected Property(String inName, String inPart, String inElement,
+                boolean inIsDate) {
+            name = inName;
+            part = inPart;
+            element = inElement;
+            isDate = inIsDate;
+        }
+    }
+
+    /**
+     * The supported properties, by lower case ExifTool name
+     */
+    protected static final Map<String, Property> PROPERTIES;
+
+    static {
+        HashMap<String, Property> props = new HashMap<String, Property>();
+        for (Property prop : new Property[] {
+                new Property("Title", CORE, "title", false),
+                new Property("Subject", CORE, "subject", false),
+                new Property("Creator", CORE, "creator", false),
+                new Property("Description", CORE, "description", false),
+                new Property("Keywords", CORE, "keywords", false),
+                new Property("Category", CORE, "category", false),
+                new Property("LastModifiedBy", CORE, "lastModifiedBy", false),
+                new Property("RevisionNumber", CORE, "revision", false),
+                new Property("CreateDate", CORE, "created", true),
+                new Property("ModifyDate", CORE, "modified", true),
+                new Property("Template", APP, "Template", false),
+                new Property("Application", APP, "Application", false),
+                new Property("AppVersion", APP, "AppVersion", false),
+                new Property("Company", APP, "Company", false),
+                new Property("Manager", APP, "Manager", false),
+                new Property("Pages", APP, "Pages", false),
+                new Property("Words", APP, "Words", false),
+                new Property("Characters", APP, "Characters", false),
+                new Property("CharactersWithSpaces", APP,
+                        "CharactersWithSpaces", false),
+                new Property("Lines", APP, "Lines", false),
+                new Property("Paragraphs", APP, "Paragraphs", false),
+                new Property("Slides", APP, "Slides", false),
+                new Property("Notes", APP, "Notes", false),
+                new Property("HiddenSlides", APP, "HiddenSlides", false),
+                new Property("MMClips", APP, "MMClips", false),
+                new Property("PresentationFormat", APP, "PresentationFormat",
+                        false) }) {
+            props.put(prop.name.toLowerCase(Locale.ENGLISH), prop);
+        }
+        PROPERTIES = Collections.unmodifiableMap(props);
+
+        XML_FACTORY = XMLInputFactory.newInstance();
+        XML_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XML_FACTORY.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * @param inMimeType
+     * @return true if this is the mime type of an OOXML file
+     *
+     * @since 7.3
+     */
+    public static boolean isOoxmlMimeType(String inMimeType) {
+
+        for (String mimeType : MIME_TYPES) {
+            if (mimeType.equals(inMimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param inTheseKeys
+     * @return true if all the keys are supported (the file may still not have
+     *         them)
+     *
+     * @since 7.3
+     */
+    public static boolean canRead(String[] inTheseKeys) {
+
+        if (inTheseKeys == null || inTheseKeys.length == 0) {
+            return false;
+        }
+        boolean hasKey = false;
+        for (String oneProp : inTheseKeys) {
+            if (oneProp == null || oneProp.isEmpty()) {
+                continue;
+            }
+            if (getProperty(oneProp) == null) {
+                return false;
+            }
+            hasKey = true;
+        }
+        return hasKey;
+    }
+
+    protected static Property getProperty(String inKey) {
+
+        String key = inKey.toLowerCase(Locale.ENGLISH);
+        if (key.startsWith(XML_GROUP)) {
+            key = key.substring(XML_GROUP.length());
+        }
+        return PROPERTIES.get(key);
+    }
+
+    /**
+     * @param inPath
+     * @param inTheseKeys
+     * @return the values by ExifTool tag name (String or {@link RawNumber}),
+     *         or null if ExifTool must be used
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, Object> read(String inPath,
+            String[] inTheseKeys) {
+
+        if (!canRead(inTheseKeys)) {
+            return null;
+        }
+
+        try (ZipFile zip = new ZipFile(inPath)) {
+            // Parse each part only once, and only if needed
+            HashMap<String, Map<String, String>> parts = new HashMap<String, Map<String, String>>();
+            HashMap<String, Object> result = new HashMap<String, Object>();
+            for (String oneProp : inTheseKeys) {
+                if (oneProp == null || oneProp.isEmpty()) {
+                    continue;
+                }
+                Property prop = getProperty(oneProp);
+                Map<String, String> values = parts.get(prop.part);
+                if (values == null) {
+                    values = readPart(zip, prop.part);
+                    if (values == null) {
+                        return null;
+                    }
+                    parts.put(prop.part, values);
+                }
+                String value = values.get(prop.element);
+                if (value == null || value.isEmpty()) {
+                    return null;
+                }
+                if (prop.isDate) {
+                    value = convertDate(value);
+                    if (value == null) {
+                        return null;
+                    }
+                }
+                result.put(prop.name, toJsonValue(value));
+            }
+            return result;
+
+        } catch (IOException | XMLStreamException e) {
+            // Not a zip (ZipException), corrupted part, ...
+            return null;
+        }
+    }
+
+    /*
+     * The text of the children of the root element, by local name. An
+     * element with children (vectors of app.xml, ...) is ignored. null if the
+     * part does not exist
+     */
+    protected static Map<String, String> readPart(ZipFile inZip, String inPart)
+            throws IOException, XMLStreamException {
+
+        ZipEntry entry = inZip.getEntry(inPart);
+        if (entry == null) {
+            return null;
+        }
+
+        HashMap<String, String> values = new HashMap<String, String>();
+        try (InputStream in = inZip.getInputStream(entry)) {
+            XMLStreamReader reader = XML_FACTORY.createXMLStreamReader(in);
+            try {
+                int depth = 0;
+                String name = null;
+                StringBuilder text = new StringBuilder();
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth += 1;
+                        if (depth == 2) {
+                            name = reader.getLocalName();
+                            text.setLength(0);
+                        } else if (depth > 2) {
+                            name = null;
+                        }
+                        break;
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (depth == 2 && name != null) {
+                            text.append(reader.getText());
+                        }
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == 2 && name != null
+                                && !values.containsKey(name)) {
+                            values.put(name, text.toString().trim());
+                        }
+                        depth -= 1;
+                        break;
+
+                    default:
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Convert a W3CDTF date the way ExifTool does: "2013-03-05T01:31:00Z" =>
+     * "2013:03:05 01:31:00Z"
+     *
+     * @param inDate
+     * @return the converted date, null if the date is not complete
+     *
+     * @since 7.3
+     */
+    public static String convertDate(String inDate) {
+
+        Matcher m = W3CDTF_DATE.matcher(inDate);
+        if (!m.matches()) {
+            return null;
+        }
+        return m.group(1) + ":" + m.group(2) + ":" + m.group(3) + " "
+                + m.group(4) + (m.group(5) == null ? ":00" : m.group(5))
+                + (m.group(6) == null ? "" : m.group(6));
+    }
+
+    protected static Object toJsonValue(String inValue) {
+
+        if (JSON_NUMBER.matcher(inValue).matches()) {
+            return new RawNumber(inValue);
+        }
+        return inValue;
+    }
+}
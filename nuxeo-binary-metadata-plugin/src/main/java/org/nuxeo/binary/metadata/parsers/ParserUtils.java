@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.parsers;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers shared by the parsers of this package.
+ *
+ * @since 7.3
+ */
+public class ParserUtils {
+
+    /**
+     * Map the file in memory (read only). Only the pages actually read are
+     * loaded, so parsing the header of a big file is cheap. The mapping stays
+     * valid after the file is closed.
+     *
+     * @param inPath
+     * @return the content of the file
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public static ByteBuffer map(String inPath) throws IOException {
+
+        try (RandomAccessFile file = new RandomAccessFile(inPath, "r");
+                FileChannel channel = file.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+    }
+
+    /**
+     * Search inPattern in inData between inFrom (included) and inTo
+     * (excluded), with the Boyer-Moore-Horspool algorithm: Most of the bytes
+     * are not even read.
+     *
+     * @param inData
+     * @param inPattern
+     * @param inFrom
+     * @param inTo
+     * @return the position of the first occurrence, -1 if not found
+     *
+     * @since 7.3
+     */
+    public static int indexOf(ByteBuffer inData, byte[] inPattern, int inFrom,
+            int inTo) {
+
+        int length = inPattern.length;
+        int to = Math.min(inTo, inData.limit());
+        if (length == 0) {
+            return inFrom <= to ? inFrom : -1;
+        }
+
+        int[] shift = new int[256];
+        for (int i = 0; i < 256; i++) {
+            shift[i] = length;
+        }
+        for (int i = 0; i < length - 1; i++) {
+            shift[inPattern[i] & 0xFF] = length - 1 - i;
+        }
+
+        int pos = Math.max(inFrom, 0);
+        while (pos + length <= to) {
+            int last = inData.get(pos + length - 1) & 0xFF;
+            if (last == (inPattern[length - 1] & 0xFF)
+                    && startsWith(inData, pos, inPattern)) {
+                return pos;
+            }
+            pos += shift[last];
+        }
+        return -1;
+    }
+
+    /**
+     * Same as {@link #indexOf(ByteBuffer, byte[], int, int)}, up to the end of
+     * inData
+     *
+     * @since 7.3
+     */
+    public static int indexOf(ByteBuffer inData, byte[] inPattern, int inFrom) {
+        return indexOf(inData, inPattern, inFrom, inData.limit());
+    }
+
+    /**
+     * @return the number of occurrences of inPattern (not overlapping)
+     *
+     * @since 7.3
+     */
+    public static int count(ByteBuffer inData, byte[] inPattern) {
+
+        int count = 0;
+        int pos = 0;
+        while ((pos = indexOf(inData, inPattern, pos)) >= 0) {
+            count += 1;
+            pos += inPattern.length;
+        }
+        return count;
+    }
+
+    /**
+     * @return true if inData has inPattern at inPos
+     *
+     * @since 7.3
+     */
+    public static boolean startsWith(ByteBuffer inData, int inPos,
+            byte[] inPattern) {
+
+        if (inPos < 0 || inPos + inPattern.length > inData.limit()) {
+            return false;
+        }
+        for (int i = 0; i < inPattern.length; i++) {
+            if (inData.get(inPos + i) != inPattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the bytes of inData between inFrom (included) and inTo
+     *         (excluded)
+     *
+     * @since 7.3
+     */
+    public static byte[] getBytes(ByteBuffer inData, int inFrom, int inTo) {
+
+        byte[] bytes = new byte[inTo - inFrom];
+        ByteBuffer data = inData.duplicate();
+        data.position(inFrom);
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return inValue as US-ASCII bytes (markers, keywords, ...)
+     *
+     * @since 7.3
+     */
+    public static byte[] ascii(String inValue) {
+        return inValue.getBytes(StandardCharsets.US_ASCII);
+    }
+}
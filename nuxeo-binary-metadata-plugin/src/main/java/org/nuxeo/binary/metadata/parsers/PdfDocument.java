@@ -0,0 +1,958 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.parsers;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Minimal reader of the structure of a PDF file: cross-reference tables and
+ * streams, trailer, and access to the objects by number. Used to read the
+ * document metadata (<code>/Info</code> and <code>/Metadata</code>) without
+ * parsing the pages.
+ * <p>
+ * The file is expected to be mapped in memory: Starting from
+ * <code>startxref</code> at the end of the file, only the cross-reference
+ * sections (one per incremental update, following <code>/Prev</code>) and the
+ * objects actually requested are read. In a classic xref table, the entry of
+ * an object is read directly at its position, the table is not parsed.
+ * <p>
+ * Supported: classic xref tables, xref streams (PDF 1.5), hybrid files (
+ * <code>/XRefStm</code>), object streams, FlateDecode streams (with PNG
+ * predictors). Anything else (encrypted files, other filters, broken
+ * offsets, ...) throws an IllegalArgumentException: The caller must then use
+ * ExifTool.
+ * <p>
+ * Objects are returned as: Map&lt;String, Object&gt; (dictionary, keys
+ * without the "/"), List&lt;Object&gt; (array), {@link Name}, byte[] (string,
+ * see {@link #toText(byte[])}), Long or Double, Boolean, {@link Ref}
+ * (reference), {@link Stream}, or null.
+ *
+ * @since 7.3
+ */
+public class PdfDocument {
+
+    protected static final byte[] PDF_MAGIC = ParserUtils.ascii("%PDF-");
+
+    protected static final byte[] STARTXREF = ParserUtils.ascii("startxref");
+
+    protected static final int TAIL_SIZE = 1024;
+
+    protected static final int MAX_SECTIONS = 1000;
+
+    /**
+     * A name ("/Type" is a Name with a value of "Type")
+     */
+    public static class Name {
+
+        protected final String value;
+
+        public Name(String inValue) {
+            value = inValue;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object inOther) {
+            return inOther instanceof Name
+                    && value.equals(((Name) inOther).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "/" + value;
+        }
+    }
+
+    /**
+     * A reference to an indirect object ("12 0 R")
+     */
+    public static class Ref {
+
+        protected final int number;
+
+        protected final int generation;
+
+        public Ref(int inNumber, int inGeneration) {
+            number = inNumber;
+            generation = inGeneration;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        @Override
+        public String toString() {
+            return number + " " + generation + " R";
+        }
+    }
+
+    /**
+     * A stream: its dictionary, and the position of its data in the buffer it
+     * was read from
+     */
+    public static class Stream {
+
+        protected final Map<String, Object> dictionary;
+
+        protected final ByteBuffer data;
+
+        protected final int start;
+
+        protected Stream(Map<String, Object> inDictionary, ByteBuffer inData,
+                int inStart) {
+            dictionary = inDictionary;
+            data = inData;
+            start = inStart;
+        }
+
+        public Map<String, Object> getDictionary() {
+            return dictionary;
+        }
+    }
+
+    /*
+     * One cross-reference section. A classic table is read lazily.
+     */
+    protected static class Section {
+
+        // Classic table: subsections {first object, count, position}
+        protected final List<int[]> subsections = new ArrayList<int[]>();
+
+        // Xref stream: object => {type, field 2, field 3}
+        protected final HashMap<Integer, long[]> entries = new HashMap<Integer, long[]>();
+    }
+
+    protected final ByteBuffer data;
+
+    protected final String headerVersion;
+
+    protected final List<Section> sections = new ArrayList<Section>();
+
+    protected final Map<String, Object> trailer = new HashMap<String, Object>();
+
+    protected final HashMap<Integer, List<Object>> objectStreams = new HashMap<Integer, List<Object>>();
+
+    /**
+     * @param inData the whole file
+     * @throws IllegalArgumentException if the file cannot be read
+     *
+     * @since 7.3
+     */
+    public PdfDocument(ByteBuffer inData) {
+
+        data = inData.duplicate();
+        data.position(0);
+        if (!ParserUtils.startsWith(data, 0, PDF_MAGIC)) {
+            throw new IllegalArgumentException("Not a PDF");
+        }
+        headerVersion = readHeaderVersion();
+
+        int tail = Math.max(0, data.limit() - TAIL_SIZE);
+        int pos = -1;
+        for (int p = ParserUtils.indexOf(data, STARTXREF, tail); p >= 0; p = ParserUtils.indexOf(
+                data, STARTXREF, p + 1)) {
+            pos = p;
+        }
+        if (pos < 0) {
+            throw new IllegalArgumentException("No startxref");
+        }
+        Parser parser = new Parser(data, pos + STARTXREF.length);
+        long offset = ((Number) parser.readObject()).longValue();
+
+        HashSet<Long> visited = new HashSet<Long>();
+        while (offset > 0 && visited.size() < MAX_SECTIONS
+                && visited.add(offset)) {
+            Map<String, Object> sectionTrailer = readSection((int) offset);
+            for (Map.Entry<String, Object> e : sectionTrailer.entrySet()) {
+                // The newest update wins
+                if (!trailer.containsKey(e.getKey())) {
+                    trailer.put(e.getKey(), e.getValue());
+                }
+            }
+            Object prev = sectionTrailer.get("Prev");
+            offset = prev instanceof Number ? ((Number) prev).longValue() : 0;
+        }
+        trailer.remove("Prev");
+        trailer.remove("XRefStm");
+
+        if (trailer.containsKey("Encrypt")) {
+            throw new IllegalArgumentException("Encrypted");
+        }
+    }
+
+    protected String readHeaderVersion() {
+
+        StringBuilder sb = new StringBuilder();
+        int pos = PDF_MAGIC.length;
+        while (pos < data.limit() && pos < 16) {
+            char c = (char) data.get(pos);
+            if (!Character.isDigit(c) && c != '.') {
+                break;
+            }
+            sb.append(c);
+            pos += 1;
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Read the section at inOffset (classic table or xref stream), return its
+     * trailer
+     */
+    protected Map<String, Object> readSection(int inOffset) {
+
+        Parser parser = new Parser(data, inOffset);
+        parser.skipWhitespace();
+        if (parser.startsWithKeyword("xref")) {
+            parser.pos += 4;
+            Section section = new Section();
+            while (true) {
+                parser.skipWhitespace();
+                if (parser.startsWithKeyword("trailer")) {
+                    parser.pos += 7;
+                    break;
+                }
+                int first = ((Number) parser.readObject()).intValue();
+                int count = ((Number) parser.readObject()).intValue();
+                parser.skipWhitespace();
+                section.subsections.add(new int[] { first, count, parser.pos });
+                // Entries are 20 bytes long
+                parser.pos += 20 * count;
+            }
+            sections.add(section);
+
+            Map<String, Object> sectionTrailer = asDictionary(parser.readObject());
+            Object xrefStm = sectionTrailer.get("XRefStm");
+            if (xrefStm instanceof Number) {
+                // Hybrid file: the stream completes the table
+                readXrefStream(((Number) xrefStm).intValue());
+            }
+            return sectionTrailer;
+        }
+        return readXrefStream(inOffset);
+    }
+
+    protected Map<String, Object> readXrefStream(int inOffset) {
+
+        Object obj = new Parser(data, inOffset).readIndirectObject(-1);
+        if (!(obj instanceof Stream)) {
+            throw new IllegalArgumentException("No xref at " + inOffset);
+        }
+        Stream stream = (Stream) obj;
+        Map<String, Object> dict = stream.dictionary;
+        byte[] content = decode(stream);
+
+        List<Object> w = asArray(dict.get("W"));
+        int w0 = ((Number) w.get(0)).intValue();
+        int w1 = ((Number) w.get(1)).intValue();
+        int w2 = ((Number) w.get(2)).intValue();
+        List<Object> index = dict.containsKey("Index") ? asArray(dict.get("Index"))
+                : null;
+        if (index == null) {
+            index = new ArrayList<Object>();
+            index.add(0L);
+            index.add(dict.get("Size"));
+        }
+
+        Section section = new Section();
+        int pos = 0;
+        for (int i = 0; i + 1 < index.size(); i += 2) {
+            int first = ((Number) index.get(i)).intValue();
+            int count = ((Number) index.get(i + 1)).intValue();
+            for (int n = 0; n < count; n++) {
+                long type = w0 == 0 ? 1 : readField(content, pos, w0);
+                long f2 = readField(content, pos + w0, w1);
+                long f3 = readField(content, pos + w0 + w1, w2);
+                pos += w0 + w1 + w2;
+                section.entries.put(first + n, new long[] { type, f2, f3 });
+            }
+        }
+        sections.add(section);
+        return dict;
+    }
+
+    protected static long readField(byte[] inContent, int inPos, int inWidth) {
+
+        long value = 0;
+        for (int i = 0; i < inWidth; i++) {
+            value = (value << 8) | (inContent[inPos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return the version in the header ("1.4")
+     */
+    public String getHeaderVersion() {
+        return headerVersion;
+    }
+
+    /**
+     * @return the trailer, merged with the ones of the previous updates
+     */
+    public Map<String, Object> getTrailer() {
+        return trailer;
+    }
+
+    /**
+     * @return the value, resolved if it is a reference
+     */
+    public Object resolve(Object inValue) {
+
+        int depth = 0;
+        Object value = inValue;
+        while (value instanceof Ref && depth < 32) {
+            value = getObject(((Ref) value).number);
+            depth += 1;
+        }
+        return value;
+    }
+
+    /**
+     * @return the entry of the dictionary, resolved. null if inDictionary is
+     *         not a dictionary
+     */
+    @SuppressWarnings("unchecked")
+    public Object get(Object inDictionary, String inKey) {
+
+        Object dict = resolve(inDictionary);
+        if (dict instanceof Stream) {
+            dict = ((Stream) dict).dictionary;
+        }
+        if (!(dict instanceof Map)) {
+            return null;
+        }
+        return resolve(((Map<String, Object>) dict).get(inKey));
+    }
+
+    /**
+     * @param inNumber
+     * @return the object, null if it does not exist
+     */
+    public Object getObject(int inNumber) {
+
+        for (Section section : sections) {
+            long[] entry = section.entries.get(inNumber);
+            if (entry == null) {
+                entry = findClassicEntry(section, inNumber);
+            }
+            if (entry == null) {
+                continue;
+            }
+            switch ((int) entry[0]) {
+            case 0:
+                // Free
+                return null;
+            case 1:
+                return new Parser(data, (int) entry[1]).readIndirectObject(inNumber);
+            case 2:
+                return getCompressedObject((int) entry[1], (int) entry[2]);
+            default:
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * "0000012345 00000 n" at the position computed from the subsection
+     */
+    protected long[] findClassicEntry(Section inSection, int inNumber) {
+
+        for (int[] sub : inSection.subsections) {
+            if (inNumber >= sub[0] && inNumber < sub[0] + sub[1]) {
+                Parser parser = new Parser(data, sub[2] + 20
+                        * (inNumber - sub[0]));
+                long offset = ((Number) parser.readObject()).longValue();
+                parser.readObject();
+                parser.skipWhitespace();
+                boolean inUse = data.get(parser.pos) == 'n';
+                return new long[] { inUse ? 1 : 0, offset, 0 };
+            }
+        }
+        return null;
+    }
+
+    protected Object getCompressedObject(int inStreamNumber, int inIndex) {
+
+        List<Object> objects = objectStreams.get(inStreamNumber);
+        if (objects == null) {
+            Object obj = getObject(inStreamNumber);
+            if (!(obj instanceof Stream)) {
+                throw new IllegalArgumentException("No object stream "
+                        + inStreamNumber);
+            }
+            Stream stream = (Stream) obj;
+            ByteBuffer content = ByteBuffer.wrap(decode(stream));
+            int n = ((Number) stream.dictionary.get("N")).intValue();
+            int first = ((Number) stream.dictionary.get("First")).intValue();
+
+            Parser header = new Parser(content, 0);
+            int[] offsets = new int[n];
+            for (int i = 0; i < n; i++) {
+                header.readObject();
+                offsets[i] = ((Number) header.readObject()).intValue();
+            }
+            objects = new ArrayList<Object>(n);
+            for (int i = 0; i < n; i++) {
+                objects.add(new Parser(content, first + offsets[i]).readObject());
+            }
+            objectStreams.put(inStreamNumber, objects);
+        }
+        return inIndex < objects.size() ? objects.get(inIndex) : null;
+    }
+
+    /**
+     * @param inStream
+     * @return the decoded data of the stream
+     * @throws IllegalArgumentException if the filter is not supported
+     */
+    public byte[] decode(Stream inStream) {
+
+        Object lengthValue = resolve(inStream.dictionary.get("Length"));
+        if (!(lengthValue instanceof Number)) {
+            throw new IllegalArgumentException("No stream length");
+        }
+        int length = ((Number) lengthValue).intValue();
+        byte[] raw = ParserUtils.getBytes(inStream.data, inStream.start,
+                inStream.start + length);
+
+        Object filter = resolve(inStream.dictionary.get("Filter"));
+        Object parms = resolve(inStream.dictionary.get("DecodeParms"));
+        if (filter instanceof List) {
+            List<?> filters = (List<?>) filter;
+            if (filters.isEmpty()) {
+                filter = null;
+            } else if (filters.size() == 1) {
+                filter = resolve(filters.get(0));
+                if (parms instanceof List) {
+                    List<?> allParms = (List<?>) parms;
+                    parms = allParms.isEmpty() ? null
+                            : resolve(allParms.get(0));
+                }
+            } else {
+                throw new IllegalArgumentException("Several filters");
+            }
+        }
+        if (filter == null) {
+            return raw;
+        }
+        if (!new Name("FlateDecode").equals(filter)) {
+            throw new IllegalArgumentException("Filter not supported: "
+                    + filter);
+        }
+
+        byte[] inflated = inflate(raw);
+        Object predictor = parms instanceof Map ? get(parms, "Predictor")
+                : null;
+        if (predictor instanceof Number
+                && ((Number) predictor).intValue() >= 10) {
+            Object columns = get(parms, "Columns");
+            return unpredict(inflated, columns instanceof Number ? ((Number) columns).intValue()
+                    : 1);
+        } else if (predictor instanceof Number
+                && ((Number) predictor).intValue() > 1) {
+            throw new IllegalArgumentException("TIFF predictor");
+        }
+        return inflated;
+    }
+
+    protected static byte[] inflate(byte[] inData) {
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(inData);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    inData.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0
+                        && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // Truncated: keep what was decoded, as most readers do
+                    break;
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /*
+     * PNG predictors (one filter type byte per row), 1 byte per pixel as used
+     * by xref streams
+     */
+    protected static byte[] unpredict(byte[] inData, int inColumns) {
+
+        int rowLength = inColumns + 1;
+        int rows = inData.length / rowLength;
+        byte[] result = new byte[rows * inColumns];
+        byte[] previous = new byte[inColumns];
+        for (int r = 0; r < rows; r++) {
+            int type = inData[r * rowLength];
+            int rowStart = r * rowLength + 1;
+            for (int c = 0; c < inColumns; c++) {
+                int raw = inData[rowStart + c] & 0xFF;
+                int left = c > 0 ? result[r * inColumns + c - 1] & 0xFF : 0;
+                int up = previous[c] & 0xFF;
+                int upLeft = c > 0 ? previous[c - 1] & 0xFF : 0;
+                int value;
+                switch (type) {
+                case 0:
+                    value = raw;
+                    break;
+                case 1:
+                    value = raw + left;
+                    break;
+                case 2:
+                    value = raw + up;
+                    break;
+                case 3:
+                    value = raw + ((left + up) >> 1);
+                    break;
+                case 4:
+                    value = raw + paeth(left, up, upLeft);
+                    break;
+                default:
+                    throw new IllegalArgumentException("PNG predictor "
+                            + type);
+                }
+                result[r * inColumns + c] = (byte) value;
+            }
+            System.arraycopy(result, r * inColumns, previous, 0, inColumns);
+        }
+        return result;
+    }
+
+    protected static int paeth(int a, int b, int c) {
+
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Decode a text string: UTF-16BE or UTF-8 with a byte order mark, or
+     * PDFDocEncoding. Returns null for the PDFDocEncoding characters that are
+     * not the same as in ISO-8859-1.
+     *
+     * @param inValue
+     * @return the text
+     *
+     * @since 7.3
+     */
+    public static String toText(byte[] inValue) {
+
+        if (inValue.length >= 2 && (inValue[0] & 0xFF) == 0xFE
+                && (inValue[1] & 0xFF) == 0xFF) {
+            return new String(inValue, 2, inValue.length - 2,
+                    StandardCharsets.UTF_16BE);
+        }
+        if (inValue.length >= 3 && (inValue[0] & 0xFF) == 0xEF
+                && (inValue[1] & 0xFF) == 0xBB && (inValue[2] & 0xFF) == 0xBF) {
+            return new String(inValue, 3, inValue.length - 3,
+                    StandardCharsets.UTF_8);
+        }
+        for (byte b : inValue) {
+            int c = b & 0xFF;
+            if ((c >= 0x18 && c <= 0x1F) || (c >= 0x7F && c <= 0xA0)
+                    || c == 0xAD) {
+                return null;
+            }
+        }
+        return new String(inValue, StandardCharsets.ISO_8859_1);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Map<String, Object> asDictionary(Object inValue) {
+
+        if (!(inValue instanceof Map)) {
+            throw new IllegalArgumentException("Dictionary expected");
+        }
+        return (Map<String, Object>) inValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static List<Object> asArray(Object inValue) {
+
+        if (!(inValue instanceof List)) {
+            throw new IllegalArgumentException("Array expected");
+        }
+        return (List<Object>) inValue;
+    }
+
+    /*
+     * Lexer/parser of PDF objects, from a position of a buffer
+     */
+    protected static class Parser {
+
+        protected final ByteBuffer buffer;
+
+        protected int pos;
+
+        protected Parser(ByteBuffer inBuffer, int inPos) {
+            buffer = inBuffer;
+            pos = inPos;
+        }
+
+        protected boolean isWhitespace(int c) {
+            return c == ' ' || c == '\n' || c == '\r' || c == '\t'
+                    || c == '\f' || c == 0;
+        }
+
+        protected boolean isDelimiter(int c) {
+            return c == '(' || c == ')' || c == '<' || c == '>' || c == '['
+                    || c == ']' || c == '{' || c == '}' || c == '/'
+                    || c == '%';
+        }
+
+        protected void skipWhitespace() {
+
+            while (pos < buffer.limit()) {
+                int c = buffer.get(pos) & 0xFF;
+                if (c == '%') {
+                    // Comment, up to the end of line
+                    while (pos < buffer.limit() && buffer.get(pos) != '\n'
+                            && buffer.get(pos) != '\r') {
+                        pos += 1;
+                    }
+                } else if (isWhitespace(c)) {
+                    pos += 1;
+                } else {
+                    break;
+                }
+            }
+        }
+
+        protected boolean startsWithKeyword(String inKeyword) {
+
+            if (!ParserUtils.startsWith(buffer, pos,
+                    ParserUtils.ascii(inKeyword))) {
+                return false;
+            }
+            int end = pos + inKeyword.length();
+            if (end >= buffer.limit()) {
+                return true;
+            }
+            int c = buffer.get(end) & 0xFF;
+            return isWhitespace(c) || isDelimiter(c);
+        }
+
+        /*
+         * "n g obj <object> [stream ... endstream] endobj". inNumber, if not
+         * -1, must be the number of the object
+         */
+        protected Object readIndirectObject(int inNumber) {
+
+            Object number = readObject();
+            Object generation = readObject();
+            skipWhitespace();
+            if (!(number instanceof Long) || !(generation instanceof Long)
+                    || !startsWithKeyword("obj")) {
+                throw new IllegalArgumentException("No object at " + pos);
+            }
+            if (inNumber >= 0 && ((Long) number).intValue() != inNumber) {
+                throw new IllegalArgumentException("Wrong object at " + pos);
+            }
+            pos += 3;
+
+            Object value = readObject();
+            skipWhitespace();
+            if (value instanceof Map && startsWithKeyword("stream")) {
+                pos += 6;
+                // "stream" is followed by CRLF or LF
+                if (buffer.get(pos) == '\r') {
+                    pos += 1;
+                }
+                if (buffer.get(pos) == '\n') {
+                    pos += 1;
+                }
+                return new Stream(asDictionary(value), buffer, pos);
+            }
+            return value;
+        }
+
+        protected Object readObject() {
+
+            skipWhitespace();
+            int c = buffer.get(pos) & 0xFF;
+            switch (c) {
+            case '/':
+                pos += 1;
+                return new Name(readName());
+
+            case '(':
+                pos += 1;
+                return readLiteralString();
+
+            case '<':
+                if (buffer.get(pos + 1) == '<') {
+                    pos += 2;
+                    return readDictionary();
+                }
+                pos += 1;
+                return readHexString();
+
+            case '[':
+                pos += 1;
+                return readArray();
+
+            default:
+                if (c == '+' || c == '-' || c == '.'
+                        || Character.isDigit(c)) {
+                    return readNumberOrRef();
+                }
+                String keyword = readRegular();
+                switch (keyword) {
+                case "true":
+                    return Boolean.TRUE;
+                case "false":
+                    return Boolean.FALSE;
+                case "null":
+                    return null;
+                default:
+                    throw new IllegalArgumentException("Unexpected "
+                            + keyword + " at " + pos);
+                }
+            }
+        }
+
+        protected String readRegular() {
+
+            int start = pos;
+            while (pos < buffer.limit()) {
+                int c = buffer.get(pos) & 0xFF;
+                if (isWhitespace(c) || isDelimiter(c)) {
+                    break;
+                }
+                pos += 1;
+            }
+            if (pos == start) {
+                throw new IllegalArgumentException("Unexpected character at "
+                        + pos);
+            }
+            return new String(ParserUtils.getBytes(buffer, start, pos),
+                    StandardCharsets.ISO_8859_1);
+        }
+
+        protected String readName() {
+
+            int start = pos;
+            while (pos < buffer.limit()) {
+                int c = buffer.get(pos) & 0xFF;
+                if (isWhitespace(c) || isDelimiter(c)) {
+                    break;
+                }
+                pos += 1;
+            }
+            String raw = new String(ParserUtils.getBytes(buffer, start, pos),
+                    StandardCharsets.ISO_8859_1);
+            if (raw.indexOf('#') < 0) {
+                return raw;
+            }
+            // #xx escapes
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < raw.length(); i++) {
+                char ch = raw.charAt(i);
+                if (ch == '#' && i + 2 < raw.length()) {
+                    sb.append((char) Integer.parseInt(
+                            raw.substring(i + 1, i + 3), 16));
+                    i += 2;
+                } else {
+                    sb.append(ch);
+                }
+            }
+            return sb.toString();
+        }
+
+        /*
+         * A number, or a reference "n g R"
+         */
+        protected Object readNumberOrRef() {
+
+            String first = readRegular();
+            if (first.indexOf('.') >= 0) {
+                return Double.valueOf(first);
+            }
+            Long number = Long.valueOf(first);
+
+            // Look ahead for "g R"
+            int saved = pos;
+            skipWhitespace();
+            if (pos < buffer.limit()
+                    && Character.isDigit(buffer.get(pos) & 0xFF)) {
+                String second = readRegular();
+                skipWhitespace();
+                if (second.matches("\\d+") && startsWithKeyword("R")) {
+                    pos += 1;
+                    return new Ref(number.intValue(), Integer.parseInt(second));
+                }
+            }
+            pos = saved;
+            return number;
+        }
+
+        protected byte[] readLiteralString() {
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int depth = 1;
+            while (true) {
+                int c = buffer.get(pos++) & 0xFF;
+                if (c == '\\') {
+                    int e = buffer.get(pos++) & 0xFF;
+                    switch (e) {
+                    case 'n':
+                        out.write('\n');
+                        break;
+                    case 'r':
+                        out.write('\r');
+                        break;
+                    case 't':
+                        out.write('\t');
+                        break;
+                    case 'b':
+                        out.write('\b');
+                        break;
+                    case 'f':
+                        out.write('\f');
+                        break;
+                    case '\r':
+                        // Line continuation
+                        if (buffer.get(pos) == '\n') {
+                            pos += 1;
+                        }
+                        break;
+                    case '\n':
+                        break;
+                    default:
+                        if (e >= '0' && e <= '7') {
+                            int value = e - '0';
+                            for (int i = 0; i < 2; i++) {
+                                int d = buffer.get(pos) & 0xFF;
+                                if (d < '0' || d > '7') {
+                                    break;
+                                }
+                                value = value * 8 + (d - '0');
+                                pos += 1;
+                            }
+                            out.write(value & 0xFF);
+                        } else {
+                            out.write(e);
+                        }
+                    }
+                } else if (c == '(') {
+                    depth += 1;
+                    out.write(c);
+                } else if (c == ')') {
+                    depth -= 1;
+                    if (depth == 0) {
+                        break;
+                    }
+                    out.write(c);
+                } else {
+                    out.write(c);
+                }
+            }
+            return out.toByteArray();
+        }
+
+        protected byte[] readHexString() {
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int high = -1;
+            while (true) {
+                int c = buffer.get(pos++) & 0xFF;
+                if (c == '>') {
+                    break;
+                }
+                int digit = Character.digit(c, 16);
+                if (digit < 0) {
+                    continue;
+                }
+                if (high < 0) {
+                    high = digit;
+                } else {
+                    out.write((high << 4) | digit);
+                    high = -1;
+                }
+            }
+            if (high >= 0) {
+                out.write(high << 4);
+            }
+            return out.toByteArray();
+        }
+
+        protected Map<String, Object> readDictionary() {
+
+            LinkedHashMap<String, Object> dict = new LinkedHashMap<String, Object>();
+            while (true) {
+                skipWhitespace();
+                if (buffer.get(pos) == '>' && buffer.get(pos + 1) == '>') {
+                    pos += 2;
+                    return dict;
+                }
+                Object key = readObject();
+                if (!(key instanceof Name)) {
+                    throw new IllegalArgumentException("Name expected at "
+                            + pos);
+                }
+                dict.put(((Name) key).value, readObject());
+            }
+        }
+
+        protected List<Object> readArray() {
+
+            ArrayList<Object> array = new ArrayList<Object>();
+            while (true) {
+                skipWhitespace();
+                if (buffer.get(pos) == ']') {
+                    pos += 1;
+                    return array;
+                }
+                array.add(readObject());
+            }
+        }
+    }
+}
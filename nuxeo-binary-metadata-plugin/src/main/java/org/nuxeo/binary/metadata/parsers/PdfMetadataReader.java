@@ -0,0 +1,268 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.parsers;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.nuxeo.binary.metadata.exiftool.ExifToolJsonParser.RawNumber;
+
+/**
+ * Reads the document information of a PDF in Java (the <code>/Info</code>
+ * dictionary, the version and the number of pages), and returns it as
+ * ExifTool does (same tag names, same formatting as the JSON output of
+ * <code>exiftool -j</code>), without running ExifTool.
+ * <p>
+ * The file is mapped in memory and only the cross-reference sections and the
+ * few objects holding the values are read (see {@link PdfDocument}): For a
+ * large PDF, this is a few KB at the end of the file, whatever its size.
+ * <p>
+ * When the catalog has a <code>/Metadata</code> stream, ExifTool also reads
+ * the XMP, which has values with the same names (Title, Producer, ...): The
+ * keys without a group are then not read here, since ExifTool may return the
+ * XMP value. "PDF:Producer" (with the group) is always read from the Info.
+ * <p>
+ * {@link #read(String, String[])} returns null as soon as it cannot answer
+ * exactly as ExifTool would. The caller must then use ExifTool.
+ *
+ * @since 7.3
+ */
+public class PdfMetadataReader {
+
+    public static final String MIME_TYPE = "application/pdf";
+
+    protected static final String PDF_GROUP = "pdf:";
+
+    protected static final String PDF_VERSION = "PDFVersion";
+
+    protected static final String PAGE_COUNT = "PageCount";
+
+    // "D:20141115221754Z00'00'", "D:20150102030405+01'00'"
+    protected static final Pattern PDF_DATE = Pattern.compile("^(?:D:)?(\\d{4})(\\d{2})(\\d{2})(\\d{2})(\\d{2})(\\d{2})(?:(Z)|([+-])(\\d{2})'?(\\d{2})?'?)?");
+
+    /**
+     * The supported tags, by lower case name. Value: the key in the Info
+     * dictionary, null for the values that are not in the Info.
+     */
+    protected static final Map<String, String> TAGS;
+
+    protected static final Map<String, String> NAMES;
+
+    static {
+        HashMap<String, String> tags = new HashMap<String, String>();
+        HashMap<String, String> names = new HashMap<String, String>();
+        String[][] all = { { PDF_VERSION, null }, { PAGE_COUNT, null },
+                { "Title", "Title" }, { "Author", "Author" },
+                { "Subject", "Subject" }, { "Creator", "Creator" },
+                { "Producer", "Producer" },
+                { "CreateDate", "CreationDate" },
+                { "ModifyDate", "ModDate" } };
+        for (String[] tag : all) {
+            String lower = tag[0].toLowerCase(Locale.ENGLISH);
+            tags.put(lower, tag[1]);
+            names.put(lower, tag[0]);
+        }
+        TAGS = Collections.unmodifiableMap(tags);
+        NAMES = Collections.unmodifiableMap(names);
+    }
+
+    /**
+     * @param inTheseKeys
+     * @return true if all the keys are supported (the file may still not have
+     *         them)
+     *
+     * @since 7.3
+     */
+    public static boolean canRead(String[] inTheseKeys) {
+
+        if (inTheseKeys == null || inTheseKeys.length == 0) {
+            return false;
+        }
+        boolean hasKey = false;
+        for (String oneProp : inTheseKeys) {
+            if (oneProp == null || oneProp.isEmpty()) {
+                continue;
+            }
+            if (!NAMES.containsKey(toLowerCaseName(oneProp))) {
+                return false;
+            }
+            hasKey = true;
+        }
+        return hasKey;
+    }
+
+    protected static String toLowerCaseName(String inKey) {
+
+        String key = inKey.toLowerCase(Locale.ENGLISH);
+        if (key.startsWith(PDF_GROUP)) {
+            key = key.substring(PDF_GROUP.length());
+        }
+        return key;
+    }
+
+    /**
+     * @param inPath
+     * @param inTheseKeys
+     * @return the values by ExifTool tag name (String or {@link RawNumber}),
+     *         or null if ExifTool must be used
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, Object> read(String inPath,
+            String[] inTheseKeys) {
+
+        if (!canRead(inTheseKeys)) {
+            return null;
+        }
+        try {
+            return read(ParserUtils.map(inPath), inTheseKeys);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param inData the whole file
+     * @param inTheseKeys
+     * @return the values by ExifTool tag name (String or {@link RawNumber}),
+     *         or null if ExifTool must be used
+     *
+     * @since 7.3
+     */
+    public static HashMap<String, Object> read(ByteBuffer inData,
+            String[] inTheseKeys) {
+
+        if (!canRead(inTheseKeys)) {
+            return null;
+        }
+        try {
+            PdfDocument pdf = new PdfDocument(inData);
+            Object root = pdf.getTrailer().get("Root");
+            boolean hasXmp = pdf.get(root, "Metadata") != null;
+
+            HashMap<String, Object> result = new HashMap<String, Object>();
+            for (String oneProp : inTheseKeys) {
+                if (oneProp == null || oneProp.isEmpty()) {
+                    continue;
+                }
+                String lower = toLowerCaseName(oneProp);
+                String name = NAMES.get(lower);
+                boolean hasGroup = lower.length() != oneProp.length();
+
+                String value;
+                if (PAGE_COUNT.equals(name)) {
+                    Object count = pdf.get(pdf.get(root, "Pages"), "Count");
+                    value = count instanceof Long ? count.toString() : null;
+                } else if (hasXmp && !hasGroup) {
+                    // The XMP may have the same tag
+                    value = null;
+                } else if (PDF_VERSION.equals(name)) {
+                    value = getVersion(pdf, root);
+                } else {
+                    value = getInfoValue(pdf, TAGS.get(lower));
+                }
+                if (value == null) {
+                    return null;
+                }
+                result.put(name, toJsonValue(name, value));
+            }
+            return result;
+
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /*
+     * The /Version of the catalog (PDF 1.4) overrides the header
+     */
+    protected static String getVersion(PdfDocument inPdf, Object inRoot) {
+
+        Object version = inPdf.get(inRoot, "Version");
+        if (version instanceof PdfDocument.Name) {
+            return ((PdfDocument.Name) version).getValue();
+        }
+        String header = inPdf.getHeaderVersion();
+        return header.isEmpty() ? null : header;
+    }
+
+    protected static String getInfoValue(PdfDocument inPdf, String inInfoKey) {
+
+        Object value = inPdf.get(inPdf.getTrailer().get("Info"), inInfoKey);
+        if (!(value instanceof byte[])) {
+            return null;
+        }
+        String text = PdfDocument.toText((byte[]) value);
+        if (text == null) {
+            return null;
+        }
+        if ("CreationDate".equals(inInfoKey) || "ModDate".equals(inInfoKey)) {
+            return convertDate(text);
+        }
+        return text;
+    }
+
+    /**
+     * Convert a PDF date the way ExifTool does: "D:20141115221754Z00'00'" =>
+     * "2014:11:15 22:17:54Z", "D:20150102030405+01'00'" =>
+     * "2015:01:02 03:04:05+01:00"
+     *
+     * @param inDate
+     * @return the converted date, null if the date is incomplete or not valid
+     *
+     * @since 7.3
+     */
+    public static String convertDate(String inDate) {
+
+        Matcher m = PDF_DATE.matcher(inDate.trim());
+        if (!m.find()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(m.group(1)).append(':').append(m.group(2)).append(':').append(
+                m.group(3));
+        sb.append(' ').append(m.group(4)).append(':').append(m.group(5)).append(
+                ':').append(m.group(6));
+        if (m.group(7) != null) {
+            sb.append('Z');
+        } else if (m.group(8) != null) {
+            sb.append(m.group(8)).append(m.group(9)).append(':').append(
+                    m.group(10) == null ? "00" : m.group(10));
+        }
+        return sb.toString();
+    }
+
+    /*
+     * ExifTool outputs the version and the page count as JSON numbers
+     */
+    protected static Object toJsonValue(String inName, String inValue) {
+
+        if ((PDF_VERSION.equals(inName) && inValue.matches("\\d+\\.\\d+"))
+                || PAGE_COUNT.equals(inName)) {
+            return new RawNumber(inValue);
+        }
+        return inValue;
+    }
+}
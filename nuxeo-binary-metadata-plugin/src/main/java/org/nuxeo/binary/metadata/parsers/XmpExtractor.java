@@ -0,0 +1,263 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.parsers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Extracts the raw XMP packet of a file in Java, as
+ * <code>exiftool -xmp -b</code> returns it, without running ExifTool. The
+ * file is mapped in memory and only the containers of the packet are read:
+ * <ul>
+ * <li>JPEG: APP1 segment "http://ns.adobe.com/xap/1.0/"</li>
+ * <li>TIFF: tag 700 of IFD0</li>
+ * <li>PNG: iTXt chunk "XML:com.adobe.xmp" (compressed or not)</li>
+ * <li>PDF: the metadata stream of the catalog, found with the
+ * cross-reference table (see {@link PdfDocument})</li>
+ * </ul>
+ * {@link #extract(String)} returns null when it cannot be sure of the result
+ * (other format, extended XMP in JPEG, encrypted PDF, UTF-16 packet,
+ * corrupted file, ...): The caller must then
+ * use ExifTool.
+ *
+ * @since 7.3
+ */
+public class XmpExtractor {
+
+    protected static final byte[] JPEG_XMP = ParserUtils.ascii("http://ns.adobe.com/xap/1.0/\0");
+
+    protected static final byte[] JPEG_EXTENDED_XMP = ParserUtils.ascii("http://ns.adobe.com/xmp/extension/\0");
+
+    protected static final byte[] PNG_XMP_KEYWORD = ParserUtils.ascii("XML:com.adobe.xmp\0");
+
+    protected static final byte[] PDF_MAGIC = ParserUtils.ascii("%PDF-");
+
+    protected static final int TIFF_XMP_TAG = 700;
+
+    /**
+     * @param inPath
+     * @return the XMP packet, "" if the file has no XMP, null if the format
+     *         is not handled or the result is not sure
+     *
+     * @since 7.3
+     */
+    public static String extract(String inPath) {
+
+        try {
+            return extract(ParserUtils.map(inPath));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param inData the whole file
+     * @return the XMP packet, "" if the file has no XMP, null if the format
+     *         is not handled or the result is not sure
+     *
+     * @since 7.3
+     */
+    public static String extract(ByteBuffer inData) {
+
+        ByteBuffer data = inData.duplicate();
+        data.position(0);
+        try {
+            byte[] packet;
+            switch (ImageHeaderParser.detectFormat(data)) {
+            case ImageHeaderParser.JPEG:
+                packet = extractFromJPEG(data);
+                break;
+            case ImageHeaderParser.TIFF:
+                packet = extractFromTIFF(data);
+                break;
+            case ImageHeaderParser.PNG:
+                packet = extractFromPNG(data);
+                break;
+            default:
+                if (!ParserUtils.startsWith(data, 0, PDF_MAGIC)) {
+                    return null;
+                }
+                packet = extractFromPDF(data);
+            }
+            return toString(packet);
+
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException | DataFormatException e) {
+            return null;
+        }
+    }
+
+    /*
+     * null if the packet is not UTF-8
+     */
+    protected static String toString(byte[] inPacket) {
+
+        if (inPacket == null) {
+            return null;
+        }
+        if (inPacket.length >= 2
+                && (inPacket[0] == 0 || inPacket[1] == 0
+                        || (inPacket[0] & 0xFF) == 0xFE || (inPacket[0] & 0xFF) == 0xFF)) {
+            return null;
+        }
+        return new String(inPacket, StandardCharsets.UTF_8);
+    }
+
+    protected static byte[] extractFromJPEG(ByteBuffer inData) {
+
+        inData.order(ByteOrder.BIG_ENDIAN);
+        byte[] packet = new byte[0];
+
+        int pos = 2;
+        while (pos + 4 <= inData.limit()) {
+            if ((inData.get(pos) & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = inData.get(pos + 1) & 0xFF;
+            if (marker == 0xFF) {
+                pos += 1;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                break;
+            }
+            int length = inData.getShort(pos + 2) & 0xFFFF;
+            int segment = pos + 4;
+            int end = segment + length - 2;
+
+            if (marker == 0xE1) {
+                if (ParserUtils.startsWith(inData, segment, JPEG_XMP)) {
+                    if (packet.length > 0) {
+                        return null;
+                    }
+                    packet = ParserUtils.getBytes(inData, segment
+                            + JPEG_XMP.length, end);
+                } else if (ParserUtils.startsWith(inData, segment,
+                        JPEG_EXTENDED_XMP)) {
+                    // Split in several segments, let ExifTool merge them
+                    return null;
+                }
+            }
+            pos = end;
+        }
+        return packet;
+    }
+
+    protected static byte[] extractFromTIFF(ByteBuffer inData) {
+
+        inData.order(inData.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN
+                : ByteOrder.BIG_ENDIAN);
+
+        int ifd = inData.getInt(4);
+        int count = inData.getShort(ifd) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + 12 * i;
+            if ((inData.getShort(entry) & 0xFFFF) == TIFF_XMP_TAG) {
+                int length = inData.getInt(entry + 4);
+                int offset = length <= 4 ? entry + 8 : inData.getInt(entry + 8);
+                return ParserUtils.getBytes(inData, offset, offset + length);
+            }
+        }
+        return new byte[0];
+    }
+
+    protected static byte[] extractFromPNG(ByteBuffer inData)
+            throws DataFormatException {
+
+        inData.order(ByteOrder.BIG_ENDIAN);
+
+        int pos = 8;
+        while (pos + 8 <= inData.limit()) {
+            int length = inData.getInt(pos);
+            if (length < 0) {
+                return null;
+            }
+            String type = ImageHeaderParser.chunkType(inData, pos + 4);
+            int chunk = pos + 8;
+
+            if ("iTXt".equals(type)
+                    && ParserUtils.startsWith(inData, chunk, PNG_XMP_KEYWORD)) {
+                // keyword\0, compression flag, compression method, language
+                // tag\0, translated keyword\0, text
+                int p = chunk + PNG_XMP_KEYWORD.length;
+                boolean compressed = inData.get(p) == 1;
+                p = skipNullTerminated(inData, p + 2);
+                p = skipNullTerminated(inData, p);
+                byte[] text = ParserUtils.getBytes(inData, p, chunk + length);
+                return compressed ? inflate(text) : text;
+            } else if ("IEND".equals(type)) {
+                break;
+            }
+            pos = chunk + length + 4;
+        }
+        return new byte[0];
+    }
+
+    protected static int skipNullTerminated(ByteBuffer inData, int inPos) {
+
+        int pos = inPos;
+        while (inData.get(pos) != 0) {
+            pos += 1;
+        }
+        return pos + 1;
+    }
+
+    protected static byte[] inflate(byte[] inData) throws DataFormatException {
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(inData);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    inData.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated XMP");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /*
+     * The /Metadata stream of the catalog. The XMP of the pages, images, ...
+     * is not the one of the document
+     */
+    protected static byte[] extractFromPDF(ByteBuffer inData) {
+
+        PdfDocument pdf = new PdfDocument(inData);
+        Object metadata = pdf.get(pdf.getTrailer().get("Root"), "Metadata");
+        if (metadata == null) {
+            return new byte[0];
+        }
+        if (!(metadata instanceof PdfDocument.Stream)) {
+            return null;
+        }
+        return pdf.decode((PdfDocument.Stream) metadata);
+    }
+}
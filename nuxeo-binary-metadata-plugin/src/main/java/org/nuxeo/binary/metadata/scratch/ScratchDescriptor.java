@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.scratch;
+
+import java.io.File;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Where the scratch files (copies of the blobs, prefix windows, ...) are
+ * created, and how much disk they can use, contributed to the
+ * <code>scratch</code> extension point of
+ * <code>org.nuxeo.binary.metadata.BinaryMetadataComponent</code>. A value not
+ * set in the contribution keeps its default value.
+ *
+ * @since 7.3
+ */
+@XObject("scratch")
+public class ScratchDescriptor {
+
+    /**
+     * The directory (a tmpfs, ...), created if needed. Default: the
+     * temporary directory of the JVM
+     */
+    @XNode("directory")
+    protected String directory;
+
+    /**
+     * Max. disk used by all the scratch files. When it would be exceeded, a
+     * new scratch file is refused. 0 means no quota
+     */
+    @XNode("maxMegabytes")
+    protected long maxMegabytes = 0;
+
+    /**
+     * Whether the file system of the directory supports sparse files: "true",
+     * "false", or "auto" to decide from its type (ext4, xfs, tmpfs, ...). A
+     * prefix window is counted for the ranges it copies when it does, for the
+     * whole length of the blob when it does not (or is not known to)
+     */
+    @XNode("sparseFiles")
+    protected String sparseFiles = "auto";
+
+    public File getDirectory() {
+        if (directory == null || directory.trim().isEmpty()) {
+            return new File(System.getProperty("java.io.tmpdir"));
+        }
+        return new File(directory.trim());
+    }
+
+    /**
+     * @return the quota in bytes, 0 if none
+     */
+    public long getQuotaBytes() {
+        return Math.max(0, maxMegabytes) * 1024L * 1024L;
+    }
+
+    /**
+     * @return TRUE or FALSE when set, null for "auto"
+     */
+    public Boolean getSparseFiles() {
+        if (sparseFiles == null || "auto".equalsIgnoreCase(sparseFiles.trim())) {
+            return null;
+        }
+        return Boolean.valueOf(sparseFiles.trim());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.scratch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.lang.ref.Reference;
+
+/**
+ * A file created by {@link ScratchFiles}, deleted by {@link #close()}. The
+ * bytes it uses are counted against the quota: They are reserved when the
+ * file is created, and when it grows (see {@link #reserve(long)}).
+ * <p>
+ * Closing twice does nothing.
+ *
+ * @since 7.3
+ */
+public class ScratchFile implements Closeable {
+
+    protected final File file;
+
+    protected long reserved = 0;
+
+    protected boolean closed = false;
+
+    // See ScratchFiles#track
+    protected Reference<?> ownerReference = null;
+
+    protected ScratchFile(File inFile) {
+        file = inFile;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getPath() {
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Make sure the file can use inTotalBytes
+     *
+     * @param inTotalBytes the size the file will have
+     * @throws ScratchQuotaExceededException if the quota would be exceeded
+     *             (the file is unchanged)
+     *
+     * @since 7.3
+     */
+    public synchronized void reserve(long inTotalBytes)
+            throws ScratchQuotaExceededException {
+
+        if (closed) {
+            throw new IllegalStateException("Closed: " + file);
+        }
+        if (inTotalBytes > reserved) {
+            ScratchFiles.reserve(inTotalBytes - reserved);
+            reserved = inTotalBytes;
+        }
+    }
+
+    /**
+     * @return the bytes counted against the quota
+     */
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * The file is not a scratch file anymore (it is the file of a blob
+     * returned to the caller, ...): It is not deleted by {@link #close()},
+     * and not counted anymore.
+     *
+     * @return the file
+     *
+     * @since 7.3
+     */
+    public synchronized File detach() {
+
+        if (!closed) {
+            closed = true;
+            clearOwnerReference();
+            ScratchFiles.released(this, reserved);
+        }
+        return file;
+    }
+
+    /**
+     * Delete the file
+     */
+    @Override
+    public synchronized void close() {
+
+        if (!closed) {
+            closed = true;
+            clearOwnerReference();
+            file.delete();
+            ScratchFiles.released(this, reserved);
+        }
+    }
+
+    /*
+     * The owner was garbage collected without closing the file
+     */
+    protected synchronized boolean closeUnreachable() {
+
+        if (closed) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    protected synchronized void setOwnerReference(Reference<?> inReference) {
+        clearOwnerReference();
+        ownerReference = inReference;
+    }
+
+    protected void clearOwnerReference() {
+        if (ownerReference != null) {
+            ownerReference.clear();
+            ownerReference = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getName();
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.scratch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Creates the scratch files of the plug-in (copies of the blobs which are not
+ * files, prefix windows, ...) in the directory of the configuration (see
+ * {@link ScratchDescriptor}), and counts the disk they use against its quota.
+ * <p>
+ * A scratch file is deleted when its owner is closed (a
+ * {@link org.nuxeo.binary.metadata.MetadataReader} or
+ * {@link org.nuxeo.binary.metadata.MetadataWriter}, used with
+ * try-with-resources): Nothing is kept until the end of the JVM or until a
+ * garbage collection. {@link #getBytesInUse()} and
+ * {@link #getFilesOutstanding()} tell what is not deleted yet: They stay flat
+ * when every owner is closed.
+ * <p>
+ * An owner which is never closed does not keep its files until the component
+ * stops: Its files are tracked (see {@link #track(ScratchFile, Object,
+ * Closeable)}), and deleted, with a warning, once it has been garbage
+ * collected. {@link #getFilesReclaimed()} counts them. Closing remains the
+ * normal way, the disk is then released at once.
+ *
+ * @since 7.3
+ */
+public class ScratchFiles {
+
+    protected static final Log log = LogFactory.getLog(ScratchFiles.class);
+
+    /**
+     * The types of file store known to support sparse files (the holes of a
+     * file use no disk). NFS, CIFS, FAT, ... are not: it depends on the server
+     * or is not supported
+     */
+    protected static final Set<String> SPARSE_FILE_STORES = new HashSet<String>(
+            Arrays.asList("ext2", "ext3", "ext4", "xfs", "btrfs", "tmpfs",
+                    "zfs", "f2fs", "jfs", "reiserfs", "apfs"));
+
+    protected static ScratchDescriptor configuration = new ScratchDescriptor();
+
+    /**
+     * Whether the directory of the configuration supports sparse files, null
+     * until checked
+     */
+    protected static Boolean sparseFiles;
+
+    protected static final AtomicLong bytesInUse = new AtomicLong();
+
+    protected static final AtomicLong filesCreated = new AtomicLong();
+
+    protected static final AtomicLong rejectedCount = new AtomicLong();
+
+    protected static final AtomicLong reclaimedCount = new AtomicLong();
+
+    protected static final ReferenceQueue<Object> unreachableOwners = new ReferenceQueue<Object>();
+
+    protected static Thread reclaimer = null;
+
+    protected static final Set<ScratchFile> outstanding = Collections.newSetFromMap(new ConcurrentHashMap<ScratchFile, Boolean>());
+
+    /**
+     * Use another directory and quota for the next scratch files. The
+     * current ones are not affected.
+     *
+     * @param inConfig null for the default configuration
+     *
+     * @since 7.3
+     */
+    public static synchronized void configure(ScratchDescriptor inConfig) {
+        configuration = inConfig == null ? new ScratchDescriptor() : inConfig;
+        sparseFiles = null;
+    }
+
+    public static synchronized ScratchDescriptor getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Create an empty scratch file
+     *
+     * @param inPrefix at least 3 characters ("MDRW-", ...)
+     * @param inExpectedBytes the size it will have, reserved at once (0 or
+     *            -1 if not known, see {@link ScratchFile#reserve(long)})
+     * @return the file, to close when done
+     * @throws ScratchQuotaExceededException if the quota would be exceeded
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public static ScratchFile create(String inPrefix, long inExpectedBytes)
+            throws IOException {
+        return create(inPrefix, "", inExpectedBytes);
+    }
+
+    /**
+     * Same as {@link #create(String, long)}, with an extension (the tools
+     * use it to know the format of a file they create)
+     *
+     * @param inPrefix
+     * @param inSuffix ".jpg", ... ("" for none)
+     * @param inExpectedBytes
+     * @return the file, to close when done
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public static ScratchFile create(String inPrefix, String inSuffix,
+            long inExpectedBytes) throws IOException {
+
+        File dir = getDirectory(getConfiguration());
+        long expected = Math.max(0, inExpectedBytes);
+        reserve(expected);
+        File file;
+        try {
+            file = File.createTempFile(inPrefix, inSuffix, dir);
+        } catch (IOException e) {
+            bytesInUse.addAndGet(-expected);
+            throw e;
+        }
+
+        ScratchFile scratch = new ScratchFile(file);
+        scratch.reserved = expected;
+        outstanding.add(scratch);
+        filesCreated.incrementAndGet();
+        return scratch;
+    }
+
+    /**
+     * Delete inFile (and release its quota) when inOwner is garbage collected
+     * without having closed it. The file must not reference its owner.
+     *
+     * @param inFile
+     * @param inOwner the reader, window, ... which closes the file when it is
+     *            closed
+     * @param inResource closed before the file is deleted (the channel
+     *            writing it, ...), null if none
+     *
+     * @since 7.3
+     */
+    public static void track(ScratchFile inFile, Object inOwner,
+            Closeable inResource) {
+
+        inFile.setOwnerReference(new OwnerReference(inOwner, inFile,
+                inResource));
+        startReclaimer();
+    }
+
+    protected static synchronized void startReclaimer() {
+
+        if (reclaimer != null) {
+            return;
+        }
+        reclaimer = new Thread("ScratchFiles-reclaimer") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        ((OwnerReference) unreachableOwners.remove()).reclaim();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        reclaimer.setDaemon(true);
+        reclaimer.start();
+    }
+
+    /*
+     * Enqueued when the owner of the file is unreachable. Cleared (never
+     * enqueued) when the file is closed or detached
+     */
+    protected static class OwnerReference extends PhantomReference<Object> {
+
+        protected final ScratchFile file;
+
+        protected final Closeable resource;
+
+        protected OwnerReference(Object inOwner, ScratchFile inFile,
+                Closeable inResource) {
+            super(inOwner, unreachableOwners);
+            file = inFile;
+            resource = inResource;
+        }
+
+        protected void reclaim() {
+
+            if (resource != null) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    // Deleted anyway
+                }
+            }
+            if (file.closeUnreachable()) {
+                reclaimedCount.incrementAndGet();
+                log.warn("Scratch file " + file
+                        + " deleted: its owner was not closed");
+            }
+        }
+    }
+
+    /**
+     * Tells whether a sparse file created in the scratch directory uses disk
+     * for its written ranges only (see the <code>sparseFiles</code> of
+     * {@link ScratchDescriptor}).
+     * When this cannot be confirmed, the whole length of such a file has to be
+     * reserved.
+     *
+     * @return true if the holes of a scratch file use no disk
+     * @throws IOException
+     *
+     * @since 7.3
+     */
+    public static synchronized boolean supportsSparseFiles() throws IOException {
+
+        if (sparseFiles == null) {
+            Boolean configured = configuration.getSparseFiles();
+            if (configured != null) {
+                sparseFiles = configured;
+            } else {
+                File dir = getDirectory(configuration);
+                String type = Files.getFileStore(dir.toPath()).type();
+                sparseFiles = type != null
+                        && SPARSE_FILE_STORES.contains(type.toLowerCase(Locale.ENGLISH));
+                log.debug("Scratch directory " + dir + " (" + type + "): "
+                        + (sparseFiles ? "" : "no ") + "sparse files");
+            }
+        }
+        return sparseFiles;
+    }
+
+    protected static File getDirectory(ScratchDescriptor inConfig)
+            throws IOException {
+
+        File dir = inConfig.getDirectory();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create the scratch directory "
+                    + dir);
+        }
+        return dir;
+    }
+
+    protected static void reserve(long inBytes)
+            throws ScratchQuotaExceededException {
+
+        long quota = getConfiguration().getQuotaBytes();
+        while (true) {
+            long current = bytesInUse.get();
+            if (quota > 0 && current + inBytes > quota) {
+                rejectedCount.incrementAndGet();
+                throw new ScratchQuotaExceededException(
+                        "The scratch files would use " + (current + inBytes)
+                                + " bytes, the quota is " + quota + " bytes");
+            }
+            if (bytesInUse.compareAndSet(current, current + inBytes)) {
+                return;
+            }
+        }
+    }
+
+    protected static void released(ScratchFile inFile, long inReserved) {
+        outstanding.remove(inFile);
+        bytesInUse.addAndGet(-inReserved);
+    }
+
+    /**
+     * Delete all the scratch files not closed yet (when the component
+     * stops)
+     *
+     * @since 7.3
+     */
+    public static void deleteAll() {
+
+        ArrayList<ScratchFile> files = new ArrayList<ScratchFile>(outstanding);
+        if (!files.isEmpty()) {
+            log.warn(files.size() + " scratch file(s) not closed, deleted: "
+                    + files);
+        }
+        for (ScratchFile file : files) {
+            file.close();
+        }
+    }
+
+    /**
+     * @return the bytes reserved by the scratch files not closed yet
+     */
+    public static long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    /**
+     * @return the number of scratch files not closed yet
+     */
+    public static int getFilesOutstanding() {
+        return outstanding.size();
+    }
+
+    /**
+     * @return the number of scratch files created since the start (or the
+     *         last {@link #resetStatistics()})
+     */
+    public static long getFilesCreated() {
+        return filesCreated.get();
+    }
+
+    /**
+     * @return the number of scratch files (or growths) refused because of the
+     *         quota
+     */
+    public static long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return the number of scratch files deleted because their owner was
+     *         garbage collected without being closed
+     */
+    public static long getFilesReclaimed() {
+        return reclaimedCount.get();
+    }
+
+    public static void resetStatistics() {
+        filesCreated.set(0);
+        rejectedCount.set(0);
+        reclaimedCount.set(0);
+    }
+}
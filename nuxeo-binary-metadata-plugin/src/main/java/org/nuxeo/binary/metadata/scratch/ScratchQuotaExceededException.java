@@ -0,0 +1,34 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.scratch;
+
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Thrown when a scratch file would exceed the quota of the scratch directory
+ * (see {@link ScratchDescriptor}).
+ *
+ * @since 7.3
+ */
+public class ScratchQuotaExceededException extends ClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ScratchQuotaExceededException(String inMessage) {
+        super(inMessage);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Runs a command line tool with a timeout, and returns its output (or lets an
+ * {@link OutputHandler} read it while it is produced).
+ * <p>
+ * The call is first admitted by the {@link ToolBulkhead} of the tool. If the
+ * process runs longer than the timeout, it is killed with its children (see
+ * {@link ProcessWatchdog}) and a {@link ToolTimeoutException} is thrown.
+ *
+ * @since 7.3
+ */
+public class ProcessRunner {
+
+    // Max. wait for the thread writing stdin, once the process has exited
+    protected static final long FEEDER_STOP_MILLIS = 1000;
+
+    /**
+     * Reads the stdout of the process while it is produced. The handler does
+     * not have to read it until the end, and must not close it.
+     *
+     * @since 7.3
+     */
+    public interface OutputHandler {
+
+        void handle(InputStream inStdout) throws IOException;
+    }
+
+    /**
+     * @param inTool
+     * @param inCommand the command and its arguments
+     * @param inTimeoutMillis -1 to use the timeout of the tool (see
+     *            {@link ToolDescriptor}), 0 for no timeout
+     * @return the lines of stdout
+     * @throws ClientException if the command failed (exit code not 0), if it
+     *             timed out ({@link ToolTimeoutException}) or was rejected (
+     *             {@link ToolRejectedException})
+     *
+     * @since 7.3
+     */
+    public static ArrayList<String> run(TOOL inTool, List<String> inCommand,
+            long inTimeoutMillis) throws ClientException {
+        return run(inTool, inCommand, null, inTimeoutMillis);
+    }
+
+    /**
+     * Same as {@link #run(TOOL, List, long)}, inInput is written to the stdin
+     * of the process while its output is read. The tool may stop reading
+     * before the end (when it has found what it needs): This is not an error.
+     *
+     * @param inTool
+     * @param inCommand
+     * @param inInput null for no input. Closed by this method
+     * @param inTimeoutMillis
+     * @return the lines of stdout
+     * @throws ClientException
+     *
+     * @since 7.3
+     */
+    public static ArrayList<String> run(TOOL inTool, List<String> inCommand,
+            InputStream inInput, long inTimeoutMillis) throws ClientException {
+
+        final ArrayList<String> output = new ArrayList<String>();
+        run(inTool, inCommand, inInput, new OutputHandler() {
+            @Override
+            public void handle(InputStream inStdout) throws IOException {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(inStdout));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.add(line);
+                }
+            }
+        }, inTimeoutMillis);
+        return output;
+    }
+
+    /**
+     * Same as {@link #run(TOOL, List, InputStream, long)}, inHandler reads
+     * stdout while it is produced instead of it being buffered. What the
+     * handler does not read is skipped.
+     *
+     * @param inTool
+     * @param inCommand
+     * @param inInput null for no input. Closed by this method
+     * @param inHandler
+     * @param inTimeoutMillis
+     * @throws ClientException if the command failed, timed out, was rejected,
+     *             or if the handler failed (the process is then killed)
+     *
+     * @since 7.3
+     */
+    public static void run(TOOL inTool, List<String> inCommand,
+            InputStream inInput, OutputHandler inHandler, long inTimeoutMillis)
+            throws ClientException {
+
+        ToolBulkhead bulkhead = ToolBulkheads.get(inTool);
+        try {
+            long timeout = bulkhead.acquireForCall(inTimeoutMillis);
+            try {
+                doRun(inTool, inCommand, inInput, inHandler, timeout);
+            } finally {
+                bulkhead.release();
+            }
+        } finally {
+            closeQuietly(inInput);
+        }
+    }
+
+    protected static void doRun(TOOL inTool, List<String> inCommand,
+            InputStream inInput, OutputHandler inHandler, long inTimeoutMillis)
+            throws ClientException {
+
+        Process process;
+        try {
+            process = new ProcessBuilder(inCommand).start();
+        } catch (IOException e) {
+            throw new ClientException("Cannot run " + inCommand.get(0), e);
+        }
+
+        ProcessWatchdog.Watch watch = ProcessWatchdog.watch(process,
+                inTimeoutMillis);
+        StreamCollector stderr = new StreamCollector(process.getErrorStream());
+        stderr.start();
+
+        StreamFeeder stdin = null;
+        int exitCode;
+        boolean completed = false;
+        try {
+            if (inInput == null) {
+                process.getOutputStream().close();
+            } else {
+                stdin = new StreamFeeder(inInput, process.getOutputStream());
+                stdin.start();
+            }
+            try (InputStream stdout = process.getInputStream()) {
+                inHandler.handle(stdout);
+                // What the handler did not need
+                byte[] buffer = new byte[StreamFeeder.BUFFER_SIZE];
+                while (stdout.read(buffer) > -1) {
+                    // Ignore
+                }
+            }
+            exitCode = process.waitFor();
+            stderr.join();
+            completed = true;
+
+        } catch (IOException e) {
+            if (watch.hasFired()) {
+                throw new ToolTimeoutException(inTool, inTimeoutMillis);
+            }
+            // The handler failed (malformed output, ...)
+            throw new ClientException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(e);
+        } finally {
+            // Whatever failed, the handler included (RuntimeException, ...)
+            if (!completed) {
+                ProcessWatchdog.killTree(process);
+            }
+            watch.cancel();
+            if (stdin != null) {
+                stdin.stop(FEEDER_STOP_MILLIS);
+            }
+        }
+
+        if (watch.hasFired()) {
+            throw new ToolTimeoutException(inTool, inTimeoutMillis);
+        }
+        if (exitCode != 0) {
+            throw new ClientException(inCommand.get(0) + " failed (exit code "
+                    + exitCode + "): " + stderr.getOutput().trim());
+        }
+    }
+
+    /**
+     * Find inExecutable in the directories of inSearchPath (separated with
+     * File.pathSeparator), as im4java does. Returns inExecutable if the search
+     * path is empty or if it is not found (it will be searched in the PATH).
+     *
+     * @since 7.3
+     */
+    public static String resolve(String inExecutable, String inSearchPath) {
+
+        if (inSearchPath == null || inSearchPath.isEmpty()) {
+            return inExecutable;
+        }
+        for (String dir : inSearchPath.split(File.pathSeparator)) {
+            for (String name : new String[] { inExecutable,
+                    inExecutable + ".exe" }) {
+                File f = new File(dir, name);
+                if (f.isFile() && f.canExecute()) {
+                    return f.getAbsolutePath();
+                }
+            }
+        }
+        return inExecutable;
+    }
+
+    protected static void closeQuietly(InputStream inStream) {
+
+        if (inStream != null) {
+            try {
+                inStream.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /*
+     * Writes the input on stdin while we read stdout. When the process stops
+     * reading (it has what it needs, or it exited), the write fails: Nothing
+     * else to do, the exit code tells if it went well
+     */
+    protected static class StreamFeeder extends Thread {
+
+        protected static final int BUFFER_SIZE = 65536;
+
+        protected final InputStream input;
+
+        protected final OutputStream stdin;
+
+        protected StreamFeeder(InputStream inInput, OutputStream inStdin) {
+            super("ProcessRunner-stdin");
+            setDaemon(true);
+            input = inInput;
+            stdin = inStdin;
+        }
+
+        @Override
+        public void run() {
+            try (OutputStream out = stdin) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = input.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            } catch (IOException e) {
+                // Broken pipe, or input closed by stop()
+            }
+        }
+
+        /*
+         * The process has exited (or was killed): It does not need the rest
+         * of the input. The thread may be blocked reading it (a stalled
+         * remote stream): The input is closed and the thread interrupted,
+         * which unblocks most streams, and the caller never waits more than
+         * inMaxWaitMillis. A thread still blocked is a daemon, it ends with
+         * the read
+         */
+        protected void stop(long inMaxWaitMillis) {
+
+            if (!isAlive()) {
+                return;
+            }
+            interrupt();
+            closeQuietly(input);
+            try {
+                join(inMaxWaitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * Reads stderr while we read stdout, so the process never blocks writing
+     * in a full pipe
+     */
+    protected static class StreamCollector extends Thread {
+
+        protected final InputStream stream;
+
+        protected final StringBuilder output = new StringBuilder();
+
+        protected StreamCollector(InputStream inStream) {
+            super("ProcessRunner-stderr");
+            setDaemon(true);
+            stream = inStream;
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(stream))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    synchronized (output) {
+                        output.append(line).append('\n');
+                    }
+                }
+            } catch (IOException e) {
+                // The process is gone
+            }
+        }
+
+        public String getOutput() {
+            synchronized (output) {
+                return output.toString();
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Kills a process (and the processes it started) when it runs for too long.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * ProcessWatchdog.Watch watch = ProcessWatchdog.watch(process, timeoutMillis);
+ * try {
+ *     // read the output, wait for the process
+ * } finally {
+ *     watch.cancel();
+ * }
+ * if (watch.hasFired()) {
+ *     throw new ToolTimeoutException(tool, timeoutMillis);
+ * }
+ * </pre>
+ *
+ * Killing the process closes its streams, so a thread blocked reading them is
+ * released.
+ *
+ * @since 7.3
+ */
+public class ProcessWatchdog {
+
+    private static final Log log = LogFactory.getLog(ProcessWatchdog.class);
+
+    protected static final boolean IS_WINDOWS = System.getProperty("os.name",
+            "").toLowerCase().startsWith("windows");
+
+    protected static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ProcessWatchdog");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * The watch of one process
+     *
+     * @since 7.3
+     */
+    public static class Watch {
+
+        protected final ScheduledFuture<?> future;
+
+        protected volatile boolean fired = false;
+
+        protected Watch(final Process inProcess, long inTimeoutMillis) {
+
+            if (inProcess == null || inTimeoutMillis <= 0) {
+                future = null;
+                return;
+            }
+            future = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fired = true;
+                    killTree(inProcess);
+                }
+            }, inTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public void cancel() {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        /** true if the process was killed because it timed out */
+        public boolean hasFired() {
+            return fired;
+        }
+    }
+
+    /**
+     * Kill inProcess (and its children) if it is still running after
+     * inTimeoutMillis. No timeout if inTimeoutMillis is 0 or less.
+     *
+     * @param inProcess
+     * @param inTimeoutMillis
+     * @return the watch, to cancel once the process is done
+     *
+     * @since 7.3
+     */
+    public static Watch watch(Process inProcess, long inTimeoutMillis) {
+        return new Watch(inProcess, inTimeoutMillis);
+    }
+
+    /**
+     * Kill the process and all its descendants.
+     *
+     * @param inProcess
+     *
+     * @since 7.3
+     */
+    public static void killTree(Process inProcess) {
+
+        long pid = getPid(inProcess);
+        if (pid > 0) {
+            try {
+                if (IS_WINDOWS) {
+                    exec("taskkill", "/F", "/T", "/PID", String.valueOf(pid));
+                } else {
+                    // Children first, so they are not re-parented
+                    List<Long> descendants = getDescendants(pid);
+                    if (!descendants.isEmpty()) {
+                        ArrayList<String> cmd = new ArrayList<String>();
+                        cmd.add("kill");
+                        cmd.add("-KILL");
+                        for (Long oneChild : descendants) {
+                            cmd.add(String.valueOf(oneChild));
+                        }
+                        exec(cmd.toArray(new String[cmd.size()]));
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Cannot kill the children of process " + pid + ": "
+                        + e.getMessage());
+            }
+        }
+        inProcess.destroyForcibly();
+    }
+
+    /*
+     * Process.pid() exists since Java 9, the private "pid" field of the Unix
+     * implementation before. -1 if it cannot be found.
+     */
+    protected static long getPid(Process inProcess) {
+
+        try {
+            Method m = Process.class.getMethod("pid");
+            return ((Number) m.invoke(inProcess)).longValue();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Before Java 9
+        }
+        try {
+            Field f = inProcess.getClass().getDeclaredField("pid");
+            f.setAccessible(true);
+            return f.getLong(inProcess);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /*
+     * Uses the parent pid of all the processes, as returned by ps
+     */
+    protected static List<Long> getDescendants(long inPid) throws IOException {
+
+        HashMap<Long, List<Long>> children = new HashMap<Long, List<Long>>();
+        Process ps = new ProcessBuilder("ps", "-A", "-o", "pid=,ppid=").start();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                ps.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length != 2) {
+                    continue;
+                }
+                try {
+                    Long pid = Long.valueOf(parts[0]);
+                    Long ppid = Long.valueOf(parts[1]);
+                    List<Long> list = children.get(ppid);
+                    if (list == null) {
+                        list = new ArrayList<Long>();
+                        children.put(ppid, list);
+                    }
+                    list.add(pid);
+                } catch (NumberFormatException e) {
+                    // Ignore
+                }
+            }
+        }
+        try {
+            ps.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        ArrayList<Long> result = new ArrayList<Long>();
+        ArrayList<Long> toVisit = new ArrayList<Long>();
+        toVisit.add(inPid);
+        while (!toVisit.isEmpty()) {
+            List<Long> list = children.get(toVisit.remove(toVisit.size() - 1));
+            if (list != null) {
+                for (Long oneChild : list) {
+                    if (!result.contains(oneChild)) {
+                        result.add(oneChild);
+                        toVisit.add(oneChild);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    protected static void exec(String... inCommand) throws IOException {
+
+        ProcessBuilder pb = new ProcessBuilder(inCommand);
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        try {
+            p.getOutputStream().close();
+            while (p.getInputStream().read() > -1) {
+                // Ignore the output
+            }
+            p.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
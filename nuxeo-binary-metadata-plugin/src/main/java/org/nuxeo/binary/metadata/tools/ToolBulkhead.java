@@ -0,0 +1,265 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.tools;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+
+/**
+ * Admission control for one external tool: at most
+ * <code>maxConcurrent</code> invocations run at the same time, at most
+ * <code>maxQueue</code> callers wait for a permit, and a caller does not wait
+ * more than its deadline. A caller that cannot be admitted gets a
+ * {@link ToolRejectedException}, so a bulk import fails fast instead of forking
+ * hundreds of processes.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * ToolBulkhead bulkhead = ToolBulkheads.get(TOOL.IMAGEMAGICK);
+ * bulkhead.acquire();
+ * try {
+ *     // run the tool
+ * } finally {
+ *     bulkhead.release();
+ * }
+ * </pre>
+ *
+ * A call with its own timeout uses {@link #acquireForCall(long)} instead: The
+ * timeout is then a deadline for the wait and the invocation together.
+ * <p>
+ * The counters (queue depth, wait time, rejections, ...) can be read at any
+ * time, and are published in the Nuxeo metrics (see
+ * {@link ToolBulkheads#registerMetrics()}).
+ *
+ * @since 7.3
+ */
+public class ToolBulkhead {
+
+    protected final TOOL tool;
+
+    protected final ToolDescriptor config;
+
+    protected final Semaphore permits;
+
+    protected final AtomicInteger queued = new AtomicInteger();
+
+    protected final AtomicLong admittedCount = new AtomicLong();
+
+    protected final AtomicLong queueFullCount = new AtomicLong();
+
+    protected final AtomicLong deadlineExceededCount = new AtomicLong();
+
+    protected final AtomicLong totalWaitNanos = new AtomicLong();
+
+    protected final AtomicLong maxWaitNanos = new AtomicLong();
+
+    protected final AtomicInteger peakActive = new AtomicInteger();
+
+    public ToolBulkhead(TOOL inTool, ToolDescriptor inConfig) {
+        tool = inTool;
+        config = inConfig;
+        permits = new Semaphore(config.getMaxConcurrent(), true);
+    }
+
+    /**
+     * Wait for a permit, up to the <code>maxWaitSeconds</code> of the
+     * configuration.
+     *
+     * @throws ToolRejectedException if the queue is full or if no permit was
+     *             available in time
+     *
+     * @since 7.3
+     */
+    public void acquire() throws ToolRejectedException {
+        acquire(config.getMaxWaitSeconds() * 1000L);
+    }
+
+    /**
+     * Wait for a permit, up to inMaxWaitMillis.
+     *
+     * @param inMaxWaitMillis
+     * @throws ToolRejectedException if the queue is full or if no permit was
+     *             available in time
+     *
+     * @since 7.3
+     */
+    public void acquire(long inMaxWaitMillis) throws ToolRejectedException {
+
+        // Fast path, no wait. Not tryAcquire(), which would get a permit
+        // ahead of the callers already waiting for one
+        try {
+            if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                admitted(0);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw interrupted();
+        }
+
+        if (queued.incrementAndGet() > config.getMaxQueue()) {
+            queued.decrementAndGet();
+            queueFullCount.incrementAndGet();
+            throw new ToolRejectedException(tool, ToolDescriptor.toName(tool)
+                    + ": " + config.getMaxConcurrent()
+                    + " invocations running and " + config.getMaxQueue()
+                    + " waiting, rejecting the call");
+        }
+
+        long start = System.nanoTime();
+        boolean ok;
+        try {
+            ok = permits.tryAcquire(Math.max(0, inMaxWaitMillis),
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw interrupted();
+        } finally {
+            queued.decrementAndGet();
+        }
+
+        if (!ok) {
+            deadlineExceededCount.incrementAndGet();
+            throw new ToolRejectedException(tool, ToolDescriptor.toName(tool)
+                    + ": no permit available after " + inMaxWaitMillis
+                    + " ms (maxConcurrent: " + config.getMaxConcurrent() + ")");
+        }
+        admitted(System.nanoTime() - start);
+    }
+
+    protected ToolRejectedException interrupted() {
+        return new ToolRejectedException(tool, ToolDescriptor.toName(tool)
+                + ": interrupted while waiting for a permit");
+    }
+
+    /**
+     * Wait for a permit for a call with a timeout. When the caller sets its
+     * own timeout, it is a deadline for the whole call: The wait is at most
+     * this timeout (and at most <code>maxWaitSeconds</code>), and the
+     * invocation gets what is left of it.
+     *
+     * @param inTimeoutMillis the timeout of the call, -1 for the timeout of
+     *            the tool, 0 for no timeout
+     * @return the timeout of the invocation, in ms (0: no timeout). Call
+     *         {@link #release()} when it is done
+     * @throws ToolRejectedException if the queue is full or if no permit was
+     *             available in time
+     *
+     * @since 7.3
+     */
+    public long acquireForCall(long inTimeoutMillis)
+            throws ToolRejectedException {
+
+        long maxWait = config.getMaxWaitSeconds() * 1000L;
+        if (inTimeoutMillis <= 0) {
+            acquire(maxWait);
+            return config.getTimeoutMillis(inTimeoutMillis);
+        }
+
+        long start = System.nanoTime();
+        acquire(Math.min(maxWait, inTimeoutMillis));
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return Math.max(1, inTimeoutMillis - waited);
+    }
+
+    protected void admitted(long inWaitNanos) {
+
+        admittedCount.incrementAndGet();
+        totalWaitNanos.addAndGet(inWaitNanos);
+        long max;
+        while (inWaitNanos > (max = maxWaitNanos.get())
+                && !maxWaitNanos.compareAndSet(max, inWaitNanos)) {
+            // Retry
+        }
+        int active = getActiveCount();
+        int peak;
+        while (active > (peak = peakActive.get())
+                && !peakActive.compareAndSet(peak, active)) {
+            // Retry
+        }
+    }
+
+    /**
+     * Must be called once for each successful {@link #acquire()} (or
+     * {@link #acquireForCall(long)})
+     *
+     * @since 7.3
+     */
+    public void release() {
+        permits.release();
+    }
+
+    public TOOL getTool() {
+        return tool;
+    }
+
+    public ToolDescriptor getConfiguration() {
+        return config;
+    }
+
+    /** Number of invocations running */
+    public int getActiveCount() {
+        return config.getMaxConcurrent() - permits.availablePermits();
+    }
+
+    /** Max. number of invocations that ran at the same time */
+    public int getPeakActiveCount() {
+        return peakActive.get();
+    }
+
+    /** Number of callers waiting for a permit */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    /** Calls rejected because the queue was full */
+    public long getQueueFullCount() {
+        return queueFullCount.get();
+    }
+
+    /** Calls rejected because no permit was available before the deadline */
+    public long getDeadlineExceededCount() {
+        return deadlineExceededCount.get();
+    }
+
+    public long getRejectedCount() {
+        return queueFullCount.get() + deadlineExceededCount.get();
+    }
+
+    /** Total time spent waiting by the admitted calls */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    public double getAverageWaitMillis() {
+        long count = admittedCount.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / 1000000.0 / count;
+    }
+}
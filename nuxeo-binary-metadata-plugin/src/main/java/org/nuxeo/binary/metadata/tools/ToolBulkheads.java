@@ -0,0 +1,181 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.tools;
+
+import java.util.EnumMap;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * One {@link ToolBulkhead} per {@link TOOL}, configured by the
+ * <code>tools</code> extension point of <code>BinaryMetadataComponent</code>
+ * (default values of {@link ToolDescriptor} if nothing was contributed).
+ * <p>
+ * Their counters are published as gauges in the registry of the Nuxeo
+ * metrics, named <code>nuxeo.binary-metadata.tools.[tool].[counter]</code>
+ * ("nuxeo.binary-metadata.tools.imagemagick.queued", ...), by
+ * {@link #registerMetrics()}. A gauge reads the current bulkhead of its tool,
+ * so it is not affected by a new configuration.
+ *
+ * @since 7.3
+ */
+public class ToolBulkheads {
+
+    public static final String METRICS_PREFIX = "nuxeo.binary-metadata.tools";
+
+    protected static final EnumMap<TOOL, ToolBulkhead> bulkheads = new EnumMap<TOOL, ToolBulkhead>(
+            TOOL.class);
+
+    public static synchronized ToolBulkhead get(TOOL inTool) {
+
+        ToolBulkhead bulkhead = bulkheads.get(inTool);
+        if (bulkhead == null) {
+            bulkhead = new ToolBulkhead(inTool, new ToolDescriptor(inTool));
+            bulkheads.put(inTool, bulkhead);
+        }
+        return bulkhead;
+    }
+
+    /**
+     * Replace the bulkhead of the tool. The calls already admitted by the
+     * previous one are not affected.
+     *
+     * @param inConfig
+     *
+     * @since 7.3
+     */
+    public static synchronized void configure(ToolDescriptor inConfig) {
+
+        TOOL tool = inConfig.getTool();
+        if (tool == null) {
+            throw new IllegalArgumentException("Unknown tool: "
+                    + inConfig.getName());
+        }
+        bulkheads.put(tool, new ToolBulkhead(tool, inConfig));
+    }
+
+    /**
+     * Back to the default configuration
+     *
+     * @param inTool
+     *
+     * @since 7.3
+     */
+    public static synchronized void reset(TOOL inTool) {
+        bulkheads.remove(inTool);
+    }
+
+    /**
+     * Publish the counters of the bulkheads in the Nuxeo metrics (when the
+     * component is activated). Registering them again replaces them.
+     *
+     * @since 7.3
+     */
+    public static synchronized void registerMetrics() {
+
+        MetricRegistry registry = getMetricRegistry();
+        unregisterMetrics();
+        for (final TOOL tool : TOOL.values()) {
+            String prefix = MetricRegistry.name(METRICS_PREFIX,
+                    tool.name().toLowerCase());
+            registry.register(MetricRegistry.name(prefix, "active"),
+                    new Gauge<Integer>() {
+                        @Override
+                        public Integer getValue() {
+                            return get(tool).getActiveCount();
+                        }
+                    });
+            registry.register(MetricRegistry.name(prefix, "active-peak"),
+                    new Gauge<Integer>() {
+                        @Override
+                        public Integer getValue() {
+                            return get(tool).getPeakActiveCount();
+                        }
+                    });
+            registry.register(MetricRegistry.name(prefix, "queued"),
+                    new Gauge<Integer>() {
+                        @Override
+                        public Integer getValue() {
+                            return get(tool).getQueueDepth();
+                        }
+                    });
+            registry.register(MetricRegistry.name(prefix, "admitted"),
+                    new Gauge<Long>() {
+                        @Override
+                        public Long getValue() {
+                            return get(tool).getAdmittedCount();
+                        }
+                    });
+            registry.register(MetricRegistry.name(prefix, "rejected-queue-full"),
+                    new Gauge<Long>() {
+                        @Override
+                        public Long getValue() {
+                            return get(tool).getQueueFullCount();
+                        }
+                    });
+            registry.register(
+                    MetricRegistry.name(prefix, "rejected-deadline"),
+                    new Gauge<Long>() {
+                        @Override
+                        public Long getValue() {
+                            return get(tool).getDeadlineExceededCount();
+                        }
+                    });
+            registry.register(MetricRegistry.name(prefix, "wait-max-ms"),
+                    new Gauge<Long>() {
+                        @Override
+                        public Long getValue() {
+                            return get(tool).getMaxWaitMillis();
+                        }
+                    });
+            registry.register(MetricRegistry.name(prefix, "wait-average-ms"),
+                    new Gauge<Double>() {
+                        @Override
+                        public Double getValue() {
+                            return get(tool).getAverageWaitMillis();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Remove the gauges of {@link #registerMetrics()} (when the component is
+     * deactivated)
+     *
+     * @since 7.3
+     */
+    public static synchronized void unregisterMetrics() {
+
+        getMetricRegistry().removeMatching(new MetricFilter() {
+            @Override
+            public boolean matches(String inName, Metric inMetric) {
+                return inName.startsWith(METRICS_PREFIX + ".");
+            }
+        });
+    }
+
+    protected static MetricRegistry getMetricRegistry() {
+        return SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+    }
+}
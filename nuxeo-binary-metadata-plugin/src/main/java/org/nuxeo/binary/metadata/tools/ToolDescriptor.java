@@ -0,0 +1,151 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.tools;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Limits for one external tool, contributed to the <code>tools</code>
+ * extension point of
+ * <code>org.nuxeo.binary.metadata.BinaryMetadataComponent</code>.
+ * <p>
+ * The name is the one of the {@link TOOL} ("ImageMagick", "GraphicsMagick" or
+ * "ExifTool", case insensitive). A value not set in the contribution keeps its
+ * default value.
+ *
+ * @since 7.3
+ */
+@XObject("tool")
+public class ToolDescriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    /** Max. invocations of the tool running at the same time */
+    @XNode("maxConcurrent")
+    protected int maxConcurrent = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Max. callers waiting for a permit. When the queue is full, the caller
+     * fails immediately
+     */
+    @XNode("maxQueue")
+    protected int maxQueue = 100;
+
+    /** Max. wait for a permit, 0 means no wait */
+    @XNode("maxWaitSeconds")
+    protected int maxWaitSeconds = 60;
+
+    /**
+     * Max. duration of one invocation, the process (and its children) is
+     * killed after this delay. 0 means no timeout
+     */
+    @XNode("timeoutSeconds")
+    protected int timeoutSeconds = 120;
+
+    public ToolDescriptor() {
+    }
+
+    public ToolDescriptor(TOOL inTool) {
+        name = toName(inTool);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the tool, null if the name is not a known tool
+     *
+     * @since 7.3
+     */
+    public TOOL getTool() {
+        return toTool(name);
+    }
+
+    public int getMaxConcurrent() {
+        return Math.max(1, maxConcurrent);
+    }
+
+    public int getMaxQueue() {
+        return Math.max(0, maxQueue);
+    }
+
+    public int getMaxWaitSeconds() {
+        return Math.max(0, maxWaitSeconds);
+    }
+
+    public int getTimeoutSeconds() {
+        return Math.max(0, timeoutSeconds);
+    }
+
+    /**
+     * @param inPerCallTimeoutMillis the timeout of the call, -1 to use the
+     *            timeout of the tool
+     * @return the timeout to use, in ms (0: no timeout)
+     *
+     * @since 7.3
+     */
+    public long getTimeoutMillis(long inPerCallTimeoutMillis) {
+        if (inPerCallTimeoutMillis >= 0) {
+            return inPerCallTimeoutMillis;
+        }
+        return getTimeoutSeconds() * 1000L;
+    }
+
+    /**
+     * "ImageMagick", "GraphicsMagick" or "ExifTool" (case insensitive) to
+     * {@link TOOL}, null if not a known tool
+     *
+     * @since 7.3
+     */
+    public static TOOL toTool(String inName) {
+
+        if (inName == null) {
+            return null;
+        }
+        switch (inName.toLowerCase()) {
+        case "imagemagick":
+            return TOOL.IMAGEMAGICK;
+
+        case "graphicsmagick":
+            return TOOL.GRAPHICSMAGICK;
+
+        case "exiftool":
+            return TOOL.EXIFTOOL;
+
+        default:
+            return null;
+        }
+    }
+
+    public static String toName(TOOL inTool) {
+
+        switch (inTool) {
+        case GRAPHICSMAGICK:
+            return "GraphicsMagick";
+
+        case EXIFTOOL:
+            return "ExifTool";
+
+        default:
+            return "ImageMagick";
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.tools;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+
+/**
+ * What {@link ToolRegistry} found when probing a tool: is it available, its
+ * version and the formats it can read and write.
+ * <p>
+ * The formats are the names used by the tool: ImageMagick and
+ * GraphicsMagick return their format names ("JPEG", "TIFF", ...), ExifTool
+ * returns file extensions ("JPG", "JPEG", "TIF", ...). They are upper case.
+ *
+ * @since 7.3
+ */
+public class ToolInfo {
+
+    protected final TOOL tool;
+
+    protected final boolean available;
+
+    protected final String version;
+
+    protected final String error;
+
+    protected final Set<String> readFormats;
+
+    protected final Set<String> writeFormats;
+
+    protected final long probeMillis;
+
+    public ToolInfo(TOOL inTool, boolean inAvailable, String inVersion,
+            String inError, Set<String> inReadFormats,
+            Set<String> inWriteFormats, long inProbeMillis) {
+        tool = inTool;
+        available = inAvailable;
+        version = inVersion == null ? "" : inVersion;
+        error = inError == null ? "" : inError;
+        readFormats = inReadFormats == null ? Collections.<String> emptySet()
+                : Collections.unmodifiableSet(inReadFormats);
+        writeFormats = inWriteFormats == null ? Collections.<String> emptySet()
+                : Collections.unmodifiableSet(inWriteFormats);
+        probeMillis = inProbeMillis;
+    }
+
+    /**
+     * @return an info for a tool that cannot be run
+     *
+     * @since 7.3
+     */
+    public static ToolInfo unavailable(TOOL inTool, String inError,
+            long inProbeMillis) {
+        return new ToolInfo(inTool, false, null, inError, null, null,
+                inProbeMillis);
+    }
+
+    /**
+     * @param inFormat
+     * @return true if the tool is available and can read this format. If the
+     *         list of formats could not be read, returns true as soon as the
+     *         tool is available
+     *
+     * @since 7.3
+     */
+    public boolean canRead(String inFormat) {
+        return supports(readFormats, inFormat);
+    }
+
+    /**
+     * Same as {@link #canRead(String)}, for writing
+     *
+     * @since 7.3
+     */
+    public boolean canWrite(String inFormat) {
+        return supports(writeFormats, inFormat);
+    }
+
+    protected boolean supports(Set<String> inFormats, String inFormat) {
+
+        if (!available) {
+            return false;
+        }
+        if (inFormats.isEmpty()) {
+            return true;
+        }
+        return inFormat != null
+                && inFormats.contains(inFormat.toUpperCase(Locale.ENGLISH));
+    }
+
+    public TOOL getTool() {
+        return tool;
+    }
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * @return the version ("6.9.10-23", "1.3.35", "12.40", ...), "" if not
+     *         available
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return why the tool is not available, "" if it is
+     */
+    public String getError() {
+        return error;
+    }
+
+    public Set<String> getReadFormats() {
+        return readFormats;
+    }
+
+    public Set<String> getWriteFormats() {
+        return writeFormats;
+    }
+
+    /**
+     * @return the duration of the probe
+     */
+    public long getProbeMillis() {
+        return probeMillis;
+    }
+
+    @Override
+    public String toString() {
+        if (!available) {
+            return ToolDescriptor.toName(tool) + " (not available: " + error
+                    + ")";
+        }
+        return ToolDescriptor.toName(tool) + " " + version + " ("
+                + readFormats.size() + " readable formats, "
+                + writeFormats.size() + " writable formats)";
+    }
+}
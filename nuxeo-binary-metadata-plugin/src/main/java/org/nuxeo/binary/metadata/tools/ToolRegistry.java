@@ -0,0 +1,363 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.tools;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.im4java.process.ProcessStarter;
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.binary.metadata.exiftool.ExifToolEngine;
+
+/**
+ * Knows which external tools are installed, their version and the formats
+ * they handle (see {@link ToolInfo}).
+ * <p>
+ * <code>BinaryMetadataComponent</code> calls {@link #probeAsync()} when the
+ * application starts: The three tools are probed in background threads, so
+ * the first request does not pay for it. Probing ExifTool starts a stay-open
+ * process, which stays in the pool (see {@link ExifToolEngine}) for the first
+ * requests.
+ * <p>
+ * {@link #get(TOOL)} waits for the probe of the tool if it is still running
+ * (and starts it if it was never started, when the component is not
+ * deployed). {@link #getIfProbed(TOOL)} never waits.
+ *
+ * @since 7.3
+ */
+public class ToolRegistry {
+
+    private static final Log log = LogFactory.getLog(ToolRegistry.class);
+
+    protected static final long PROBE_TIMEOUT_MILLIS = 30000;
+
+    // " JPEG* JPEG rw- Joint Photographic..." (ImageMagick) or
+    // " JPEG P rw- Joint Photographic..." (GraphicsMagick)
+    protected static final Pattern MAGICK_FORMAT = Pattern.compile("^\\s*([A-Za-z0-9_\\-]+)\\*?\\s+(?:\\S+\\s+)?([r-])([w-])[+-](?:\\s|$)");
+
+    protected static final EnumMap<TOOL, Future<ToolInfo>> probes = new EnumMap<TOOL, Future<ToolInfo>>(
+            TOOL.class);
+
+    /**
+     * Start probing the tools not probed yet, in background threads. Returns
+     * immediately.
+     *
+     * @since 7.3
+     */
+    public static synchronized void probeAsync() {
+
+        for (TOOL tool : TOOL.values()) {
+            if (!probes.containsKey(tool)) {
+                startProbe(tool);
+            }
+        }
+    }
+
+    /**
+     * Probe the tool again (after a configuration change for example), in a
+     * background thread.
+     *
+     * @param inTool
+     *
+     * @since 7.3
+     */
+    public static synchronized void reprobe(TOOL inTool) {
+        startProbe(inTool);
+    }
+
+    /**
+     * Forget what was found. The next call to {@link #get(TOOL)} probes again.
+     *
+     * @param inTool
+     *
+     * @since 7.3
+     */
+    public static synchronized void reset(TOOL inTool) {
+        probes.remove(inTool);
+    }
+
+    protected static void startProbe(final TOOL inTool) {
+
+        FutureTask<ToolInfo> task = new FutureTask<ToolInfo>(
+                new Callable<ToolInfo>() {
+                    @Override
+                    public ToolInfo call() {
+                        ToolInfo info = probe(inTool);
+                        if (info.isAvailable()) {
+                            log.info(info.toString());
+                        } else {
+                            log.warn(ToolDescriptor.toName(inTool)
+                                    + " is not available, some command may fail: "
+                                    + info.getError());
+                        }
+                        return info;
+                    }
+                });
+        probes.put(inTool, task);
+
+        Thread thread = new Thread(task, "ToolRegistry-"
+                + ToolDescriptor.toName(inTool));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param inTool
+     * @return what was found, waiting for the probe if it is running
+     *
+     * @since 7.3
+     */
+    public static ToolInfo get(TOOL inTool) {
+
+        Future<ToolInfo> probe;
+        synchronized (ToolRegistry.class) {
+            probe = probes.get(inTool);
+            if (probe == null) {
+                startProbe(inTool);
+                probe = probes.get(inTool);
+            }
+        }
+
+        try {
+            return probe.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ToolInfo.unavailable(inTool, "Interrupted", 0);
+        } catch (ExecutionException e) {
+            return ToolInfo.unavailable(inTool, e.getCause().getMessage(), 0);
+        }
+    }
+
+    /**
+     * @param inTool
+     * @return what was found, or null if the probe is not finished (or not
+     *         started)
+     *
+     * @since 7.3
+     */
+    public static ToolInfo getIfProbed(TOOL inTool) {
+
+        Future<ToolInfo> probe;
+        synchronized (ToolRegistry.class) {
+            probe = probes.get(inTool);
+        }
+        if (probe == null || !probe.isDone()) {
+            return null;
+        }
+        return get(inTool);
+    }
+
+    /**
+     * @return all the tools, waiting for the probes still running
+     *
+     * @since 7.3
+     */
+    public static Map<TOOL, ToolInfo> getAll() {
+
+        EnumMap<TOOL, ToolInfo> result = new EnumMap<TOOL, ToolInfo>(
+                TOOL.class);
+        for (TOOL tool : TOOL.values()) {
+            result.put(tool, get(tool));
+        }
+        return result;
+    }
+
+    public static boolean isAvailable(TOOL inTool) {
+        return get(inTool).isAvailable();
+    }
+
+    /**
+     * Probe the tool now, in the calling thread. Does not change what the
+     * registry returns.
+     *
+     * @param inTool
+     * @return what was found
+     *
+     * @since 7.3
+     */
+    public static ToolInfo probe(TOOL inTool) {
+
+        long start = System.currentTimeMillis();
+        try {
+            switch (inTool) {
+            case EXIFTOOL:
+                return probeExifTool(start);
+            case GRAPHICSMAGICK:
+                return probeGraphicsMagick(start);
+            default:
+                return probeImageMagick(start);
+            }
+        } catch (Exception e) {
+            return ToolInfo.unavailable(inTool, e.getMessage(),
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    /*
+     * Through the pool, so the process stays alive for the first requests
+     */
+    protected static ToolInfo probeExifTool(long inStart) throws Exception {
+
+        String version = ExifToolEngine.execute(Arrays.asList("-ver"),
+                PROBE_TIMEOUT_MILLIS).getOutput().trim();
+        if (version.isEmpty()) {
+            throw new Exception("exiftool -ver returned nothing");
+        }
+        TreeSet<String> read = parseExifToolList(ExifToolEngine.execute(
+                Arrays.asList("-listr"), PROBE_TIMEOUT_MILLIS).getOutputLines());
+        TreeSet<String> write = parseExifToolList(ExifToolEngine.execute(
+                Arrays.asList("-listwf"), PROBE_TIMEOUT_MILLIS).getOutputLines());
+        ExifToolEngine.getPool().prestart();
+
+        return new ToolInfo(TOOL.EXIFTOOL, true, version, null, read, write,
+                System.currentTimeMillis() - inStart);
+    }
+
+    protected static ToolInfo probeImageMagick(long inStart) {
+
+        String identify = ProcessRunner.resolve("identify",
+                ProcessStarter.getGlobalSearchPath());
+        String version = parseImageMagickVersion(ProcessRunner.run(
+                TOOL.IMAGEMAGICK, Arrays.asList(identify, "-version"),
+                PROBE_TIMEOUT_MILLIS));
+        TreeSet<String> read = new TreeSet<String>();
+        TreeSet<String> write = new TreeSet<String>();
+        parseMagickFormats(ProcessRunner.run(TOOL.IMAGEMAGICK,
+                Arrays.asList(identify, "-list", "format"),
+                PROBE_TIMEOUT_MILLIS), read, write);
+
+        return new ToolInfo(TOOL.IMAGEMAGICK, true, version, null, read, write,
+                System.currentTimeMillis() - inStart);
+    }
+
+    protected static ToolInfo probeGraphicsMagick(long inStart) {
+
+        String gm = ProcessRunner.resolve("gm",
+                ProcessStarter.getGlobalSearchPath());
+        String version = parseGraphicsMagickVersion(ProcessRunner.run(
+                TOOL.GRAPHICSMAGICK, Arrays.asList(gm, "version"),
+                PROBE_TIMEOUT_MILLIS));
+        TreeSet<String> read = new TreeSet<String>();
+        TreeSet<String> write = new TreeSet<String>();
+        parseMagickFormats(ProcessRunner.run(TOOL.GRAPHICSMAGICK,
+                Arrays.asList(gm, "convert", "-list", "format"),
+                PROBE_TIMEOUT_MILLIS), read, write);
+
+        return new ToolInfo(TOOL.GRAPHICSMAGICK, true, version, null, read,
+                write, System.currentTimeMillis() - inStart);
+    }
+
+    /**
+     * "Version: ImageMagick 6.9.10-23 Q16 x86_64 ..." => "6.9.10-23"
+     *
+     * @since 7.3
+     */
+    public static String parseImageMagickVersion(List<String> inLines) {
+
+        for (String line : inLines) {
+            int pos = line.indexOf("ImageMagick ");
+            if (line.startsWith("Version:") && pos > 0) {
+                return firstWord(line.substring(pos + "ImageMagick ".length()));
+            }
+        }
+        return "";
+    }
+
+    /**
+     * "GraphicsMagick 1.3.35 2020-02-23 Q16 ..." => "1.3.35"
+     *
+     * @since 7.3
+     */
+    public static String parseGraphicsMagickVersion(List<String> inLines) {
+
+        for (String line : inLines) {
+            if (line.startsWith("GraphicsMagick ")) {
+                return firstWord(line.substring("GraphicsMagick ".length()));
+            }
+        }
+        return "";
+    }
+
+    protected static String firstWord(String inValue) {
+
+        String value = inValue.trim();
+        int pos = value.indexOf(' ');
+        return pos < 0 ? value : value.substring(0, pos);
+    }
+
+    /**
+     * Parse the output of <code>identify -list format</code> (ImageMagick) or
+     * <code>gm convert -list format</code> (GraphicsMagick)
+     *
+     * @param inLines
+     * @param outRead receives the formats that can be read
+     * @param outWrite receives the formats that can be written
+     *
+     * @since 7.3
+     */
+    public static void parseMagickFormats(List<String> inLines,
+            Set<String> outRead, Set<String> outWrite) {
+
+        for (String line : inLines) {
+            Matcher m = MAGICK_FORMAT.matcher(line);
+            if (m.find()) {
+                String format = m.group(1).toUpperCase(Locale.ENGLISH);
+                if ("r".equals(m.group(2))) {
+                    outRead.add(format);
+                }
+                if ("w".equals(m.group(3))) {
+                    outWrite.add(format);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse the output of <code>exiftool -listr</code> or
+     * <code>exiftool -listwf</code>: A title ending with ":", then the
+     * extensions separated with spaces
+     *
+     * @since 7.3
+     */
+    public static TreeSet<String> parseExifToolList(List<String> inLines) {
+
+        TreeSet<String> result = new TreeSet<String>();
+        for (String line : inLines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.endsWith(":")) {
+                continue;
+            }
+            for (String ext : trimmed.split("\\s+")) {
+                result.add(ext.toUpperCase(Locale.ENGLISH));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.binary.metadata.tools;
+
+import org.nuxeo.binary.metadata.ExternalTools.TOOL;
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Thrown when an external tool cannot be run because too many invocations are
+ * already running or waiting (see {@link ToolBulkhead}).
+ *
+ * @since 7.3
+ */
+public class ToolRejectedException extends ClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final TOOL tool;
+
+    public ToolRejectedException(TOOL inTool, String inMessage) {
+        super(inMessage);
+        tool = inTool;
+    }
+
+    public TOOL getTool() {
+        return tool;
+    }
+}
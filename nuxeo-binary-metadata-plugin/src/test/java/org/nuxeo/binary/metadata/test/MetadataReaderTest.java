@@ -18,10 +18,29 @@
 package org.nuxeo.binary.metadata.test;
 
 import static org.junit.Assert.*;
+import static org.nuxeo.binary.metadata.BinaryMetadataConstants.DEFAULT_KEYS;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -34,9 +53,46 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.nuxeo.binary.metadata.ExternalTools.TOOL;
 import org.nuxeo.binary.metadata.ExternalTools.ToolAvailability;
+import org.nuxeo.binary.metadata.backends.AbstractMetadataBackend;
+import org.nuxeo.binary.metadata.backends.BackendDescriptor;
+import org.nuxeo.binary.metadata.backends.MetadataBackend;
+import org.nuxeo.binary.metadata.backends.MetadataBackends;
+import org.nuxeo.binary.metadata.backends.MetadataRouter;
+import org.nuxeo.binary.metadata.backends.MetadataSource;
+import org.nuxeo.binary.metadata.backends.PrefixWindow;
+import org.nuxeo.binary.metadata.cache.MetadataCache;
+import org.nuxeo.binary.metadata.cache.MetadataCacheDescriptor;
+import org.nuxeo.binary.metadata.cache.MetadataStore;
+import org.nuxeo.binary.metadata.exiftool.ExifToolEngine;
+import org.nuxeo.binary.metadata.exiftool.ExifToolPool;
+import org.nuxeo.binary.metadata.exiftool.ExifToolPoolDescriptor;
+import org.nuxeo.binary.metadata.exiftool.ReadyDelimitedInputStream;
+import org.nuxeo.binary.metadata.im4java.IdentifyFormatReader;
+import org.nuxeo.binary.metadata.parsers.ExifReader;
+import org.nuxeo.binary.metadata.parsers.FormatSniffer;
+import org.nuxeo.binary.metadata.parsers.ImageHeader;
+import org.nuxeo.binary.metadata.parsers.ImageHeaderParser;
+import org.nuxeo.binary.metadata.parsers.IsoBmffReader;
+import org.nuxeo.binary.metadata.parsers.OoxmlMetadataReader;
+import org.nuxeo.binary.metadata.parsers.PdfMetadataReader;
+import org.nuxeo.binary.metadata.parsers.XmpExtractor;
+import org.nuxeo.binary.metadata.scratch.ScratchDescriptor;
+import org.nuxeo.binary.metadata.scratch.ScratchFile;
+import org.nuxeo.binary.metadata.scratch.ScratchFiles;
+import org.nuxeo.binary.metadata.scratch.ScratchQuotaExceededException;
+import org.nuxeo.binary.metadata.tools.ProcessRunner;
+import org.nuxeo.binary.metadata.tools.ToolBulkhead;
+import org.nuxeo.binary.metadata.tools.ToolBulkheads;
+import org.nuxeo.binary.metadata.tools.ToolDescriptor;
+import org.nuxeo.binary.metadata.tools.ToolInfo;
+import org.nuxeo.binary.metadata.tools.ToolRegistry;
+import org.nuxeo.binary.metadata.tools.ToolRejectedException;
+import org.nuxeo.binary.metadata.tools.ToolTimeoutException;
 import org.nuxeo.binary.metadata.operations.ExtractBinaryMetadataInDocumentOp;
 import org.nuxeo.binary.metadata.operations.ExtractXMPFromBlobOp;
+import org.nuxeo.binary.metadata.MetadataPreFilter;
 import org.nuxeo.binary.metadata.MetadataReader;
+import org.nuxeo.binary.metadata.MetadataReader.READ_MODE;
 import org.nuxeo.binary.metadata.XYResolutionDPI;
 import org.nuxeo.binary.metadata.BinaryMetadataConstants.*;
 import org.nuxeo.common.utils.FileUtils;
@@ -45,17 +101,24 @@ import org.nuxeo.ecm.automation.OperationChain;
 import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.core.util.Properties;
 import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
 import org.nuxeo.ecm.core.test.CoreFeature;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.runtime.metrics.MetricsService;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.SharedMetricRegistries;
 import com.google.inject.Inject;
 
 @RunWith(FeaturesRunner.class)
@@ -201,6 +264,100 @@ public class MetadataReaderTest {
                 "PixelsPerInch", 96, 96);
     }
 
+    @Test
+    public void testIdentifyFormatMatchesVerbose() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        // These keys are read with identify -format, they must have the same
+        // values as with identify -verbose
+        String[] keysStr = { KEYS.WIDTH, KEYS.HEIGHT, KEYS.COLORSPACE,
+                KEYS.UNITS, "Type", "Depth" };
+        assertTrue(IdentifyFormatReader.canRead(keysStr, false));
+
+        for (File f : new File[] { filePNG, fileGIF, fileTIF, fileJPEG }) {
+            MetadataReader mdr = new MetadataReader(f.getAbsolutePath());
+            HashMap<String, String> all = mdr.readMetadata(null);
+            HashMap<String, String> result = mdr.readMetadata(keysStr);
+            for (String key : keysStr) {
+                String expected = all.get(key);
+                assertEquals(f.getName() + ", " + key,
+                        expected == null ? "" : expected, result.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void testImageHeaderParser() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        File fileNuxeoPNG = new File(filePNG.getParentFile(), "Nuxeo.png");
+        File fileXmpJPEG = new File(filePNG.getParentFile(), "with-xmp.jpg");
+        File[] files = { filePNG, fileGIF, fileTIF, fileJPEG, fileNuxeoPNG,
+                fileXmpJPEG };
+        String[] formats = { "PNG", "GIF", "TIFF", "JPEG", "PNG", "JPEG" };
+
+        assertTrue(ImageHeaderParser.canRead(DEFAULT_KEYS, false));
+        assertFalse(ImageHeaderParser.canRead(DEFAULT_KEYS, true));
+        assertFalse(ImageHeaderParser.canRead(new String[] { KEYS.WIDTH,
+                KEYS.FORMAT }, false));
+
+        for (int i = 0; i < files.length; i++) {
+            ImageHeader header = ImageHeaderParser.read(files[i]);
+            assertNotNull(files[i].getName(), header);
+            assertEquals(formats[i], header.getFormat());
+        }
+        ImageHeader header = ImageHeaderParser.read(fileXmpJPEG);
+        assertEquals(2033, header.getWidth());
+        assertEquals(1350, header.getHeight());
+        assertNull(ImageHeaderParser.read(FileUtils.getResourceFileFromContext("files/a.pdf")));
+
+        // Same values as ImageMagick (testImages checks the values)
+        if (!ToolAvailability.isImageMagickAvailable()) {
+            doLog("ImageMagick not available, comparison skipped");
+            return;
+        }
+        for (File f : files) {
+            MetadataReader mdr = new MetadataReader(f.getAbsolutePath());
+            HashMap<String, String> fromHeader = mdr.readMetadata(
+                    DEFAULT_KEYS, TOOL.IMAGEMAGICK, READ_MODE.AUTO);
+            HashMap<String, String> fromTool = mdr.readMetadata(DEFAULT_KEYS,
+                    TOOL.IMAGEMAGICK, READ_MODE.FULL);
+            assertEquals(f.getName(), fromTool, fromHeader);
+        }
+    }
+
+    @Test
+    public void testHeaderOnlyMode() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        assertTrue(MetadataReader.requiresPixels(null));
+        assertFalse(MetadataReader.requiresPixels(DEFAULT_KEYS));
+        assertTrue(MetadataReader.requiresPixels(new String[] { KEYS.WIDTH,
+                "Channel statistics:Red:mean" }));
+
+        // Not handled by identify -format => identify -ping -verbose
+        String[] keysStr = { KEYS.WIDTH, KEYS.HEIGHT, KEYS.FORMAT };
+        for (File f : new File[] { filePNG, fileGIF, fileTIF, fileJPEG }) {
+            MetadataReader mdr = new MetadataReader(f.getAbsolutePath());
+            HashMap<String, String> full = mdr.readMetadata(keysStr,
+                    TOOL.IMAGEMAGICK, READ_MODE.FULL);
+            HashMap<String, String> header = mdr.readMetadata(keysStr,
+                    TOOL.IMAGEMAGICK, READ_MODE.HEADER_ONLY);
+            assertEquals(f.getName(), full, header);
+        }
+
+        checkImagesValues_ImageMagick(filePNG, "100", "100", "sRGB",
+                "37.79x37.79", "PixelsPerCentimeter", 96, 96);
+        HashMap<String, String> all = new MetadataReader(
+                filePNG.getAbsolutePath()).readMetadata(null, TOOL.IMAGEMAGICK,
+                READ_MODE.HEADER_ONLY);
+        assertEquals("PNG (Portable Network Graphics)", all.get(KEYS.FORMAT));
+        assertEquals("100", all.get(KEYS.WIDTH));
+    }
+
     @Test
     public void testGetAllMetadata_ImageMagick() throws Exception {
 
@@ -438,6 +595,222 @@ public class MetadataReaderTest {
 
     }
 
+    @Test
+    public void testXmpExtractor() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        File withXmpFile = FileUtils.getResourceFileFromContext(WITH_XMP);
+        File pdfFile = FileUtils.getResourceFileFromContext("files/a.pdf");
+
+        String xmp = XmpExtractor.extract(withXmpFile.getAbsolutePath());
+        assertNotNull(xmp);
+        DocumentBuilder dBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Document doc = dBuilder.parse(new InputSource(new StringReader(xmp)));
+        assertEquals("x:xmpmeta", doc.getDocumentElement().getNodeName());
+
+        // No XMP
+        assertEquals("", XmpExtractor.extract(pdfFile.getAbsolutePath()));
+        assertEquals("", XmpExtractor.extract(filePNG.getAbsolutePath()));
+        assertEquals("", XmpExtractor.extract(fileJPEG.getAbsolutePath()));
+
+        // Packet of the TIFF
+        xmp = XmpExtractor.extract(fileTIF.getAbsolutePath());
+        assertTrue(xmp.startsWith("<?xpacket begin"));
+        assertTrue(xmp.trim().endsWith("<?xpacket end=\"w\"?>"));
+
+        // Not handled: ExifTool must be used
+        assertNull(XmpExtractor.extract(fileGIF.getAbsolutePath()));
+
+        if (!ToolAvailability.isExifToolAvailable()) {
+            doLog("ExifTool not available, comparison skipped");
+            return;
+        }
+        for (File f : new File[] { withXmpFile, pdfFile, filePNG, fileJPEG,
+                fileTIF }) {
+            MetadataReader mdr = new MetadataReader(f.getAbsolutePath());
+            assertEquals(f.getName(), mdr.readXMPWithExifTool().trim(),
+                    mdr.readXMP().trim());
+        }
+    }
+
+    @Test
+    public void testExifReader() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        File withXmpFile = FileUtils.getResourceFileFromContext(WITH_XMP);
+        String[] keys = { "Make", "Model", "Orientation", "Software",
+                "Copyright", "ExposureTime", "FNumber", "ISO",
+                "DateTimeOriginal", "FocalLength", "ExifImageWidth",
+                "ExifImageHeight" };
+        assertTrue(ExifReader.canRead(keys));
+        assertFalse(ExifReader.canRead(new String[] { "Make", "FileType" }));
+
+        HashMap<String, Object> values = ExifReader.read(
+                withXmpFile.getAbsolutePath(), keys);
+        assertNotNull(values);
+        assertEquals("NIKON CORPORATION", values.get("Make"));
+        assertEquals("NIKON D300", values.get("Model"));
+        assertEquals("Horizontal (normal)", values.get("Orientation"));
+        assertEquals("1/80", values.get("ExposureTime"));
+        assertEquals("9.0", values.get("FNumber").toString());
+        assertEquals(200, ((Number) values.get("ISO")).intValue());
+        assertEquals("2010:08:31 10:32:16", values.get("DateTimeOriginal"));
+        assertEquals("17.0 mm", values.get("FocalLength"));
+        assertEquals(2033, ((Number) values.get("ExifImageWidth")).intValue());
+
+        // Not in the EXIF (or no EXIF): ExifTool must be used
+        assertNull(ExifReader.read(withXmpFile.getAbsolutePath(),
+                new String[] { "Make", "GPSLatitudeRef" }));
+        assertNull(ExifReader.read(fileJPEG.getAbsolutePath(),
+                new String[] { "Make" }));
+
+        if (!ToolAvailability.isExifToolAvailable()) {
+            doLog("ExifTool not available, comparison skipped");
+            return;
+        }
+        assertSameAsExifTool(withXmpFile, keys);
+    }
+
+    @Test
+    public void testPdfMetadataReader() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        File pdfFile = FileUtils.getResourceFileFromContext("files/a.pdf");
+        String[] keys = { "Producer", "PDFVersion", "PageCount", "CreateDate",
+                "ModifyDate" };
+        assertTrue(PdfMetadataReader.canRead(keys));
+        assertFalse(PdfMetadataReader.canRead(new String[] { "Producer",
+                "FileType" }));
+
+        HashMap<String, Object> values = PdfMetadataReader.read(
+                pdfFile.getAbsolutePath(), keys);
+        assertNotNull(values);
+        assertEquals("Mac OS X 10.10 Quartz PDFContext", values.get("Producer"));
+        // The version of the catalog, not the one of the header (1.3)
+        assertEquals("1.4", values.get("PDFVersion").toString());
+        assertEquals(4, ((Number) values.get("PageCount")).intValue());
+        assertEquals("2014:11:15 22:17:54Z", values.get("CreateDate"));
+
+        assertEquals("2015:01:02 03:04:05+01:00",
+                PdfMetadataReader.convertDate("D:20150102030405+01'00'"));
+        assertNull(PdfMetadataReader.convertDate("D:2015"));
+
+        // Not in the Info, or not a PDF: ExifTool must be used
+        assertNull(PdfMetadataReader.read(pdfFile.getAbsolutePath(),
+                new String[] { "Title" }));
+        assertNull(PdfMetadataReader.read(fileJPEG.getAbsolutePath(),
+                new String[] { "Producer" }));
+
+        if (!ToolAvailability.isExifToolAvailable()) {
+            doLog("ExifTool not available, comparison skipped");
+            return;
+        }
+        assertSameAsExifTool(pdfFile, keys);
+    }
+
+    @Test
+    public void testOoxmlMetadataReader() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        File docx = FileUtils.getResourceFileFromContext("files/a.docx");
+        File pptx = FileUtils.getResourceFileFromContext("files/a.pptx");
+        String[] docxKeys = { "Creator", "LastModifiedBy", "CreateDate",
+                "Pages", "Words", "Characters" };
+        String[] pptxKeys = { "Slides", "HiddenSlides", "PresentationFormat" };
+        assertTrue(OoxmlMetadataReader.canRead(docxKeys));
+        assertFalse(OoxmlMetadataReader.canRead(new String[] { "Pages",
+                "FileType" }));
+
+        HashMap<String, Object> values = OoxmlMetadataReader.read(
+                docx.getAbsolutePath(), docxKeys);
+        assertNotNull(values);
+        assertEquals("Thibaud", values.get("Creator"));
+        assertEquals("2013:03:05 01:31:00Z", values.get("CreateDate"));
+        assertEquals("3", values.get("Pages").toString());
+        assertEquals("628", values.get("Words").toString());
+        assertEquals("3585", values.get("Characters").toString());
+
+        values = OoxmlMetadataReader.read(pptx.getAbsolutePath(), pptxKeys);
+        assertNotNull(values);
+        assertEquals("6", values.get("Slides").toString());
+        assertEquals("0", values.get("HiddenSlides").toString());
+        assertEquals("Custom", values.get("PresentationFormat"));
+
+        // Empty, or not an Office file: ExifTool must be used
+        assertNull(OoxmlMetadataReader.read(docx.getAbsolutePath(),
+                new String[] { "Title" }));
+        assertNull(OoxmlMetadataReader.read(
+                FileUtils.getResourceFileFromContext("files/a.pdf").getAbsolutePath(),
+                new String[] { "Pages" }));
+
+        if (!ToolAvailability.isExifToolAvailable()) {
+            doLog("ExifTool not available, comparison skipped");
+            return;
+        }
+        for (File f : new File[] { docx, pptx }) {
+            String[] keys = f == docx ? docxKeys : pptxKeys;
+            assertSameAsExifTool(f, keys);
+        }
+    }
+
+    @Test
+    public void testIsoBmffReader() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        File mp4 = FileUtils.getResourceFileFromContext("files/a.mp4");
+        String[] keys = { "Duration", "TimeScale", "ImageWidth", "ImageHeight",
+                "ImageSize", "VideoFrameRate", "CompressorID" };
+        assertTrue(IsoBmffReader.canRead(keys));
+        assertFalse(IsoBmffReader.canRead(new String[] { "Duration",
+                "FileType" }));
+
+        HashMap<String, Object> values = IsoBmffReader.read(
+                mp4.getAbsolutePath(), keys);
+        assertNotNull(values);
+        assertEquals("11.85 s", values.get("Duration"));
+        assertEquals("2997", values.get("TimeScale").toString());
+        assertEquals("320x180", values.get("ImageSize"));
+        assertEquals(320, ((Number) values.get("ImageWidth")).intValue());
+        assertEquals(180, ((Number) values.get("ImageHeight")).intValue());
+        assertEquals("29.97", values.get("VideoFrameRate").toString());
+        assertEquals("avc1", values.get("CompressorID"));
+
+        assertEquals("0:01:05", IsoBmffReader.convertDuration(65.4));
+
+        // Not a video: ExifTool must be used
+        assertNull(IsoBmffReader.read(
+                FileUtils.getResourceFileFromContext("files/a.pdf").getAbsolutePath(),
+                new String[] { "Duration" }));
+
+        if (!ToolAvailability.isExifToolAvailable()) {
+            doLog("ExifTool not available, comparison skipped");
+            return;
+        }
+        assertSameAsExifTool(mp4, keys);
+    }
+
+    /*
+     * The values read in Java are the ones of ExifTool. FileType is not
+     * supported in Java: with it, ExifTool reads all the keys
+     */
+    protected static void assertSameAsExifTool(File inFile, String[] inKeys) {
+
+        String[] withFileType = Arrays.copyOf(inKeys, inKeys.length + 1);
+        withFileType[inKeys.length] = "FileType";
+        try (MetadataReader mdr = new MetadataReader(inFile.getAbsolutePath())) {
+            HashMap<String, String> fromExifTool = mdr.readMetadataWithExifTool(withFileType);
+            HashMap<String, String> fromJava = mdr.readMetadataWithExifTool(inKeys);
+            for (String key : inKeys) {
+                assertEquals(key, fromExifTool.get(key), fromJava.get(key));
+            }
+        }
+    }
+
     @Test
     public void testGetMetadataWithExifTool() throws Exception {
 
@@ -498,6 +871,1402 @@ public class MetadataReaderTest {
 
     }
 
+    @Test
+    public void testGetTypedMetadataWithExifTool() throws Exception {
+
+        String methodName = getCurrentMethodName(new RuntimeException());
+        doLog(methodName + "...");
+
+        if (!ToolAvailability.isExifToolAvailable()) {
+            doLog("[WARN] Cannot run " + methodName
+                    + "() because ExifTool is not available");
+            return;
+        }
+
+        File withXmpFile = FileUtils.getResourceFileFromContext(WITH_XMP);
+        MetadataReader mdr = new MetadataReader(withXmpFile.getAbsolutePath());
+        String[] theKeys = { "XMP-dc:Subject", "ImageWidth", "FileType" };
+
+        HashMap<String, Object> typed = mdr.readMetadataWithExifToolTyped(theKeys);
+        assertTrue(typed.get("ImageWidth") instanceof Number);
+        assertEquals("JPEG", typed.get("FileType"));
+        // A list tag is returned as a list, values containing a comma are not
+        // split
+        Object subject = typed.get("Subject");
+        assertTrue(subject instanceof List);
+        assertEquals("Coral", ((List<?>) subject).get(0));
+        assertEquals("East Flower Garden Bank", ((List<?>) subject).get(1));
+        assertFalse(typed.containsKey("SourceFile"));
+
+        HashMap<String, String> result = mdr.readMetadata(theKeys,
+                TOOL.EXIFTOOL);
+        assertTrue(result.get("Subject").startsWith(
+                "Coral, East Flower Garden Bank, FGBNMS"));
+        assertEquals(typed.get("ImageWidth").toString(),
+                result.get("ImageWidth"));
+    }
+
+    @Test
+    public void testReadMetadataBatch() throws Exception {
+
+        String methodName = getCurrentMethodName(new RuntimeException());
+        doLog(methodName + "...");
+
+        if (!ToolAvailability.isExifToolAvailable()) {
+            doLog("[WARN] Cannot run " + methodName
+                    + "() because ExifTool is not available");
+            return;
+        }
+
+        String[] theKeys = { "FileType", "ImageSize" };
+        ArrayList<Blob> blobs = new ArrayList<Blob>();
+        blobs.add(new FileBlob(filePNG));
+        blobs.add(new FileBlob(new File(filePNG.getParentFile(),
+                "does-not-exist.png")));
+        blobs.add(new FileBlob(fileJPEG));
+        blobs.add(new FileBlob(fileTIF));
+        // Not a file: read alone, not copied
+        blobs.add(new ByteArrayBlob(Files.readAllBytes(fileJPEG.toPath()),
+                "image/jpeg"));
+
+        long filesBefore = ScratchFiles.getFilesOutstanding();
+        List<HashMap<String, String>> results = MetadataReader.readMetadataBatch(
+                blobs, theKeys, TOOL.EXIFTOOL);
+        assertEquals(5, results.size());
+        assertEquals(filesBefore, ScratchFiles.getFilesOutstanding());
+
+        assertEquals("PNG", results.get(0).get("FileType"));
+        assertEquals("100x100", results.get(0).get("ImageSize"));
+
+        // A file in error does not fail the others
+        assertEquals("", results.get(1).get("FileType"));
+        assertEquals("", results.get(1).get("ImageSize"));
+
+        assertEquals("JPEG", results.get(2).get("FileType"));
+        assertEquals("1597x232", results.get(2).get("ImageSize"));
+        assertEquals("TIFF", results.get(3).get("FileType"));
+        assertEquals("456x180", results.get(3).get("ImageSize"));
+        assertEquals("JPEG", results.get(4).get("FileType"));
+        assertEquals("1597x232", results.get(4).get("ImageSize"));
+    }
+
+    protected static String readString(InputStream inStream)
+            throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = inStream.read(buffer)) > -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+
+    @Test
+    public void testReadyDelimitedInputStream() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        // Text: the sentinel ends the output at the start of a line only
+        String output = "{\"Comment\": \"x{ready3}\"}\n{ready3}x\n";
+        byte[] bytes = (output + "{ready3}\r\nnext command").getBytes("UTF-8");
+        // A process writing its output by small blocks
+        InputStream slow = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] inB, int inOff, int inLen) {
+                return super.read(inB, inOff, Math.min(inLen, 3));
+            }
+        };
+        ReadyDelimitedInputStream in = new ReadyDelimitedInputStream(slow,
+                "{ready3}");
+        assertEquals(output, readString(in));
+        assertEquals(-1, in.read());
+
+        // Binary (-b): the sentinel may follow the last byte
+        in = new ReadyDelimitedInputStream(new ByteArrayInputStream(
+                "<x:xmpmeta/>{ready4}\n".getBytes("UTF-8")), "{ready4}", true);
+        assertEquals("<x:xmpmeta/>", readString(in));
+
+        // No sentinel: the process died
+        in = new ReadyDelimitedInputStream(new ByteArrayInputStream(
+                "{ready5".getBytes("UTF-8")), "{ready5}");
+        try {
+            in.drain();
+            fail("The end of the process should have been detected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testConcurrentReadsWithExifToolPool() throws Exception {
+
+        String methodName = getCurrentMethodName(new RuntimeException());
+        doLog(methodName + "...");
+
+        if (!ToolAvailability.isExifToolAvailable()) {
+            doLog("[WARN] Cannot run " + methodName
+                    + "() because ExifTool is not available");
+            return;
+        }
+
+        final File[] files = { filePNG, fileJPEG, fileTIF, fileGIF };
+        final String[] keys = { "FileType", "ImageWidth" };
+        final int threadCount = 16;
+        final int readsPerThread = 8;
+        final AtomicInteger failures = new AtomicInteger();
+
+        // A new pool and bulkhead, to count the processes of this test only
+        final int poolSize = 4;
+        ExifToolEngine.configure(new ExifToolPoolDescriptor() {
+            {
+                maxSize = poolSize;
+            }
+        });
+        ToolBulkheads.configure(new ToolDescriptor(TOOL.EXIFTOOL) {
+            {
+                maxConcurrent = poolSize;
+            }
+        });
+        try {
+            Thread[] threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                final int idx = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < readsPerThread; j++) {
+                            File f = files[(idx + j) % files.length];
+                            try {
+                                MetadataReader mdr = new MetadataReader(
+                                        f.getAbsolutePath());
+                                HashMap<String, String> result = mdr.readMetadata(
+                                        keys, TOOL.EXIFTOOL);
+                                if (result.get("FileType").isEmpty()
+                                        || result.get("ImageWidth").isEmpty()) {
+                                    failures.incrementAndGet();
+                                }
+                            } catch (Exception e) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+
+            assertEquals(0, failures.get());
+
+            // The processes ran in parallel, never more than the max. size
+            ExifToolPool pool = ExifToolEngine.getPool();
+            assertTrue(pool.getPeakBusyCount() > 1);
+            assertTrue(pool.getPeakBusyCount() <= poolSize);
+            assertTrue(pool.getSize() <= poolSize);
+            assertTrue(pool.getRequestCount() >= threadCount * readsPerThread);
+        } finally {
+            ExifToolEngine.configure(null);
+            ToolBulkheads.reset(TOOL.EXIFTOOL);
+        }
+    }
+
+    /*
+     * Read the file inReads times, using inThreadCount threads, alternating
+     * ImageMagick and GraphicsMagick when inExpectedGM is not null. Each result
+     * must be the one of the tool used. Returns the duration in ms.
+     */
+    protected long runConcurrentReads(int inThreadCount, final int inReads,
+            final String inPath, final String[] inKeys,
+            final HashMap<String, String> inExpectedIM,
+            final HashMap<String, String> inExpectedGM) throws Exception {
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        long start = System.currentTimeMillis();
+        Thread[] threads = new Thread[inThreadCount];
+        for (int i = 0; i < inThreadCount; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    int idx;
+                    while ((idx = next.getAndIncrement()) < inReads) {
+                        boolean useGM = inExpectedGM != null && idx % 2 == 1;
+                        try {
+                            HashMap<String, String> result = new MetadataReader(
+                                    inPath).readMetadata(inKeys,
+                                    useGM ? TOOL.GRAPHICSMAGICK
+                                            : TOOL.IMAGEMAGICK, READ_MODE.FULL);
+                            if (!result.equals(useGM ? inExpectedGM
+                                    : inExpectedIM)) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(0, failures.get());
+        return System.currentTimeMillis() - start;
+    }
+
+    @Test
+    public void testConcurrentImageMagickAndGraphicsMagickReads()
+            throws Exception {
+
+        String methodName = getCurrentMethodName(new RuntimeException());
+        doLog(methodName + "...");
+
+        // "Format" is not handled by identify -format: identify -verbose is
+        // used
+        String[] keys = { KEYS.FORMAT, KEYS.WIDTH, KEYS.HEIGHT,
+                KEYS.COLORSPACE, KEYS.RESOLUTION, KEYS.UNITS };
+        String path = fileJPEG.getAbsolutePath();
+
+        HashMap<String, String> expectedIM = new MetadataReader(path).readMetadata(
+                keys, TOOL.IMAGEMAGICK, READ_MODE.FULL);
+        HashMap<String, String> expectedGM = null;
+        if (ToolAvailability.isGraphicsMagickAvailable()) {
+            expectedGM = new MetadataReader(path).readMetadata(keys,
+                    TOOL.GRAPHICSMAGICK, READ_MODE.FULL);
+        } else {
+            doLog("[WARN] GraphicsMagick is not available, " + methodName
+                    + "() uses only ImageMagick");
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threadCount = Math.max(2, Math.min(8, cores));
+        int reads = threadCount * 6;
+
+        // New bulkheads, to count the invocations of this test only
+        final int limit = threadCount;
+        for (TOOL tool : new TOOL[] { TOOL.IMAGEMAGICK, TOOL.GRAPHICSMAGICK }) {
+            ToolBulkheads.configure(new ToolDescriptor(tool) {
+                {
+                    maxConcurrent = limit;
+                }
+            });
+        }
+        try {
+            long duration = runConcurrentReads(threadCount, reads, path, keys,
+                    expectedIM, expectedGM);
+            ToolBulkhead im = ToolBulkheads.get(TOOL.IMAGEMAGICK);
+            ToolBulkhead gm = ToolBulkheads.get(TOOL.GRAPHICSMAGICK);
+            doLog(reads + " reads with " + threadCount + " threads: "
+                    + duration + " ms, max. " + im.getPeakActiveCount()
+                    + " ImageMagick and " + gm.getPeakActiveCount()
+                    + " GraphicsMagick at the same time");
+
+            // Every read ran the tool through its bulkhead, which was never
+            // exceeded
+            assertTrue(im.getAdmittedCount() + gm.getAdmittedCount() >= reads);
+            assertEquals(0, im.getRejectedCount() + gm.getRejectedCount());
+            assertTrue(im.getPeakActiveCount() <= limit);
+            assertTrue(gm.getPeakActiveCount() <= limit);
+
+            // No global lock: the reads run in parallel
+            if (cores > 1) {
+                assertTrue(Math.max(im.getPeakActiveCount(),
+                        gm.getPeakActiveCount()) > 1);
+            }
+        } finally {
+            ToolBulkheads.reset(TOOL.IMAGEMAGICK);
+            ToolBulkheads.reset(TOOL.GRAPHICSMAGICK);
+        }
+    }
+
+    @Test
+    public void testToolBulkhead() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        ToolDescriptor config = new ToolDescriptor(TOOL.IMAGEMAGICK) {
+            {
+                maxConcurrent = 1;
+                maxQueue = 1;
+                maxWaitSeconds = 30;
+            }
+        };
+        final ToolBulkhead bulkhead = new ToolBulkhead(TOOL.IMAGEMAGICK,
+                config);
+
+        // One running, one waiting
+        bulkhead.acquire();
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                bulkhead.acquire();
+                bulkhead.release();
+            }
+        };
+        waiting.start();
+        while (bulkhead.getQueueDepth() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, bulkhead.getActiveCount());
+
+        // The queue is full: rejected immediately
+        try {
+            bulkhead.acquire();
+            fail("The call should have been rejected");
+        } catch (ToolRejectedException e) {
+            assertEquals(TOOL.IMAGEMAGICK, e.getTool());
+        }
+        assertEquals(1, bulkhead.getQueueFullCount());
+
+        bulkhead.release();
+        waiting.join();
+        assertEquals(0, bulkhead.getQueueDepth());
+        assertEquals(2, bulkhead.getAdmittedCount());
+
+        // Deadline
+        bulkhead.acquire();
+        Thread late = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    bulkhead.acquire(50);
+                    bulkhead.release();
+                } catch (ToolRejectedException e) {
+                    // Expected
+                }
+            }
+        };
+        late.start();
+        late.join();
+        bulkhead.release();
+        assertEquals(1, bulkhead.getDeadlineExceededCount());
+        assertEquals(2, bulkhead.getRejectedCount());
+        assertEquals(0, bulkhead.getActiveCount());
+
+        // The timeout of a call is also a deadline for the wait (not the
+        // 30 s of maxWaitSeconds), the invocation gets what is left
+        bulkhead.acquire();
+        Thread timed = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    bulkhead.acquireForCall(50);
+                    bulkhead.release();
+                } catch (ToolRejectedException e) {
+                    // Expected
+                }
+            }
+        };
+        timed.start();
+        timed.join(10000);
+        assertFalse(timed.isAlive());
+        bulkhead.release();
+        assertEquals(2, bulkhead.getDeadlineExceededCount());
+        long timeout = bulkhead.acquireForCall(5000);
+        bulkhead.release();
+        assertTrue(timeout > 0 && timeout <= 5000);
+        assertEquals(config.getTimeoutMillis(-1), bulkhead.acquireForCall(-1));
+        bulkhead.release();
+        assertEquals(0, bulkhead.acquireForCall(0));
+        bulkhead.release();
+
+        // The counters are published in the Nuxeo metrics
+        ToolBulkheads.registerMetrics();
+        try {
+            Map<String, Gauge> gauges = SharedMetricRegistries.getOrCreate(
+                    MetricsService.class.getName()).getGauges();
+            Gauge admitted = gauges.get(ToolBulkheads.METRICS_PREFIX
+                    + ".imagemagick.admitted");
+            assertNotNull(admitted);
+            assertEquals(ToolBulkheads.get(TOOL.IMAGEMAGICK).getAdmittedCount(),
+                    admitted.getValue());
+            assertNotNull(gauges.get(ToolBulkheads.METRICS_PREFIX
+                    + ".exiftool.queued"));
+        } finally {
+            ToolBulkheads.unregisterMetrics();
+        }
+
+        // Reads go through the bulkhead of the tool
+        long before = ToolBulkheads.get(TOOL.IMAGEMAGICK).getAdmittedCount();
+        new MetadataReader(filePNG.getAbsolutePath()).readMetadata(
+                DEFAULT_KEYS, TOOL.IMAGEMAGICK, READ_MODE.FULL);
+        assertEquals(before + 1,
+                ToolBulkheads.get(TOOL.IMAGEMAGICK).getAdmittedCount());
+    }
+
+    /*
+     * Answers "TestKey" for any file, with ExifTool names
+     */
+    public static class TestBackend extends AbstractMetadataBackend {
+
+        public TestBackend() {
+            super("Test", TOOL.EXIFTOOL);
+        }
+
+        @Override
+        public boolean canRead(String[] inTheseKeys) {
+            return inTheseKeys != null && inTheseKeys.length == 1
+                    && "TestKey".equals(inTheseKeys[0]);
+        }
+
+        @Override
+        public long estimateCost(MetadataSource inSource, String[] inTheseKeys) {
+            return 1;
+        }
+
+        @Override
+        public HashMap<String, Object> read(MetadataSource inSource,
+                String[] inTheseKeys) {
+            HashMap<String, Object> result = new HashMap<String, Object>();
+            result.put("TestKey", "From the test backend");
+            return result;
+        }
+    }
+
+    /*
+     * The cheapest backend for "Producer", failing as a parser does on a
+     * malformed file
+     */
+    public static class BrokenBackend extends AbstractMetadataBackend {
+
+        public BrokenBackend() {
+            super("Broken", TOOL.EXIFTOOL);
+        }
+
+        @Override
+        public boolean canRead(String[] inTheseKeys) {
+            return inTheseKeys != null && inTheseKeys.length == 1
+                    && "Producer".equals(inTheseKeys[0]);
+        }
+
+        @Override
+        public long estimateCost(MetadataSource inSource, String[] inTheseKeys) {
+            return 0;
+        }
+
+        @Override
+        public HashMap<String, Object> read(MetadataSource inSource,
+                String[] inTheseKeys) {
+            throw new ClientException("Invalid trailer in " + inSource);
+        }
+
+        @Override
+        public String readXMP(MetadataSource inSource) {
+            throw new ClientException("Invalid trailer in " + inSource);
+        }
+    }
+
+    @Test
+    public void testMetadataBackends() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        File pdfFile = FileUtils.getResourceFileFromContext("files/a.pdf");
+        MetadataSource pdf = new MetadataSource(pdfFile.getAbsolutePath(),
+                "application/pdf");
+        String[] keys = { "Producer" };
+
+        // Built-in backends
+        for (String name : new String[] { "ImageMagick", "GraphicsMagick",
+                "ExifTool", "ImageHeader", "Exif", "PdfInfo", "Ooxml",
+                "IsoBmff", "Xmp" }) {
+            assertNotNull(name, MetadataBackends.get(name));
+        }
+
+        // In Java first, the tool (if installed) last, nothing for images
+        List<MetadataBackend> candidates = MetadataBackends.getCandidates(
+                TOOL.EXIFTOOL, pdf, keys);
+        assertEquals("PdfInfo", candidates.get(0).getName());
+        for (MetadataBackend backend : candidates) {
+            assertFalse("Exif".equals(backend.getName()));
+        }
+
+        MetadataReader mdr = new MetadataReader(pdfFile.getAbsolutePath());
+        assertEquals("Mac OS X 10.10 Quartz PDFContext",
+                mdr.readMetadataWithExifTool(keys).get("Producer"));
+
+        // Contributed backend
+        BackendDescriptor test = new BackendDescriptor(null,
+                TestBackend.class, true);
+        MetadataBackends.register(test);
+        try {
+            assertEquals("From the test backend", mdr.readMetadataWithExifTool(
+                    new String[] { "TestKey" }).get("TestKey"));
+        } finally {
+            MetadataBackends.unregister(test);
+        }
+        assertNull(MetadataBackends.get("Test"));
+
+        // A backend failing on the file (as a parser on a corrupted PDF):
+        // the tool answers
+        BackendDescriptor broken = new BackendDescriptor(null,
+                BrokenBackend.class, true);
+        BackendDescriptor toolOnly = new BackendDescriptor("PdfInfo", null,
+                false);
+        MetadataBackends.register(broken);
+        MetadataBackends.register(toolOnly);
+        try {
+            assertEquals("Broken", MetadataBackends.getCandidates(
+                    TOOL.EXIFTOOL, pdf, keys).get(0).getName());
+            long failed = MetadataBackends.getStatistics("Broken").getFailedCount();
+            long answered = MetadataBackends.getStatistics("ExifTool").getAnsweredCount();
+            assertEquals("Mac OS X 10.10 Quartz PDFContext",
+                    mdr.readMetadataWithExifTool(keys).get("Producer"));
+            assertEquals(failed + 1,
+                    MetadataBackends.getStatistics("Broken").getFailedCount());
+            assertEquals(answered + 1,
+                    MetadataBackends.getStatistics("ExifTool").getAnsweredCount());
+            // No XMP in this PDF
+            assertTrue(mdr.readXMP().isEmpty());
+        } finally {
+            MetadataBackends.unregister(toolOnly);
+            MetadataBackends.unregister(broken);
+        }
+
+        // The last candidate failing: its error is thrown
+        BackendDescriptor noExifTool = new BackendDescriptor("ExifTool",
+                null, false);
+        MetadataBackends.register(broken);
+        MetadataBackends.register(toolOnly);
+        MetadataBackends.register(noExifTool);
+        try {
+            mdr.readMetadataWithExifTool(keys);
+            fail("The failure of the backend should have been thrown");
+        } catch (ClientException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(
+                    "Invalid trailer"));
+        } finally {
+            MetadataBackends.unregister(noExifTool);
+            MetadataBackends.unregister(toolOnly);
+            MetadataBackends.unregister(broken);
+        }
+
+        // Disabled backend
+        BackendDescriptor noPdfInfo = new BackendDescriptor("PdfInfo", null,
+                false);
+        MetadataBackends.register(noPdfInfo);
+        try {
+            assertNull(MetadataBackends.get("PdfInfo"));
+            for (MetadataBackend backend : MetadataBackends.getCandidates(
+                    TOOL.EXIFTOOL, pdf, keys)) {
+                assertEquals("ExifTool", backend.getName());
+            }
+        } finally {
+            MetadataBackends.unregister(noPdfInfo);
+        }
+        assertNotNull(MetadataBackends.get("PdfInfo"));
+    }
+
+    @Test
+    public void testAutoRouting() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        File pdfFile = FileUtils.getResourceFileFromContext("files/a.pdf");
+        File jpegFile = FileUtils.getResourceFileFromContext(IMAGE_JPEG);
+
+        // Magic bytes win over a missing or wrong mime type
+        assertEquals("application/pdf",
+                FormatSniffer.sniff(pdfFile.getAbsolutePath()));
+        assertEquals("video/mp4", FormatSniffer.sniff(FileUtils.getResourceFileFromContext(
+                "files/a.mp4").getAbsolutePath()));
+        assertEquals(OoxmlMetadataReader.MIME_TYPES[0],
+                FormatSniffer.sniff(FileUtils.getResourceFileFromContext(
+                        "files/a.docx").getAbsolutePath()));
+        MetadataSource pdf = new MetadataSource(pdfFile.getAbsolutePath(),
+                "image/jpeg");
+        assertEquals("application/pdf",
+                MetadataRouter.sniff(pdf).getMimeType());
+
+        // Names of ImageMagick for its keys, of ExifTool for the others
+        assertEquals(TOOL.IMAGEMAGICK, MetadataRouter.getCompatibility("Width"));
+        assertEquals(TOOL.IMAGEMAGICK,
+                MetadataRouter.getCompatibility("Channel statistics:Red:mean"));
+        assertEquals(TOOL.EXIFTOOL, MetadataRouter.getCompatibility("Make"));
+
+        // The keys are split between the backends reading the header and
+        // the EXIF
+        List<MetadataRouter.Route> routes = MetadataRouter.plan(
+                new MetadataSource(jpegFile.getAbsolutePath(), null),
+                new String[] { "Width", "Height", "Make" });
+        assertEquals(2, routes.size());
+        assertEquals("ImageHeader", routes.get(0).getBackend().getName());
+        assertEquals(2, routes.get(0).getKeys().length);
+        assertEquals("Exif", routes.get(1).getBackend().getName());
+
+        // Read in Java, the decision and the latency are recorded
+        MetadataRouter.resetStatistics();
+        long before = MetadataBackends.getStatistics("PdfInfo").getAnsweredCount();
+        MetadataReader mdr = new MetadataReader(pdfFile.getAbsolutePath());
+        HashMap<String, String> result = mdr.readMetadataAuto(new String[] {
+                "Producer", "PageCount" }, READ_MODE.AUTO);
+        assertEquals("Mac OS X 10.10 Quartz PDFContext", result.get("Producer"));
+        assertEquals("4", result.get("PageCount"));
+        assertEquals(before + 1,
+                MetadataBackends.getStatistics("PdfInfo").getAnsweredCount());
+        assertEquals(Long.valueOf(1),
+                MetadataRouter.getDecisionCounts().get(
+                        "application/pdf: PdfInfo"));
+    }
+
+    @Test
+    public void testMetadataPreFilter() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        MetadataPreFilter.resetStatistics();
+
+        Blob csv = new StringBlob("Name,Width\nlogo,100\n", "text/csv");
+        Blob empty = new StringBlob("", "text/plain");
+        Blob jpeg = new FileBlob(FileUtils.getResourceFileFromContext(IMAGE_JPEG));
+        Blob docx = new FileBlob(FileUtils.getResourceFileFromContext("files/a.docx"));
+
+        assertEquals("text/plain", MetadataPreFilter.sniff(csv));
+        assertEquals("image/jpeg", MetadataPreFilter.sniff(jpeg));
+
+        // ImageMagick is not run on text or ZIP, nothing is run on an empty
+        // file
+        assertFalse(MetadataPreFilter.accept(csv, TOOL.IMAGEMAGICK));
+        assertFalse(MetadataPreFilter.accept(docx, TOOL.GRAPHICSMAGICK));
+        assertFalse(MetadataPreFilter.accept(empty, TOOL.EXIFTOOL));
+        assertTrue(MetadataPreFilter.accept(csv, TOOL.EXIFTOOL));
+        assertTrue(MetadataPreFilter.accept(jpeg, TOOL.IMAGEMAGICK));
+        // A text image format
+        assertTrue(MetadataPreFilter.accept(new StringBlob("P1\n1 1\n0\n"),
+                TOOL.IMAGEMAGICK));
+
+        assertEquals(3, MetadataPreFilter.getSkippedCount());
+        assertEquals(Long.valueOf(1), MetadataPreFilter.getSkippedCounts().get(
+                "ImageMagick: text/plain"));
+
+        // In a batch, the skipped blob has the keys, with no value
+        String[] keys = { "Width" };
+        List<HashMap<String, String>> results = MetadataReader.readMetadataBatch(
+                Arrays.asList(csv, empty), keys, TOOL.IMAGEMAGICK);
+        assertEquals(2, results.size());
+        assertEquals("", results.get(0).get("Width"));
+        assertEquals("", results.get(1).get("Width"));
+        assertEquals(5, MetadataPreFilter.getSkippedCount());
+    }
+
+    @Test
+    public void testReadFromStream() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        File jpegFile = FileUtils.getResourceFileFromContext(IMAGE_JPEG);
+        byte[] jpegBytes = Files.readAllBytes(jpegFile.toPath());
+
+        // Formats whose metadata can be read without seeking
+        assertTrue(FormatSniffer.isStreamable(ByteBuffer.wrap(jpegBytes)));
+        assertTrue(FormatSniffer.isStreamable(headOf("files/a.mp4")));
+        assertFalse(FormatSniffer.isStreamable(headOf(IMAGE_TIF)));
+        assertFalse(FormatSniffer.isStreamable(headOf("files/a.pdf")));
+        assertFalse(FormatSniffer.isStreamable(headOf("files/a.docx")));
+        // ISO-BMFF, "mdat" before "moov"
+        ByteBuffer mdatFirst = ByteBuffer.allocate(64);
+        mdatFirst.putInt(16).put("ftypisom".getBytes()).putInt(0);
+        mdatFirst.putInt(48).put("mdat".getBytes());
+        mdatFirst.rewind();
+        assertFalse(FormatSniffer.isStreamable(mdatFirst));
+
+        // A blob without a file: the router sniffs its first bytes
+        Blob blob = new ByteArrayBlob(jpegBytes, null);
+        try (MetadataReader mdr = new MetadataReader(blob)) {
+            HashMap<String, String> result = mdr.readMetadataAuto(
+                    new String[] { KEYS.WIDTH, KEYS.HEIGHT }, READ_MODE.AUTO);
+            assertEquals("1597", result.get(KEYS.WIDTH));
+            assertEquals("232", result.get(KEYS.HEIGHT));
+        }
+
+        // The tools read stdin
+        if (ToolAvailability.isImageMagickAvailable()) {
+            HashMap<String, String> values = IdentifyFormatReader.read(
+                    "jpeg:-", new ByteArrayInputStream(jpegBytes),
+                    new String[] { KEYS.WIDTH }, false, true, -1);
+            assertEquals("1597", values.get(KEYS.WIDTH));
+        }
+        if (ToolAvailability.isExifToolAvailable()) {
+            ArrayList<String> lines = ExifToolEngine.executeWithInput(
+                    Arrays.asList("-s3", "-FileType"),
+                    new ByteArrayInputStream(jpegBytes), -1);
+            assertEquals("JPEG", lines.get(0).trim());
+
+            try (MetadataReader mdr = new MetadataReader(new ByteArrayBlob(
+                    jpegBytes, "image/jpeg"))) {
+                HashMap<String, String> result = mdr.readMetadata(
+                        new String[] { "ImageWidth" }, TOOL.EXIFTOOL);
+                assertEquals("1597", result.get("ImageWidth"));
+            }
+        }
+    }
+
+    protected static ByteBuffer headOf(String inResource) throws Exception {
+        File f = FileUtils.getResourceFileFromContext(inResource);
+        try (InputStream in = new FileInputStream(f)) {
+            return FormatSniffer.readHead(in);
+        }
+    }
+
+    /*
+     * A slow remote store: each read of a range waits, the bytes transferred
+     * are counted. The content is never available as a file
+     */
+    protected static class ThrottledContent implements MetadataSource.Content {
+
+        protected final byte[] data;
+
+        protected final AtomicLong bytesTransferred = new AtomicLong();
+
+        protected ThrottledContent(byte[] inData) {
+            data = inData;
+        }
+
+        @Override
+        public boolean hasFile() {
+            return false;
+        }
+
+        @Override
+        public String getFilePath() throws IOException {
+            throw new IOException("No copy expected");
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return Channels.newInputStream(openChannel());
+        }
+
+        @Override
+        public SeekableByteChannel openChannel() {
+            return new SeekableByteChannel() {
+                long position = 0;
+
+                @Override
+                public int read(ByteBuffer inDst) throws IOException {
+                    if (position >= data.length) {
+                        return -1;
+                    }
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    int count = (int) Math.min(inDst.remaining(),
+                            data.length - position);
+                    inDst.put(data, (int) position, count);
+                    position += count;
+                    bytesTransferred.addAndGet(count);
+                    return count;
+                }
+
+                @Override
+                public int write(ByteBuffer inSrc) {
+                    throw new NonWritableChannelException();
+                }
+
+                @Override
+                public long position() {
+                    return position;
+                }
+
+                @Override
+                public SeekableByteChannel position(long inNewPosition) {
+                    position = inNewPosition;
+                    return this;
+                }
+
+                @Override
+                public long size() {
+                    return data.length;
+                }
+
+                @Override
+                public SeekableByteChannel truncate(long inSize) {
+                    throw new NonWritableChannelException();
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public long getLength() {
+            return data.length;
+        }
+    }
+
+    @Test
+    public void testPrefixWindow() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        // A video with the moov box at the end: ftyp, mdat, moov
+        File mp4File = FileUtils.getResourceFileFromContext("files/a.mp4");
+        byte[] mp4 = Files.readAllBytes(mp4File.toPath());
+        ByteBuffer boxes = ByteBuffer.wrap(mp4);
+        int ftypSize = boxes.getInt(0);
+        int moovSize = boxes.getInt(ftypSize);
+        int mdatPos = ftypSize + moovSize + 16; // 2 "free" boxes
+        assertEquals("mdat", new String(mp4, mdatPos + 4, 4, "ISO-8859-1"));
+        ByteArrayOutputStream moovAtEnd = new ByteArrayOutputStream();
+        moovAtEnd.write(mp4, 0, ftypSize);
+        moovAtEnd.write(mp4, mdatPos, mp4.length - mdatPos);
+        moovAtEnd.write(mp4, ftypSize, moovSize);
+
+        String[] keys = { "Duration", "ImageWidth", "ImageHeight" };
+        ThrottledContent video = new ThrottledContent(moovAtEnd.toByteArray());
+        MetadataSource source = new MetadataSource(video, null);
+        HashMap<String, Object> values = MetadataRouter.read(source, keys);
+        assertEquals("11.85 s", values.get("Duration"));
+        assertEquals(320, ((Number) values.get("ImageWidth")).intValue());
+        // The head and the moov box, not the media data
+        PrefixWindow window = source.getPrefixWindow();
+        assertTrue(window.isScanned());
+        assertTrue(video.bytesTransferred.get() < video.getLength() / 4);
+        assertEquals(video.getLength(), new File(window.getPath()).length());
+        source.close();
+        assertFalse(new File(window.getPath()).exists());
+
+        // JPEG: the segments before the image data
+        byte[] jpeg = Files.readAllBytes(FileUtils.getResourceFileFromContext(
+                WITH_XMP).toPath());
+        ThrottledContent image = new ThrottledContent(jpeg);
+        source = new MetadataSource(image, "image/jpeg");
+        values = MetadataRouter.read(source, new String[] { "Make", "Width" });
+        assertEquals("NIKON CORPORATION", values.get("Make"));
+        assertEquals("2033", values.get("Width"));
+        assertTrue(source.getPrefixWindow().isScanned());
+        assertFalse(source.growPrefix());
+        assertTrue(image.bytesTransferred.get() < image.getLength());
+        source.close();
+
+        // PDF: the window grows (head and tail) until the parser can read it
+        byte[] pdf = Files.readAllBytes(FileUtils.getResourceFileFromContext(
+                "files/a.pdf").toPath());
+        source = new MetadataSource(new ThrottledContent(pdf), null);
+        values = MetadataRouter.read(source, new String[] { "PageCount" });
+        assertEquals(4, ((Number) values.get("PageCount")).intValue());
+        assertFalse(source.getPrefixWindow().isScanned());
+        source.close();
+    }
+
+    @Test
+    public void testScratchFiles() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        final File dir = new File(Files.createTempDirectory("scratch").toFile(),
+                "metadata");
+        ScratchFiles.configure(new ScratchDescriptor() {
+            {
+                directory = dir.getAbsolutePath();
+                maxMegabytes = 1;
+            }
+        });
+        long filesBefore = ScratchFiles.getFilesOutstanding();
+        long bytesBefore = ScratchFiles.getBytesInUse();
+        try {
+            // A blob without a file, copied for the Office parser
+            byte[] docx = Files.readAllBytes(FileUtils.getResourceFileFromContext(
+                    "files/a.docx").toPath());
+            HashMap<String, String> result;
+            try (MetadataReader mdr = new MetadataReader(new ByteArrayBlob(
+                    docx,
+                    "application/vnd.openxmlformats-officedocument.wordprocessingml.document"))) {
+                result = mdr.readMetadataWithExifTool(new String[] { "Pages" });
+                assertEquals(filesBefore + 1, ScratchFiles.getFilesOutstanding());
+                assertEquals(bytesBefore + docx.length,
+                        ScratchFiles.getBytesInUse());
+                assertEquals(1, dir.list().length);
+            }
+            assertEquals("3", result.get("Pages"));
+            assertEquals(filesBefore, ScratchFiles.getFilesOutstanding());
+            assertEquals(bytesBefore, ScratchFiles.getBytesInUse());
+            assertEquals(0, dir.list().length);
+
+            // The window of a JPEG, deleted with the reader
+            byte[] jpeg = Files.readAllBytes(FileUtils.getResourceFileFromContext(
+                    IMAGE_JPEG).toPath());
+            try (MetadataReader mdr = new MetadataReader(new ByteArrayBlob(
+                    jpeg, "image/jpeg"))) {
+                result = mdr.readMetadataAuto(new String[] { KEYS.WIDTH },
+                        READ_MODE.AUTO);
+                assertEquals("1597", result.get(KEYS.WIDTH));
+            }
+            assertEquals(filesBefore, ScratchFiles.getFilesOutstanding());
+            assertEquals(0, dir.list().length);
+
+            // A reader never closed: its window is deleted once it is
+            // garbage collected
+            long reclaimed = ScratchFiles.getFilesReclaimed();
+            assertEquals("1597", readWithoutClosing(jpeg).get(KEYS.WIDTH));
+            assertEquals(filesBefore + 1, ScratchFiles.getFilesOutstanding());
+            long deadline = System.currentTimeMillis() + 30000;
+            while (ScratchFiles.getFilesOutstanding() > filesBefore
+                    && System.currentTimeMillis() < deadline) {
+                System.gc();
+                Thread.sleep(50);
+            }
+            assertEquals(filesBefore, ScratchFiles.getFilesOutstanding());
+            assertEquals(bytesBefore, ScratchFiles.getBytesInUse());
+            assertEquals(reclaimed + 1, ScratchFiles.getFilesReclaimed());
+            assertEquals(0, dir.list().length);
+
+            // A window where sparse files are not supported: counted for the
+            // length of the content, not for the bytes copied
+            final byte[] mp4 = Files.readAllBytes(FileUtils.getResourceFileFromContext(
+                    "files/a.mp4").toPath());
+            String[] keys = { "Duration" };
+            for (final String sparse : new String[] { "false", "true" }) {
+                ScratchFiles.configure(new ScratchDescriptor() {
+                    {
+                        directory = dir.getAbsolutePath();
+                        maxMegabytes = 1;
+                        sparseFiles = sparse;
+                    }
+                });
+                assertEquals(Boolean.valueOf(sparse),
+                        ScratchFiles.supportsSparseFiles());
+                MetadataSource source = new MetadataSource(
+                        new ThrottledContent(mp4), null);
+                try {
+                    assertEquals("11.85 s",
+                            MetadataRouter.read(source, keys).get("Duration"));
+                    long used = ScratchFiles.getBytesInUse() - bytesBefore;
+                    if ("true".equals(sparse)) {
+                        assertTrue(used < mp4.length);
+                    } else {
+                        assertEquals(mp4.length, used);
+                    }
+                } finally {
+                    source.close();
+                }
+                assertEquals(bytesBefore, ScratchFiles.getBytesInUse());
+            }
+
+            // Quota: 1 MB
+            long rejected = ScratchFiles.getRejectedCount();
+            try {
+                ScratchFiles.create("TEST-", 2 * 1024 * 1024);
+                fail("The quota should have been exceeded");
+            } catch (ScratchQuotaExceededException e) {
+                assertEquals(rejected + 1, ScratchFiles.getRejectedCount());
+            }
+            try (ScratchFile file = ScratchFiles.create("TEST-", 0)) {
+                file.reserve(512 * 1024);
+                try {
+                    file.reserve(2 * 1024 * 1024);
+                    fail("The quota should have been exceeded");
+                } catch (ScratchQuotaExceededException e) {
+                    assertEquals(512 * 1024, file.getReserved());
+                }
+                // Detached: the file belongs to the caller
+                File detached = file.detach();
+                assertTrue(detached.exists());
+                assertEquals(bytesBefore, ScratchFiles.getBytesInUse());
+                detached.delete();
+            }
+            assertEquals(filesBefore, ScratchFiles.getFilesOutstanding());
+        } finally {
+            ScratchFiles.configure(null);
+        }
+    }
+
+    /*
+     * The reader is not referenced anymore when this returns
+     */
+    protected static HashMap<String, String> readWithoutClosing(byte[] inJpeg)
+            throws IOException {
+
+        MetadataReader mdr = new MetadataReader(new ByteArrayBlob(inJpeg,
+                "image/jpeg"));
+        return mdr.readMetadataAuto(new String[] { KEYS.WIDTH },
+                READ_MODE.AUTO);
+    }
+
+    @Test
+    public void testMetadataCache() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        MetadataCache.configure(new MetadataCacheDescriptor() {
+            {
+                maxMegabytes = 1;
+                ttlSeconds = 1;
+            }
+        });
+        try {
+            // Two blobs, same digest: the second one is not read
+            byte[] jpeg = Files.readAllBytes(FileUtils.getResourceFileFromContext(
+                    IMAGE_JPEG).toPath());
+            String[] keys = { KEYS.WIDTH, KEYS.HEIGHT };
+            MetadataCache.resetStatistics();
+            long answered = MetadataBackends.getStatistics("ImageHeader").getAnsweredCount();
+            for (int i = 0; i < 2; i++) {
+                Blob blob = new ByteArrayBlob(jpeg, "image/jpeg");
+                blob.setDigest("digest-of-a-jpg");
+                try (MetadataReader mdr = new MetadataReader(blob)) {
+                    HashMap<String, String> result = mdr.readMetadata(keys,
+                            TOOL.IMAGEMAGICK);
+                    assertEquals("1597", result.get(KEYS.WIDTH));
+                    assertEquals("232", result.get(KEYS.HEIGHT));
+                }
+            }
+            assertEquals(answered + 1,
+                    MetadataBackends.getStatistics("ImageHeader").getAnsweredCount());
+            assertEquals(1, MetadataCache.getMissCount());
+            assertEquals(1, MetadataCache.getHitCount());
+
+            // The entry with all the ExifTool values answers a subset
+            HashMap<String, Object> all = new HashMap<String, Object>();
+            all.put("Make", "NIKON CORPORATION");
+            all.put("ImageWidth", 2033);
+            all.put("FileName", "first.jpg");
+            all.put("SourceFile", "/tmp/first.jpg");
+            String exifTool = MetadataCache.namespace(TOOL.EXIFTOOL,
+                    READ_MODE.AUTO, null);
+            MetadataCache.put("digest-of-with-xmp", exifTool, null, all);
+            Blob blob = new ByteArrayBlob(jpeg, "image/jpeg");
+            blob.setDigest("digest-of-with-xmp");
+            try (MetadataReader mdr = new MetadataReader(blob)) {
+                HashMap<String, String> result = mdr.readMetadataWithExifTool(new String[] {
+                        "make", "ImageWidth" });
+                assertEquals("NIKON CORPORATION", result.get("Make"));
+                assertEquals("2033", result.get("ImageWidth"));
+            }
+            // But not a key with a group, or a key it does not have (a tag
+            // only returned when requested)
+            assertNull(MetadataCache.get("digest-of-with-xmp", exifTool,
+                    new String[] { "IFD0:Make" }));
+            assertNull(MetadataCache.get("digest-of-with-xmp", exifTool,
+                    new String[] { "Make", "Model" }));
+
+            // The tags of the file are not cached, and the entry without
+            // them does not answer a request for all the values
+            assertNull(MetadataCache.get("digest-of-with-xmp", exifTool,
+                    new String[] { "Make", "FileName" }));
+            assertNull(MetadataCache.get("digest-of-with-xmp", exifTool,
+                    null));
+
+            // A blob modified in place is read again
+            MetadataCache.invalidate("digest-of-with-xmp");
+            assertNull(MetadataCache.get("digest-of-with-xmp", exifTool,
+                    new String[] { "Make" }));
+
+            // Evicted when the cache is full (1 MB)
+            MetadataCache.clear();
+            HashMap<String, Object> big = new HashMap<String, Object>();
+            big.put("Comment", new String(new char[300 * 1024]));
+            MetadataCache.put("digest-1", exifTool, null, big);
+            MetadataCache.put("digest-2", exifTool, null, big);
+            String[] comment = { "Comment" };
+            assertEquals(1, MetadataCache.getEvictionCount());
+            assertNull(MetadataCache.get("digest-1", exifTool, comment));
+            assertNotNull(MetadataCache.get("digest-2", exifTool, comment));
+            assertTrue(MetadataCache.getWeight() <= 1024 * 1024);
+
+            // Too old
+            Thread.sleep(1100);
+            assertNull(MetadataCache.get("digest-2", exifTool, comment));
+            assertEquals(1, MetadataCache.getExpiredCount());
+        } finally {
+            MetadataCache.configure(null);
+        }
+    }
+
+    @Test
+    public void testMetadataCacheSameDigestOtherFile() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        // Two files with the same content, and the same digest
+        File jpeg = FileUtils.getResourceFileFromContext(IMAGE_JPEG);
+        File dir = Files.createTempDirectory("digest").toFile();
+        File first = new File(dir, "first.jpg");
+        File second = new File(dir, "second.jpg");
+        Files.copy(jpeg.toPath(), first.toPath());
+        Files.copy(jpeg.toPath(), second.toPath());
+
+        MetadataCache.configure(null);
+        try {
+            HashMap<String, String> result;
+            Blob blob = new FileBlob(first);
+            blob.setDigest("digest-of-two-files");
+            try (MetadataReader mdr = new MetadataReader(blob)) {
+                result = mdr.readMetadataWithExifTool(null);
+            }
+            assertEquals("first.jpg", result.get("FileName"));
+            HashMap<String, String> firstResult = result;
+
+            blob = new FileBlob(second);
+            blob.setDigest("digest-of-two-files");
+            try (MetadataReader mdr = new MetadataReader(blob)) {
+                result = mdr.readMetadataWithExifTool(new String[] {
+                        "FileName", "Make" });
+                assertEquals("second.jpg", result.get("FileName"));
+                // Not from the cache: the same values as the first read,
+                // with the tags of this file
+                result = mdr.readMetadataWithExifTool(null);
+                assertEquals(firstResult.keySet(), result.keySet());
+                assertEquals("second.jpg", result.get("FileName"));
+                assertFalse(first.getAbsolutePath().equals(
+                        result.get("SourceFile")));
+                // The entry with all the values still answers some of them
+                result = mdr.readMetadataWithExifTool(new String[] { "Make" });
+                assertEquals(firstResult.get("Make"), result.get("Make"));
+            }
+        } finally {
+            MetadataCache.configure(null);
+        }
+    }
+
+    @Test
+    public void testMetadataStore() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        final File dir = new File(Files.createTempDirectory("store").toFile(),
+                "metadata");
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        values.put("Make", "NIKON CORPORATION");
+        values.put("ImageWidth", 2033);
+        values.put("Keywords", Arrays.asList("sea", "sky"));
+
+        // Kept after a restart
+        MetadataStore store = MetadataStore.open(dir, 0);
+        try {
+            assertTrue(store.put("digest-1", "ExifTool\n*", values));
+            assertTrue(store.put("digest-2", "ExifTool\n*", values));
+        } finally {
+            store.close();
+        }
+        store = MetadataStore.open(dir, 0);
+        try {
+            Map<String, HashMap<String, Object>> stored = store.get("digest-1");
+            assertEquals(values, stored.get("ExifTool\n*"));
+            assertEquals(2, store.getRecordCount());
+            assertNull(store.get("digest-3"));
+
+            // Another entry of a digest: only this entry is written
+            HashMap<String, Object> width = new HashMap<String, Object>();
+            width.put("Width", "1597");
+            long length = store.getDataLength();
+            store.put("digest-1", "ImageMagick:FULL\nWidth\t", width);
+            long entryLength = store.getDataLength() - length;
+            store.put("digest-1", "ImageMagick:HEADER_ONLY\nWidth\t", width);
+            assertEquals(entryLength + 7, store.getDataLength() - length
+                    - entryLength);
+            stored = store.get("digest-1");
+            assertEquals(3, stored.size());
+            assertEquals(values, stored.get("ExifTool\n*"));
+            assertEquals(width, stored.get("ImageMagick:FULL\nWidth\t"));
+
+            // A new version of an entry replaces it
+            width.put("Width", "1598");
+            store.put("digest-1", "ImageMagick:FULL\nWidth\t", width);
+            assertEquals("1598", store.get("digest-1").get(
+                    "ImageMagick:FULL\nWidth\t").get("Width"));
+
+            // Removed, then compacted
+            store.remove("digest-2");
+            assertNull(store.get("digest-2"));
+            assertEquals(1, store.getRecordCount());
+            length = store.getDataLength();
+            assertTrue(store.getDeadBytes() > 0);
+            MetadataStore otherNode = MetadataStore.open(dir, 0);
+            try {
+                store.compact();
+                assertTrue(store.getDataLength() < length);
+                assertEquals(0, store.getDeadBytes());
+                assertEquals(values, store.get("digest-1").get("ExifTool\n*"));
+                // The files were replaced: the other one opens the new ones
+                assertEquals(3, otherNode.get("digest-1").size());
+                otherNode.put("digest-3", "ExifTool\n*", values);
+                assertEquals(values, store.get("digest-3").get("ExifTool\n*"));
+            } finally {
+                otherNode.close();
+            }
+        } finally {
+            store.close();
+        }
+
+        // A record not completely written (crash) is removed
+        File data = new File(dir, MetadataStore.DATA_FILE);
+        long length = data.length();
+        try (FileOutputStream out = new FileOutputStream(data, true)) {
+            out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+        }
+        store = MetadataStore.open(dir, 0);
+        try {
+            assertEquals(length, data.length());
+            assertNotNull(store.get("digest-1"));
+        } finally {
+            store.close();
+        }
+
+        // The cache reads the store before any backend
+        MetadataCacheDescriptor config = new MetadataCacheDescriptor() {
+            {
+                storeDirectory = dir.getAbsolutePath();
+            }
+        };
+        MetadataCache.configure(config);
+        try {
+            byte[] jpeg = Files.readAllBytes(FileUtils.getResourceFileFromContext(
+                    IMAGE_JPEG).toPath());
+            String[] keys = { KEYS.WIDTH, KEYS.HEIGHT };
+            long answered = MetadataBackends.getStatistics("ImageHeader").getAnsweredCount();
+            for (int i = 0; i < 2; i++) {
+                // As after a restart: nothing in memory
+                MetadataCache.configure(config);
+                Blob blob = new ByteArrayBlob(jpeg, "image/jpeg");
+                blob.setDigest("digest-of-a-stored-jpg");
+                try (MetadataReader mdr = new MetadataReader(blob)) {
+                    HashMap<String, String> result = mdr.readMetadata(keys,
+                            TOOL.IMAGEMAGICK);
+                    assertEquals("1597", result.get(KEYS.WIDTH));
+                    assertEquals("232", result.get(KEYS.HEIGHT));
+                }
+            }
+            assertEquals(answered + 1,
+                    MetadataBackends.getStatistics("ImageHeader").getAnsweredCount());
+            assertEquals(1, MetadataCache.getStore().getHitCount());
+        } finally {
+            MetadataCache.configure(null);
+        }
+    }
+
+    @Test
+    public void testToolRegistry() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        // Parsing
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("Version: ImageMagick 6.9.10-23 Q16 x86_64 20190101 https://imagemagick.org");
+        assertEquals("6.9.10-23", ToolRegistry.parseImageMagickVersion(lines));
+
+        lines.clear();
+        lines.add("GraphicsMagick 1.3.35 2020-02-23 Q16 http://www.GraphicsMagick.org/");
+        assertEquals("1.3.35", ToolRegistry.parseGraphicsMagickVersion(lines));
+
+        lines.clear();
+        lines.add("   Format  Module    Mode  Description");
+        lines.add("-------------------------------------------------------------------------------");
+        lines.add("      3FR  DNG       r--   Hasselblad CFV/H3D39II");
+        lines.add("     JPEG* JPEG      rw-   Joint Photographic Experts Group JFIF format (80)");
+        lines.add("                           See http://www.libpng.org/ for details about the PNG format.");
+        lines.add("     INFO  INFO      -w+   The image format and characteristics");
+        lines.add("      PNG P  rw+  Portable Network Graphics");
+        HashSet<String> read = new HashSet<String>();
+        HashSet<String> write = new HashSet<String>();
+        ToolRegistry.parseMagickFormats(lines, read, write);
+        assertEquals(3, read.size());
+        assertTrue(read.contains("3FR") && read.contains("JPEG")
+                && read.contains("PNG"));
+        assertEquals(3, write.size());
+        assertTrue(write.contains("INFO") && !write.contains("3FR"));
+
+        lines.clear();
+        lines.add("Readable file types:");
+        lines.add("  3FR 3G2 3GP2 3GP A AA AAE AAX");
+        lines.add("  jpg JPEG");
+        assertEquals(10, ToolRegistry.parseExifToolList(lines).size());
+
+        // Probing. Consistent with what the tools can do
+        ToolRegistry.probeAsync();
+        for (TOOL tool : TOOL.values()) {
+            ToolInfo info = ToolRegistry.get(tool);
+            assertEquals(tool, info.getTool());
+            assertNotNull(ToolRegistry.getIfProbed(tool));
+            if (info.isAvailable()) {
+                assertFalse(info.getVersion().isEmpty());
+                assertTrue(info.canRead("PNG"));
+            } else {
+                assertFalse(info.getError().isEmpty());
+                assertFalse(info.canRead("PNG"));
+            }
+        }
+        assertEquals(ToolAvailability.isExifToolAvailable(),
+                ToolRegistry.isAvailable(TOOL.EXIFTOOL));
+        if (ToolRegistry.isAvailable(TOOL.EXIFTOOL)) {
+            // Probing started an ExifTool process
+            assertTrue(ExifToolEngine.getPool().getCreatedCount() > 0);
+        }
+    }
+
+    @Test
+    public void testToolTimeout() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        if (System.getProperty("os.name").toLowerCase().startsWith("windows")) {
+            doLog("Not a Unix system, test ignored");
+            return;
+        }
+
+        // A shell that starts a child: both must be killed
+        ArrayList<String> command = new ArrayList<String>();
+        command.add("sh");
+        command.add("-c");
+        command.add("sleep 30; echo done");
+
+        long start = System.currentTimeMillis();
+        try {
+            ProcessRunner.run(TOOL.IMAGEMAGICK, command, 200);
+            fail("The call should have timed out");
+        } catch (ToolTimeoutException e) {
+            assertEquals(TOOL.IMAGEMAGICK, e.getTool());
+            assertEquals(200, e.getTimeoutMillis());
+        }
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(0, ToolBulkheads.get(TOOL.IMAGEMAGICK).getActiveCount());
+
+        // Killed while its input is stalled (a remote stream which does not
+        // answer, even when interrupted or closed)
+        InputStream stalled = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                long end = System.currentTimeMillis() + 30000;
+                while (System.currentTimeMillis() < end) {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        // Ignored, as a blocking socket read
+                    }
+                }
+                return -1;
+            }
+        };
+        start = System.currentTimeMillis();
+        try {
+            ProcessRunner.run(TOOL.IMAGEMAGICK, command, stalled, 200);
+            fail("The call should have timed out");
+        } catch (ToolTimeoutException e) {
+            assertEquals(200, e.getTimeoutMillis());
+        }
+        assertTrue(System.currentTimeMillis() - start < 10000);
+
+        // Not expired
+        command.set(2, "echo done");
+        ArrayList<String> output = ProcessRunner.run(TOOL.IMAGEMAGICK,
+                command, 10000);
+        assertEquals("done", output.get(0));
+    }
+
     @Test
     public void testExtractBinaryMetadataInDocumentOp_ExifTool()
             throws Exception {
@@ -20,6 +20,7 @@ package org.nuxeo.binary.metadata.test;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.nio.file.Files;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,6 +34,7 @@ import org.nuxeo.binary.metadata.ExternalTools.TOOL;
 import org.nuxeo.binary.metadata.operations.ExtractBinaryMetadataInDocumentOp;
 import org.nuxeo.binary.metadata.operations.WriteMetadataToBlobInDocOp;
 import org.nuxeo.binary.metadata.operations.WriteMetadataToBlobOp;
+import org.nuxeo.binary.metadata.scratch.ScratchFiles;
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.OperationChain;
@@ -42,6 +44,7 @@ import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.test.CoreFeature;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
@@ -184,6 +187,56 @@ public class MetadataWriterTest {
         assertEquals(KEYWORDS + ", yetAnotherOne", kws);
     }
 
+    @Test
+    public void testWriteOnACopy() throws Exception {
+
+        doLog(getCurrentMethodName(new RuntimeException()) + "...");
+
+        long lastModified = fileJPEG.lastModified();
+        long length = fileJPEG.length();
+        FileBlob blob = new FileBlob(fileJPEG, "image/jpeg");
+        blob.setFilename("my-picture.jpg");
+
+        Blob result;
+        try (MetadataWriter mdw = new MetadataWriter(blob)) {
+            result = mdw.writeMetadata("Keywords=" + KEYWORDS, true);
+        }
+
+        // A new file, with the name and mime type of the original blob
+        assertTrue(result instanceof FileBlob);
+        File resultFile = ((FileBlob) result).getFile();
+        assertFalse(fileJPEG.equals(resultFile));
+        assertTrue(resultFile.getName().endsWith(".jpg"));
+        assertEquals("my-picture.jpg", result.getFilename());
+        assertEquals("image/jpeg", result.getMimeType());
+        try (MetadataReader mdr = new MetadataReader(result)) {
+            assertEquals(KEYWORDS,
+                    mdr.readOneMetadata("Keywords", TOOL.EXIFTOOL));
+        }
+
+        // The original is untouched, and there is no backup
+        assertEquals(lastModified, fileJPEG.lastModified());
+        assertEquals(length, fileJPEG.length());
+        assertFalse(new File(resultFile.getPath() + "_original").exists());
+        assertFalse(new File(fileJPEG.getPath() + "_original").exists());
+
+        // A blob which is not a file is written to ExifTool, not copied first
+        Blob stream = new ByteArrayBlob(Files.readAllBytes(fileJPEG.toPath()),
+                "image/jpeg");
+        stream.setFilename("my-stream.jpg");
+        long created = ScratchFiles.getFilesCreated();
+        try (MetadataWriter mdw = new MetadataWriter(stream)) {
+            result = mdw.writeMetadata("Keywords=" + KEYWORDS, true);
+        }
+        assertEquals(created + 1, ScratchFiles.getFilesCreated());
+        assertTrue(((FileBlob) result).getFile().getName().endsWith(".jpg"));
+        assertEquals("my-stream.jpg", result.getFilename());
+        try (MetadataReader mdr = new MetadataReader(result)) {
+            assertEquals(KEYWORDS,
+                    mdr.readOneMetadata("Keywords", TOOL.EXIFTOOL));
+        }
+    }
+
     @Test
     public void testWriteMetadataToBlobOperation() throws Exception {
 